@@ -0,0 +1,47 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.clientsmanagement;
+
+import java.security.PublicKey;
+
+import bftsmart.tom.core.messages.TOMMessage;
+
+/**
+ * Verifies the client signatures of the requests of a proposed batch. The
+ * requests are split in chunks, and each chunk is given to one call of this
+ * interface, possibly from several threads at the same time. Implementations
+ * for signature schemes that support batch verification can check a whole
+ * chunk at once.
+ *
+ * The implementation is chosen with system.totalordermulticast.batch_verifier
+ * and must have a public no-argument constructor.
+ */
+public interface BatchSignatureVerifier {
+
+    /**
+     * Verifies the signatures of requests[from] to requests[to - 1]. The
+     * serialized form of a request may be a slice of the proposal (see
+     * TOMMessage.updateSerializedMessage).
+     *
+     * @param requests The signed requests
+     * @param keys The public key of the sender of each request
+     * @param from First request of the chunk
+     * @param to Request after the last one of the chunk
+     * @param valid Set valid[i] to true if the signature of requests[i] is correct
+     */
+    public void verify(TOMMessage[] requests, PublicKey[] keys, int from, int to, boolean[] valid);
+
+}
@@ -19,6 +19,7 @@ import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.tom.core.messages.TOMMessage;
@@ -34,7 +35,7 @@ public class ClientData {
     ReentrantLock clientLock = new ReentrantLock();
 
     private int clientId;
-    //private PublicKey publicKey = null;
+    private PublicKey publicKey = null;
 
     private int session = -1;
 
@@ -47,6 +48,11 @@ public class ClientData {
     //anb: new code to deal with client requests that arrive after their execution
     private RequestList orderedRequests = new RequestList(5);
 
+    //requests that were received but not proposed yet by this replica, in arrival order
+    private ConcurrentLinkedQueue<TOMMessage> proposableRequests = new ConcurrentLinkedQueue<TOMMessage>();
+    //true if this client is in the ready clients queue of the ClientsManager (guarded by clientLock)
+    boolean ready = false;
+
     private Signature signatureVerificator = null;
     
     /**
@@ -58,6 +64,7 @@ public class ClientData {
      */
     public ClientData(int clientId, PublicKey publicKey) {
         this.clientId = clientId;
+        this.publicKey = publicKey;
         if(publicKey != null) {
             try {
                 signatureVerificator = TOMUtil.getSigEngine();
@@ -73,6 +80,10 @@ public class ClientData {
         return clientId;
     }
 
+    public PublicKey getPublicKey() {
+        return publicKey;
+    }
+
     public int getSession() {
         return session;
     }
@@ -113,6 +124,70 @@ public class ClientData {
         return lastMessageReceivedTime;
     }
 
+    /**
+     * Adds a pending request to the queue of requests that may be proposed.
+     * Must be called while holding clientLock.
+     *
+     * @param request the pending request
+     */
+    void addProposableRequest(TOMMessage request) {
+        proposableRequests.add(request);
+    }
+
+    /**
+     * Discards the requests at the head of the queue of requests that may be
+     * proposed which were already proposed, already delivered or are from an
+     * old session. Must be called while holding clientLock.
+     *
+     * @return the number of requests discarded
+     */
+    int discardUnproposableRequests() {
+        int discarded = 0;
+        TOMMessage request = proposableRequests.peek();
+        while (request != null && (request.alreadyProposed
+                || request.getSession() != session
+                || request.getSequence() <= lastMessageDelivered)) {
+            proposableRequests.poll();
+            discarded++;
+            request = proposableRequests.peek();
+        }
+        return discarded;
+    }
+
+    /**
+     * Returns, without removing it, the oldest request that may still be
+     * proposed. Must be called while holding clientLock, after
+     * discardUnproposableRequests.
+     *
+     * @return the next request to be proposed, or null
+     */
+    TOMMessage peekProposableRequest() {
+        return proposableRequests.peek();
+    }
+
+    /**
+     * Removes and returns the oldest request that may still be proposed.
+     * Must be called while holding clientLock, after
+     * discardUnproposableRequests.
+     *
+     * @return the next request to be proposed, or null
+     */
+    TOMMessage pollProposableRequest() {
+        return proposableRequests.poll();
+    }
+
+    /**
+     * Discards all the requests that may be proposed. Must be called while
+     * holding clientLock.
+     *
+     * @return the number of requests discarded
+     */
+    int clearProposableRequests() {
+        int discarded = proposableRequests.size();
+        proposableRequests.clear();
+        return discarded;
+    }
+
     public boolean verifySignature(byte[] message, byte[] signature) {
         if(signatureVerificator != null) {
             try {
@@ -124,8 +199,32 @@ public class ClientData {
         return false;
     }
 
+    /**
+     * Verifies the client signature of a request, reading its serialized form
+     * in place (it may be a slice of a proposal).
+     *
+     * @param request the signed request
+     * @return true if the signature is valid
+     */
+    public boolean verifySignature(TOMMessage request) {
+        if(signatureVerificator != null) {
+            try {
+                request.updateSerializedMessage(signatureVerificator);
+                return signatureVerificator.verify(request.serializedMessageSignature);
+            } catch (SignatureException ex) {
+                logger.error("Failed to verify signature", ex);
+            }
+        }
+        return false;
+    }
+
     public boolean removeOrderedRequest(TOMMessage request) {
+        TOMMessage pending = pendingRequests.getBySequence(clientId, request.getSequence());
         if(pendingRequests.remove(request)) {
+            //the decided copy of the request replaces the one received from the client
+            if (pending != null && pending.fullReplyRequested) {
+                request.fullReplyRequested = true;
+            }
             //anb: new code to deal with client requests that arrive after their execution
             orderedRequests.addLast(request);
             return true;
@@ -149,8 +248,20 @@ public class ClientData {
     	return result;
     }
 
+    /**
+     * Returns the request with the given sequence number, if it is still
+     * pending or was recently ordered.
+     *
+     * @param reqSequence the sequence number of the request
+     * @return the request, or null if it is no longer kept
+     */
+    public TOMMessage getRequest(int reqSequence) {
+        TOMMessage request = orderedRequests.getBySequence(clientId, reqSequence);
+        return request != null ? request : pendingRequests.getBySequence(clientId, reqSequence);
+    }
+
     public TOMMessage getReply(int reqSequence) {
-        TOMMessage request = orderedRequests.getBySequence(reqSequence);
+        TOMMessage request = orderedRequests.getBySequence(clientId, reqSequence);
         if(request != null) {
             return request.reply;
         } else {
@@ -15,16 +15,19 @@ limitations under the License.
 */
 package bftsmart.clientsmanagement;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.Map.Entry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
 import bftsmart.tom.leaderchange.RequestsTimer;
 import bftsmart.tom.server.RequestVerifier;
+import bftsmart.tom.util.BatchBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,8 +41,13 @@ public class ClientsManager {
 
     private ServerViewController controller;
     private RequestsTimer timer;
-    private HashMap<Integer, ClientData> clientsData = new HashMap<Integer, ClientData>();
+    private ConcurrentHashMap<Integer, ClientData> clientsData = new ConcurrentHashMap<Integer, ClientData>();
     private RequestVerifier verifier;
+
+    //clients with requests that were not proposed yet, in round-robin order
+    private ConcurrentLinkedQueue<ClientData> readyClients = new ConcurrentLinkedQueue<ClientData>();
+    //estimate of the number of requests not proposed yet (see countPendingRequests)
+    private AtomicInteger proposableCount = new AtomicInteger();
     
     private ReentrantLock clientsLock = new ReentrantLock();
 
@@ -50,128 +58,188 @@ public class ClientsManager {
     }
 
     /**
-     * We are assuming that no more than one thread will access
-     * the same clientData during creation.
-     *
+     * Gets the data of a client, creating it on its first request. The
+     * clients table is concurrent, so no global lock is needed here.
      *
      * @param clientId
      * @return the ClientData stored on the manager
      */
     public ClientData getClientData(int clientId) {
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/
         ClientData clientData = clientsData.get(clientId);
 
         if (clientData == null) {
-            logger.debug("Creating new client data, client id=" + clientId);
-
-            //******* EDUARDO BEGIN **************//
-            clientData = new ClientData(clientId,
-                    (controller.getStaticConf().getUseSignatures())
-                    ? controller.getStaticConf().getPublicKey(clientId)
-                    : null);
-            //******* EDUARDO END **************//
-            clientsData.put(clientId, clientData);
+            clientData = clientsData.computeIfAbsent(clientId, id -> {
+                logger.debug("Creating new client data, client id=" + id);
+
+                //******* EDUARDO BEGIN **************//
+                return new ClientData(id,
+                        (controller.getStaticConf().getUseSignatures())
+                        ? controller.getStaticConf().getPublicKey(id)
+                        : null);
+                //******* EDUARDO END **************//
+            });
         }
 
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
-
         return clientData;
     }
 
     /**
      * Get pending requests in a fair way (one request from each client
-     * queue until the max number of requests is obtained).
+     * queue until the max number of requests is obtained). Only clients
+     * with requests not yet proposed are visited, so the cost depends on
+     * the batch size and not on the number of clients.
      *
      * @return the set of all pending requests of this system
      */
     public RequestList getPendingRequests() {
+        return getPendingRequests(controller.getStaticConf().getMaxBatchSize(), 0);
+    }
+
+    /**
+     * Same as getPendingRequests(), with the given limits. The first request
+     * is always taken, even if it is larger than maxBatchBytes.
+     *
+     * @param maxBatchSize Maximum number of requests
+     * @param maxBatchBytes Maximum number of bytes of serialized requests (and
+     * their signatures), or 0 for no limit
+     * @return the set of pending requests to be proposed
+     */
+    public RequestList getPendingRequests(int maxBatchSize, long maxBatchBytes) {
         RequestList allReq = new RequestList();
+        long batchBytes = 0;
 
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/
-        
-        Set<Entry<Integer, ClientData>> clientsEntrySet = clientsData.entrySet();
-        
-        for (int i = 0; true; i++) {
-            Iterator<Entry<Integer, ClientData>> it = clientsEntrySet.iterator();
-            int noMoreMessages = 0;
+        while (allReq.size() < maxBatchSize) {
+            ClientData clientData = readyClients.poll();
 
-            while (it.hasNext()
-                    && allReq.size() < controller.getStaticConf().getMaxBatchSize()
-                    && noMoreMessages < clientsEntrySet.size()) {
+            if (clientData == null) {
+                //no client has more pending requests
+                proposableCount.set(0);
+                break;
+            }
 
-                ClientData clientData = it.next().getValue();
-                RequestList clientPendingRequests = clientData.getPendingRequests();
+            boolean full = false;
 
-                clientData.clientLock.lock();
-                /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
-                TOMMessage request = (clientPendingRequests.size() > i) ? clientPendingRequests.get(i) : null;
+            clientData.clientLock.lock();
+            /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+            TOMMessage request = peekProposableRequest(clientData);
 
-                /******* END CLIENTDATA CRITICAL SECTION ******/
-                clientData.clientLock.unlock();
+            if (request != null) {
+                long size = proposedSize(request)
+                        + (request.serializedMessageSignature != null ? request.serializedMessageSignature.length : 0);
 
-                if (request != null) {
-                    if(!request.alreadyProposed) {
-                        //this client have pending message
-                        request.alreadyProposed = true;
-                        allReq.addLast(request);
-                    }
+                if (maxBatchBytes > 0 && !allReq.isEmpty() && batchBytes + size > maxBatchBytes) {
+                    full = true;
                 } else {
-                    //this client don't have more pending requests
-                    noMoreMessages++;
+                    clientData.pollProposableRequest();
+                    proposableCount.decrementAndGet();
+                    request.alreadyProposed = true;
+                    allReq.addLast(request);
+                    batchBytes += size;
                 }
             }
-            
-            if(allReq.size() == controller.getStaticConf().getMaxBatchSize() ||
-                    noMoreMessages == clientsEntrySet.size()) {
-                
-                break;
+
+            //back to the end of the queue, if it still has requests to propose
+            if (peekProposableRequest(clientData) != null) {
+                readyClients.add(clientData);
+            } else {
+                clientData.ready = false;
             }
+            /******* END CLIENTDATA CRITICAL SECTION ******/
+            clientData.clientLock.unlock();
+
+            if (full) break;
         }
         
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
-        
         //logger.debug("I have ({}) pending requests.", allReq.size());
         
         return allReq;
     }
 
+    // next request of a client that may be proposed, uncounting the ones discarded (holding its lock)
+    private TOMMessage peekProposableRequest(ClientData clientData) {
+        proposableCount.addAndGet(-clientData.discardUnproposableRequests());
+        return clientData.peekProposableRequest();
+    }
+
+    // bytes taken by a request in a batch, where large requests only have a reference
+    private long proposedSize(TOMMessage request) {
+        int largeRequestSize = controller.getStaticConf().getLargeRequestSize();
+
+        if (largeRequestSize > 0 && request.getSerializedMessageLength() > largeRequestSize) {
+            return BatchBuilder.REFERENCE_HEADER + request.getSerializedMessageHash().length;
+        }
+        return request.getSerializedMessageLength();
+    }
+
+    // large requests are fetched by the replicas that miss them, up to a maximum size
+    private boolean isTooLarge(TOMMessage request) {
+        return controller.getStaticConf().getLargeRequestSize() > 0
+                && request.getSerializedMessageLength() > controller.getStaticConf().getLargeRequestMaxSize();
+    }
+
     /**
-     * We've implemented some protection for individual client
-     * data, but the clients table can change during the operation.
+     * Looks for a request of a client, among its pending requests and the
+     * last ones ordered, without creating the client data.
+     *
+     * @param clientId The client
+     * @param sequence Sequence number of the request
+     * @return The request, or null if it is not here
+     */
+    public TOMMessage getRequest(int clientId, int sequence) {
+        ClientData clientData = clientsData.get(clientId);
+        if (clientData == null) return null;
+
+        clientData.clientLock.lock();
+        /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+        TOMMessage request = clientData.getPendingRequests().getBySequence(clientId, sequence);
+        if (request == null) {
+            request = clientData.getOrderedRequests().getBySequence(clientId, sequence);
+        }
+        /******* END CLIENTDATA CRITICAL SECTION ******/
+        clientData.clientLock.unlock();
+
+        return request;
+    }
+
+    /**
+     * Estimates the number of requests that can be proposed, without
+     * visiting the clients. Requests that can no longer be proposed are
+     * uncounted once they reach the head of the queue of their client (e.g.,
+     * when requests ordered through another leader are delivered).
+     *
+     * @return estimate of the number of pending requests
+     */
+    public int countPendingRequests() {
+        return Math.max(0, proposableCount.get());
+    }
+
+    /**
+     * Clients without requests to propose are dropped from the head of the
+     * ready clients queue, so this is usually O(1).
      *
      * @return true if there are some pending requests and false otherwise
      */
     public boolean havePendingRequests() {
-        boolean havePending = false;
+        ClientData clientData;
 
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/        
-        
-        Iterator<Entry<Integer, ClientData>> it = clientsData.entrySet().iterator();
+        while ((clientData = readyClients.peek()) != null) {
 
-        while (it.hasNext() && !havePending) {
-            ClientData clientData = it.next().getValue();
-            
             clientData.clientLock.lock();
-            RequestList reqs = clientData.getPendingRequests();
-            if (!reqs.isEmpty()) {
-                for(TOMMessage msg:reqs) {
-                    if(!msg.alreadyProposed) {
-                        havePending = true;
-                        break;
-                    }
-                }
+            /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+            boolean havePending = peekProposableRequest(clientData) != null;
+
+            if (!havePending && readyClients.remove(clientData)) {
+                clientData.ready = false;
             }
+            /******* END CLIENTDATA CRITICAL SECTION ******/
             clientData.clientLock.unlock();
+
+            if (havePending) {
+                return true;
+            }
         }
 
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
-        return havePending;
+        return false;
     }
 
     /**
@@ -207,6 +275,64 @@ public class ClientsManager {
         return requestReceived(request, fromClient, null);
     }
 
+    /**
+     * Unpacks the ordered requests a client sent in a BATCHED_REQUEST message.
+     * The content of the message holds the number of requests and, for each
+     * one, the size and bytes of the serialized request followed by the size
+     * and bytes of its signature (0 if not signed). The requests keep views
+     * of the batch as their serialized form, and are only accepted if they
+     * are ordered requests of the same client and session as the batch.
+     *
+     * @param batch the message received from the client
+     * @return the requests of the batch, or null if the batch is malformed
+     */
+    public TOMMessage[] unpackBatch(TOMMessage batch) {
+        ByteBuffer buffer = ByteBuffer.wrap(batch.getContent() != null ? batch.getContent() : new byte[0]);
+
+        try {
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / Integer.BYTES) {
+                throw new IOException("Invalid number of requests: " + count);
+            }
+
+            TOMMessage[] requests = new TOMMessage[count];
+
+            for (int i = 0; i < count; i++) {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    throw new IOException("Invalid request size: " + length);
+                }
+
+                TOMMessage request = new TOMMessage();
+                request.rExternal(buffer.array(), buffer.position(), length);
+                buffer.position(buffer.position() + length);
+
+                int signatureLength = buffer.getInt();
+                if (signatureLength < 0 || signatureLength > buffer.remaining()) {
+                    throw new IOException("Invalid signature size: " + signatureLength);
+                }
+                if (signatureLength > 0) {
+                    request.serializedMessageSignature = new byte[signatureLength];
+                    buffer.get(request.serializedMessageSignature);
+                    request.signed = true;
+                }
+
+                if (request.getSender() != batch.getSender() || request.getSession() != batch.getSession()
+                        || request.getReqType() != TOMMessageType.ORDERED_REQUEST) {
+                    throw new IOException("Request " + request + " does not belong to the batch");
+                }
+
+                requests[i] = request;
+            }
+
+            return requests;
+
+        } catch (IOException | RuntimeException ex) {
+            logger.warn("Discarding malformed batch from client {}: {}", batch.getSender(), ex.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Notifies the ClientsManager that a new request from a client arrived.
      * This method updates the ClientData of the client request.getSender().
@@ -228,6 +354,13 @@ public class ClientsManager {
         int clientId = request.getSender();
         boolean accounted = false;
 
+        //Would the replicas that miss it have to fetch more than the maximum size?
+        if (isTooLarge(request)) {
+            logger.warn("Rejecting request of {} bytes from client {}, above the maximum request size",
+                    request.getSerializedMessageLength(), clientId);
+            return false;
+        }
+
         ClientData clientData = getClientData(clientId);
         
         clientData.clientLock.lock();
@@ -270,6 +403,7 @@ public class ClientsManager {
             clientData.setLastMessageDelivered(-1);
             clientData.getOrderedRequests().clear();
             clientData.getPendingRequests().clear();
+            proposableCount.addAndGet(-clientData.clearProposableRequests());
         }
 
         if ((clientData.getLastMessageReceived() == -1) || //first message received or new session (see above)
@@ -282,10 +416,10 @@ public class ClientsManager {
             boolean isValid = (!controller.getStaticConf().isBFT() || verifier.isValidRequest(request));
 
             //it is a valid new message and I have to verify it's signature
+            //(unless it was already verified, e.g., by the verifier threads of the TOM layer)
             if (isValid &&
-                    (!request.signed ||
-                    clientData.verifySignature(request.serializedMessage,
-                            request.serializedMessageSignature))) {
+                    (!request.signed || request.signatureVerified ||
+                    clientData.verifySignature(request))) {
             	
             	//I don't have the message but it is valid, I will
                 //insert it in the pending requests of this client
@@ -293,6 +427,15 @@ public class ClientsManager {
                 request.recvFromClient = fromClient;
                 clientData.getPendingRequests().add(request); 
                 clientData.setLastMessageReceived(request.getSequence());
+
+                if (!request.alreadyProposed) {
+                    clientData.addProposableRequest(request);
+                    proposableCount.incrementAndGet();
+                    if (!clientData.ready) {
+                        clientData.ready = true;
+                        readyClients.add(clientData);
+                    }
+                }
                 clientData.setLastMessageReceivedTime(request.receptionTime);
 
                 //create a timer for this message
@@ -310,21 +453,27 @@ public class ClientsManager {
             if (clientData.getLastMessageReceived() >= request.getSequence()) {
                 //I already have/had this message
                 
-                //send reply if it is available
-                TOMMessage reply = clientData.getReply(request.getSequence());
+                TOMMessage kept = fromClient && request.getReplyServer() < 0 ?
+                        clientData.getRequest(request.getSequence()) : null;
                 
-                if (reply != null && cs != null) {
+                if (kept != null && kept.getReplyServer() >= 0 && kept.getReqType() == TOMMessageType.ORDERED_REQUEST) {
+                    //the client did not get a quorum of matching digest replies and asks for the complete response
+                    sendFullReply(kept, request.getSender(), cs);
+                }
+                else {
+                    //send reply if it is available
+                    TOMMessage reply = clientData.getReply(request.getSequence());
                     
-                    if (reply.recvFromClient && fromClient) {
-                        logger.info("[CACHE] re-send reply [Sender: " + reply.getSender() + ", sequence: " + reply.getSequence()+", session: " + reply.getSession()+ "]");
-                        cs.send(new int[]{request.getSender()}, reply);
-                    } 
-                    else if (!reply.recvFromClient && fromClient) {
-                        reply.recvFromClient = true;
+                    if (reply != null && cs != null) {
+                        
+                        if (reply.recvFromClient && fromClient) {
+                            logger.info("[CACHE] re-send reply [Sender: " + reply.getSender() + ", sequence: " + reply.getSequence()+", session: " + reply.getSession()+ "]");
+                            cs.send(new int[]{request.getSender()}, reply);
+                        } 
+                        else if (!reply.recvFromClient && fromClient) {
+                            reply.recvFromClient = true;
+                        }
                     }
-                    
-                    
-                    
                 }
                 accounted = true;
             } else {
@@ -340,19 +489,68 @@ public class ClientsManager {
         return accounted;
     }
 
+    /**
+     * Sends the complete response of an ordered request that was replied with
+     * a digest. If the request was not executed yet, it is marked so that the
+     * replica creates a complete reply when executing it (see ServiceReplica).
+     *
+     * @param request the request kept by the clients manager
+     * @param client the client asking for the complete response
+     * @param cs server com. system used to send the reply
+     */
+    private void sendFullReply(TOMMessage request, int client, ServerCommunicationSystem cs) {
+        TOMMessage reply;
+        synchronized (request) {
+            request.fullReplyRequested = true;
+            reply = request.reply;
+        }
+
+        if (reply == null || cs == null) {
+            logger.debug("Complete reply to sequence " + request.getSequence() + " of " + client + " will be sent on execution");
+            return;
+        }
+
+        logger.debug("Sending complete reply [Sender: " + reply.getSender() + ", sequence: " + reply.getSequence()+", session: " + reply.getSession()+ "]");
+        if (reply.fullContent != null) {
+            reply = new TOMMessage(reply.getSender(), reply.getSession(), reply.getSequence(),
+                    reply.getOperationId(), reply.fullContent, reply.getViewID(), reply.getReqType());
+        }
+        cs.send(new int[]{client}, reply);
+    }
+
+    /**
+     * Tells if requestReceived(request, false) may need to verify the signature
+     * of a request, i.e., if it is signed and was not received before in the
+     * current session of its client. Requests that are already pending were
+     * verified when they were received.
+     *
+     * @param request the request proposed by the leader
+     * @return true if the signature of the request should be verified
+     */
+    public boolean needsSignatureCheck(TOMMessage request) {
+        if (!request.signed || request.signatureVerified) return false;
+
+        ClientData clientData = getClientData(request.getSender());
+
+        clientData.clientLock.lock();
+        boolean received = clientData.getSession() == request.getSession() &&
+                clientData.getLastMessageReceived() >= request.getSequence();
+        clientData.clientLock.unlock();
+
+        return !received;
+    }
+
     /**
      * Notifies the ClientsManager that these requests were already executed.
      * 
      * @param requests the array of requests to account as ordered
      */
     public void requestsOrdered(TOMMessage[] requests) {
-        clientsLock.lock();
         logger.debug("Updating client manager");
         for (TOMMessage request : requests) {
             requestOrdered(request);
         }
         logger.debug("Finished updating client manager");
-        clientsLock.unlock();
     }
 
     /**
@@ -375,6 +573,8 @@ public class ClientsManager {
             logger.debug("Request " + request + " does not exist in pending requests");
         }
         clientData.setLastMessageDelivered(request.getSequence());
+        //the request may have been proposed by another replica, it is not proposable anymore
+        proposableCount.addAndGet(-clientData.discardUnproposableRequests());
 
         /******* END CLIENTDATA CRITICAL SECTION ******/
         clientData.clientLock.unlock();
@@ -387,6 +587,8 @@ public class ClientsManager {
     public void clear() {
         clientsLock.lock();
         clientsData.clear();
+        readyClients.clear();
+        proposableCount.set(0);
         clientsLock.unlock();
         logger.info("ClientsManager cleared.");
 
@@ -0,0 +1,55 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.clientsmanagement;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.CryptoEngines;
+
+/**
+ * Verifies each signature of a chunk on its own, with the signature engines
+ * of the calling thread, already initialized with each client key (engines
+ * are not thread safe, and creating one per request is expensive).
+ */
+public class DefaultBatchSignatureVerifier implements BatchSignatureVerifier {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Override
+    public void verify(TOMMessage[] requests, PublicKey[] keys, int from, int to, boolean[] valid) {
+        for (int i = from; i < to; i++) {
+            if (keys[i] == null) {
+                valid[i] = false;
+                continue;
+            }
+            try {
+                Signature engine = CryptoEngines.verifier(keys[i]);
+                requests[i].updateSerializedMessage(engine);
+                valid[i] = engine.verify(requests[i].serializedMessageSignature);
+            } catch (GeneralSecurityException ex) {
+                CryptoEngines.discard(keys[i]);
+                logger.error("Failed to verify signature of " + requests[i], ex);
+                valid[i] = false;
+            }
+        }
+    }
+}
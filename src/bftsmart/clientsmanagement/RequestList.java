@@ -15,23 +15,43 @@ limitations under the License.
 */
 package bftsmart.clientsmanagement;
 
+import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import bftsmart.tom.core.messages.TOMMessage;
 
 /**
- * Extended LinkedList used to store pending requests issued by a client.
+ * List used to store pending requests issued by a client (and batches of
+ * requests to be proposed). Requests are kept in insertion order in a circular
+ * array, and two open-addressing indexes map request ids and (sender, sequence
+ * number) pairs to their position, so lookups and removals by id, sequence or
+ * message do not scan the list and no node is allocated per request. The list
+ * may hold requests from several clients (e.g., a batch), which can use the
+ * same sequence numbers.
  *
  * @author alysson
  */
-public class RequestList extends LinkedList<TOMMessage> {
+public class RequestList extends AbstractList<TOMMessage> implements Serializable {
 	
-	private static final long serialVersionUID = -3639222602426147629L;
+	private static final long serialVersionUID = -3639222602426147630L;
+
+	private static final int INITIAL_CAPACITY = 16;
 	
 	private int maxSize = Integer.MAX_VALUE;
 
+    // requests are stored at absolute positions [head, tail), slot = position & (slots.length - 1);
+    // removed requests leave a null slot until the list is compacted
+    private TOMMessage[] slots = new TOMMessage[INITIAL_CAPACITY];
+    private long head = 0;
+    private long tail = 0;
+    private int size = 0;
+
+    private PositionIndex ids = new PositionIndex();
+    private PositionIndex sequences = new PositionIndex();
+
     public RequestList() {
     }
 
@@ -40,83 +60,360 @@ public class RequestList extends LinkedList<TOMMessage> {
         this.maxSize = maxSize;
     }
 
-    @Override
     public void addLast(TOMMessage msg) {
-        super.addLast(msg);
+        if (tail - head == slots.length) {
+            makeRoom();
+        }
+
+        long pos = tail++;
+        slots[slot(pos)] = msg;
+        ids.put(msg.getId(), pos);
+        sequences.put(sequenceKey(msg.getSender(), msg.getSequence()), pos);
+        size++;
+        modCount++;
+
         if(size() > maxSize) {
-            super.removeFirst();
+            removeFirst();
         }
     }
 
+    @Override
+    public boolean add(TOMMessage msg) {
+        addLast(msg);
+        return true;
+    }
+
+    public TOMMessage getFirst() {
+        if (size == 0) throw new NoSuchElementException();
+        return slots[slot(head)];
+    }
+
+    public TOMMessage removeFirst() {
+        if (size == 0) throw new NoSuchElementException();
+        return removeAt(head);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        slots = new TOMMessage[INITIAL_CAPACITY];
+        head = tail = 0;
+        size = 0;
+        ids = new PositionIndex();
+        sequences = new PositionIndex();
+        modCount++;
+    }
+
+    /**
+     * Walks the list, prefer the lookups by id or sequence.
+     */
+    @Override
+    public TOMMessage get(int index) {
+        return slots[slot(positionOf(index))];
+    }
+
+    @Override
+    public TOMMessage remove(int index) {
+        return removeAt(positionOf(index));
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof TOMMessage)) return false;
+
+        long pos = find(ids, o.hashCode(), o);
+        if (pos < 0) return false;
+
+        removeAt(pos);
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return (o instanceof TOMMessage) && find(ids, o.hashCode(), o) >= 0;
+    }
+
     public TOMMessage remove(byte[] serializedMessage) {
-        for(ListIterator<TOMMessage> li = listIterator(); li.hasNext(); ) {
-            TOMMessage msg = li.next();
-            if(Arrays.equals(serializedMessage,msg.serializedMessage)) {
-                li.remove();
-                return msg;
-            }
-        }
-        return null;
+        long pos = findSerialized(serializedMessage);
+        return (pos < 0) ? null : removeAt(pos);
     }
 
     public TOMMessage removeById(int id){
-        for(ListIterator<TOMMessage> li = listIterator(); li.hasNext(); ) {
-            TOMMessage msg = li.next();
-            if(msg.getId() == id) {
-                li.remove();
-                return msg;
-            }
-        }
-        return null;
+        long pos = find(ids, id, null);
+        return (pos < 0) ? null : removeAt(pos);
     }
 
      // I think this method can be removed in future versions of JBP
     public int[] getIds(){
         int ids[] = new int[size()];
-        for(int i = 0; i < ids.length; i++){
-            ids[i] = get(i).getId();
+        int i = 0;
+        for (TOMMessage msg : this) {
+            ids[i++] = msg.getId();
         }
 
         return ids;
     }
 
     public TOMMessage get(byte[] serializedMessage){
-        for(ListIterator<TOMMessage> li = listIterator(); li.hasNext(); ) {
-            TOMMessage msg = li.next();
-            if(Arrays.equals(serializedMessage,msg.serializedMessage)) {
-                return msg;
+        long pos = findSerialized(serializedMessage);
+        return (pos < 0) ? null : slots[slot(pos)];
+    }
+
+
+    public TOMMessage getById(int id){
+        long pos = find(ids, id, null);
+        return (pos < 0) ? null : slots[slot(pos)];
+    }
+    
+    public TOMMessage getBySequence(int sender, int sequence){
+        long pos = findSequence(sender, sequence);
+        return (pos < 0) ? null : slots[slot(pos)];
+    }
+
+    public boolean contains(int id){
+        return find(ids, id, null) >= 0;
+    }
+
+    @Override
+    public Iterator<TOMMessage> iterator() {
+        return new Iterator<TOMMessage>() {
+
+            private long next = skipRemoved(head);
+            private long last = -1;
+            private int expectedModCount = modCount;
+
+            @Override
+            public boolean hasNext() {
+                return next < tail;
+            }
+
+            @Override
+            public TOMMessage next() {
+                if (modCount != expectedModCount) throw new java.util.ConcurrentModificationException();
+                if (next >= tail) throw new NoSuchElementException();
+
+                last = next;
+                next = skipRemoved(next + 1);
+                return slots[slot(last)];
+            }
+
+            @Override
+            public void remove() {
+                if (last < 0) throw new IllegalStateException();
+                if (modCount != expectedModCount) throw new java.util.ConcurrentModificationException();
+
+                removeAt(last);
+                last = -1;
+                next = skipRemoved(Math.max(next, head));
+                expectedModCount = modCount;
             }
+        };
+    }
+
+    private int slot(long pos) {
+        return (int) (pos & (slots.length - 1));
+    }
+
+    private long skipRemoved(long pos) {
+        while (pos < tail && slots[slot(pos)] == null) {
+            pos++;
         }
-        return null;
+        return pos;
     }
 
+    private long positionOf(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
 
-    public TOMMessage getById(int id){
-        for(ListIterator<TOMMessage> li = listIterator(); li.hasNext(); ) {
-            TOMMessage msg = li.next();
-            if(msg.getId() == id) {
-                return msg;
+        long pos = skipRemoved(head);
+        for (int i = 0; i < index; i++) {
+            pos = skipRemoved(pos + 1);
+        }
+        return pos;
+    }
+
+    private TOMMessage removeAt(long pos) {
+        int s = slot(pos);
+        TOMMessage msg = slots[s];
+
+        slots[s] = null;
+        ids.remove(msg.getId(), pos);
+        sequences.remove(sequenceKey(msg.getSender(), msg.getSequence()), pos);
+        size--;
+        modCount++;
+
+        // drop the removed slots at both ends
+        head = skipRemoved(head);
+        while (tail > head && slots[slot(tail - 1)] == null) {
+            tail--;
+        }
+        if (size == 0) {
+            head = tail = 0;
+        }
+
+        return msg;
+    }
+
+    // returns the first position (in list order) of a request with the given key,
+    // which must also be equal to match (if it is a TOMMessage), or -1
+    private long find(PositionIndex index, int key, Object match) {
+        long found = -1;
+        for (int i = index.home(key); index.positions[i] != -1; i = (i + 1) & index.mask) {
+            if (index.keys[i] != key) continue;
+
+            long pos = index.positions[i];
+            if ((found < 0 || pos < found) && (match == null || match.equals(slots[slot(pos)]))) {
+                found = pos;
             }
         }
-        return null;
+        return found;
     }
-    
-    public TOMMessage getBySequence(int sequence){
-        for(ListIterator<TOMMessage> li = listIterator(); li.hasNext(); ) {
-            TOMMessage msg = li.next();
-            if(msg.getSequence() == sequence) {
-                return msg;
+
+    private long findSequence(int sender, int sequence) {
+        int key = sequenceKey(sender, sequence);
+
+        long found = -1;
+        for (int i = sequences.home(key); sequences.positions[i] != -1; i = (i + 1) & sequences.mask) {
+            if (sequences.keys[i] != key) continue;
+
+            long pos = sequences.positions[i];
+            TOMMessage msg = slots[slot(pos)];
+            if ((found < 0 || pos < found) && msg.getSender() == sender && msg.getSequence() == sequence) {
+                found = pos;
             }
         }
-        return null;
+        return found;
     }
-    public boolean contains(int id){
-        for(ListIterator<TOMMessage> li = listIterator(); li.hasNext(); ) {
-            TOMMessage msg = li.next();
-            if(msg.getId() == id) {
-                return true;
+
+    // different pairs can share a key, so lookups must also compare sender and sequence
+    private static int sequenceKey(int sender, int sequence) {
+        return sender * 0x01000193 + sequence;
+    }
+
+    private long findSerialized(byte[] serializedMessage) {
+        TOMMessage key = TOMMessage.bytesToMessage(serializedMessage);
+        if (key == null) return -1;
+
+        long found = -1;
+        for (int i = ids.home(key.getId()); ids.positions[i] != -1; i = (i + 1) & ids.mask) {
+            if (ids.keys[i] != key.getId()) continue;
+
+            long pos = ids.positions[i];
+            if ((found < 0 || pos < found) && Arrays.equals(serializedMessage, slots[slot(pos)].getSerializedMessage())) {
+                found = pos;
+            }
+        }
+        return found;
+    }
+
+    // the circular array is full: compact it if most slots were removed, grow it otherwise
+    private void makeRoom() {
+        if (size < slots.length / 2) {
+            TOMMessage[] old = slots;
+            long oldHead = head, oldTail = tail;
+
+            slots = new TOMMessage[old.length];
+            ids = new PositionIndex();
+            sequences = new PositionIndex();
+            head = tail = 0;
+
+            for (long pos = oldHead; pos < oldTail; pos++) {
+                TOMMessage msg = old[(int) (pos & (old.length - 1))];
+                if (msg != null) {
+                    slots[slot(tail)] = msg;
+                    ids.put(msg.getId(), tail);
+                    sequences.put(sequenceKey(msg.getSender(), msg.getSequence()), tail);
+                    tail++;
+                }
+            }
+        } else {
+            TOMMessage[] old = slots;
+            int oldMask = old.length - 1;
+
+            slots = new TOMMessage[old.length * 2];
+            for (long pos = head; pos < tail; pos++) {
+                slots[slot(pos)] = old[(int) (pos & oldMask)];
+            }
+        }
+    }
+
+    /**
+     * Open-addressing multimap from an int key (request id or the key of a
+     * sender and sequence number) to the positions of the requests with that key. Uses linear probing and
+     * backward-shift deletion, so it needs no tombstones.
+     */
+    private static final class PositionIndex implements Serializable {
+
+        private static final long serialVersionUID = 6140416283870226531L;
+
+        private int[] keys;
+        private long[] positions;
+        private int mask;
+        private int count;
+
+        PositionIndex() {
+            allocate(INITIAL_CAPACITY * 2);
+        }
+
+        private void allocate(int capacity) {
+            keys = new int[capacity];
+            positions = new long[capacity];
+            Arrays.fill(positions, -1);
+            mask = capacity - 1;
+            count = 0;
+        }
+
+        int home(int key) {
+            int h = key * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        void put(int key, long pos) {
+            if ((count + 1) * 2 > positions.length) {
+                int[] oldKeys = keys;
+                long[] oldPositions = positions;
+
+                allocate(positions.length * 2);
+                for (int i = 0; i < oldPositions.length; i++) {
+                    if (oldPositions[i] != -1) put(oldKeys[i], oldPositions[i]);
+                }
+            }
+
+            int i = home(key);
+            while (positions[i] != -1) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            positions[i] = pos;
+            count++;
+        }
+
+        void remove(int key, long pos) {
+            int i = home(key);
+            while (positions[i] != -1 && (keys[i] != key || positions[i] != pos)) {
+                i = (i + 1) & mask;
+            }
+            if (positions[i] == -1) return;
+
+            // shift back the following entries of the cluster that would not be found anymore
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (positions[j] == -1) break;
+
+                int h = home(keys[j]);
+                boolean stays = (i <= j) ? (i < h && h <= j) : (i < h || h <= j);
+                if (!stays) {
+                    keys[i] = keys[j];
+                    positions[i] = positions[j];
+                    i = j;
+                }
             }
+            positions[i] = -1;
+            count--;
         }
-        return false;
     }
 }
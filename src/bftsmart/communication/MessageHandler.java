@@ -22,6 +22,7 @@ import bftsmart.statemanagement.SMMessage;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.messages.ForwardedMessage;
+import bftsmart.tom.core.messages.LargeRequestMessage;
 import bftsmart.tom.leaderchange.LCMessage;
 import bftsmart.tom.util.TOMUtil;
 import java.io.ByteArrayOutputStream;
@@ -146,6 +147,9 @@ public class MessageHandler {
 	                TOMMessage request = ((ForwardedMessage) sm).getRequest();
 	                tomLayer.requestReceived(request);
 	
+	            } else if (sm instanceof LargeRequestMessage) {
+	                tomLayer.getLargeRequests().messageReceived((LargeRequestMessage) sm);
+
 	            /** This is Joao's code, to handle state transfer */
 	            } else if (sm instanceof SMMessage) {
 	                SMMessage smsg = (SMMessage) sm;
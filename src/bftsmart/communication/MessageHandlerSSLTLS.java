@@ -34,6 +34,7 @@ import bftsmart.consensus.roles.AcceptorSSLTLS;
 import bftsmart.statemanagement.SMMessage;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.ForwardedMessage;
+import bftsmart.tom.core.messages.LargeRequestMessage;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.leaderchange.LCMessage;
 import bftsmart.tom.util.TOMUtil;
@@ -158,6 +159,9 @@ public class MessageHandlerSSLTLS {
 					TOMMessage request = ((ForwardedMessage) sm).getRequest();
 					tomLayer.requestReceived(request);
 
+				} else if (sm instanceof LargeRequestMessage) {
+					tomLayer.getLargeRequests().messageReceived((LargeRequestMessage) sm);
+
 					/** This is Joao's code, to handle state transfer */
 				} else if (sm instanceof SMMessage) {
 					SMMessage smsg = (SMMessage) sm;
@@ -26,6 +26,7 @@ import org.slf4j.LoggerFactory;
 import bftsmart.communication.client.CommunicationSystemServerSide;
 import bftsmart.communication.client.CommunicationSystemServerSideFactory;
 import bftsmart.communication.client.RequestReceiver;
+import bftsmart.communication.server.NettyServersCommunicationLayer;
 import bftsmart.communication.server.ServersCommunicationLayer;
 import bftsmart.communication.server.ServersCommunicationLayerSSLTLS;
 import bftsmart.consensus.roles.Acceptor;
@@ -70,7 +71,11 @@ public class ServerCommunicationSystem extends Thread {
 			messageHandlerSSLTLS = new MessageHandlerSSLTLS();
 			connType = ConnType.SSL_TLS;
 		} else {
-			serversConn = new ServersCommunicationLayer(controller, inQueue, replica);
+			if ("netty".equalsIgnoreCase(controller.getStaticConf().getServerTransport())) {
+				serversConn = new NettyServersCommunicationLayer(controller, inQueue, replica);
+			} else {
+				serversConn = new ServersCommunicationLayer(controller, inQueue, replica);
+			}
 			messageHandler = new MessageHandler();
 			connType = ConnType.No_SSL_TLS;
 		}
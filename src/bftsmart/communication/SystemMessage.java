@@ -15,6 +15,8 @@ limitations under the License.
 */
 package bftsmart.communication;
 
+import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
@@ -54,6 +56,26 @@ public abstract class SystemMessage implements Externalizable {
         return sender;
     }
 
+    /**
+     * Checks a length read by rExternal against the bytes left in the input,
+     * so that a malformed message is rejected before anything is allocated.
+     * Messages are decoded from byte arrays, for which available() is the
+     * number of bytes left.
+     *
+     * @param in Input from which the message is read
+     * @param length Number of elements read from the input
+     * @param elementSize Minimum number of bytes of each element
+     * @return The length
+     * @throws IOException If the length is negative or larger than the input left
+     */
+    protected static int checkLength(DataInput in, int length, int elementSize) throws IOException {
+        if (length < 0 || (in instanceof DataInputStream
+                && (long) length * elementSize > ((DataInputStream) in).available())) {
+            throw new IOException("Invalid length: " + length);
+        }
+        return length;
+    }
+
     // This methods implement the Externalizable interface
     @Override
     public void writeExternal(ObjectOutput out) throws IOException {
@@ -27,20 +27,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import bftsmart.reconfiguration.ClientViewController;
+import bftsmart.tom.core.messages.TOMMessage;
 
 public class NettyClientPipelineFactory {
 
 	
-	NettyClientServerCommunicationSystemClientSide ncs;
+	SimpleChannelInboundHandler<TOMMessage> handler;
 	ConcurrentHashMap<Integer, NettyClientServerSession> sessionTable;
 	ClientViewController controller;
 	ReentrantReadWriteLock rl;
 
-	public NettyClientPipelineFactory(NettyClientServerCommunicationSystemClientSide ncs, 
+	public NettyClientPipelineFactory(SimpleChannelInboundHandler<TOMMessage> handler, 
 				ConcurrentHashMap<Integer, NettyClientServerSession> sessionTable,
 				ClientViewController controller, 
 				ReentrantReadWriteLock rl) {
-		this.ncs = ncs;
+		this.handler = handler;
 		this.sessionTable = sessionTable;
 		
 		this.rl = rl;
@@ -57,6 +58,6 @@ public class NettyClientPipelineFactory {
     }
     
     public SimpleChannelInboundHandler getHandler(){
-    	return ncs;	
+    	return handler;	
     }
 }
@@ -0,0 +1,232 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, Tulio Ribeiro
+and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package bftsmart.communication.client.netty;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.communication.client.ReplyReceiver;
+import bftsmart.tom.core.messages.TOMMessage;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.flush.FlushConsolidationHandler;
+
+/**
+ * Event loops and connections to the replicas shared by all the client side
+ * communication systems of a JVM, so that the number of threads and sockets
+ * does not grow with the number of clients. Each client always uses the same
+ * connection to a replica (chosen by its id), which keeps its requests in
+ * order, and replies are delivered to the reply receiver registered for their
+ * session.
+ */
+@Sharable
+public class NettyClientRuntime extends SimpleChannelInboundHandler<TOMMessage> {
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private static NettyClientRuntime instance;
+	private static int references = 0;
+
+	private static int tcpSendBufferSize = 8 * 1024 * 1024;
+	private static int connectionTimeoutMsec = 40000; /* (40 seconds, timeout) */
+	private static int reconnectDelaySec = 10;
+	private static final int FLUSH_LIMIT = 256; // writes flushed at once at most
+
+	private final int connectionsPerReplica;
+	private final EventLoopGroup workerGroup;
+	private final ConcurrentHashMap<SocketAddress, AtomicReferenceArray<Channel>> connections = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Integer, ReplyReceiver> receivers = new ConcurrentHashMap<>(); // by session
+	private final NettyClientPipelineFactory pipelineFactory;
+	private volatile boolean closed = false;
+
+	private NettyClientRuntime(int connectionsPerReplica) {
+		this.connectionsPerReplica = Math.max(1, connectionsPerReplica);
+		this.workerGroup = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors());
+		this.pipelineFactory = new NettyClientPipelineFactory(this, new ConcurrentHashMap<>(), null,
+				new ReentrantReadWriteLock());
+	}
+
+	/**
+	 * Obtains the runtime of this JVM, creating it if needed. Every call must
+	 * be matched by a call to release.
+	 * @param connectionsPerReplica Number of connections to each replica, used if the runtime is created
+	 * @return The runtime
+	 */
+	public static synchronized NettyClientRuntime acquire(int connectionsPerReplica) {
+		if (instance == null) {
+			instance = new NettyClientRuntime(connectionsPerReplica);
+		}
+		references++;
+		return instance;
+	}
+
+	/**
+	 * Releases the runtime, which is shut down once no client uses it
+	 * @param runtime The runtime obtained with acquire
+	 */
+	public static synchronized void release(NettyClientRuntime runtime) {
+		if (runtime != instance) return;
+
+		if (--references == 0) {
+			instance = null;
+			runtime.shutdown();
+		}
+	}
+
+	/**
+	 * Registers the receiver of the replies for a session
+	 * @param session Session of the client
+	 * @param receiver The receiver of the replies
+	 */
+	public void register(int session, ReplyReceiver receiver) {
+		ReplyReceiver previous = receivers.put(session, receiver);
+		if (previous != null && previous != receiver) {
+			logger.warn("Session {} was registered by another client", session);
+		}
+	}
+
+	public void unregister(int session, ReplyReceiver receiver) {
+		receivers.remove(session, receiver);
+	}
+
+	/**
+	 * Retrieves the connection a client uses to talk to a replica, connecting
+	 * to the replica if needed
+	 * @param address Address of the replica
+	 * @param clientId Id of the client
+	 * @return The channel, which may not be active if the replica is unreachable
+	 */
+	public Channel getChannel(SocketAddress address, int clientId) {
+		AtomicReferenceArray<Channel> pool = connections.computeIfAbsent(address,
+				a -> new AtomicReferenceArray<>(connectionsPerReplica));
+		int index = Math.floorMod(clientId, pool.length());
+
+		Channel channel = pool.get(index);
+		if (channel != null) return channel;
+
+		ChannelFuture future = null;
+		synchronized (pool) {
+			if (pool.get(index) == null) {
+				future = connect(address, pool, index);
+			}
+		}
+		if (future != null) {
+			future.awaitUninterruptibly();
+			if (!future.isSuccess()) {
+				logger.error("Impossible to connect to " + address);
+			}
+		}
+		return pool.get(index);
+	}
+
+	// must be called with the pool locked
+	private ChannelFuture connect(SocketAddress address, AtomicReferenceArray<Channel> pool, int index) {
+		Bootstrap b = new Bootstrap();
+		b.group(workerGroup);
+		b.channel(NioSocketChannel.class);
+		b.option(ChannelOption.SO_KEEPALIVE, true);
+		b.option(ChannelOption.TCP_NODELAY, true);
+		b.option(ChannelOption.SO_SNDBUF, tcpSendBufferSize);
+		b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectionTimeoutMsec);
+		b.handler(new ChannelInitializer<SocketChannel>() {
+			@Override
+			public void initChannel(SocketChannel ch) throws Exception {
+				// the clients sharing the connection write from their own threads, their flushes are coalesced
+				ch.pipeline().addLast(new FlushConsolidationHandler(FLUSH_LIMIT, true));
+				ch.pipeline().addLast(pipelineFactory.getDecoder());
+				ch.pipeline().addLast(pipelineFactory.getEncoder());
+				ch.pipeline().addLast(pipelineFactory.getHandler());
+			}
+		});
+
+		logger.debug("Connecting to replica at address: {}", address);
+		ChannelFuture future = b.connect(address);
+		Channel channel = future.channel();
+		pool.set(index, channel);
+
+		// reconnects when the connection is lost or could not be established
+		channel.closeFuture().addListener(f -> scheduleReconnect(address, pool, index, channel));
+		return future;
+	}
+
+	private void scheduleReconnect(SocketAddress address, AtomicReferenceArray<Channel> pool, int index, Channel channel) {
+		if (closed) return;
+
+		workerGroup.schedule(() -> {
+			synchronized (pool) {
+				if (!closed && pool.get(index) == channel) {
+					logger.info("Re-connecting to replica at address: {}", address);
+					connect(address, pool, index);
+				}
+			}
+		}, reconnectDelaySec, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void channelRead0(ChannelHandlerContext ctx, TOMMessage sm) throws Exception {
+		ReplyReceiver receiver = receivers.get(sm.getSession());
+		if (receiver != null) {
+			receiver.replyReceived(sm);
+		} else {
+			logger.debug("Discarding reply for unknown session " + sm.getSession());
+		}
+	}
+
+	@Override
+	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+		if (cause instanceof ClosedChannelException) {
+			logger.error("Connection with replica closed.", cause);
+		} else if (cause instanceof ConnectException) {
+			logger.error("Impossible to connect to replica.", cause);
+		} else if (cause instanceof IOException){
+			logger.error("Replica disconnected. Connection reset by peer.");
+		}
+		else {
+			logger.error("Replica disconnected.", cause);
+		}
+	}
+
+	private void shutdown() {
+		closed = true;
+		for (AtomicReferenceArray<Channel> pool : connections.values()) {
+			for (int i = 0; i < pool.length(); i++) {
+				Channel channel = pool.get(i);
+				if (channel != null) channel.close();
+			}
+		}
+		workerGroup.shutdownGracefully();
+	}
+}
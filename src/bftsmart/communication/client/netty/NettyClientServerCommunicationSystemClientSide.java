@@ -19,27 +19,14 @@ package bftsmart.communication.client.netty;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.ConnectException;
-import java.nio.channels.ClosedChannelException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.net.SocketAddress;
 import java.security.PrivateKey;
-import java.security.Signature;
-import java.security.spec.InvalidKeySpecException;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,29 +35,22 @@ import bftsmart.communication.client.CommunicationSystemClientSide;
 import bftsmart.communication.client.ReplyReceiver;
 import bftsmart.reconfiguration.ClientViewController;
 import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
 import bftsmart.tom.util.TOMUtil;
-import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelHandler.Sharable;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInitializer;
-import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoop;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.channel.ChannelFutureListener;
 
 /**
+ * Client side of the client-server communication system. The event loops and
+ * the connections to the replicas belong to the NettyClientRuntime shared by
+ * all the clients of the JVM.
  *
  * @author Paulo
  */
-@Sharable
-public class NettyClientServerCommunicationSystemClientSide extends SimpleChannelInboundHandler<TOMMessage>
-		implements CommunicationSystemClientSide {
+public class NettyClientServerCommunicationSystemClientSide implements CommunicationSystemClientSide {
 
 	private Logger logger = LoggerFactory.getLogger(this.getClass());
 
@@ -79,19 +59,19 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 	// ******* EDUARDO BEGIN **************//
 	private ClientViewController controller;
 	// ******* EDUARDO END **************//
-	private ConcurrentHashMap<Integer, NettyClientServerSession> sessionClientToReplica = new ConcurrentHashMap<>();
-	private ReentrantReadWriteLock rl;
-	private Signature signatureEngine;
 	private boolean closed = false;
 
-	private EventLoopGroup workerGroup;
-	private SyncListener listener;
-	
-	private SecretKeyFactory secretKeyFactory;
+	private NettyClientRuntime runtime;
+	private Integer session; // session whose replies are delivered to trr
+
+	// requests whose frames were not yet written to a quorum of the targets, bounds the memory used by a client
+	private static final int MAX_PENDING_WRITES = 1024;
+	// how long a request waits for a credit before being sent anyway (e.g., if
+	// more than f replicas refuse to read)
+	private static final long WRITE_CREDIT_TIMEOUT = 5000;
+	private final Semaphore writeCredits = new Semaphore(MAX_PENDING_WRITES);
 
 	/* Tulio Ribeiro */
-	private static int tcpSendBufferSize = 8 * 1024 * 1024;
-	private static int connectionTimeoutMsec = 40000; /* (40 seconds, timeout) */
 	private PrivateKey privKey;
 	/* end Tulio Ribeiro */
 
@@ -100,158 +80,25 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 		super();
 
 		this.clientId = clientId;
-		this.workerGroup = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors());
-		try {
-			
-			this.secretKeyFactory = TOMUtil.getSecretFactory();
-
-			this.controller = controller;
-			
-			/*Tulio Ribeiro*/
-			privKey = controller.getStaticConf().getPrivateKey();
-			
-			this.listener = new SyncListener();
-			this.rl = new ReentrantReadWriteLock();
-
-			int[] currV = controller.getCurrentViewProcesses();
-
-			for (int i = 0; i < currV.length; i++) {
-				int replicaId = currV[i];
-				try {
-
-					ChannelFuture future = connectToReplica(replicaId, secretKeyFactory);
-
-					logger.debug("ClientID {}, connecting to replica {}, at address: {}", 
-							clientId, 
-							replicaId,
-							controller.getRemoteAddress(replicaId));
-
-					future.awaitUninterruptibly();
-
-					if (!future.isSuccess()) {
-						logger.error("Impossible to connect to " + replicaId);
-					}
-
-				} catch (java.lang.NullPointerException ex) {
-					// What is this??? This is not possible!!!
-					logger.debug("Should fix the problem, and I think it has no other implications :-), "
-							+ "but we must make the servers store the view in a different place.");
-				} catch (Exception ex) {
-					logger.error("Failed to initialize MAC engine", ex);
-				}
-			}
-		} catch (NoSuchAlgorithmException ex) {
-			logger.error("Failed to initialize secret key factory", ex);
-		}
-	}
+		this.controller = controller;
+		this.runtime = NettyClientRuntime.acquire(controller.getStaticConf().getClientConnections());
 
-	@Override
-	public void updateConnections() {
-		int[] currV = controller.getCurrentViewProcesses();
-		try {
-			// open connections with new servers
-			for (int i = 0; i < currV.length; i++) {
-
-				int replicaId = currV[i];
-
-				rl.readLock().lock();
-				if (sessionClientToReplica.get(replicaId) == null) {
-					rl.readLock().unlock();
-					rl.writeLock().lock();
-					try {
-						ChannelFuture future = connectToReplica(replicaId, secretKeyFactory);
-						logger.debug("ClientID {}, updating connection to replica {}, at address: {}", clientId,
-								replicaId, controller.getRemoteAddress(replicaId));
-
-						future.awaitUninterruptibly();
-
-						if (!future.isSuccess()) {
-							logger.error("Impossible to connect to " + replicaId);
-						}
-
-					} catch (InvalidKeyException | InvalidKeySpecException ex) {
-						logger.error("Failed to initialize MAC engine", ex);
-					}
-					rl.writeLock().unlock();
-				} else {
-					rl.readLock().unlock();
-				}
-			}
-		} catch (NoSuchAlgorithmException ex) {
-			logger.error("Failed to initialzie secret key factory", ex);
-		}
-	}
-
-	@Override
-	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-		if (cause instanceof ClosedChannelException) {
-			logger.error("Connection with replica closed.", cause);
-		} else if (cause instanceof ConnectException) {
-			logger.error("Impossible to connect to replica.", cause);
-		} else if (cause instanceof IOException){
-			logger.error("Replica disconnected. Connection reset by peer.");
-		}
-		else {
-			logger.error("Replica disconnected.", cause);
-		}
-	}
+		/*Tulio Ribeiro*/
+		privKey = controller.getStaticConf().getPrivateKey();
 
-	@Override
-	public void channelRead0(ChannelHandlerContext ctx, TOMMessage sm) throws Exception {
-		logger.debug("channelRead0(ChannelHandlerContext ctx, TOMMessage sm).");
-		//debugSessions();
-		
-		if (closed) {
-			closeChannelAndEventLoop(ctx.channel());
-			return;
-		}
-		trr.replyReceived(sm);
+		updateConnections();
 	}
 
 	@Override
-	public void channelActive(ChannelHandlerContext ctx) {
-
-		if (closed) {
-			closeChannelAndEventLoop(ctx.channel());
-			return;
-		}
-	}
+	public void updateConnections() {
+		// connections to new servers are opened (or shared with other clients)
+		for (int replicaId : controller.getCurrentViewProcesses()) {
+			SocketAddress address = controller.getRemoteAddress(replicaId);
+			if (address == null) continue;
 
-	public void reconnect(final ChannelHandlerContext ctx) {
-
-		rl.writeLock().lock();
-		
-		ArrayList<NettyClientServerSession> sessions = new ArrayList<NettyClientServerSession>(sessionClientToReplica.values());
-		for (NettyClientServerSession ncss : sessions) {
-			if (ncss.getChannel() == ctx.channel()) {
-				int replicaId = ncss.getReplicaId();
-				try {
-
-					if (controller.getRemoteAddress(replicaId) != null) {
-
-						ChannelFuture future;
-						try {
-							future = connectToReplica(replicaId, secretKeyFactory);
-						} catch (InvalidKeyException | InvalidKeySpecException e) {
-							// TODO Auto-generated catch block
-							e.printStackTrace();
-						}
-						logger.info("ClientID {}, re-connection to replica {}, at address: {}", 
-								clientId,
-								replicaId, 
-								controller.getRemoteAddress(replicaId));
-
-					} else {
-						// This cleans an old server from the session table
-						removeClient(replicaId);
-					}
-				} catch (NoSuchAlgorithmException ex) {
-					logger.error("Failed to reconnect to replica", ex);
-				}
-			}
+			logger.debug("ClientID {}, connecting to replica {}, at address: {}", clientId, replicaId, address);
+			runtime.getChannel(address, clientId);
 		}
-
-		rl.writeLock().unlock();
 	}
 
 	@Override
@@ -262,21 +109,20 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 	@Override
 	public void send(boolean sign, int[] targets, TOMMessage sm) {
 
-		int quorum;
-		
-		Integer[] targetArray = Arrays.stream(targets).boxed().toArray(Integer[]::new);
-		Collections.shuffle(Arrays.asList(targetArray), new Random());
-
-		if (controller.getStaticConf().isBFT()) {
-			quorum = (int) Math.ceil((controller.getCurrentViewN() + controller.getCurrentViewF()) / 2) + 1;
-		} else {
-			quorum = (int) Math.ceil((controller.getCurrentViewN()) / 2) + 1;
+		// targets are shuffled so that no replica always receives the requests first
+		int[] order = targets.clone();
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = order.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int t = order[i];
+			order[i] = order[j];
+			order[j] = t;
 		}
 
-		listener.waitForChannels(quorum); // wait for the previous transmission to complete
+		registerSession(sm.getSession());
 
 		logger.debug("Sending request from " + sm.getSender() + " with sequence number " + sm.getSequence() + " to "
-				+ Arrays.toString(targetArray));
+				+ Arrays.toString(order));
 
 		if (sm.serializedMessage == null) {
 
@@ -293,43 +139,32 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 			}
 		}
 
-		// Logger.println("Sending message with "+sm.serializedMessage.length+" bytes of
-		// content.");
-
 		// produce signature
 		if (sign && sm.serializedMessageSignature == null) {
 			sm.serializedMessageSignature = signMessage(privKey, sm.serializedMessage);
 		}
 
-		int sent = 0;
-
-        for (int target : targetArray) { 
-			// This is done to avoid a race condition with the writeAndFush method. Since
-			// the method is asynchronous,
-			// each iteration of this loop could overwrite the destination of the previous
-			// one
-			try {
-				sm = (TOMMessage) sm.clone();
-			} catch (CloneNotSupportedException e) {
-				logger.error("Failed to clone TOMMessage", e);
-				continue;
-			}
-
-			sm.destination = targets[target];
+		// the frame is encoded once and shared by all the targets
+		ByteBuf frame = encode(sm.serializedMessage, sign ? sm.serializedMessageSignature : null);
 
-			rl.readLock().lock();
-			Channel channel = ((NettyClientServerSession) sessionClientToReplica.get(targets[target])).getChannel();
-			rl.readLock().unlock();
-			if (channel.isActive()) {
-				sm.signed = sign;
-				ChannelFuture f = channel.writeAndFlush(sm);
+		WriteCredit credit = acquireWriteCredit();
 
-				f.addListener(listener);
-
-				sent++;
-			} else {
-				logger.debug("Channel to " + targets[target] + " is not connected");
+		int sent = 0;
+		try {
+			for (int target : order) {
+				SocketAddress address = controller.getRemoteAddress(target);
+				Channel channel = (address == null ? null : runtime.getChannel(address, clientId));
+				if (channel != null && channel.isActive()) {
+					ChannelFuture write = channel.writeAndFlush(frame.retainedDuplicate());
+					if (credit != null) write.addListener(credit);
+					sent++;
+				} else {
+					logger.debug("Channel to " + target + " is not connected");
+				}
 			}
+		} finally {
+			frame.release();
+			if (credit != null) credit.setQuorum(Math.min(sent, getWriteQuorum()));
 		}
 
 		if (targets.length > controller.getCurrentViewF() && sent < controller.getCurrentViewF() + 1) {
@@ -340,6 +175,84 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 			throw new RuntimeException("Server not connected");
 	}
 
+	/**
+	 * Waits for a write credit, i.e., for the writes of earlier requests to
+	 * complete in a quorum of replicas. After WRITE_CREDIT_TIMEOUT the request
+	 * is sent without a credit, so replicas that do not read cannot block the
+	 * client.
+	 *
+	 * @return The listener that returns the credit, or null if none was acquired
+	 */
+	private WriteCredit acquireWriteCredit() {
+		try {
+			if (writeCredits.tryAcquire(WRITE_CREDIT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				return new WriteCredit();
+			}
+			logger.warn("Writes of previous requests did not complete in " + WRITE_CREDIT_TIMEOUT + " ms, sending anyway");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return null;
+	}
+
+	// same quorum the client waited for before sending the next request
+	private int getWriteQuorum() {
+		int n = controller.getCurrentViewN();
+		int f = controller.getCurrentViewF();
+		return controller.getStaticConf().isBFT() ? (n + f) / 2 + 1 : n / 2 + 1;
+	}
+
+	/**
+	 * Returns the credit of a request once the given number of its writes
+	 * completed (successfully or not).
+	 */
+	private class WriteCredit implements ChannelFutureListener {
+
+		private final AtomicInteger completed = new AtomicInteger();
+		private final AtomicBoolean released = new AtomicBoolean();
+		private volatile int quorum = Integer.MAX_VALUE; // known once all the writes are issued
+
+		@Override
+		public void operationComplete(ChannelFuture f) {
+			if (completed.incrementAndGet() >= quorum) release();
+		}
+
+		private void setQuorum(int quorum) {
+			this.quorum = quorum;
+			if (completed.get() >= quorum) release();
+		}
+
+		private void release() {
+			if (released.compareAndSet(false, true)) writeCredits.release();
+		}
+	}
+
+	// same format as NettyTOMMessageEncoder
+	private static ByteBuf encode(byte[] msgData, byte[] signatureData) {
+		int dataLength = Integer.BYTES + msgData.length +
+				Integer.BYTES + (signatureData != null ? signatureData.length : 0);
+
+		ByteBuf frame = ByteBufAllocator.DEFAULT.buffer(Integer.BYTES + dataLength);
+		frame.writeInt(dataLength);
+		frame.writeInt(msgData.length);
+		frame.writeBytes(msgData);
+		if (signatureData != null) {
+			frame.writeInt(signatureData.length);
+			frame.writeBytes(signatureData);
+		} else {
+			frame.writeInt(0);
+		}
+		return frame;
+	}
+
+	private synchronized void registerSession(int session) {
+		if (this.session == null || this.session != session) {
+			if (this.session != null) runtime.unregister(this.session, trr);
+			this.session = session;
+			runtime.register(session, trr);
+		}
+	}
+
 	public void sign(TOMMessage sm) {
 		// serialize message
 		DataOutputStream dos = null;
@@ -362,193 +275,53 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 	}
 
 	public byte[] signMessage(PrivateKey key, byte[] message) {
-		// long startTime = System.nanoTime();
-		try {
-			if (signatureEngine == null) {
-				signatureEngine = TOMUtil.getSigEngine();
-			}
-			byte[] result = null;
-
-			signatureEngine.initSign(key);
-			signatureEngine.update(message);
-			result = signatureEngine.sign();
-			
-			// st.store(System.nanoTime() - startTime);
-			return result;
-		} catch (Exception e) {
-			logger.error("Failed to sign message", e);
-			return null;
-		}
+		// engines are cached per thread (and key), since concurrent invocations sign in their own threads
+		return TOMUtil.signMessage(key, message);
 	}
 
-	@Override
-	public void close() {
-		//debugSessions();
-		
-		this.closed = true;
-		rl.readLock().lock();
-		ArrayList<NettyClientServerSession> sessions = new ArrayList<>(sessionClientToReplica.values());
-		rl.readLock().unlock();
-		for (NettyClientServerSession ncss : sessions) {
-			Channel c = ncss.getChannel();
-			closeChannelAndEventLoop(c);
-		}
-	}
-
-	private ChannelInitializer getChannelInitializer() throws NoSuchAlgorithmException {
-
-		final NettyClientPipelineFactory nettyClientPipelineFactory = 
-				new NettyClientPipelineFactory(this, 
-						sessionClientToReplica,
-				controller, rl);
-
-		ChannelInitializer channelInitializer = new ChannelInitializer<SocketChannel>() {
-			@Override
-			public void initChannel(SocketChannel ch) throws Exception {
-				ch.pipeline().addLast(nettyClientPipelineFactory.getDecoder());
-				ch.pipeline().addLast(nettyClientPipelineFactory.getEncoder());
-				ch.pipeline().addLast(nettyClientPipelineFactory.getHandler());
-
-			}
-		};
-		return channelInitializer;
-	}
-
-	@Override
-	public void channelUnregistered(final ChannelHandlerContext ctx) throws Exception {
-		scheduleReconnect(ctx, 10);
-	}
 
 	@Override
-	public void channelInactive(final ChannelHandlerContext ctx) {
-		scheduleReconnect(ctx, 10);
-	}
+	public synchronized void close() {
+		if (closed) return;
 
-	private void closeChannelAndEventLoop(Channel c) {
-	//	logger.debug("closeChannelAndEventLoop(Channel c)");
-	//	debugSessions();
-		c.close();
-		// Then close the parent channel (the one attached to the bind)
-		if (c.parent() != null) {
-			c.parent().close();
+		this.closed = true;
+		if (session != null) {
+			runtime.unregister(session, trr);
+			closeSession();
 		}
-		
-		workerGroup.shutdownGracefully();
+		NettyClientRuntime.release(runtime);
 	}
 
-	private void scheduleReconnect(final ChannelHandlerContext ctx, int time) {
-		logger.debug("scheduleReconnect(final ChannelHandlerContext ctx, int time)");
-		if (closed) {
-			closeChannelAndEventLoop(ctx.channel());
+	/**
+	 * Tells the replicas that this client left. The connections are shared
+	 * with other clients and stay open, so the replicas would otherwise keep
+	 * the session of the client until the connection is closed.
+	 */
+	private void closeSession() {
+		TOMMessage sm = new TOMMessage(clientId, session, -1, -1, new byte[0], controller.getCurrentViewId(),
+				TOMMessageType.SESSION_CLOSE);
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(baos);
+			sm.wExternal(dos);
+			dos.flush();
+			sm.serializedMessage = baos.toByteArray();
+		} catch (IOException ex) {
+			logger.debug("Impossible to serialize message: " + sm);
 			return;
 		}
 
-		final EventLoop loop = ctx.channel().eventLoop();
-		loop.schedule(new Runnable() {
-			@Override
-			public void run() {
-				reconnect(ctx);
-			}
-		}, time, TimeUnit.SECONDS);
-	}
-
-	private class SyncListener implements GenericFutureListener<ChannelFuture> {
-
-		private int remainingFutures;
-
-		private final Lock futureLock;
-		private final Condition enoughCompleted;
-
-		public SyncListener() {
-			
-			this.remainingFutures = 0;
-
-			this.futureLock = new ReentrantLock();
-			this.enoughCompleted = futureLock.newCondition();
-		}
-
-		@Override
-		public void operationComplete(ChannelFuture f) {
-
-			this.futureLock.lock();
-
-			this.remainingFutures--;
-
-			if (this.remainingFutures <= 0) {
-
-				this.enoughCompleted.signalAll();
-			}
-
-			logger.debug(this.remainingFutures + " channel operations remaining to complete");
-
-			this.futureLock.unlock();
-
-		}
-
-		public void waitForChannels(int n) {
-
-			this.futureLock.lock();
-			if (this.remainingFutures > 0) {
-
-				logger.debug("There are still " + this.remainingFutures
-						+ " channel operations pending, waiting to complete");
-
-				try {
-					this.enoughCompleted.await(5000, TimeUnit.MILLISECONDS); // timeout if a malicous replica refuses to
-																				// acknowledge the operation as
-																				// completed
-				} catch (InterruptedException ex) {
-					logger.error("Interruption while waiting on condition", ex);
+		ByteBuf frame = encode(sm.serializedMessage, null);
+		try {
+			for (int replicaId : controller.getCurrentViewProcesses()) {
+				SocketAddress address = controller.getRemoteAddress(replicaId);
+				Channel channel = (address == null ? null : runtime.getChannel(address, clientId));
+				if (channel != null && channel.isActive()) {
+					channel.writeAndFlush(frame.retainedDuplicate());
 				}
-
 			}
-
-			logger.trace("All channel operations completed or timed out");
-
-			this.remainingFutures = n;
-
-			this.futureLock.unlock();
+		} finally {
+			frame.release();
 		}
-
-	}
-
-	/**
-	 * Tulio Ribeiro
-	 * Connect to specific replica and returns the ChannelFuture. 
-	 * sessionClientToReplica is replaced with the new connection.
-	 * Removed redundant code.
-	 */
-	public synchronized ChannelFuture connectToReplica(int replicaId, SecretKeyFactory fac)
-			throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException {
-
-		String str = this.clientId + ":" + replicaId;
-		PBEKeySpec spec = TOMUtil.generateKeySpec(str.toCharArray());
-		SecretKey authKey = fac.generateSecret(spec);
-
-		Bootstrap b = new Bootstrap();
-		b.group(workerGroup);
-		b.channel(NioSocketChannel.class);
-		b.option(ChannelOption.SO_KEEPALIVE, true);
-		b.option(ChannelOption.TCP_NODELAY, true);
-		b.option(ChannelOption.SO_SNDBUF, tcpSendBufferSize);
-		b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectionTimeoutMsec);
-		b.handler(getChannelInitializer());
-
-		ChannelFuture channelFuture = b.connect(controller.getRemoteAddress(replicaId));
-
-		NettyClientServerSession ncss = new NettyClientServerSession(
-				channelFuture.channel(), 
-				replicaId);
-		sessionClientToReplica.put(replicaId, ncss);
-
-		return channelFuture;
-	}
-	
-	
-	public synchronized void removeClient(int clientId) {
-		sessionClientToReplica.remove(clientId);
 	}
-	
-	
-	
 }
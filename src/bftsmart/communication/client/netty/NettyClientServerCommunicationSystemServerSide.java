@@ -37,6 +37,7 @@ import bftsmart.communication.client.CommunicationSystemServerSide;
 import bftsmart.communication.client.RequestReceiver;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
 import bftsmart.tom.util.TOMUtil;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
@@ -242,6 +243,11 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 			return;
 		}
 
+		if (sm.getReqType() == TOMMessageType.SESSION_CLOSE) {
+			closeSession(ctx.channel(), sm.getSender());
+			return;
+		}
+
 		// delivers message to TOMLayer
 		if (requestReceiver == null)
 			logger.warn("Request receiver is still null!");
@@ -273,6 +279,7 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 
 		//debugSessions();
 		
+		// clients sharing a runtime share the connection, so all their sessions are removed
 		Set s = sessionReplicaToClient.entrySet();
 		Iterator i = s.iterator();
 		while (i.hasNext()) {
@@ -281,13 +288,29 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 			if (ctx.channel().equals(value.getChannel())) {
 				int key = (Integer) m.getKey();
 				toRemove(key);
-				break;
 			}
 		}
 
 		logger.debug("Session Closed, active clients=" + sessionReplicaToClient.size());
 	}
 
+	/**
+	 * Removes the session of a client that left while the connection it used
+	 * stays open for other clients. Only the connection of the session can
+	 * close it.
+	 * @param channel Connection through which the request arrived
+	 * @param clientId The client
+	 */
+	private void closeSession(Channel channel, int clientId) {
+		rl.writeLock().lock();
+		NettyClientServerSession session = sessionReplicaToClient.get(clientId);
+		if (session != null && channel.equals(session.getChannel())) {
+			sessionReplicaToClient.remove(clientId);
+			logger.debug("Client {} closed its session, active clients={}", clientId, sessionReplicaToClient.size());
+		}
+		rl.writeLock().unlock();
+	}
+
 	public synchronized void toRemove(Integer key) {
 		
 		Iterator<Integer> it = sessionReplicaToClient.keySet().iterator();
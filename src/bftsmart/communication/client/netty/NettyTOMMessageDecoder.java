@@ -32,6 +32,7 @@ import org.slf4j.LoggerFactory;
 
 import bftsmart.reconfiguration.ViewController;
 import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
 import bftsmart.tom.util.TOMUtil;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
@@ -128,7 +129,8 @@ public class NettyTOMMessageDecoder extends ByteToMessageDecoder {
             }
            
 
-            if (!isClient) {                
+            // a closing client must not create a session
+            if (!isClient && sm.getReqType() != TOMMessageType.SESSION_CLOSE) {                
                 rl.readLock().lock();                
                 if (!sessionTable.containsKey(sm.getSender())) {
                     rl.readLock().unlock();
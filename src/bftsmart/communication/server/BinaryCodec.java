@@ -0,0 +1,132 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+
+import bftsmart.communication.SystemMessage;
+import bftsmart.consensus.messages.ConsensusMessage;
+import bftsmart.tom.core.messages.ForwardedMessage;
+import bftsmart.tom.core.messages.LargeRequestMessage;
+import bftsmart.tom.leaderchange.LCMessage;
+
+/**
+ * Compact binary codec for the messages exchanged among replicas. The messages
+ * in the critical path (consensus, leader change, forwarded requests and chunks
+ * of large requests) are written field by field, without class descriptors. Any
+ * other message (state transfer, reconfiguration, etc) falls back to Java
+ * serialization.
+ *
+ * Wire format: version byte, type byte, message fields.
+ *
+ */
+public class BinaryCodec implements SystemMessageCodec {
+
+    public static final byte VERSION = 1;
+
+    public static final byte TYPE_SERIALIZED = 0;
+    public static final byte TYPE_CONSENSUS = 1;
+    public static final byte TYPE_LEADER_CHANGE = 2;
+    public static final byte TYPE_FORWARDED = 3;
+    public static final byte TYPE_LARGE_REQUEST = 4;
+
+    @Override
+    public byte[] encode(SystemMessage sm) throws IOException {
+
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+        DataOutputStream dos = new DataOutputStream(bOut);
+
+        dos.writeByte(VERSION);
+
+        if (sm.getClass() == ConsensusMessage.class && hasBinaryProof((ConsensusMessage) sm)) {
+
+            dos.writeByte(TYPE_CONSENSUS);
+            ((ConsensusMessage) sm).wExternal(dos);
+
+        } else if (sm.getClass() == LCMessage.class) {
+
+            dos.writeByte(TYPE_LEADER_CHANGE);
+            ((LCMessage) sm).wExternal(dos);
+
+        } else if (sm.getClass() == ForwardedMessage.class) {
+
+            dos.writeByte(TYPE_FORWARDED);
+            ((ForwardedMessage) sm).wExternal(dos);
+
+        } else if (sm.getClass() == LargeRequestMessage.class) {
+
+            dos.writeByte(TYPE_LARGE_REQUEST);
+            ((LargeRequestMessage) sm).wExternal(dos);
+
+        } else {
+
+            dos.writeByte(TYPE_SERIALIZED);
+            dos.flush();
+            new ObjectOutputStream(bOut).writeObject(sm);
+        }
+
+        dos.flush();
+        return bOut.toByteArray();
+    }
+
+    @Override
+    public SystemMessage decode(byte[] data) throws IOException, ClassNotFoundException {
+
+        ByteArrayInputStream bIn = new ByteArrayInputStream(data);
+        DataInputStream dis = new DataInputStream(bIn);
+
+        byte version = dis.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported codec version: " + version);
+        }
+
+        byte type = dis.readByte();
+        switch (type) {
+            case TYPE_CONSENSUS:
+                ConsensusMessage cm = new ConsensusMessage();
+                cm.rExternal(dis);
+                return cm;
+            case TYPE_LEADER_CHANGE:
+                LCMessage lcm = new LCMessage();
+                lcm.rExternal(dis);
+                return lcm;
+            case TYPE_FORWARDED:
+                ForwardedMessage fm = new ForwardedMessage();
+                fm.rExternal(dis);
+                return fm;
+            case TYPE_LARGE_REQUEST:
+                LargeRequestMessage lrm = new LargeRequestMessage();
+                lrm.rExternal(dis);
+                return lrm;
+            case TYPE_SERIALIZED:
+                return (SystemMessage) (new ObjectInputStream(bIn).readObject());
+            default:
+                throw new ClassNotFoundException("Unknown message type: " + type);
+        }
+    }
+
+    private boolean hasBinaryProof(ConsensusMessage cm) {
+        Object proof = cm.getProof();
+        return proof == null || proof instanceof byte[] || proof instanceof HashMap;
+    }
+}
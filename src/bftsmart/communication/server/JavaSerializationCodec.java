@@ -0,0 +1,44 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import bftsmart.communication.SystemMessage;
+
+/**
+ * Codec based on standard Java serialization. This is the original wire format
+ * of the replica-to-replica channels.
+ *
+ */
+public class JavaSerializationCodec implements SystemMessageCodec {
+
+    @Override
+    public byte[] encode(SystemMessage sm) throws IOException {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+        new ObjectOutputStream(bOut).writeObject(sm);
+        return bOut.toByteArray();
+    }
+
+    @Override
+    public SystemMessage decode(byte[] data) throws IOException, ClassNotFoundException {
+        return (SystemMessage) (new ObjectInputStream(new ByteArrayInputStream(data)).readObject());
+    }
+}
@@ -0,0 +1,678 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.communication.SystemMessage;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.reconfiguration.VMMessage;
+import bftsmart.tom.ServiceReplica;
+import bftsmart.tom.util.TOMUtil;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.flush.FlushConsolidationHandler;
+
+/**
+ * Replica-to-replica transport built on Netty event loops. It keeps the wire
+ * format of ServersCommunicationLayer (peer id, Diffie-Hellman handshake and
+ * length-prefixed frames followed by an optional MAC), so it is selected just
+ * by setting system.communication.serverTransport = netty.
+ *
+ * Instead of a sender and a receiver thread per peer, all connections share
+ * a small pool of event loops. Frames are written as a composite buffer made
+ * of a pooled header, the (wrapped, not copied) payload and a pooled MAC
+ * trailer, and flushes issued close together are coalesced into a single
+ * gathering write.
+ *
+ */
+public class NettyServersCommunicationLayer extends ServersCommunicationLayer {
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private static final long POOL_TIME = 2000;
+	private static final int CONNECTION_TIMEOUT_MSEC = 40000;
+	private static final int CONNECTION_BACKLOG = 100;
+	private static final int FLUSHES_BEFORE_FLUSH = 256;
+
+	private ServerViewController controller;
+	private LinkedBlockingQueue<SystemMessage> inQueue;
+	private ServiceReplica replica;
+	private SystemMessageCodec codec;
+	private int me;
+	private volatile boolean doWork = true;
+
+	private Map<Integer, PeerConnection> connections = new ConcurrentHashMap<>();
+	private List<PendingChannel> pendingConn = new LinkedList<>();
+
+	private EventLoopGroup bossGroup;
+	private EventLoopGroup workerGroup;
+	private Bootstrap clientBootstrap;
+	private Channel serverChannel;
+	private int macSize;
+
+	public NettyServersCommunicationLayer(ServerViewController controller, LinkedBlockingQueue<SystemMessage> inQueue,
+			ServiceReplica replica) throws Exception {
+
+		super(controller, inQueue);
+
+		setName("Netty Servers Comm. Layer");
+
+		this.controller = controller;
+		this.inQueue = inQueue;
+		this.replica = replica;
+		this.me = controller.getStaticConf().getProcessId();
+		this.codec = SystemMessageCodecFactory.getCodec(controller.getStaticConf());
+		this.macSize = TOMUtil.getMacFactory().getMacLength();
+
+		int workers = controller.getStaticConf().getNumNettyWorkers();
+		if (workers <= 0) {
+			workers = Runtime.getRuntime().availableProcessors();
+		}
+
+		bossGroup = new NioEventLoopGroup(1);
+		workerGroup = new NioEventLoopGroup(workers);
+
+		// no more than outQueueSize messages of 1KB may be waiting to be written
+		// to a single peer, as in the socket transport
+		long highMark = Math.max(64 * 1024, (long) controller.getStaticConf().getOutQueueSize() * 1024);
+		WriteBufferWaterMark waterMark = new WriteBufferWaterMark((int) Math.min(highMark / 2, Integer.MAX_VALUE / 2),
+				(int) Math.min(highMark, Integer.MAX_VALUE));
+
+		clientBootstrap = new Bootstrap();
+		clientBootstrap.group(workerGroup)
+			.channel(NioSocketChannel.class)
+			.option(ChannelOption.TCP_NODELAY, true)
+			.option(ChannelOption.SO_KEEPALIVE, true)
+			.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, CONNECTION_TIMEOUT_MSEC)
+			.option(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark);
+
+		ServerBootstrap b = new ServerBootstrap();
+		b.group(bossGroup, workerGroup)
+			.channel(NioServerSocketChannel.class)
+			.option(ChannelOption.SO_REUSEADDR, true)
+			.option(ChannelOption.SO_BACKLOG, CONNECTION_BACKLOG)
+			.childHandler(new ChannelInitializer<SocketChannel>() {
+				@Override
+				public void initChannel(SocketChannel ch) throws Exception {
+					ch.pipeline().addLast(new FlushConsolidationHandler(FLUSHES_BEFORE_FLUSH, true));
+					ch.pipeline().addLast(new PeerChannelHandler(null));
+				}
+			})
+			.childOption(ChannelOption.TCP_NODELAY, true)
+			.childOption(ChannelOption.SO_KEEPALIVE, true)
+			.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark);
+
+		int myPort = controller.getStaticConf().getServerToServerPort(me);
+		serverChannel = b.bind(new InetSocketAddress(getMyAddress(controller), myPort)).sync().channel();
+
+		// Try connecting if a member of the current view. Otherwise, wait until the
+		// Join has been processed!
+		if (controller.isInCurrentView()) {
+			int[] initialV = controller.getCurrentViewAcceptors();
+			for (int i = 0; i < initialV.length; i++) {
+				if (initialV[i] != me) {
+					getConnection(initialV[i]);
+				}
+			}
+		}
+
+		start();
+	}
+
+	@Override
+	public void updateConnections() {
+
+		if (this.controller.isInCurrentView()) {
+
+			Iterator<Integer> it = this.connections.keySet().iterator();
+			List<Integer> toRemove = new LinkedList<Integer>();
+			while (it.hasNext()) {
+				int rm = it.next();
+				if (!this.controller.isCurrentViewMember(rm)) {
+					toRemove.add(rm);
+				}
+			}
+			for (int i = 0; i < toRemove.size(); i++) {
+				this.connections.remove(toRemove.get(i)).shutdown();
+			}
+
+			int[] newV = controller.getCurrentViewAcceptors();
+			for (int i = 0; i < newV.length; i++) {
+				if (newV[i] != me) {
+					getConnection(newV[i]);
+				}
+			}
+		} else {
+
+			for (PeerConnection pc : this.connections.values()) {
+				pc.shutdown();
+			}
+		}
+	}
+
+	private PeerConnection getConnection(int remoteId) {
+		return connections.computeIfAbsent(remoteId, id -> {
+			PeerConnection pc = new PeerConnection(id);
+			pc.connect();
+			return pc;
+		});
+	}
+
+	@Override
+	public void send(int[] targets, SystemMessage sm, boolean useMAC) {
+		byte[] data = null;
+		try {
+			data = codec.encode(sm);
+		} catch (Exception ex) {
+			logger.error("Failed to serialize message", ex);
+			return;
+		}
+
+		for (int i : targets) {
+			try {
+				if (i == me) {
+					sm.authenticated = true;
+					inQueue.put(sm);
+				} else {
+					getConnection(i).send(data, useMAC);
+				}
+			} catch (InterruptedException ex) {
+				logger.error("Interruption while inserting message into inqueue", ex);
+			}
+		}
+	}
+
+	@Override
+	public void shutdown() {
+
+		logger.info("Shutting down replica channels");
+
+		doWork = false;
+
+		for (PeerConnection pc : connections.values()) {
+			pc.shutdown();
+		}
+
+		serverChannel.close();
+		workerGroup.shutdownGracefully();
+		bossGroup.shutdownGracefully();
+	}
+
+	@Override
+	public void joinViewReceived() {
+		List<PendingChannel> pending;
+		synchronized (pendingConn) {
+			pending = new LinkedList<>(pendingConn);
+			pendingConn.clear();
+		}
+
+		for (PendingChannel pc : pending) {
+			pc.ctx.executor().execute(() -> {
+				if (!pc.handler.establish(pc.ctx, pc.remoteId)) {
+					pc.ctx.close();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Waits until the server channel is closed, so that joining this thread has
+	 * the same meaning as in the socket transport.
+	 */
+	@Override
+	public void run() {
+		try {
+			serverChannel.closeFuture().sync();
+		} catch (InterruptedException ex) {
+			logger.error("Interrupted while waiting for the server channel", ex);
+		}
+		logger.info("NettyServersCommunicationLayer stopped.");
+	}
+
+	@Override
+	public SecretKey getSecretKey(int id) {
+		if (id == me) {
+			return super.getSecretKey(id);
+		} else {
+			PeerConnection pc = connections.get(id);
+			return (pc != null) ? pc.authKey : null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		String str = "inQueue=" + inQueue.toString();
+
+		int[] activeServers = controller.getCurrentViewAcceptors();
+
+		for (int i = 0; i < activeServers.length; i++) {
+			if (me != activeServers[i]) {
+				PeerConnection pc = connections.get(activeServers[i]);
+				Channel ch = (pc != null) ? pc.channel : null;
+				str += ", connections[" + activeServers[i] + "]: active=" + (ch != null && ch.isActive())
+						+ ", writable=" + (ch != null && ch.isWritable());
+			}
+		}
+
+		return str;
+	}
+
+	// return true if this process shall connect to the remote process, false
+	// otherwise (same rule as ServerConnection)
+	private boolean isToConnect(int remoteId) {
+		if (this.controller.getStaticConf().getTTPId() == remoteId) {
+			// Need to wait for the connection request from the TTP, do not try to connect to it
+			return false;
+		} else if (this.controller.getStaticConf().getTTPId() == me) {
+			// If this is a TTP, one must connect to the remote process
+			return true;
+		}
+		// in this case, the node with higher ID starts the connection
+		return this.controller.isInCurrentView() && me > remoteId;
+	}
+
+	/**
+	 * State of the connection with one remote replica. The channel may be
+	 * replaced on reconnection, the object is kept for the whole lifetime of
+	 * the peer in the view.
+	 */
+	private class PeerConnection {
+
+		private final int remoteId;
+		private volatile Channel channel;
+		private volatile SecretKey authKey;
+		private volatile Mac macSend;
+		private volatile boolean active = true;
+
+		PeerConnection(int remoteId) {
+			this.remoteId = remoteId;
+		}
+
+		void connect() {
+			if (!doWork || !active || !isToConnect(remoteId)) {
+				return;
+			}
+
+			clientBootstrap.clone()
+				.handler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					public void initChannel(SocketChannel ch) throws Exception {
+						ch.pipeline().addLast(new FlushConsolidationHandler(FLUSHES_BEFORE_FLUSH, true));
+						ch.pipeline().addLast(new PeerChannelHandler(PeerConnection.this));
+					}
+				})
+				.connect(controller.getStaticConf().getHost(remoteId),
+						controller.getStaticConf().getServerToServerPort(remoteId))
+				.addListener(new ChannelFutureListener() {
+					@Override
+					public void operationComplete(ChannelFuture future) {
+						if (!future.isSuccess()) {
+							logger.debug("Failed to connect to replica " + remoteId + ", retrying");
+							scheduleReconnect();
+						}
+					}
+				});
+		}
+
+		void scheduleReconnect() {
+			if (doWork && active && isToConnect(remoteId)) {
+				workerGroup.schedule(this::connect, POOL_TIME, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		void attach(Channel ch, SecretKey key) throws Exception {
+			Mac mac = TOMUtil.getMacFactory();
+			mac.init(key);
+
+			Channel old = this.channel;
+
+			this.macSend = mac;
+			this.authKey = key;
+			this.channel = ch;
+
+			if (old != null && old != ch) {
+				old.close();
+			}
+		}
+
+		void detach(Channel ch) {
+			if (this.channel == ch) {
+				this.channel = null;
+				scheduleReconnect();
+			}
+		}
+
+		void send(byte[] data, boolean useMAC) {
+			Channel ch = this.channel;
+
+			if (ch == null || !ch.isActive()) {
+				logger.debug("Connection to " + remoteId + " not established (message discarded).");
+				return;
+			}
+			if (!ch.isWritable()) {
+				logger.debug("Out queue for " + remoteId + " full (message discarded).");
+				return;
+			}
+
+			byte[] mac = null;
+			if (useMAC && controller.getStaticConf().getUseMACs()) {
+				Mac m = this.macSend;
+				synchronized (m) {
+					mac = m.doFinal(data);
+				}
+			}
+
+			ByteBuf header = ch.alloc().buffer(4);
+			header.writeInt(data.length);
+
+			ByteBuf trailer = ch.alloc().buffer(1 + ((mac != null) ? mac.length : 0));
+			if (mac != null) {
+				trailer.writeByte(1);
+				trailer.writeBytes(mac);
+			} else {
+				trailer.writeByte(0);
+			}
+
+			// a single message per frame, so frames from different threads never interleave
+			ch.writeAndFlush(Unpooled.wrappedBuffer(header, Unpooled.wrappedBuffer(data), trailer),
+					ch.voidPromise());
+		}
+
+		void shutdown() {
+			logger.debug("SHUTDOWN for " + remoteId);
+
+			active = false;
+			Channel ch = this.channel;
+			this.channel = null;
+			if (ch != null) {
+				ch.close();
+			}
+		}
+	}
+
+	/**
+	 * Decodes the byte stream of one channel: the peer id (accepted channels
+	 * only), the Diffie-Hellman handshake and then the message frames.
+	 */
+	private class PeerChannelHandler extends ByteToMessageDecoder {
+
+		private PeerConnection peer;
+		private int remoteId = -1;
+		private BigInteger dhPrivKey;
+		private Mac macReceive;
+		private boolean identified;
+		private boolean established;
+
+		PeerChannelHandler(PeerConnection peer) {
+			this.peer = peer;
+			if (peer != null) {
+				this.remoteId = peer.remoteId;
+				this.identified = true;
+			}
+		}
+
+		@Override
+		public void channelActive(ChannelHandlerContext ctx) throws Exception {
+			if (peer != null) {
+				ByteBuf id = ctx.alloc().buffer(4);
+				id.writeInt(me);
+				ctx.write(id);
+				writeHandshake(ctx);
+			}
+			super.channelActive(ctx);
+		}
+
+		@Override
+		public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+			if (peer != null) {
+				peer.detach(ctx.channel());
+			}
+			super.channelInactive(ctx);
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+			logger.debug("Closing channel to " + remoteId + ": " + cause.getMessage());
+			ctx.close();
+		}
+
+		@Override
+		protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+
+			if (!identified) {
+				if (in.readableBytes() < 4) return;
+
+				int id = in.readInt();
+				identified = true;
+
+				if (!controller.isInCurrentView() && controller.getStaticConf().getTTPId() != id) {
+					ctx.channel().config().setAutoRead(false);
+					synchronized (pendingConn) {
+						pendingConn.add(new PendingChannel(ctx, this, id));
+					}
+					return;
+				}
+				if (!establish(ctx, id)) {
+					ctx.close();
+					return;
+				}
+			}
+
+			// accepted channel still waiting for the view to be known
+			if (peer == null) return;
+
+			if (!established) {
+				if (!readHandshake(ctx, in)) return;
+			}
+
+			while (established && in.isReadable()) {
+				if (!readFrame(ctx, in)) return;
+			}
+		}
+
+		// binds an accepted channel to the remote replica and answers its handshake
+		boolean establish(ChannelHandlerContext ctx, int id) {
+			if (controller.getStaticConf().getTTPId() != id && !controller.isCurrentViewMember(id)) {
+				return false;
+			}
+
+			logger.info("Trying establish connection with replica: " + id);
+
+			remoteId = id;
+			peer = getConnection(id);
+			writeHandshake(ctx);
+			ctx.channel().config().setAutoRead(true);
+			return true;
+		}
+
+		private void writeHandshake(ChannelHandlerContext ctx) {
+			try {
+				PrivateKey privKey = controller.getStaticConf().getPrivateKey();
+				dhPrivKey = new BigInteger(privKey.getEncoded());
+
+				// Create DH public key
+				BigInteger myDHPubKey = controller.getStaticConf().getDHG().modPow(dhPrivKey,
+						controller.getStaticConf().getDHP());
+
+				byte[] bytes = myDHPubKey.toByteArray();
+				byte[] signature = TOMUtil.signMessage(privKey, bytes);
+
+				ByteBuf buf = ctx.alloc().buffer(8 + bytes.length + signature.length);
+				buf.writeInt(bytes.length);
+				buf.writeBytes(bytes);
+				buf.writeInt(signature.length);
+				buf.writeBytes(signature);
+				ctx.writeAndFlush(buf);
+			} catch (Exception ex) {
+				logger.error("Failed to send Diffie-Hellman public key", ex);
+				ctx.close();
+			}
+		}
+
+		private boolean readHandshake(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+
+			in.markReaderIndex();
+			byte[] remoteBytes = readSized(in);
+			byte[] remoteSignature = (remoteBytes != null) ? readSized(in) : null;
+			if (remoteSignature == null) {
+				in.resetReaderIndex();
+				return false;
+			}
+
+			// verify signature
+			PublicKey remotePubkey = controller.getStaticConf().getPublicKey(remoteId);
+
+			if (!TOMUtil.verifySignature(remotePubkey, remoteBytes, remoteSignature)) {
+				logger.warn(remoteId + " sent an invalid signature!");
+				ctx.close();
+				return false;
+			}
+
+			BigInteger remoteDHPubKey = new BigInteger(remoteBytes);
+
+			// Create secret key
+			BigInteger secretKey = remoteDHPubKey.modPow(dhPrivKey, controller.getStaticConf().getDHP());
+
+			logger.info("Diffie-Hellman complete with " + remoteId);
+
+			SecretKeyFactory fac = TOMUtil.getSecretFactory();
+			PBEKeySpec spec = TOMUtil.generateKeySpec(secretKey.toString().toCharArray());
+			SecretKey authKey = fac.generateSecret(spec);
+
+			macReceive = TOMUtil.getMacFactory();
+			macReceive.init(authKey);
+
+			peer.attach(ctx.channel(), authKey);
+			established = true;
+			return true;
+		}
+
+		private byte[] readSized(ByteBuf in) {
+			if (in.readableBytes() < 4) return null;
+			int length = in.readInt();
+			if (in.readableBytes() < length) return null;
+			byte[] bytes = new byte[length];
+			in.readBytes(bytes);
+			return bytes;
+		}
+
+		private boolean readFrame(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+
+			if (in.readableBytes() < 5) return false;
+
+			int start = in.readerIndex();
+			int dataLength = in.getInt(start);
+			if (in.readableBytes() < 5 + dataLength) return false;
+
+			byte hasMAC = in.getByte(start + 4 + dataLength);
+			boolean checkMAC = controller.getStaticConf().getUseMACs() && hasMAC == 1;
+			if (checkMAC && in.readableBytes() < 5 + dataLength + macSize) return false;
+
+			in.skipBytes(4);
+			byte[] data = new byte[dataLength];
+			in.readBytes(data);
+			in.skipBytes(1);
+
+			boolean result = true;
+			if (checkMAC) {
+				byte[] receivedMac = new byte[macSize];
+				in.readBytes(receivedMac);
+				result = Arrays.equals(macReceive.doFinal(data), receivedMac);
+			}
+
+			if (!result) {
+				// TODO: violation of authentication... we should do something
+				logger.warn("Violation of authentication in message received from " + remoteId);
+				return true;
+			}
+
+			if (controller.getStaticConf().isTheTTP()) {
+				return true;
+			}
+
+			SystemMessage sm;
+			try {
+				sm = codec.decode(data);
+			} catch (ClassNotFoundException ex) {
+				// invalid message sent, just ignore;
+				return true;
+			}
+
+			if (sm.getSender() != remoteId) {
+				return true;
+			}
+
+			if (controller.getStaticConf().getTTPId() == remoteId) {
+				replica.joinMsgReceived((VMMessage) sm);
+			} else {
+				sm.authenticated = checkMAC;
+				if (!inQueue.offer(sm)) {
+					logger.warn("Inqueue full (message from " + remoteId + " discarded).");
+				}
+			}
+			return true;
+		}
+	}
+
+	// Channels accepted before this replica learned the current view, as in
+	// ServersCommunicationLayer.PendingConnection
+	private static class PendingChannel {
+		final ChannelHandlerContext ctx;
+		final PeerChannelHandler handler;
+		final int remoteId;
+
+		PendingChannel(ChannelHandlerContext ctx, PeerChannelHandler handler, int remoteId) {
+			this.ctx = ctx;
+			this.handler = handler;
+			this.remoteId = remoteId;
+		}
+	}
+}
@@ -15,11 +15,9 @@ limitations under the License.
 */
 package bftsmart.communication.server;
 
-import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.math.BigInteger;
 import java.net.Socket;
 import java.net.UnknownHostException;
@@ -80,6 +78,7 @@ public class ServerConnection {
     /** Only used when there is no sender Thread */
     private Lock sendLock;
     private boolean doWork = true;
+    private SystemMessageCodec codec;
 
     
 
@@ -87,6 +86,7 @@ public class ServerConnection {
             LinkedBlockingQueue<SystemMessage> inQueue, ServiceReplica replica) {
 
         this.controller = controller;
+        this.codec = SystemMessageCodecFactory.getCodec(controller.getStaticConf());
 
         this.socket = socket;
 
@@ -508,7 +508,7 @@ public class ServerConnection {
                         }
 
                         if (result) {
-                            SystemMessage sm = (SystemMessage) (new ObjectInputStream(new ByteArrayInputStream(data)).readObject());
+                            SystemMessage sm = codec.decode(data);
                             sm.authenticated = (controller.getStaticConf().getUseMACs()&& hasMAC == 1);
                             
                             if (sm.getSender() == remoteId) {
@@ -590,7 +590,7 @@ public class ServerConnection {
                         }
 
                         if (result) {
-                            SystemMessage sm = (SystemMessage) (new ObjectInputStream(new ByteArrayInputStream(data)).readObject());
+                            SystemMessage sm = codec.decode(data);
 
                             if (sm.getSender() == remoteId) {
                                 //System.out.println("Mensagem recebia de: "+remoteId);
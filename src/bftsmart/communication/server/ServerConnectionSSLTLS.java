@@ -16,13 +16,11 @@ limitations under the License.
 
 package bftsmart.communication.server;
 
-import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.security.KeyManagementException;
@@ -85,6 +83,7 @@ public class ServerConnectionSSLTLS {
 	/** Only used when there is no sender Thread */
 	private Lock sendLock;
 	private boolean doWork = true;
+	private SystemMessageCodec codec;
 	private SecretKey secretKey = null;
 
 	private KeyManagerFactory kmf;
@@ -102,6 +101,7 @@ public class ServerConnectionSSLTLS {
 			ServiceReplica replica) {
 
 		this.controller = controller;
+		this.codec = SystemMessageCodecFactory.getCodec(controller.getStaticConf());
 
 		this.socketSSL = socketSSL;
 
@@ -374,8 +374,7 @@ public class ServerConnectionSSLTLS {
 
 						logger.trace("Read: {}, HasMAC: {}", read, hasMAC);
 
-						SystemMessage sm = (SystemMessage) (new ObjectInputStream(new ByteArrayInputStream(data))
-								.readObject());
+						SystemMessage sm = codec.decode(data);
 
 						//The MAC verification it is done for the SSL/TLS protocol.
 						sm.authenticated = true;
@@ -438,8 +437,7 @@ public class ServerConnectionSSLTLS {
 							read += socketInStream.read(data, read, dataLength - read);
 						} while (read < dataLength);
 
-						SystemMessage sm = (SystemMessage) (new ObjectInputStream(new ByteArrayInputStream(data))
-								.readObject());
+						SystemMessage sm = codec.decode(data);
 
 						if (sm.getSender() == remoteId) {
 							this.replica.joinMsgReceived((VMMessage) sm);
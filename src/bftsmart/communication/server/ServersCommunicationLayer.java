@@ -15,16 +15,15 @@ limitations under the License.
 */
 package bftsmart.communication.server;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketImpl;
 import java.net.SocketImplFactory;
 import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Iterator;
@@ -75,6 +74,7 @@ public class ServersCommunicationLayer extends Thread {
 	// private Condition canConnect = waitViewLock.newCondition();
 	private List<PendingConnection> pendingConn = new LinkedList<PendingConnection>();
 	private ServiceReplica replica;
+	private SystemMessageCodec codec;
 	private SecretKey selfPwd;
 	private static final String PASSWORD = "commsyst";
 
@@ -85,6 +85,7 @@ public class ServersCommunicationLayer extends Thread {
 		this.inQueue = inQueue;
 		this.me = controller.getStaticConf().getProcessId();
 		this.replica = replica;
+		this.codec = SystemMessageCodecFactory.getCodec(controller.getStaticConf());
 		
 
 		// Try connecting if a member of the current view. Otherwise, wait until the
@@ -98,6 +99,42 @@ public class ServersCommunicationLayer extends Thread {
 			}
 		}
 
+		String myAddress = getMyAddress(controller);
+
+		int myPort = controller.getStaticConf().getServerToServerPort(controller.getStaticConf().getProcessId());
+		serverSocket = new ServerSocket(myPort, 100, InetAddress.getByName(myAddress));
+		serverSocket.setSoTimeout(20000);
+		serverSocket.setReuseAddress(true);
+
+		SecretKeyFactory fac = TOMUtil.getSecretFactory();
+		PBEKeySpec spec = TOMUtil.generateKeySpec(PASSWORD.toCharArray());
+		selfPwd = fac.generateSecret(spec);
+
+		start();
+
+	}
+
+	/**
+	 * Used by alternative transports that manage their own connections. Only the
+	 * state shared by every transport is initialized here.
+	 */
+	protected ServersCommunicationLayer(ServerViewController controller, LinkedBlockingQueue<SystemMessage> inQueue)
+			throws Exception {
+
+		this.controller = controller;
+		this.inQueue = inQueue;
+		this.me = controller.getStaticConf().getProcessId();
+		this.codec = SystemMessageCodecFactory.getCodec(controller.getStaticConf());
+
+		SecretKeyFactory fac = TOMUtil.getSecretFactory();
+		PBEKeySpec spec = TOMUtil.generateKeySpec(PASSWORD.toCharArray());
+		selfPwd = fac.generateSecret(spec);
+	}
+
+	/**
+	 * Address to which the replica-to-replica server socket is bound
+	 */
+	protected static String getMyAddress(ServerViewController controller) throws UnknownHostException {
 		String myAddress;
 		String confAddress = controller.getStaticConf().getRemoteAddress(controller.getStaticConf().getProcessId())
 				.getAddress().getHostAddress();
@@ -125,17 +162,7 @@ public class ServersCommunicationLayer extends Thread {
 			myAddress = controller.getStaticConf().getBindAddress();
 		}
 
-		int myPort = controller.getStaticConf().getServerToServerPort(controller.getStaticConf().getProcessId());
-		serverSocket = new ServerSocket(myPort, 100, InetAddress.getByName(myAddress));
-		serverSocket.setSoTimeout(20000);
-		serverSocket.setReuseAddress(true);
-
-		SecretKeyFactory fac = TOMUtil.getSecretFactory();
-		PBEKeySpec spec = TOMUtil.generateKeySpec(PASSWORD.toCharArray());
-		selfPwd = fac.generateSecret(spec);
-
-		start();
-
+		return myAddress;
 	}
 
 	/*
@@ -191,16 +218,15 @@ public class ServersCommunicationLayer extends Thread {
 	}
 	// ******* EDUARDO END **************//
 
-	public final void send(int[] targets, SystemMessage sm, boolean useMAC) {
-		ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+	public void send(int[] targets, SystemMessage sm, boolean useMAC) {
+		byte[] data = null;
 		try {
-			new ObjectOutputStream(bOut).writeObject(sm);
+			data = codec.encode(sm);
 		} catch (IOException ex) {
 			logger.error("Failed to serialize message", ex);
+			return;
 		}
 
-		byte[] data = bOut.toByteArray();
-
 		for (int i : targets) {
 			try {
 				if (i == me) {
@@ -15,11 +15,9 @@ limitations under the License.
 */
 package bftsmart.communication.server;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
@@ -96,6 +94,7 @@ public class ServersCommunicationLayerSSLTLS extends Thread {
 	private ReentrantLock waitViewLock = new ReentrantLock();
 	private List<PendingConnection> pendingConn = new LinkedList<PendingConnection>();
 	private ServiceReplica replica;
+	private SystemMessageCodec codec;
 
 	/**
 	 * Tulio A. Ribeiro
@@ -121,6 +120,7 @@ public class ServersCommunicationLayerSSLTLS extends Thread {
 		this.inQueue = inQueue;
 		this.me = controller.getStaticConf().getProcessId();
 		this.replica = replica;
+		this.codec = SystemMessageCodecFactory.getCodec(controller.getStaticConf());
 		this.ssltlsProtocolVersion = controller.getStaticConf().getSSLTLSProtocolVersion();
 
 		String myAddress;
@@ -259,14 +259,13 @@ public class ServersCommunicationLayerSSLTLS extends Thread {
 
 	public final void send(int[] targets, SystemMessage sm) {
 		
-		ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+		byte[] data = null;
 		try {
-			new ObjectOutputStream(bOut).writeObject(sm);
+			data = codec.encode(sm);
 		} catch (IOException ex) {
 			logger.error("Failed to serialize message", ex);
+			return;
 		}
-
-		byte[] data = bOut.toByteArray();
 		 
 		Integer[] targetArray = Arrays.stream( targets ).boxed().toArray( Integer[]::new );
 		Collections.shuffle(Arrays.asList(targetArray), new Random());
@@ -0,0 +1,47 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import java.io.IOException;
+
+import bftsmart.communication.SystemMessage;
+
+/**
+ * Converts the messages exchanged among replicas to and from the byte arrays
+ * that are written on the replica-to-replica channels.
+ *
+ */
+public interface SystemMessageCodec {
+
+    /**
+     * Encodes a message into the bytes to be sent to other replicas
+     *
+     * @param sm Message to be encoded
+     * @return The encoded message
+     * @throws IOException If the message could not be encoded
+     */
+    public byte[] encode(SystemMessage sm) throws IOException;
+
+    /**
+     * Decodes a message received from another replica
+     *
+     * @param data Bytes received from the channel
+     * @return The decoded message
+     * @throws IOException If the bytes are malformed
+     * @throws ClassNotFoundException If the message type is unknown
+     */
+    public SystemMessage decode(byte[] data) throws IOException, ClassNotFoundException;
+}
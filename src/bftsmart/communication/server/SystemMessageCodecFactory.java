@@ -0,0 +1,36 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import bftsmart.reconfiguration.util.TOMConfiguration;
+
+/**
+ * Creates the codec used on the replica-to-replica channels, according to the
+ * system.communication.codec setting.
+ *
+ */
+public class SystemMessageCodecFactory {
+
+    private static final SystemMessageCodec JAVA_CODEC = new JavaSerializationCodec();
+    private static final SystemMessageCodec BINARY_CODEC = new BinaryCodec();
+
+    public static SystemMessageCodec getCodec(TOMConfiguration conf) {
+        if (conf != null && "binary".equalsIgnoreCase(conf.getCodec())) {
+            return BINARY_CODEC;
+        }
+        return JAVA_CODEC;
+    }
+}
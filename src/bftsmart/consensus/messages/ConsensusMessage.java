@@ -15,9 +15,13 @@ limitations under the License.
 */
 package bftsmart.consensus.messages;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.util.HashMap;
+import java.util.Map;
 
 import bftsmart.communication.SystemMessage;
 
@@ -142,6 +146,100 @@ public class ConsensusMessage extends SystemMessage {
         
     }
 
+    /**
+     * Writes this message using the compact binary wire format. Only proofs made
+     * of a signature or of a MAC vector are supported.
+     *
+     * @param out Output to which the message is written
+     * @throws IOException If the proof type is not supported
+     */
+    public void wExternal(DataOutput out) throws IOException {
+
+        out.writeInt(sender);
+        out.writeInt(number);
+        out.writeInt(epoch);
+        out.writeInt(paxosType);
+
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+
+        if (proof == null) {
+
+            out.writeByte(0);
+
+        } else if (proof instanceof byte[]) { // signature
+
+            byte[] signature = (byte[]) proof;
+            out.writeByte(1);
+            out.writeInt(signature.length);
+            out.write(signature);
+
+        } else if (proof instanceof HashMap) { // MAC vector
+
+            HashMap<Integer, byte[]> macVector = (HashMap<Integer, byte[]>) proof;
+            out.writeByte(2);
+            out.writeInt(macVector.size());
+            for (Map.Entry<Integer, byte[]> entry : macVector.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+
+        } else {
+            throw new IOException("Unsupported proof type: " + proof.getClass().getName());
+        }
+    }
+
+    /**
+     * Reads a message written with wExternal
+     *
+     * @param in Input from which the message is read
+     * @throws IOException If the message is malformed
+     */
+    public void rExternal(DataInput in) throws IOException {
+
+        sender = in.readInt();
+        number = in.readInt();
+        epoch = in.readInt();
+        paxosType = in.readInt();
+
+        int toRead = in.readInt();
+        if (toRead != -1) {
+            value = new byte[checkLength(in, toRead, 1)];
+            in.readFully(value);
+        }
+
+        byte proofType = in.readByte();
+        switch (proofType) {
+            case 0:
+                proof = null;
+                break;
+            case 1:
+                byte[] signature = new byte[checkLength(in, in.readInt(), 1)];
+                in.readFully(signature);
+                proof = signature;
+                break;
+            case 2:
+                // each entry has at least the id and the length of the MAC
+                int size = checkLength(in, in.readInt(), 2 * Integer.BYTES);
+                HashMap<Integer, byte[]> macVector = new HashMap<>();
+                for (int i = 0; i < size; i++) {
+                    int id = in.readInt();
+                    byte[] mac = new byte[checkLength(in, in.readInt(), 1)];
+                    in.readFully(mac);
+                    macVector.put(id, mac);
+                }
+                proof = macVector;
+                break;
+            default:
+                throw new IOException("Unknown proof type: " + proofType);
+        }
+    }
+
     /**
      * Retrieves the epoch number to which this message belongs
      * @return Epoch to which this message belongs
@@ -18,8 +18,7 @@ package bftsmart.consensus.roles;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -27,7 +26,6 @@ import java.util.LinkedList;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingDeque;
 
-import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 
 import org.slf4j.Logger;
@@ -43,6 +41,7 @@ import bftsmart.tom.core.ExecutionManager;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.messages.TOMMessageType;
+import bftsmart.tom.util.CryptoEngines;
 import bftsmart.tom.util.TOMUtil;
 
 /**
@@ -63,7 +62,6 @@ public final class Acceptor {
 	private TOMLayer tomLayer; // TOM layer
 	private ServerViewController controller;
 	// private Cipher cipher;
-	private Mac mac;
 
 	/**
 	 * Tulio Ribeiro
@@ -100,13 +98,6 @@ public final class Acceptor {
 		new Thread(ipt).start();
 		this.proofType = controller.getStaticConf().getProofType();
 
-		try {
-			this.mac = TOMUtil.getMacFactory();
-			logger.debug("Setting MAC with TOMUtil.getMacFactory(). ReplicaId: {}", me);
-		} catch (NoSuchAlgorithmException /* | NoSuchPaddingException */ ex) {
-			logger.error("Failed to get MAC engine", ex);
-		}
-
 	}
 
 	public MessageFactory getFactory() {
@@ -208,6 +199,10 @@ public final class Acceptor {
 		logger.debug("PROPOSE for consensus " + cid);
 		if (msg.getSender() == executionManager.getCurrentLeader() // Is the replica the leader?
 				&& epoch.getTimestamp() == 0 && ts == ets && ets == 0) { // Is all this in epoch 0?
+			// requests proposed by reference must be here before the value is checked,
+			// otherwise they are fetched and the propose is delivered again later
+			if (!tomLayer.getLargeRequests().isAvailable(msg)) return;
+
 			executePropose(epoch, msg.getValue());
 		} else {
 			logger.debug("Propose received is not from the expected leader");
@@ -239,10 +234,10 @@ public final class Acceptor {
 			/*****************************************/
 
 			// start this consensus if it is not already running
-			if (cid == tomLayer.getLastExec() + 1) {
+			if (tomLayer.isInPipelineWindow(cid)) {
 				tomLayer.setInExec(cid);
 			}
-			epoch.deserializedPropValue = tomLayer.checkProposedValue(value, true);
+			epoch.deserializedPropValue = tomLayer.checkProposedValue(cid, value, epoch.propValueHash, true);
 
 			if (epoch.deserializedPropValue != null && !epoch.isWriteSetted(me)) {
 				if (epoch.getConsensus().getDecision().firstMessageProposed == null) {
@@ -283,6 +278,9 @@ public final class Acceptor {
 
 					computeAccept(cid, epoch, epoch.propValueHash);
 				}
+				// the batch may be executed while WRITE/ACCEPT messages are exchanged
+				tomLayer.speculate(cid, epoch);
+
 				executionManager.processOutOfContext(epoch.getConsensus());
 
 			} else if (epoch.deserializedPropValue == null && !tomLayer.isChangingLeader()) { // force a leader change
@@ -348,19 +346,27 @@ public final class Acceptor {
 
 				// insertProof(cm, epoch);
 				ConsensusMessage cm = null;
-				try {
-					if (this.hasProof) {
-						logger.debug("Waiting for readProof Blocking Queue... cID: {}", cid);
-						cm = readProof.take();
-					} else {
-						// Deal with some case where the protocol does not execute from begin, as leader
-						// change.
-						logger.info("Proof not done yes, leader change?, hasProof:{}", this.hasProof);
-						advanceInsertProof(cid, epoch.getTimestamp(), value, epoch.deserializedPropValue);
-						cm = readProof.take();
+				if (tomLayer.getPipelineDepth() > 1) {
+					// several instances may be waiting for their proofs at the same time,
+					// so the proof cannot be taken from the advanced proof queue
+					hasReconf = !proofType.equalsIgnoreCase("signatures") && hasReconfiguration(epoch.deserializedPropValue);
+					cm = factory.createAccept(cid, epoch.getTimestamp(), value);
+					insertProof(cm);
+				} else {
+					try {
+						if (this.hasProof) {
+							logger.debug("Waiting for readProof Blocking Queue... cID: {}", cid);
+							cm = readProof.take();
+						} else {
+							// Deal with some case where the protocol does not execute from begin, as leader
+							// change.
+							logger.info("Proof not done yes, leader change?, hasProof:{}", this.hasProof);
+							advanceInsertProof(cid, epoch.getTimestamp(), value, epoch.deserializedPropValue);
+							cm = readProof.take();
+						}
+					} catch (InterruptedException e) {
+						e.printStackTrace();
 					}
-				} catch (InterruptedException e) {
-					e.printStackTrace();
 				}
 
 				int[] targets = this.controller.getCurrentViewOtherAcceptors();
@@ -369,7 +375,7 @@ public final class Acceptor {
 				epoch.addToProof(cm);
 				computeAccept(cid, epoch, value);
 			}
-		} else if (!hasProof) {
+		} else if (!hasProof && tomLayer.getPipelineDepth() == 1) {
 			advanceInsertProof(cid, epoch.getTimestamp(), value, epoch.deserializedPropValue);
 		}
 	}
@@ -388,14 +394,8 @@ public final class Acceptor {
 	public void advanceInsertProof(int cid, int epochTimestamp, byte[] value,  TOMMessage[] msgs) {
 
 		// check if consensus contains reconfiguration request
-		if (!proofType.equalsIgnoreCase("signatures")) {
-
-			for (TOMMessage msg : msgs) {
-				if (msg.getReqType() == TOMMessageType.RECONFIG && msg.getViewID() == controller.getCurrentViewId()) {
-					hasReconf = true;
-					break; // no need to continue, exit the loop
-				}
-			}
+		if (!proofType.equalsIgnoreCase("signatures") && hasReconfiguration(msgs)) {
+			hasReconf = true;
 		}
 
 		hasProof = true;
@@ -529,6 +529,87 @@ public final class Acceptor {
 		epoch.getConsensus().decided(epoch, true);
 	}
 
+	/**
+	 * Checks if a batch contains a reconfiguration request for the current view.
+	 * If so, the ACCEPT proof must be signed instead of using MAC vectors.
+	 * 
+	 * @param msgs
+	 *            Requests contained in the batch
+	 */
+	private boolean hasReconfiguration(TOMMessage[] msgs) {
+		if (msgs == null) return false;
+		for (TOMMessage msg : msgs) {
+			if (msg.getReqType() == TOMMessageType.RECONFIG && msg.getViewID() == controller.getCurrentViewId()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Create a cryptographic proof for a consensus message
+	 * 
+	 * This method modifies the consensus message passed as an argument, so that it
+	 * contains a cryptographic proof.
+	 * 
+	 * @param cm
+	 *            The consensus message to which the proof shall be set
+	 */
+	private void insertProof(ConsensusMessage cm) {
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+		try {
+			new ObjectOutputStream(bOut).writeObject(cm);
+		} catch (IOException ex) {
+			logger.error("Failed to serialize consensus message", ex);
+		}
+		byte[] data = bOut.toByteArray();
+
+		
+		if(hasReconf || proofType.equalsIgnoreCase("signatures")) { 
+			//If we have a reconfiguration, we need to sign.
+			//Sign the message. 
+			byte[] signature = TOMUtil.signMessage(privKey, data);
+			cm.setProof(signature);
+		}
+		else if(proofType.equalsIgnoreCase("macVector")){//... otherwise, we will use MAC vectors
+	            
+	            int[] processes = controller.getCurrentViewAcceptors();
+
+	            HashMap<Integer, byte[]> macVector = new HashMap<>();
+
+	            for (int id : processes) {
+
+	                try {
+
+	                    SecretKey key = null;
+	                    do {
+	                        key = communication.getServersConn().getSecretKey(id);
+	                        if (key == null) {
+	                            logger.warn("I don't have yet a secret key with " + id + ". Retrying.");
+	                            Thread.sleep(1000);
+	                        }
+
+	                    } while (key == null);  // JCS: This loop is to solve a race condition where a
+	                                            // replica might have already been inserted in the view or
+	                                            // recovered after a crash, but it still did not concluded
+	                                            // the diffie helman protocol. Not an elegant solution,
+	                                            // but for now it will do
+	                    try {
+	                        macVector.put(id, CryptoEngines.mac(key).doFinal(data));
+	                    } catch (GeneralSecurityException ex) {
+	                        CryptoEngines.discard(key);
+	                        logger.error("Failed to generate MAC vector", ex);
+	                    }
+	                } catch (InterruptedException ex) {
+	                    
+	                    logger.error("Interruption while sleeping", ex);
+	                }
+	            }
+
+	            cm.setProof(macVector);
+		}
+	}
+
 	/**
 	 * Create a cryptographic proof for a consensus message Thread used to advance
 	 * the signature process.
@@ -550,66 +631,8 @@ public final class Acceptor {
 				try {
 					ConsensusMessage cm = insertProof.take();
 
-					ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
-					try {
-						new ObjectOutputStream(bOut).writeObject(cm);
-					} catch (IOException ex) {
-						logger.error("Failed to serialize consensus message", ex);
-					}
-					byte[] data = bOut.toByteArray();
-
-					
-					if(hasReconf || proofType.equalsIgnoreCase("signatures")) { 
-						//If we have a reconfiguration, we need to sign.
-						//Sign the message. 
-						byte[] signature = TOMUtil.signMessage(privKey, data);
-						cm.setProof(signature);
-					}
-					else if(proofType.equalsIgnoreCase("macVector")){//... otherwise, we will use MAC vectors
-				            
-				            Mac mac = null;				            
-				            try {				            
-				                mac = TOMUtil.getMacFactory();				            
-				            } catch (NoSuchAlgorithmException ex) {
-				                logger.error("Failed to create MAC engine", ex);
-				                return;
-				            }
-				            
-				            int[] processes = controller.getCurrentViewAcceptors();
-
-				            HashMap<Integer, byte[]> macVector = new HashMap<>();
-
-				            for (int id : processes) {
-
-				                try {
-
-				                    SecretKey key = null;
-				                    do {
-				                        key = communication.getServersConn().getSecretKey(id);
-				                        if (key == null) {
-				                            logger.warn("I don't have yet a secret key with " + id + ". Retrying.");
-				                            Thread.sleep(1000);
-				                        }
-
-				                    } while (key == null);  // JCS: This loop is to solve a race condition where a
-				                                            // replica might have already been inserted in the view or
-				                                            // recovered after a crash, but it still did not concluded
-				                                            // the diffie helman protocol. Not an elegant solution,
-				                                            // but for now it will do
-				                    mac.init(key);
-				                    macVector.put(id, mac.doFinal(data));
-				                } catch (InterruptedException ex) {
-				                    
-				                    logger.error("Interruption while sleeping", ex);
-				                } catch (InvalidKeyException ex) {
-
-				                    logger.error("Failed to generate MAC vector", ex);
-				                }
-				            }
-
-				            cm.setProof(macVector);
-					}
-					
+					insertProof(cm);
+
 					readProof.put(cm);
 
 				} catch (InterruptedException e) {
@@ -22,22 +22,16 @@ limitations under the License.
 
 package bftsmart.consensus.roles;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.RandomAccessFile;
-import java.nio.file.Files;
 import java.security.PrivateKey;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingDeque;
 
 import org.slf4j.Logger;
@@ -51,9 +45,8 @@ import bftsmart.consensus.messages.MessageFactory;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.ExecutionManager;
 import bftsmart.tom.core.TOMLayer;
-import bftsmart.tom.core.messages.TOMMessage;
-import bftsmart.tom.util.BatchReader;
 import bftsmart.tom.util.TOMUtil;
+import bftsmart.tom.util.WriteAheadLog;
 
 /**
  * This class represents the acceptor role in the consensus protocol. This class
@@ -82,9 +75,8 @@ public final class AcceptorSSLTLS {
 	private boolean hasProof;
 
 	//Disk
-	private BlockingQueue<HashMap<Integer, byte[]>> toPersistBatch;
-	private BlockingQueue<HashMap<Integer, Set<ConsensusMessage>>> toPersistProof;
-	private BlockingQueue<Integer> saved;
+	private WriteAheadLog wal;
+	private ConcurrentHashMap<Integer, Long> batchTickets; // cid -> WAL ticket of its batch
 	private Boolean isPersistent = false;
 	private String storeDataDir;
 	
@@ -114,20 +106,17 @@ public final class AcceptorSSLTLS {
 		new Thread(ipt).start();
 		
 		// Deal with disk
-		this.saved = new LinkedBlockingDeque<>();
-		this.toPersistBatch = new LinkedBlockingDeque<>();
-		this.toPersistProof = new LinkedBlockingDeque<>();
+		this.batchTickets = new ConcurrentHashMap<>();
 		this.storeDataDir = controller.getStaticConf().getStoreDataDir() + "/replica_"+this.me;
 		this.isPersistent = controller.getStaticConf().isPersistent();
 		
-		SaveBatchToDisk dwd = new SaveBatchToDisk(this.toPersistBatch);
-		SaveProofToDisk spd = new SaveProofToDisk(this.toPersistProof);
 		if(this.isPersistent) {
-			File f = new File(this.storeDataDir);
-			f.mkdirs();
-			
-			new Thread(dwd).start();	
-			new Thread(spd).start();			
+			try {
+				this.wal = new WriteAheadLog(this.storeDataDir, controller.getStaticConf().getSegmentSize());
+			} catch (IOException e) {
+				logger.error("Could not open the write-ahead log at " + this.storeDataDir + ", persistence disabled", e);
+				this.isPersistent = false;
+			}
 		}
 		
 	}
@@ -216,7 +205,10 @@ public final class AcceptorSSLTLS {
 		logger.debug("PROPOSE received from:{}, for consensus cId:{}, I am:{}", msg.getSender(), cid, me);
 		if (msg.getSender() == executionManager.getCurrentLeader() // Is the replica the leader?
 				&& epoch.getTimestamp() == 0 && ts == ets && ets == 0) { // Is all this in epoch 0?
-			
+			// requests proposed by reference must be here before the value is checked,
+			// otherwise they are fetched and the propose is delivered again later
+			if (!tomLayer.getLargeRequests().isAvailable(msg)) return;
+
 			executePropose(epoch, msg.getValue());
 		} else {
 			logger.debug("Propose received is not from the expected leader");
@@ -247,10 +239,10 @@ public final class AcceptorSSLTLS {
 			/*****************************************/
 
 			// start this consensus if it is not already running
-			if (cid == tomLayer.getLastExec() + 1) {
+			if (tomLayer.isInPipelineWindow(cid)) {
 				tomLayer.setInExec(cid);
 			}
-			epoch.deserializedPropValue = tomLayer.checkProposedValue(value, true);
+			epoch.deserializedPropValue = tomLayer.checkProposedValue(cid, value, epoch.propValueHash, true);
 
 			if (epoch.deserializedPropValue != null && !epoch.isWriteSetted(me)) {
 				
@@ -298,6 +290,9 @@ public final class AcceptorSSLTLS {
 
 					computeAccept(cid, epoch, epoch.propValueHash);
 				}
+				// the batch may be executed while WRITE/ACCEPT messages are exchanged
+				tomLayer.speculate(cid, epoch);
+
 				executionManager.processOutOfContext(epoch.getConsensus());
 
 			} else if (epoch.deserializedPropValue == null 
@@ -370,30 +365,32 @@ public final class AcceptorSSLTLS {
 
 				// insertProof(cm, epoch);
 				ConsensusMessage cm = null;
-				try {
-					if(this.hasProof) {
-						logger.debug("Waiting for readProof Blocking Queue... cID: {}", cid );
-						cm = readProof.take();
-					}
-					else {
-						//Deal with some case where the protocol does not execute from begin, as leader change.
-						logger.info("Proof not done yes, leader change?, hasProof:{}", this.hasProof);
-						advanceInsertProof(cid, epoch.getTimestamp(), value);
-						cm = readProof.take();
-					}
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-
-				if (this.isPersistent) {
+				if (tomLayer.getPipelineDepth() > 1) {
+					// several instances may be waiting for their proofs at the same time,
+					// so the proof cannot be taken from the advanced proof queue
+					cm = factory.createAccept(cid, epoch.getTimestamp(), value);
+					insertProof(cm);
+				} else {
 					try {
-						logger.trace("Waiting for saved Blocking Queue... cid: {}", cid );
-						int cId = saved.take();
-						logger.debug("Batch for cId: {} was safely persisted.", cId);
+						if(this.hasProof) {
+							logger.debug("Waiting for readProof Blocking Queue... cID: {}", cid );
+							cm = readProof.take();
+						}
+						else {
+							//Deal with some case where the protocol does not execute from begin, as leader change.
+							logger.info("Proof not done yes, leader change?, hasProof:{}", this.hasProof);
+							advanceInsertProof(cid, epoch.getTimestamp(), value);
+							cm = readProof.take();
+						}
 					} catch (InterruptedException e) {
 						e.printStackTrace();
 					}
 				}
+
+				// the ACCEPT is never sent for a batch that is not durable
+				if (this.isPersistent && !awaitBatchDurable(cid, epoch)) {
+					return;
+				}
 				
 				int[] targets = controller.getCurrentViewOtherAcceptors();
 
@@ -403,26 +400,66 @@ public final class AcceptorSSLTLS {
 				computeAccept(cid, epoch, value);
 
 			}
-		}else if (!hasProof) {
+		}else if (!hasProof && tomLayer.getPipelineDepth() == 1) {
 			advanceInsertProof(cid, epoch.getTimestamp(), value);
 		} 
 	}
 
 	/**
-	 * Advancing batch disk saving.
+	 * Waits for the batch of a consensus to be durable. The batch is appended
+	 * to the write-ahead log here if it was not saved when the proposal was
+	 * received (e.g., the consensus was resumed by a leader change). If the
+	 * batch cannot be persisted the replica is stopped, as if it crashed.
+	 * 
+	 * @param cid
+	 *            Consensus id
+	 * @param epoch
+	 *            Epoch with the proposed batch
+	 * @return true if the batch is durable
+	 */
+	private boolean awaitBatchDurable(int cid, Epoch epoch) {
+		Long ticket = batchTickets.get(cid);
+		if (ticket == null && epoch.propValue != null) {
+			ticket = wal.append(WriteAheadLog.BATCH, cid, epoch.propValue);
+			batchTickets.put(cid, ticket);
+		}
+
+		try {
+			if (ticket == null) {
+				throw new IOException("No batch to persist");
+			}
+			logger.trace("Waiting for the batch of cId:{} to be durable", cid);
+			wal.awaitDurable(ticket);
+			logger.debug("Batch for cId: {} was safely persisted.", cid);
+			return true;
+		} catch (IOException e) {
+			logger.error("Batch for cId: " + cid + " was not persisted, stopping the replica", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.error("Interrupted while persisting the batch for cId: " + cid + ", stopping the replica", e);
+		}
+
+		// as in ServiceReplica.kill, the shutdown runs in its own thread
+		new Thread(() -> tomLayer.shutdown(), "Replica Shutdown").start();
+		return false;
+	}
+
+	/**
+	 * Advancing batch disk saving. The batches are appended to the write-ahead
+	 * log, and computeWrite waits for them to be durable before sending the
+	 * ACCEPT of the same consensus.
 	 * TODO: problem when changing leader.     
 	 *  
-	 * @param cid: consensus id
-	 * @param epoch: epoch
-	 * @param value: value sent in the message
+	 * @param map: consensus id -> batch
 	 */
 	
 	public void advanceBatchSaving(HashMap<Integer, byte[]> map) {
 		logger.debug("Advancing batch disk saving, KeySet: {}", map.keySet().toString());
-		try {
-			toPersistBatch.put(map);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+		if (wal == null) {
+			return;
+		}
+		for (Integer cId : map.keySet()) {
+			batchTickets.put(cId, wal.append(WriteAheadLog.BATCH, cId, map.get(cId)));
 		}
 	}
 	/**
@@ -479,18 +516,46 @@ public final class AcceptorSSLTLS {
 			hasProof = false;
 			
 			if (this.isPersistent) {
-				try {
-					HashMap<Integer, Set<ConsensusMessage>> proof = new HashMap<>();
-					proof.put(cid, epoch.getProof());
-					this.toPersistProof.put(proof);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+				saveProof(cid, epoch.getProof());
 			}
 			decide(epoch);
 		}
 	}
 
+	/**
+	 * Appends the proof of a decided consensus to the write-ahead log.
+	 * 
+	 * @param cid
+	 *            Consensus id
+	 * @param proof
+	 *            ACCEPT messages that decided the consensus
+	 */
+	private void saveProof(int cid, Set<ConsensusMessage> proof) {
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+		try {
+			new ObjectOutputStream(bOut).writeObject(proof);
+		} catch (IOException ex) {
+			logger.error("Failed to serialize consensus message", ex);
+			return;
+		}
+		wal.append(WriteAheadLog.PROOF, cid, bOut.toByteArray());
+	}
+
+	/**
+	 * Removes the write-ahead log segments covered by a checkpoint. Invoked
+	 * (through the state manager) once the application stored the checkpoint,
+	 * which may happen in the background after later consensus instances.
+	 * 
+	 * @param cid
+	 *            Last consensus id covered by the checkpoint
+	 */
+	public void checkpointInstalled(int cid) {
+		if (wal != null) {
+			wal.truncate(cid);
+			batchTickets.keySet().removeIf(c -> c <= cid);
+		}
+	}
+
 	/**
 	 * This is the method invoked when a value is decided by this process
 	 * 
@@ -514,6 +579,29 @@ public final class AcceptorSSLTLS {
 	 * return data2.length; }
 	 */
 
+	/**
+	 * Create a cryptographic proof for a consensus message
+	 * 
+	 * This method modifies the consensus message passed as an argument, so that it
+	 * contains a signature.
+	 * 
+	 * @param cm
+	 *            The consensus message to which the proof shall be set
+	 */
+	private void insertProof(ConsensusMessage cm) {
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+		try {
+			new ObjectOutputStream(bOut).writeObject(cm);
+		} catch (IOException ex) {
+			logger.error("Failed to serialize consensus message", ex);
+		}
+		byte[] data = bOut.toByteArray();
+
+		byte[] signature = TOMUtil.signMessage(privKey, data);
+
+		cm.setProof(signature);
+	}
+
 	/**
 	 * Create a cryptographic proof for a consensus message Thread used to advance
 	 * the signature process. 
@@ -533,17 +621,7 @@ public final class AcceptorSSLTLS {
 				try {
 					ConsensusMessage cm = insertProof.take();
 
-					ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
-					try {
-						new ObjectOutputStream(bOut).writeObject(cm);
-					} catch (IOException ex) {
-						logger.error("Failed to serialize consensus message", ex);
-					}
-					byte[] data = bOut.toByteArray();
-
-					byte[] signature = TOMUtil.signMessage(privKey, data);
-
-					cm.setProof(signature);
+					insertProof(cm);
 
 					readProof.put(cm);
 
@@ -553,138 +631,4 @@ public final class AcceptorSSLTLS {
 			}
 		}
 	}
-
-	
-	/**
-	 * 
-	 */
-	private class SaveBatchToDisk implements Runnable {
-		private BlockingQueue<HashMap<Integer, byte[]>> toPersistBatch;
-
-		public SaveBatchToDisk(BlockingQueue<HashMap<Integer, byte[]>> queue) {
-			toPersistBatch = queue;
-		}
-		@Override
-		public void run() {
-			logger.info("Save batch to disk thread running. ThreadId: {}", Thread.currentThread().getId());
-			RandomAccessFile raf = null;			
-
-			while (true) {
-				try {										
-					HashMap<Integer, byte[]> mapConsensus = toPersistBatch.take();					
-					Iterator<Integer> it = mapConsensus.keySet().iterator();
-					while (it.hasNext()) {
-						Integer cId = (Integer) it.next();
-						String consensusFile = storeDataDir + "/cId_"+cId;
-								
-						try {
-							raf = new RandomAccessFile(consensusFile, "rwd");
-							raf.write(mapConsensus.get(cId));
-							raf.close();
-							saved.put(cId);
-							//logger.info("Batch safely saved. cId:{}", cId);
-						} catch (Exception e) {
-							e.printStackTrace();
-						}
-
-						if (logger.isTraceEnabled()) {
-							// Informative code, read and show the saved batch.
-							logger.trace("READING BATCH FROM DISK, cId:{}", cId);
-							try {
-								byte[] data = Files.readAllBytes(new File(storeDataDir + "/cId_" + cId).toPath());
-								BatchReader batchReader = new BatchReader(data,
-										controller.getStaticConf().getUseSignatures());
-								TOMMessage[] requests = null;
-								requests = batchReader.deserialiseRequests(controller);
-								for (TOMMessage request : requests) {
-									logger.trace("Request, Sender:{}, Req Type:{}", request.getSender(),
-											request.getReqType());
-								}
-							} catch (FileNotFoundException e) {
-								e.printStackTrace();
-							} catch (IOException e) {
-								e.printStackTrace();
-							}
-						}
-					}
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
-		}
-	}
-
-	private class SaveProofToDisk implements Runnable {
-		private BlockingQueue<HashMap<Integer, Set<ConsensusMessage>>> toPersistProof;
-
-		public SaveProofToDisk(BlockingQueue<HashMap<Integer, Set<ConsensusMessage>>> queue) {
-			toPersistProof = queue;
-		}
-
-		@Override
-		public void run() {
-			logger.info("Save proof to disk thread running. ThreadId: {}", Thread.currentThread().getId());
-			
-			RandomAccessFile raf = null;
-			
-			while (true) {
-				try {
-					
-					HashMap<Integer, Set<ConsensusMessage>> mapProofs = toPersistProof.take();
-					
-					Iterator<Integer> it = mapProofs.keySet().iterator();
-					while (it.hasNext()) {
-						Integer cId = (Integer) it.next();
-						Set<ConsensusMessage> proofsToSave = mapProofs.get(cId);
-
-						String proofFile = storeDataDir + "/cId_" + cId + ".proof";
-
-						ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
-						try {
-							new ObjectOutputStream(bOut).writeObject(proofsToSave);
-						} catch (IOException ex) {
-							logger.error("Failed to serialize consensus message", ex);
-						}
-						byte[] epochProof = bOut.toByteArray();
-						
-						try {
-							raf = new RandomAccessFile(proofFile, "rwd");
-							raf.write(epochProof);
-							raf.close();
-						} catch (Exception e) {
-							e.printStackTrace();
-						}
-			
-						if (logger.isTraceEnabled()) {
-							// Informative code, read and show the saved proofs.
-							logger.trace("READING PROOF FROM DISK, cId:{}", cId);
-							try {
-								byte[] proofs = Files.readAllBytes(new File(proofFile).toPath());
-
-								Set<ConsensusMessage> proofsRead = (Set<ConsensusMessage>) (new ObjectInputStream(
-										new ByteArrayInputStream(proofs)).readObject());
-								Iterator<ConsensusMessage> itProof = proofsRead.iterator();
-								while (itProof.hasNext()) {
-									ConsensusMessage cm = (ConsensusMessage) itProof.next();
-									logger.trace("From file, cId:{}, Sender:{}", cm.getNumber(), cm.getSender());
-								}
-							} catch (FileNotFoundException e) {
-								e.printStackTrace();
-							} catch (ClassNotFoundException e) {
-								e.printStackTrace();
-							}catch (Exception e) {
-								e.printStackTrace();
-							}
-						}
-					}
-
-				} catch (InterruptedException  e) {
-					e.printStackTrace();
-				}
-				
-				
-				
-			}
-		}
-	}
 }
@@ -0,0 +1,113 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.demo.microbenchmarks;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bftsmart.tom.util.WriteAheadLog;
+
+/**
+ * Compares the two ways of persisting consensus batches: one synchronous file
+ * per consensus (as AcceptorSSLTLS used to do) and the write-ahead log with
+ * group commit. Several threads play the role of consensus instances in the
+ * pipeline, each one saving a batch and waiting for it to be durable.
+ */
+public class PersistenceBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.println("Use: java ...PersistenceBenchmark <directory> <number of batches> <batch size> <threads> [files|wal]");
+            System.exit(-1);
+        }
+
+        String dir = args[0];
+        int batches = Integer.parseInt(args[1]);
+        int size = Integer.parseInt(args[2]);
+        int threads = Integer.parseInt(args[3]);
+        String mode = args.length > 4 ? args[4] : "both";
+
+        if (!mode.equals("wal")) {
+            report("Per-consensus files", batches, runFiles(dir + "/files", batches, size, threads));
+        }
+        if (!mode.equals("files")) {
+            report("Write-ahead log", batches, runLog(dir + "/wal", batches, size, threads));
+        }
+    }
+
+    private static long runFiles(String dir, int batches, int size, int threads) throws Exception {
+        new File(dir).mkdirs();
+        AtomicInteger next = new AtomicInteger();
+        byte[] batch = new byte[size];
+
+        return run(threads, () -> {
+            for (int cid = next.getAndIncrement(); cid < batches; cid = next.getAndIncrement()) {
+                try (RandomAccessFile raf = new RandomAccessFile(dir + "/cId_" + cid, "rwd")) {
+                    raf.write(batch);
+                }
+            }
+        });
+    }
+
+    private static long runLog(String dir, int batches, int size, int threads) throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(dir, 67108864);
+        AtomicInteger next = new AtomicInteger();
+        byte[] batch = new byte[size];
+
+        long time = run(threads, () -> {
+            for (int cid = next.getAndIncrement(); cid < batches; cid = next.getAndIncrement()) {
+                wal.awaitDurable(wal.append(WriteAheadLog.BATCH, cid, batch));
+            }
+        });
+        wal.close();
+        return time;
+    }
+
+    private interface Task {
+
+        void run() throws Exception;
+    }
+
+    private static long run(int threads, Task task) throws Exception {
+        Thread[] workers = new Thread[threads];
+        Exception[] failure = new Exception[1];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void report(String name, int batches, long time) {
+        System.out.println(name + ": " + batches + " batches in " + time / 1000000 + " ms ("
+                + (long) (batches / (time / 1e9)) + " batches/s)");
+    }
+}
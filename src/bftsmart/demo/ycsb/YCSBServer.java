@@ -22,21 +22,22 @@ import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
-import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import bftsmart.tom.MessageContext;
 import bftsmart.tom.ServiceReplica;
-import bftsmart.tom.server.defaultservices.DefaultRecoverable;
+import bftsmart.tom.server.defaultservices.ParallelRecoverable;
 
 /**
  *
  * @author Marcel Santos
  *
  */
-public class YCSBServer extends DefaultRecoverable {
+public class YCSBServer extends ParallelRecoverable {
 
     private static final boolean _debug = false;
-    private TreeMap<String, YCSBTable> mTables;
+    private ConcurrentSkipListMap<String, YCSBTable> mTables;
 
     private boolean logPrinted = false;
 
@@ -49,71 +50,74 @@ public class YCSBServer extends DefaultRecoverable {
     }
 
     private YCSBServer(int id) {
-        this.mTables = new TreeMap<>();
+        this.mTables = new ConcurrentSkipListMap<>();
         new ServiceReplica(id, this, this);
     }
 
     @Override
     public byte[][] appExecuteBatch(byte[][] commands, MessageContext[] msgCtx, boolean fromConsensus) {
-        byte[][] replies = new byte[commands.length][];
-        int index = 0;
-        for (byte[] command : commands) {
+        for (int index = 0; index < commands.length; index++) {
             if (msgCtx != null && msgCtx[index] != null && msgCtx[index].getConsensusId() % 1000 == 0 && !logPrinted) {
                 System.out.println("YCSBServer executing CID: " + msgCtx[index].getConsensusId());
                 logPrinted = true;
             } else {
                 logPrinted = false;
             }
+        }
+        return super.appExecuteBatch(commands, msgCtx, fromConsensus);
+    }
 
-            YCSBMessage aRequest = YCSBMessage.getObject(command);
-            YCSBMessage reply = YCSBMessage.newErrorMessage("");
-            if (aRequest == null) {
-                replies[index] = reply.getBytes();
-                continue;
-            }
-            if (_debug) {
-                System.out.println("[INFO] Processing an ordered request");
-            }
-            switch (aRequest.getType()) {
-                case CREATE: { // ##### operation: create #####
-                    switch (aRequest.getEntity()) {
-                        case RECORD: // ##### entity: record #####
-                            if (!mTables.containsKey(aRequest.getTable())) {
-                                mTables.put((String) aRequest.getTable(), new YCSBTable());
-                            }
-                            if (!mTables.get(aRequest.getTable()).containsKey(aRequest.getKey())) {
-                                mTables.get(aRequest.getTable()).put(aRequest.getKey(), aRequest.getValues());
-                                reply = YCSBMessage.newInsertResponse(0);
-                            }
-                            break;
-                        default: // Only create records
-                            break;
-                    }
-                    break;
-                }
+    @Override
+    public Object[] getConflictKeys(byte[] command, MessageContext msgCtx) {
+        YCSBMessage aRequest = YCSBMessage.getObject(command);
+        if (aRequest == null) {
+            return null;
+        }
+        // requests on different records can be executed in parallel
+        return new Object[] { Arrays.asList(aRequest.getTable(), aRequest.getKey()) };
+    }
 
-                case UPDATE: { // ##### operation: update #####
-                    switch (aRequest.getEntity()) {
-                        case RECORD: // ##### entity: record #####
-                            if (!mTables.containsKey(aRequest.getTable())) {
-                                mTables.put((String) aRequest.getTable(), new YCSBTable());
-                            }
-                            mTables.get(aRequest.getTable()).put(aRequest.getKey(), aRequest.getValues());
-                            reply = YCSBMessage.newUpdateResponse(1);
-                            break;
-                        default: // Only update records
-                            break;
-                    }
-                    break;
+    @Override
+    public byte[] appExecuteCommand(byte[] command, MessageContext msgCtx, boolean fromConsensus) {
+        YCSBMessage aRequest = YCSBMessage.getObject(command);
+        YCSBMessage reply = YCSBMessage.newErrorMessage("");
+        if (aRequest == null) {
+            return reply.getBytes();
+        }
+        if (_debug) {
+            System.out.println("[INFO] Processing an ordered request");
+        }
+        switch (aRequest.getType()) {
+            case CREATE: { // ##### operation: create #####
+                switch (aRequest.getEntity()) {
+                    case RECORD: // ##### entity: record #####
+                        YCSBTable table = mTables.computeIfAbsent(aRequest.getTable(), t -> new YCSBTable());
+                        if (table.putIfAbsent(aRequest.getKey(), aRequest.getValues()) == null) {
+                            reply = YCSBMessage.newInsertResponse(0);
+                        }
+                        break;
+                    default: // Only create records
+                        break;
                 }
+                break;
             }
-            if (_debug) {
-                System.out.println("[INFO] Sending reply");
+
+            case UPDATE: { // ##### operation: update #####
+                switch (aRequest.getEntity()) {
+                    case RECORD: // ##### entity: record #####
+                        mTables.computeIfAbsent(aRequest.getTable(), t -> new YCSBTable()).put(aRequest.getKey(), aRequest.getValues());
+                        reply = YCSBMessage.newUpdateResponse(1);
+                        break;
+                    default: // Only update records
+                        break;
+                }
+                break;
             }
-            replies[index++] = reply.getBytes();
         }
-//		System.out.println("RETURNING REPLY");
-        return replies;
+        if (_debug) {
+            System.out.println("[INFO] Sending reply");
+        }
+        return reply.getBytes();
     }
 
     @Override
@@ -157,7 +161,7 @@ public class YCSBServer extends DefaultRecoverable {
         try {
             ByteArrayInputStream bis = new ByteArrayInputStream(state);
             ObjectInput in = new ObjectInputStream(bis);
-            mTables = (TreeMap<String, YCSBTable>) in.readObject();
+            mTables = (ConcurrentSkipListMap<String, YCSBTable>) in.readObject();
             in.close();
             bis.close();
         } catch (IOException | ClassNotFoundException e) {
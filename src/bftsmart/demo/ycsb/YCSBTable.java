@@ -17,13 +17,13 @@ package bftsmart.demo.ycsb;
 
 import java.io.Serializable;
 import java.util.HashMap;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 /**
  *
  * @author Marcel Santos
  *
  */
-public class YCSBTable extends TreeMap<String, HashMap<String, byte[]>> implements Serializable {
+public class YCSBTable extends ConcurrentSkipListMap<String, HashMap<String, byte[]>> implements Serializable {
     private static final long serialVersionUID = 3786544460082473686L;
 }
@@ -36,15 +36,36 @@ public class TOMConfiguration extends Configuration {
     protected int timeoutHighMark;
     protected int replyVerificationTime;
     protected int maxBatchSize;
+    protected int pipelineDepth;
+    protected int numVerifierThreads;
+    protected int verificationChunkSize;
+    protected String batchVerifierClass;
+    protected long maxBatchBytes;
+    protected String batchingPolicyClass;
+    protected int batchMaxDelay;
+    protected int batchMinSize;
+    protected int batchTargetLatency;
+    protected int largeRequestSize;
+    protected int largeRequestChunk;
+    protected int largeRequestMaxSize;
+    protected boolean speculative;
     protected int numberOfNonces;
     protected int inQueueSize;
     protected int outQueueSize;
     protected boolean shutdownHookEnabled;
     protected boolean useSenderThread;
+    protected String codec;
+    protected String serverTransport;
     private int numNIOThreads;
+    private int clientConnections;
+    private int clientBatchSize;
+    private int clientBatchDelay;
     private boolean useMACs;
     private boolean useSignatures;
     private boolean stateTransferEnabled;
+    private boolean streamingStateTransfer;
+    private int stateChunkSize;
+    private int stateTransferPort;
     private int checkpointPeriod;
     private int globalCheckpointPeriod;
     private int useControlFlow;
@@ -56,9 +77,12 @@ public class TOMConfiguration extends Configuration {
     private boolean logToDisk;
     private boolean isToWriteCkpsToDisk;
     private boolean syncCkp;
+    private int syncLogInterval;
+    private boolean asyncCheckpoint;
     private boolean isBFT;
     private int numRepliers;
     private int numNettyWorkers;
+    private int numExecutionThreads;
     private boolean sameBatchSize;
     private String bindAddress;
     
@@ -70,6 +94,7 @@ public class TOMConfiguration extends Configuration {
     //Persistence
     private Boolean isPersistent;
     private String storeDataDir;
+    private long segmentSize;
     
     
     /** Creates a new instance of TOMConfiguration */
@@ -152,6 +177,96 @@ public class TOMConfiguration extends Configuration {
                 maxBatchSize = Integer.parseInt(s);
             }
 
+            s = (String) configs.remove("system.totalordermulticast.maxbatchbytes");
+            if (s == null) {
+                maxBatchBytes = 0;
+            } else {
+                maxBatchBytes = Long.parseLong(s);
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.batching_policy");
+            if (s == null) {
+                batchingPolicyClass = "bftsmart.tom.core.DefaultBatchingPolicy";
+            } else {
+                batchingPolicyClass = s.trim();
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.batch_maxdelay");
+            if (s == null) {
+                batchMaxDelay = 1000;
+            } else {
+                batchMaxDelay = Integer.parseInt(s);
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.batch_minsize");
+            if (s == null) {
+                batchMinSize = 32;
+            } else {
+                batchMinSize = Integer.parseInt(s);
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.batch_targetlatency");
+            if (s == null) {
+                batchTargetLatency = 10;
+            } else {
+                batchTargetLatency = Integer.parseInt(s);
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.largerequest_size");
+            if (s == null) {
+                largeRequestSize = 0;
+            } else {
+                largeRequestSize = Integer.parseInt(s);
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.largerequest_chunk");
+            if (s == null) {
+                largeRequestChunk = 1048576;
+            } else {
+                largeRequestChunk = Integer.parseInt(s);
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.largerequest_maxsize");
+            if (s == null) {
+                largeRequestMaxSize = 67108864;
+            } else {
+                largeRequestMaxSize = Integer.parseInt(s);
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.pipeline_depth");
+            if (s == null) {
+                pipelineDepth = 1;
+            } else {
+                pipelineDepth = Integer.parseInt(s);
+                if (pipelineDepth < 1) {
+                    pipelineDepth = 1;
+                }
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.verifier_threads");
+            if (s == null) {
+                numVerifierThreads = Runtime.getRuntime().availableProcessors();
+            } else {
+                numVerifierThreads = Math.max(1, Integer.parseInt(s));
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.verification_chunk");
+            if (s == null) {
+                verificationChunkSize = 16;
+            } else {
+                verificationChunkSize = Math.max(1, Integer.parseInt(s));
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.batch_verifier");
+            if (s == null) {
+                batchVerifierClass = "bftsmart.clientsmanagement.DefaultBatchSignatureVerifier";
+            } else {
+                batchVerifierClass = s.trim();
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.speculative");
+            speculative = (s != null) ? Boolean.parseBoolean(s) : false;
+
             s = (String) configs.remove("system.totalordermulticast.replayVerificationTime");
             if (s == null) {
                 replyVerificationTime = 0;
@@ -173,6 +288,20 @@ public class TOMConfiguration extends Configuration {
                 useSenderThread = Boolean.parseBoolean(s);
             }
 
+            s = (String) configs.remove("system.communication.codec");
+            if (s == null) {
+                codec = "java";
+            } else {
+                codec = s.trim();
+            }
+
+            s = (String) configs.remove("system.communication.serverTransport");
+            if (s == null) {
+                serverTransport = "socket";
+            } else {
+                serverTransport = s.trim();
+            }
+
             s = (String) configs.remove("system.communication.numNIOThreads");
             if (s == null) {
                 numNIOThreads = 2;
@@ -180,6 +309,27 @@ public class TOMConfiguration extends Configuration {
                 numNIOThreads = Integer.parseInt(s);
             }
 
+            s = (String) configs.remove("system.communication.clientConnections");
+            if (s == null) {
+                clientConnections = 1;
+            } else {
+                clientConnections = Integer.parseInt(s);
+            }
+
+            s = (String) configs.remove("system.communication.clientBatchSize");
+            if (s == null) {
+                clientBatchSize = 0;
+            } else {
+                clientBatchSize = Integer.parseInt(s);
+            }
+
+            s = (String) configs.remove("system.communication.clientBatchDelay");
+            if (s == null) {
+                clientBatchDelay = 1;
+            } else {
+                clientBatchDelay = Integer.parseInt(s);
+            }
+
             s = (String) configs.remove("system.communication.useMACs");
             if (s == null) {
                 useMACs = false;
@@ -201,6 +351,27 @@ public class TOMConfiguration extends Configuration {
                 stateTransferEnabled = Boolean.parseBoolean(s);
             }
 
+            s = (String) configs.remove("system.totalordermulticast.state_transfer_streaming");
+            if (s == null) {
+                streamingStateTransfer = false;
+            } else {
+                streamingStateTransfer = Boolean.parseBoolean(s);
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.state_transfer_chunk_size");
+            if (s == null) {
+                stateChunkSize = 1048576;
+            } else {
+                stateChunkSize = Integer.parseInt(s);
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.state_transfer_port");
+            if (s == null) {
+                stateTransferPort = 12000;
+            } else {
+                stateTransferPort = Integer.parseInt(s);
+            }
+
             s = (String) configs.remove("system.totalordermulticast.checkpoint_period");
             if (s == null) {
                 checkpointPeriod = 1;
@@ -305,6 +476,20 @@ public class TOMConfiguration extends Configuration {
                     syncCkp = Boolean.parseBoolean(s);
             }
 
+            s = (String) configs.remove("system.totalordermulticast.sync_log_interval");
+            if (s == null) {
+                syncLogInterval = 1;
+            } else {
+                syncLogInterval = Integer.parseInt(s);
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.async_checkpoint");
+            if (s == null) {
+                asyncCheckpoint = false;
+            } else {
+                asyncCheckpoint = Boolean.parseBoolean(s);
+            }
+
             s = (String) configs.remove("system.totalordermulticast.global_checkpoint_period");
             if (s == null) {
                 globalCheckpointPeriod = 1;
@@ -329,6 +514,13 @@ public class TOMConfiguration extends Configuration {
                 numNettyWorkers = Integer.parseInt(s);
             }
             
+            s = (String) configs.remove("system.numexecutionthreads");
+            if (s == null) {
+                numExecutionThreads = Runtime.getRuntime().availableProcessors();
+            } else {
+                numExecutionThreads = Integer.parseInt(s);
+            }
+
             s = (String) configs.remove("system.communication.bindaddress");
             
             Pattern pattern = Pattern.compile("^(([01]?\\d\\d?|2[0-4]\\d|25[0-5])\\.){3}([01]?\\d\\d?|2[0-4]\\d|25[0-5])$");
@@ -426,6 +618,13 @@ public class TOMConfiguration extends Configuration {
             }else{
             	storeDataDir = s; 
 			}
+
+            s = (String) configs.remove("system.persistent.segmentSize");
+            if(s == null){
+            	segmentSize = 67108864;
+            }else{
+            	segmentSize = Long.parseLong(s);
+			}
 			
             
         } catch (Exception e) {
@@ -488,6 +687,118 @@ public class TOMConfiguration extends Configuration {
         return maxBatchSize;
     }
 
+    /**
+     * Maximum size of a batch, in bytes of serialized requests (0 for no limit)
+     */
+    public long getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    /**
+     * Name of the BatchingPolicy implementation used by the leader
+     */
+    public String getBatchingPolicyClass() {
+        return batchingPolicyClass;
+    }
+
+    /**
+     * Longest time, in microseconds, the leader may wait for more requests
+     * before proposing a batch (adaptive batching policy)
+     */
+    public int getBatchMaxDelay() {
+        return batchMaxDelay;
+    }
+
+    /**
+     * Number of pending requests for which the leader proposes without
+     * waiting (adaptive batching policy)
+     */
+    public int getBatchMinSize() {
+        return batchMinSize;
+    }
+
+    /**
+     * Consensus latency, in milliseconds, the batch size is adjusted to
+     * (adaptive batching policy)
+     */
+    public int getBatchTargetLatency() {
+        return batchTargetLatency;
+    }
+
+    /**
+     * Size, in bytes, above which a serialized request is proposed by
+     * reference instead of being copied into the batch (0 to disable)
+     */
+    public int getLargeRequestSize() {
+        return largeRequestSize;
+    }
+
+    /**
+     * Size, in bytes, of the chunks in which replicas fetch the contents of
+     * large requests from each other
+     */
+    public int getLargeRequestChunk() {
+        return largeRequestChunk;
+    }
+
+    /**
+     * Largest size, in bytes, of a request proposed by reference. Larger
+     * requests are rejected, and replicas never fetch them from each other
+     */
+    public int getLargeRequestMaxSize() {
+        return largeRequestMaxSize;
+    }
+
+    /**
+     * Indicates how many consensus instances the leader may have running at the same time
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Number of threads used to verify the client signatures of proposed batches
+     */
+    public int getNumVerifierThreads() {
+        return numVerifierThreads;
+    }
+
+    /**
+     * Number of signatures verified by each task of the verifier threads
+     */
+    public int getVerificationChunkSize() {
+        return verificationChunkSize;
+    }
+
+    /**
+     * Name of the BatchSignatureVerifier implementation used for proposed batches
+     */
+    public String getBatchVerifierClass() {
+        return batchVerifierClass;
+    }
+
+    /**
+     * Indicates if proposed batches are executed before being decided (only
+     * used with executables implementing SpeculativeExecutable)
+     */
+    public boolean isSpeculative() {
+        return speculative;
+    }
+
+    /**
+     * Name of the codec used on the replica-to-replica channels ("java" or "binary")
+     */
+    public String getCodec() {
+        return codec;
+    }
+
+    /**
+     * Transport used on the replica-to-replica channels ("socket" or "netty")
+     */
+    public String getServerTransport() {
+        return serverTransport;
+    }
+
     public boolean isShutdownHookEnabled() {
         return shutdownHookEnabled;
     }
@@ -496,6 +807,32 @@ public class TOMConfiguration extends Configuration {
         return stateTransferEnabled;
     }
 
+    /**
+     * Indicates if the state is streamed in chunks over a dedicated
+     * connection instead of being sent inside a state manager message
+     * @return true if the state is streamed, false otherwise
+     */
+    public boolean isStreamingStateTransfer() {
+        return streamingStateTransfer;
+    }
+
+    /**
+     * Size (in bytes) of the chunks in which the state is streamed
+     * @return Size of the chunks
+     */
+    public int getStateChunkSize() {
+        return stateChunkSize;
+    }
+
+    /**
+     * Base port of the dedicated state transfer connections. Each replica
+     * listens on this port plus its id.
+     * @return Base port for state transfer
+     */
+    public int getStateTransferPort() {
+        return stateTransferPort;
+    }
+
     public int getInQueueSize() {
         return inQueueSize;
     }
@@ -515,6 +852,30 @@ public class TOMConfiguration extends Configuration {
         return numNIOThreads;
     }
 
+    /**
+     * Number of connections the clients of a JVM share with each replica
+     * @return Number of connections per replica
+     */
+    public int getClientConnections() {
+        return clientConnections;
+    }
+
+    /**
+     * Maximum number of ordered requests a client packs into one message
+     * @return Client batch size, batching is disabled if it is below 2
+     */
+    public int getClientBatchSize() {
+        return clientBatchSize;
+    }
+
+    /**
+     * Time (in milliseconds) a client waits for more requests before sending an incomplete batch
+     * @return Client batch delay
+     */
+    public int getClientBatchDelay() {
+        return clientBatchDelay;
+    }
+
     /**     * @return the numberOfNonces     */
     public int getNumberOfNonces() {
         return numberOfNonces;
@@ -549,6 +910,21 @@ public class TOMConfiguration extends Configuration {
 		return syncCkp;
 	}
 
+	/**
+	 * Number of batches written to the disk log between two syncs, when
+	 * sync_log is enabled
+	 */
+	public int getSyncLogInterval() {
+		return syncLogInterval;
+	}
+
+	/**
+	 * Indicates if checkpoints are hashed and stored by a background thread
+	 */
+	public boolean isAsyncCheckpoint() {
+		return asyncCheckpoint;
+	}
+
 	public boolean isToLog() {
 		return isToLog;
 	}
@@ -591,6 +967,14 @@ public class TOMConfiguration extends Configuration {
     public int getNumNettyWorkers() {
         return numNettyWorkers;
     }
+
+    /**
+     * Number of threads executing non-conflicting requests of a batch (only
+     * used by services extending ParallelRecoverable)
+     */
+    public int getNumExecutionThreads() {
+        return numExecutionThreads;
+    }
     
     public boolean getSameBatchSize() {
         return sameBatchSize;
@@ -625,4 +1009,10 @@ public class TOMConfiguration extends Configuration {
 	public String getStoreDataDir() {
 		return storeDataDir;
 	}
+	/**
+	 * Size of each segment of the write-ahead log used for persistence
+	 */
+	public long getSegmentSize() {
+		return segmentSize;
+	}
 }
@@ -50,4 +50,19 @@ public interface StateManager {
     public int getLastCID();
     
     public boolean isRetrievingState();
+
+    /**
+     * Invoked by the application once the checkpoint of consensus cid is
+     * stored, so that the data kept for earlier consensus instances (e.g.,
+     * the write-ahead log of the acceptor) can be discarded.
+     *
+     * @param cid Last consensus id covered by the checkpoint
+     */
+    public void checkpointInstalled(int cid);
+
+    /**
+     * Invoked when the replica shuts down, to release the resources used by
+     * the state transfer protocol (e.g., the state chunk server).
+     */
+    public void shutdown();
 }
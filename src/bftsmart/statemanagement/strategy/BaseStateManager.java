@@ -184,6 +184,18 @@ public abstract class BaseStateManager implements StateManager {
         return lastCID;
     }
 
+    @Override
+    public void checkpointInstalled(int cid) {
+        if (tomLayer != null && tomLayer.acceptorSSLTLS != null) {
+            tomLayer.acceptorSSLTLS.checkpointInstalled(cid);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        // nothing to release by default
+    }
+
     @Override
     public void requestAppState(int cid) {
         lastCID = cid + 1;
@@ -22,6 +22,7 @@ import java.io.ObjectOutput;
 import bftsmart.reconfiguration.views.View;
 import bftsmart.statemanagement.ApplicationState;
 import bftsmart.statemanagement.SMMessage;
+import bftsmart.statemanagement.strategy.streaming.StateManifest;
 
 /**
  * 
@@ -31,11 +32,23 @@ import bftsmart.statemanagement.SMMessage;
 public class StandardSMMessage extends SMMessage {
 
 	private int replica;
+	private byte[] chunkHashes; // hashes of the chunks the sender of a request already has
+	private StateManifest manifest; // describes the state streamed by the sender of a reply
 
     public StandardSMMessage(int sender, int cid, int type, int replica, ApplicationState state, View view, int regency, int leader) {
     	super(sender, cid, type, state, view, regency, leader);
     	this.replica = replica;
     }
+
+    public StandardSMMessage(int sender, int cid, int type, int replica, ApplicationState state, View view, int regency, int leader, byte[] chunkHashes) {
+    	this(sender, cid, type, replica, state, view, regency, leader);
+    	this.chunkHashes = chunkHashes;
+    }
+
+    public StandardSMMessage(int sender, int cid, int type, int replica, ApplicationState state, View view, int regency, int leader, byte[] chunkHashes, StateManifest manifest) {
+    	this(sender, cid, type, replica, state, view, regency, leader, chunkHashes);
+    	this.manifest = manifest;
+    }
 	
     public StandardSMMessage() {
     	super();
@@ -49,15 +62,46 @@ public class StandardSMMessage extends SMMessage {
         return replica;
     }
 
+    /**
+     * Retrieves the hashes of the chunks the requesting replica already has
+     * (see PartitionedRecoverable)
+     * @return The hashes of the chunks, or null if the replica has none
+     */
+    public byte[] getChunkHashes() {
+        return chunkHashes;
+    }
+
+    /**
+     * Retrieves the manifest of the state that the sender of the reply
+     * streams through its state chunk server
+     * @return The manifest, or null if the state is not streamed
+     */
+    public StateManifest getManifest() {
+        return manifest;
+    }
+
     @Override
     public void writeExternal(ObjectOutput out) throws IOException{
         super.writeExternal(out);
         out.writeInt(replica);
+        if (chunkHashes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(chunkHashes.length);
+            out.write(chunkHashes);
+        }
+        out.writeObject(manifest);
     }
 
     @Override
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException{
         super.readExternal(in);
         replica = in.readInt();
+        int length = in.readInt();
+        if (length >= 0) {
+            chunkHashes = new byte[length];
+            in.readFully(chunkHashes);
+        }
+        manifest = (StateManifest) in.readObject();
     }
 }
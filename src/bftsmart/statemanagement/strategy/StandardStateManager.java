@@ -15,9 +15,13 @@ limitations under the License.
 */
 package bftsmart.statemanagement.strategy;
 
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -30,8 +34,12 @@ import bftsmart.consensus.messages.MessageFactory;
 import bftsmart.reconfiguration.views.View;
 import bftsmart.statemanagement.ApplicationState;
 import bftsmart.statemanagement.SMMessage;
+import bftsmart.statemanagement.strategy.streaming.StateChunkServer;
+import bftsmart.statemanagement.strategy.streaming.StateFetcher;
+import bftsmart.statemanagement.strategy.streaming.StateManifest;
 import bftsmart.tom.core.DeliveryThread;
 import bftsmart.tom.core.TOMLayer;
+import bftsmart.tom.server.PartitionedRecoverable;
 import bftsmart.tom.util.TOMUtil;
 import bftsmart.consensus.Consensus;
 import bftsmart.consensus.Epoch;
@@ -58,6 +66,13 @@ public class StandardStateManager extends BaseStateManager {
     //private LCManager lcManager;
     private ExecutionManager execManager;
 
+    // used when the state is streamed in chunks
+    private StateChunkServer chunkServer;
+    private StateFetcher fetcher;
+    private StandardSMMessage fetchedReply; // reply whose state is being fetched
+    private boolean fetchIsBFT;
+    private HashMap<Integer, StandardSMMessage> senderManifests = new HashMap<>();
+
 
     @Override
     public void init(TOMLayer tomLayer, DeliveryThread dt) {
@@ -79,6 +94,31 @@ public class StandardStateManager extends BaseStateManager {
         waitingCID = -1;
 
         appStateOnly = false;
+
+        if (SVController.getStaticConf().isStreamingStateTransfer()) {
+            chunkServer = new StateChunkServer(SVController, SVController.getStaticConf().getStateChunkSize());
+            Thread server = new Thread(chunkServer, "State Chunk Server");
+            server.setDaemon(true);
+            server.start();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        lockTimer.lock();
+        try {
+            if (stateTimer != null) stateTimer.cancel();
+            if (fetcher != null) fetcher.cancel();
+            fetcher = null;
+        } finally {
+            lockTimer.unlock();
+        }
+        if (chunkServer != null) chunkServer.shutdown();
+    }
+
+    // states of partitioned recoverables are already transferred incrementally
+    private boolean isStreaming() {
+        return chunkServer != null && !(dt.getRecoverer() instanceof PartitionedRecoverable);
     }
 	
     private void changeReplica() {
@@ -108,8 +148,14 @@ public class StandardStateManager extends BaseStateManager {
 
         changeReplica(); // always ask the complete state to a different replica
         
+        // with a partitioned state, only the chunks that differ from the local ones are needed
+        byte[] chunkHashes = null;
+        if (dt.getRecoverer() instanceof PartitionedRecoverable) {
+            chunkHashes = ((PartitionedRecoverable) dt.getRecoverer()).getChunkHashes();
+        }
+
         SMMessage smsg = new StandardSMMessage(SVController.getStaticConf().getProcessId(),
-                waitingCID, TOMUtil.SM_REQUEST, replica, null, null, -1, -1);
+                waitingCID, TOMUtil.SM_REQUEST, replica, null, null, -1, -1, chunkHashes);
         tomLayer.getCommunication().send(SVController.getCurrentViewOtherAcceptors(), smsg);
 
         logger.info("I just sent a request to the other replicas for the state up to CID " + waitingCID);
@@ -144,45 +190,74 @@ public class StandardStateManager extends BaseStateManager {
     public void SMRequestDeliver(SMMessage msg, boolean isBFT) {
         if (SVController.getStaticConf().isStateTransferEnabled() && dt.getRecoverer() != null) {
         	StandardSMMessage stdMsg = (StandardSMMessage)msg;
-            boolean sendState = stdMsg.getReplica() == SVController.getStaticConf().getProcessId();
+            boolean streaming = isStreaming();
+            // when streaming, every replica offers the state, so it can be fetched from several of them
+            boolean sendState = streaming || stdMsg.getReplica() == SVController.getStaticConf().getProcessId();
                         
-            ApplicationState thisState = dt.getRecoverer().getState(msg.getCID(), sendState);
+            ApplicationState thisState;
+            if (dt.getRecoverer() instanceof PartitionedRecoverable) {
+                thisState = ((PartitionedRecoverable) dt.getRecoverer()).getState(msg.getCID(), sendState, stdMsg.getChunkHashes());
+            } else {
+                thisState = dt.getRecoverer().getState(msg.getCID(), sendState);
+            }
             if (thisState == null) {
                 
                 logger.warn("For some reason, I am sending a void state");
               thisState = dt.getRecoverer().getState(-1, sendState);
             }
 
-            int[] targets = { msg.getSender() };
-            SMMessage smsg;
-            if(tomLayer.getIsSSLTLSEnabled()) {
-            		smsg = new StandardSMMessage(
-            					SVController.getStaticConf().getProcessId(),
-            					msg.getCID(), 
-            					TOMUtil.SM_REPLY, 
-            					-1, 
-            					thisState, 
-            					SVController.getCurrentView(),
-            					tomLayer.getSynchronizerSSLTLS().getLCManager().getLastReg(), 
-            					tomLayer.execManager.getCurrentLeader());
-            }else {
-            	smsg = new StandardSMMessage(
-    					SVController.getStaticConf().getProcessId(),
-    					msg.getCID(), 
-    					TOMUtil.SM_REPLY, 
-    					-1, 
-    					thisState, 
-    					SVController.getCurrentView(),
-    					tomLayer.getSynchronizer().getLCManager().getLastReg(), 
-    					tomLayer.execManager.getCurrentLeader());
+            if (streaming && thisState.getSerializedState() != null) {
+                // the state goes through the state chunk server instead, the reply is sent once it is offered
+                ApplicationState offered = thisState;
+                chunkServer.offer(msg.getSender(), msg.getCID(), offered.getSerializedState(), offered.getStateHash())
+                        .whenComplete((StateManifest manifest, Throwable error) -> {
+                            if (error != null) {
+                                logger.error("Failed to offer the state to replica " + msg.getSender(), error);
+                            } else {
+                                offered.setSerializedState(null);
+                                sendStateReply(msg, offered, manifest);
+                            }
+                        });
+            } else {
+                sendStateReply(msg, thisState, null);
             }
-            
-            logger.info("Sending state...");
-            tomLayer.getCommunication().send(targets, smsg);
-            logger.info("Sent");
         }
     }
 
+    private void sendStateReply(SMMessage msg, ApplicationState thisState, StateManifest manifest) {
+        int[] targets = { msg.getSender() };
+        SMMessage smsg;
+        if(tomLayer.getIsSSLTLSEnabled()) {
+        		smsg = new StandardSMMessage(
+        					SVController.getStaticConf().getProcessId(),
+        					msg.getCID(), 
+        					TOMUtil.SM_REPLY, 
+        					-1, 
+        					thisState, 
+        					SVController.getCurrentView(),
+        					tomLayer.getSynchronizerSSLTLS().getLCManager().getLastReg(), 
+        					tomLayer.execManager.getCurrentLeader(),
+        					null,
+        					manifest);
+        }else {
+        	smsg = new StandardSMMessage(
+					SVController.getStaticConf().getProcessId(),
+					msg.getCID(), 
+					TOMUtil.SM_REPLY, 
+					-1, 
+					thisState, 
+					SVController.getCurrentView(),
+					tomLayer.getSynchronizer().getLCManager().getLastReg(), 
+					tomLayer.execManager.getCurrentLeader(),
+					null,
+					manifest);
+        }
+        
+        logger.info("Sending state...");
+        tomLayer.getCommunication().send(targets, smsg);
+        logger.info("Sent");
+    }
+
 	@Override
     public void SMReplyDeliver(SMMessage msg, boolean isBFT) {
         lockTimer.lock();
@@ -232,8 +307,13 @@ public class StandardStateManager extends BaseStateManager {
 
                 senderStates.put(msg.getSender(), msg.getState());
 
+                if (((StandardSMMessage) msg).getManifest() != null) {
+                    senderManifests.put(msg.getSender(), (StandardSMMessage) msg);
+                    if (fetcher == null && state == null) fetchState(isBFT);
+                }
+
                 logger.debug("Verifying more than F replies");
-                if (enoughReplies()) {
+                if (enoughReplies() && fetcher == null) {
                     logger.debug("More than F confirmed");
                     ApplicationState otherReplicaState = getOtherReplicaState();
                     int haveState = 0;
@@ -298,7 +378,7 @@ public class StandardStateManager extends BaseStateManager {
                                 byte[] hash = tomLayer.computeHash(currentProof.getDecision());
                                 e.propValueHash = hash;
                                 e.propValue = currentProof.getDecision();
-                                e.deserializedPropValue = tomLayer.checkProposedValue(currentProof.getDecision(), false);
+                                e.deserializedPropValue = tomLayer.checkProposedValue(currentProof.getCID(), currentProof.getDecision(), hash, false);
                                  cons.decided(e, false);
                                  
                                 logger.info("Successfully installed proof for consensus " + waitingCID);
@@ -323,8 +403,19 @@ public class StandardStateManager extends BaseStateManager {
                         //    tomLayer.requestsTimer.setTimeout(tomLayer.requestsTimer.getTimeout() * (currentRegency * 2));
                         
                         dt.deliverLock();
+                        if (!dt.update(state)) {
+                            dt.deliverUnlock();
+                            logger.warn("The state sent by replica " + replica + " was rejected, asking another replica");
+
+                            changeReplica();
+                            reset();
+                            requestState();
+
+                            if (stateTimer != null) stateTimer.cancel();
+                            lockTimer.unlock();
+                            return;
+                        }
                         waitingCID = -1;
-                        dt.update(state);
                         
                         if (!appStateOnly && execManager.stopped()) {
                             Queue<ConsensusMessage> stoppedMsgs = execManager.getStoppedMsgs();
@@ -397,6 +488,80 @@ public class StandardStateManager extends BaseStateManager {
         lockTimer.unlock();
     }
 	
+    /**
+     * Starts fetching the state in chunks once more than F replicas sent the
+     * same manifest, from all the replicas that sent it.
+     */
+    private void fetchState(boolean isBFT) {
+        for (StandardSMMessage reply : senderManifests.values()) {
+            Map<Integer, InetSocketAddress> sources = new LinkedHashMap<>();
+            for (StandardSMMessage other : senderManifests.values()) {
+                if (reply.getManifest().equals(other.getManifest())) {
+                    sources.put(other.getSender(), getChunkServerAddress(other.getSender()));
+                }
+            }
+
+            if (sources.size() > SVController.getCurrentViewF()) {
+                if (stateTimer != null) stateTimer.cancel(); // the fetcher has its own timeouts
+
+                fetchedReply = reply;
+                fetchIsBFT = isBFT;
+                fetcher = new StateFetcher(reply.getManifest(), sources,
+                        SVController.getStaticConf().getProcessId(), SVController.getStaticConf().getPrivateKey(),
+                        waitingCID, new StateFetcher.Listener() {
+
+                    @Override
+                    public void stateFetched(StateFetcher f, byte[] fetched) {
+                        lockTimer.lock();
+                        try {
+                            if (f != fetcher) return;
+                            fetcher = null;
+
+                            // deliver the reply again, now with the state
+                            fetchedReply.getState().setSerializedState(fetched);
+                            replica = fetchedReply.getSender();
+                            SMReplyDeliver(fetchedReply, fetchIsBFT);
+                        } finally {
+                            lockTimer.unlock();
+                        }
+                    }
+
+                    @Override
+                    public void fetchFailed(StateFetcher f) {
+                        lockTimer.lock();
+                        try {
+                            if (f != fetcher) return;
+                            fetcher = null;
+
+                            changeReplica();
+                            reset();
+                            requestState();
+                        } finally {
+                            lockTimer.unlock();
+                        }
+                    }
+                });
+                fetcher.start();
+                return;
+            }
+        }
+    }
+
+    private InetSocketAddress getChunkServerAddress(int id) {
+        return new InetSocketAddress(SVController.getCurrentView().getAddress(id).getHostString(),
+                SVController.getStaticConf().getStateTransferPort() + id);
+    }
+
+    @Override
+    protected void reset() {
+        super.reset();
+        senderManifests.clear();
+        if (fetcher != null) {
+            fetcher.cancel();
+            fetcher = null;
+        }
+    }
+
     /**
      * Search in the received states table for a state that was not sent by the expected
      * replica. This is used to compare both states after received the state from expected
@@ -0,0 +1,284 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.statemanagement.strategy.streaming;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Serves the chunks of the states offered to recovering replicas, over a
+ * connection that is not shared with the consensus traffic. A replica offers
+ * its state when it answers a state request, and a recovering replica can then
+ * fetch any chunk of it, in any order, until the offer expires.
+ *
+ * A connection starts with the server sending a random nonce, which the
+ * client signs together with its id and the id of the server. Only replicas of
+ * the current view are served, with at most one connection each, and a bounded
+ * number of connections is handled at once.
+ */
+public class StateChunkServer implements Runnable {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final int OFFER_TIMEOUT = 120000;
+    private static final int EXPIRY_PERIOD = 10000;
+    private static final int HANDSHAKE_TIMEOUT = 10000;
+    private static final int MAX_CONNECTIONS = 16;
+    private static final int MAX_SIGNATURE_SIZE = 1024;
+    static final int NONCE_SIZE = 32;
+
+    private final ServerViewController controller;
+    private final int me;
+    private final int chunkSize;
+    private ServerSocket server;
+
+    private final Map<Integer, Offer> offers = new ConcurrentHashMap<>(); // by requesting replica
+    private final Map<Integer, Socket> connections = new ConcurrentHashMap<>(); // authenticated, by replica
+
+    // one thread per connection, up to MAX_CONNECTIONS
+    private final ThreadPoolExecutor senders = new ThreadPoolExecutor(0, MAX_CONNECTIONS, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), (Runnable r) -> {
+                Thread t = new Thread(r, "State Chunk Sender");
+                t.setDaemon(true);
+                return t;
+            });
+
+    // creates the manifests, which hash the whole state, out of the state manager threads, and
+    // removes the expired offers, so that they do not keep the states they refer to
+    private final ScheduledExecutorService manifestThread = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+        Thread t = new Thread(r, "State Manifest Creator");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final SecureRandom random = new SecureRandom();
+
+    // the manifest of the last offered state is reused while the checkpoint does not change
+    private byte[] lastState;
+    private StateManifest lastManifest;
+
+    public StateChunkServer(ServerViewController controller, int chunkSize) {
+        this.controller = controller;
+        this.me = controller.getStaticConf().getProcessId();
+        this.chunkSize = chunkSize;
+        try {
+            server = new ServerSocket(controller.getStaticConf().getStateTransferPort() + me);
+        } catch (IOException e) {
+            logger.error("Could not open state chunk server socket", e);
+        }
+        manifestThread.scheduleWithFixedDelay(this::removeExpiredOffers, EXPIRY_PERIOD, EXPIRY_PERIOD,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Makes a state available to a replica, replacing any previous offer to
+     * it. The manifest is created in a thread of this server.
+     * @param requester Replica that requested the state
+     * @param cid Consensus ID of the state
+     * @param state The serialized state
+     * @param stateHash Hash of the whole state
+     * @return The manifest of the state, completed once the state is offered
+     */
+    public CompletableFuture<StateManifest> offer(int requester, int cid, byte[] state, byte[] stateHash) {
+        return CompletableFuture.supplyAsync(() -> {
+            StateManifest manifest;
+            synchronized (this) {
+                if (state != lastState || !Arrays.equals(stateHash, lastManifest.getStateHash())) {
+                    lastManifest = StateManifest.create(state, stateHash, chunkSize);
+                    lastState = state;
+                }
+                manifest = lastManifest;
+            }
+            offers.put(requester, new Offer(cid, state, manifest));
+            return manifest;
+        }, manifestThread);
+    }
+
+    @Override
+    public void run() {
+        if (server == null) return;
+
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                try {
+                    senders.execute(() -> serve(socket));
+                } catch (RejectedExecutionException e) {
+                    logger.warn("Too many state transfer connections, closing the one from "
+                            + socket.getRemoteSocketAddress());
+                    close(socket);
+                }
+            } catch (IOException e) {
+                if (!server.isClosed()) logger.error("Problem accepting state transfer connection", e);
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        int requester = -1;
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(HANDSHAKE_TIMEOUT);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 65536));
+
+            requester = authenticate(in, out);
+            if (requester < 0) {
+                logger.warn("Rejected state transfer connection from " + s.getRemoteSocketAddress());
+                return;
+            }
+            s.setSoTimeout(OFFER_TIMEOUT);
+
+            Socket previous = connections.put(requester, s);
+            if (previous != null) close(previous);
+
+            while (true) {
+                int cid = in.readInt();
+                int index = in.readInt();
+
+                Offer offer = offers.get(requester);
+                if (offer == null || offer.cid != cid || index < 0 || index >= offer.manifest.getNumChunks()) {
+                    out.writeInt(-1);
+                } else {
+                    offer.lastAccess = System.currentTimeMillis();
+                    int length = offer.manifest.getChunkLength(index);
+                    out.writeInt(index);
+                    out.writeInt(length);
+                    out.write(offer.state, index * chunkSize, length);
+                }
+
+                // requests are pipelined, flush once all pending ones were answered
+                if (in.available() == 0) out.flush();
+            }
+        } catch (EOFException e) {
+            logger.debug("State transfer connection closed");
+        } catch (IOException e) {
+            if (!server.isClosed()) logger.warn("Problem sending state chunks", e);
+        } finally {
+            if (requester >= 0) connections.remove(requester, socket);
+        }
+    }
+
+    /**
+     * Challenges the client to sign a fresh nonce with its private key.
+     * @return The id of the client, or -1 if it is not a replica of the view
+     */
+    private int authenticate(DataInputStream in, DataOutputStream out) throws IOException {
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        out.write(nonce);
+        out.flush();
+
+        int requester = in.readInt();
+        int signatureSize = in.readInt();
+        if (signatureSize <= 0 || signatureSize > MAX_SIGNATURE_SIZE) return -1;
+        byte[] signature = new byte[signatureSize];
+        in.readFully(signature);
+
+        if (requester == me || !controller.isCurrentViewMember(requester)) return -1;
+
+        PublicKey key = controller.getStaticConf().getPublicKey(requester);
+        if (key == null || !TOMUtil.verifySignature(key, challenge(nonce, requester, me), signature)) return -1;
+
+        return requester;
+    }
+
+    /**
+     * The bytes signed by a replica to connect to a state chunk server
+     * @param nonce Nonce sent by the server
+     * @param requester Replica that connects
+     * @param server Replica whose server is connected to
+     * @return The bytes to sign
+     */
+    static byte[] challenge(byte[] nonce, int requester, int server) {
+        return ByteBuffer.allocate(nonce.length + 2 * Integer.BYTES).put(nonce).putInt(requester).putInt(server).array();
+    }
+
+    private void removeExpiredOffers() {
+        long now = System.currentTimeMillis();
+        offers.values().removeIf(offer -> now - offer.lastAccess > OFFER_TIMEOUT);
+        synchronized (this) {
+            if (offers.isEmpty()) {
+                lastState = null;
+                lastManifest = null;
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones
+     */
+    public void shutdown() {
+        try {
+            if (server != null) server.close();
+        } catch (IOException e) {
+            logger.error("Could not close state chunk server socket", e);
+        }
+        for (Socket socket : connections.values()) {
+            close(socket);
+        }
+        senders.shutdownNow();
+        manifestThread.shutdownNow();
+        offers.clear();
+    }
+
+    private void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    private static class Offer {
+
+        private final int cid;
+        private final byte[] state;
+        private final StateManifest manifest;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        private Offer(int cid, byte[] state, StateManifest manifest) {
+            this.cid = cid;
+            this.state = state;
+            this.manifest = manifest;
+        }
+    }
+}
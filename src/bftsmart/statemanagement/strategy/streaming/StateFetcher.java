@@ -0,0 +1,203 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.statemanagement.strategy.streaming;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Fetches the chunks of a state from the state chunk servers of several
+ * replicas in parallel. Each chunk is verified against the manifest before
+ * being written in place in the state being assembled; chunks that fail
+ * verification or belong to a replica that stopped answering are fetched
+ * again from the remaining replicas. The connections are authenticated by
+ * signing the nonce sent by each server (see StateChunkServer).
+ */
+public class StateFetcher {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final int WINDOW = 4; // chunks requested at once from each replica
+    private static final int TIMEOUT = 30000;
+
+    /**
+     * Notified (by one of the fetching threads) when the transfer ends
+     */
+    public interface Listener {
+
+        public void stateFetched(StateFetcher fetcher, byte[] state);
+
+        public void fetchFailed(StateFetcher fetcher);
+    }
+
+    private final StateManifest manifest;
+    private final Map<Integer, InetSocketAddress> sources; // by replica
+    private final int requester;
+    private final PrivateKey privateKey;
+    private final int cid;
+    private final Listener listener;
+
+    private byte[] state;
+    private final Queue<Integer> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger remaining;
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+    private volatile boolean cancelled = false;
+    private long start;
+
+    public StateFetcher(StateManifest manifest, Map<Integer, InetSocketAddress> sources, int requester,
+            PrivateKey privateKey, int cid, Listener listener) {
+        this.manifest = manifest;
+        this.sources = sources;
+        this.requester = requester;
+        this.privateKey = privateKey;
+        this.cid = cid;
+        this.listener = listener;
+        this.remaining = new AtomicInteger(manifest.getNumChunks());
+    }
+
+    public int getCID() {
+        return cid;
+    }
+
+    public StateManifest getManifest() {
+        return manifest;
+    }
+
+    public void start() {
+        start = System.currentTimeMillis();
+        state = new byte[manifest.getLength()];
+        if (manifest.getNumChunks() == 0) {
+            listener.stateFetched(this, state);
+            return;
+        }
+
+        for (int i = 0; i < manifest.getNumChunks(); i++) {
+            pending.add(i);
+        }
+
+        logger.info("Fetching " + manifest.getLength() + " bytes of state in " + manifest.getNumChunks()
+                + " chunks from " + sources.size() + " replicas");
+
+        activeWorkers.set(sources.size());
+        for (Map.Entry<Integer, InetSocketAddress> source : sources.entrySet()) {
+            Thread worker = new Thread(() -> fetch(source.getKey(), source.getValue()), "State Fetcher for " + source.getValue());
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops the transfer, the listener is not notified
+     */
+    public void cancel() {
+        cancelled = true;
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    private void fetch(int server, InetSocketAddress source) {
+        MessageDigest md = StateManifest.getHashEngine();
+        List<Integer> batch = new ArrayList<>(WINDOW);
+
+        try (Socket socket = new Socket()) {
+            sockets.add(socket);
+            socket.connect(source, TIMEOUT);
+            socket.setSoTimeout(TIMEOUT);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            byte[] nonce = new byte[StateChunkServer.NONCE_SIZE];
+            in.readFully(nonce);
+            byte[] signature = TOMUtil.signMessage(privateKey, StateChunkServer.challenge(nonce, requester, server));
+            if (signature == null) throw new IOException("could not sign the nonce");
+            out.writeInt(requester);
+            out.writeInt(signature.length);
+            out.write(signature);
+
+            while (!cancelled && remaining.get() > 0) {
+                Integer index;
+                while (batch.size() < WINDOW && (index = pending.poll()) != null) {
+                    batch.add(index);
+                }
+                if (batch.isEmpty()) {
+                    Thread.sleep(10); // the last chunks are being fetched by other replicas
+                    continue;
+                }
+
+                for (int i : batch) {
+                    out.writeInt(cid);
+                    out.writeInt(i);
+                }
+                out.flush();
+
+                while (!batch.isEmpty()) {
+                    int i = batch.get(0);
+                    if (in.readInt() != i) throw new IOException("state not available");
+
+                    int length = in.readInt();
+                    int offset = i * manifest.getChunkSize();
+                    if (length != manifest.getChunkLength(i)) throw new IOException("wrong size for chunk " + i);
+
+                    in.readFully(state, offset, length);
+                    if (!manifest.verify(md, i, state, offset)) throw new IOException("chunk " + i + " does not match the manifest");
+
+                    batch.remove(0);
+                    if (remaining.decrementAndGet() == 0) {
+                        logger.info("Fetched the state in " + (System.currentTimeMillis() - start) + " ms");
+                        listener.stateFetched(this, state);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (!cancelled) logger.warn("Stopped fetching state chunks from " + source + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            logger.error("Interruption while fetching state chunks", e);
+        } finally {
+            pending.addAll(batch); // someone else will fetch them
+
+            if (activeWorkers.decrementAndGet() == 0 && remaining.get() > 0 && !cancelled) {
+                logger.warn("Could not fetch the state from any replica");
+                listener.fetchFailed(this);
+            }
+        }
+    }
+}
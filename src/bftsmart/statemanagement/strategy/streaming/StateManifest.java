@@ -0,0 +1,125 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.statemanagement.strategy.streaming;
+
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Describes a state that is streamed in chunks: the size of the state and of
+ * the chunks, the hash of each chunk and the hash of the whole state.
+ */
+public class StateManifest implements Serializable {
+
+    private static final long serialVersionUID = -4118312846640153726L;
+
+    private final int length;
+    private final int chunkSize;
+    private final byte[][] chunkHashes;
+    private final byte[] stateHash;
+
+    private StateManifest(int length, int chunkSize, byte[][] chunkHashes, byte[] stateHash) {
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.chunkHashes = chunkHashes;
+        this.stateHash = stateHash;
+    }
+
+    /**
+     * Creates the manifest of a state
+     * @param state The serialized state
+     * @param stateHash Hash of the whole state
+     * @param chunkSize Size of the chunks
+     * @return The manifest
+     */
+    public static StateManifest create(byte[] state, byte[] stateHash, int chunkSize) {
+        MessageDigest md = getHashEngine();
+        byte[][] hashes = new byte[(state.length + chunkSize - 1) / chunkSize][];
+        for (int i = 0; i < hashes.length; i++) {
+            int offset = i * chunkSize;
+            md.update(state, offset, Math.min(chunkSize, state.length - offset));
+            hashes[i] = md.digest();
+        }
+        return new StateManifest(state.length, chunkSize, hashes, stateHash);
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getNumChunks() {
+        return chunkHashes.length;
+    }
+
+    /**
+     * Retrieves the size of a chunk (the last one may be smaller)
+     * @param index Index of the chunk
+     * @return Size of the chunk
+     */
+    public int getChunkLength(int index) {
+        return Math.min(chunkSize, length - index * chunkSize);
+    }
+
+    public byte[] getStateHash() {
+        return stateHash;
+    }
+
+    /**
+     * Verifies the contents of a chunk against its hash
+     * @param md Hash engine to use
+     * @param index Index of the chunk
+     * @param chunk Buffer with the contents of the chunk
+     * @param offset Offset of the chunk in the buffer
+     * @return true if the chunk matches the manifest, false otherwise
+     */
+    public boolean verify(MessageDigest md, int index, byte[] chunk, int offset) {
+        if (index < 0 || index >= chunkHashes.length) return false;
+
+        md.update(chunk, offset, getChunkLength(index));
+        return MessageDigest.isEqual(md.digest(), chunkHashes[index]);
+    }
+
+    static MessageDigest getHashEngine() {
+        try {
+            return TOMUtil.getHashEngine();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof StateManifest)) return false;
+
+        StateManifest other = (StateManifest) obj;
+        return length == other.length && chunkSize == other.chunkSize
+                && Arrays.equals(stateHash, other.stateHash)
+                && Arrays.deepEquals(chunkHashes, other.chunkHashes);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * length + chunkSize) + Arrays.hashCode(stateHash);
+    }
+}
@@ -7,9 +7,21 @@ import bftsmart.tom.core.messages.TOMMessageType;
 import bftsmart.tom.util.Extractor;
 import bftsmart.tom.util.KeyLoader;
 import bftsmart.tom.util.TOMUtil;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,14 +30,25 @@ import org.slf4j.LoggerFactory;
  * This class is an extension of 'ServiceProxy' that can waits for replies
  * asynchronously.
  *
+ * Requests can either be handed to a raw ReplyListener, or be issued with the
+ * invoke*Async methods, which return a future completed once a quorum of
+ * matching replies (compared by their hashes) is received. Request state is
+ * kept in concurrent maps and each request is processed under its own lock, so
+ * replies for different requests do not contend with each other. Futures are
+ * completed, and requests re-issued, in a thread pool shared by the proxies,
+ * never in the communication system or timer threads.
+ *
  */
 public class AsynchServiceProxy extends ServiceProxy {
     
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    private HashMap<Integer, RequestContext> requestsContext;
-    private HashMap<Integer, TOMMessage[]> requestsReplies;
-    private HashMap<Integer, Integer> requestsAlias;
+    // marks a request that is being re-issued, before the id of the new request is known
+    private static final int RETRYING = -1;
+
+    private Map<Integer, RequestContext> requestsContext;
+    private Map<Integer, TOMMessage[]> requestsReplies;
+    private Map<Integer, Integer> requestsAlias;
 
 /**
      * Constructor
@@ -76,9 +99,9 @@ public class AsynchServiceProxy extends ServiceProxy {
     }
 
     private void init() {
-        requestsContext = new HashMap<>();
-        requestsReplies = new HashMap<>();
-        requestsAlias = new HashMap<>();
+        requestsContext = new ConcurrentHashMap<>();
+        requestsReplies = new ConcurrentHashMap<>();
+        requestsAlias = new ConcurrentHashMap<>();
     }
     
     private View newView(byte[] bytes) {
@@ -86,6 +109,91 @@ public class AsynchServiceProxy extends ServiceProxy {
         Object o = TOMUtil.getObject(bytes);
         return (o != null && o instanceof View ? (View) o : null);
     }
+
+    /**
+     * Asynchronously sends an ordered request to the replicas.
+     *
+     * @param request Request to be sent
+     * @return A future completed with the reply of the replicas
+     * @see #invokeAsync(byte[], TOMMessageType)
+     */
+    public CompletableFuture<byte[]> invokeOrderedAsync(byte[] request) {
+        return invokeAsync(request, TOMMessageType.ORDERED_REQUEST);
+    }
+
+    /**
+     * Asynchronously sends an unordered request to the replicas.
+     *
+     * @param request Request to be sent
+     * @return A future completed with the reply of the replicas
+     * @see #invokeAsync(byte[], TOMMessageType)
+     */
+    public CompletableFuture<byte[]> invokeUnorderedAsync(byte[] request) {
+        return invokeAsync(request, TOMMessageType.UNORDERED_REQUEST);
+    }
+
+    /**
+     * Asynchronously sends a request to the replicas. The returned future is
+     * completed with the content of the reply once a reply quorum of replicas
+     * sent replies with the same hash, so the comparator and extractor given to
+     * the constructor are not used. As in invoke(), an unordered request for
+     * which no quorum can be formed is re-issued as an ordered one, and an
+     * ordered request fails with a RuntimeException. If no quorum is formed
+     * within invokeTimeout seconds the future fails with a TimeoutException.
+     *
+     * @param request Request to be sent
+     * @param reqType ORDERED_REQUEST or UNORDERED_REQUEST
+     * @return A future completed with the reply of the replicas
+     */
+    public CompletableFuture<byte[]> invokeAsync(byte[] request, TOMMessageType reqType) {
+
+        if (reqType != TOMMessageType.ORDERED_REQUEST && reqType != TOMMessageType.UNORDERED_REQUEST) {
+            throw new IllegalArgumentException("Unsupported request type for asynchronous invocation: " + reqType);
+        }
+
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        QuorumListener listener = new QuorumListener(request, reqType, future);
+
+        int id = invokeAsynch(request, super.getViewManager().getCurrentViewProcesses(), listener, reqType);
+
+        Timeout timeout = TIMER.newTimeout((Timeout t) -> {
+            complete(future, null, new TimeoutException("No reply quorum for operation " + id
+                    + " after " + getInvokeTimeout() + " seconds"));
+        }, getInvokeTimeout(), TimeUnit.SECONDS);
+
+        future.whenComplete((byte[] reply, Throwable error) -> {
+            timeout.cancel();
+            cleanAsynchRequest(id);
+        });
+
+        return future;
+    }
+
+    /**
+     * Asynchronously sends a batch of requests to the replicas, taking the send
+     * lock once for the whole batch.
+     *
+     * @param requests Requests to be sent, in order
+     * @param reqType ORDERED_REQUEST or UNORDERED_REQUEST
+     * @return One future per request, in the same order
+     * @see #invokeAsync(byte[], TOMMessageType)
+     */
+    public List<CompletableFuture<byte[]>> invokeAsync(List<byte[]> requests, TOMMessageType reqType) {
+
+        List<CompletableFuture<byte[]>> futures = new ArrayList<>(requests.size());
+
+        canSendLock.lock();
+        try {
+            for (byte[] request : requests) {
+                futures.add(invokeAsync(request, reqType));
+            }
+        } finally {
+            canSendLock.unlock();
+        }
+
+        return futures;
+    }
+
     /**
      * @see bellow
      */
@@ -124,7 +232,7 @@ public class AsynchServiceProxy extends ServiceProxy {
 
             id = requestsAlias.remove(id);
 
-        } while (id != null);
+        } while (id != null && id != RETRYING);
 
     }
 
@@ -138,7 +246,6 @@ public class AsynchServiceProxy extends ServiceProxy {
         logger.debug("Asynchronously received reply from " + reply.getSender() + " with sequence number " + reply.getSequence() + " and operation ID " + reply.getOperationId());
 
         try {
-            canReceiveLock.lock();
 
             RequestContext requestContext = requestsContext.get(reply.getOperationId());
 
@@ -160,62 +267,65 @@ public class AsynchServiceProxy extends ServiceProxy {
 
                 if (replyListener != null) {
 
-                    //if (reply.getViewID() > getViewManager().getCurrentViewId()) { // Deal with a system reconfiguration
-                    if ((v = newView(reply.getContent())) != null && !requestsAlias.containsKey(reply.getOperationId())) { // Deal with a system reconfiguration
-    
+                    // replies of the same request are processed one at a time, so listeners need no locking
+                    synchronized (requestContext) {
+
                         TOMMessage[] replies = requestsReplies.get(reply.getOperationId());
 
-                        int sameContent = 1;
-                        int replyQuorum = getReplyQuorum();
+                        if (replies == null || requestsAlias.containsKey(reply.getOperationId())) {
+                            return; // request already purged or re-issued
+                        }
 
-                        int pos = getViewManager().getCurrentViewPos(reply.getSender());
+                        //if (reply.getViewID() > getViewManager().getCurrentViewId()) { // Deal with a system reconfiguration
+                        if ((v = newView(reply.getContent())) != null) { // Deal with a system reconfiguration
 
-                        replies[pos] = reply;
+                            int sameContent = 1;
+                            int replyQuorum = getReplyQuorum();
 
-                        for (int i = 0; i < replies.length; i++) {
+                            int pos = getViewManager().getCurrentViewPos(reply.getSender());
 
-                            if ((replies[i] != null) && (i != pos || getViewManager().getCurrentViewN() == 1)
-                                    && (reply.getReqType() != TOMMessageType.ORDERED_REQUEST || Arrays.equals(replies[i].getContent(), reply.getContent()))) {
-                                sameContent++;
-                            }
-                        }
-                        
-                        if (sameContent >= replyQuorum) {
+                            replies[pos] = reply;
 
-                            if (v.getId() > getViewManager().getCurrentViewId()) {
+                            for (int i = 0; i < replies.length; i++) {
 
-                                reconfigureTo(v);
+                                if ((replies[i] != null) && (i != pos || getViewManager().getCurrentViewN() == 1)
+                                        && (reply.getReqType() != TOMMessageType.ORDERED_REQUEST || Arrays.equals(replies[i].getContent(), reply.getContent()))) {
+                                    sameContent++;
+                                }
                             }
 
-                            requestContext.getReplyListener().reset();
+                            if (sameContent >= replyQuorum) {
+
+                                if (v.getId() > getViewManager().getCurrentViewId()) {
+
+                                    reconfigureTo(v);
+                                }
+
+                                requestContext.getReplyListener().reset();
 
-                            Thread t = new Thread() {
+                                requestsAlias.put(reply.getOperationId(), RETRYING);
 
-                                @Override
-                                public void run() {
+                                // re-issue the request outside of the communication system threads
+                                EXECUTOR.execute(() -> {
 
                                     int id = invokeAsynch(requestContext.getRequest(), requestContext.getTargets(), requestContext.getReplyListener(), TOMMessageType.ORDERED_REQUEST);
 
-                                    requestsAlias.put(reply.getOperationId(), id);
-                                }
+                                    if (!requestsAlias.replace(reply.getOperationId(), RETRYING, id)) {
+                                        cleanAsynchRequest(id); // the original request was purged meanwhile
+                                    }
 
-                            };
+                                });
+                            }
 
-                            t.start();
+                        } else {
 
-                        }
-                        
-                        
-                    } else if (!requestsAlias.containsKey(reply.getOperationId())) {
-                            
                             requestContext.getReplyListener().replyReceived(requestContext, reply);
+                        }
                     }
                 }
             }
         } catch (Exception ex) {
             logger.error("Error processing received request",ex);
-        } finally {
-            canReceiveLock.unlock();
         }
     }
 
@@ -232,8 +342,8 @@ public class AsynchServiceProxy extends ServiceProxy {
 
         try {
             logger.debug("Storing request context for " + requestContext.getOperationId());
-            requestsContext.put(requestContext.getOperationId(), requestContext);
             requestsReplies.put(requestContext.getOperationId(), new TOMMessage[super.getViewManager().getCurrentViewN()]);
+            requestsContext.put(requestContext.getOperationId(), requestContext);
 
             sendMessageToTargets(request, requestContext.getReqId(), requestContext.getOperationId(), targets, reqType);
 
@@ -259,4 +369,120 @@ public class AsynchServiceProxy extends ServiceProxy {
         return false;
     }
 
+    /**
+     * Completes the future of a request issued with invokeAsync once a reply
+     * quorum of replicas sent replies with the same hash.
+     */
+    private class QuorumListener implements ReplyListener {
+
+        private final byte[] request;
+        private final TOMMessageType reqType;
+        private final CompletableFuture<byte[]> future;
+
+        private byte[][] hashes;
+        private int received;
+
+        QuorumListener(byte[] request, TOMMessageType reqType, CompletableFuture<byte[]> future) {
+            this.request = request;
+            this.reqType = reqType;
+            this.future = future;
+            reset();
+        }
+
+        @Override
+        public void reset() {
+            hashes = new byte[getViewManager().getCurrentViewN()][];
+            received = 0;
+        }
+
+        @Override
+        public void replyReceived(RequestContext context, TOMMessage reply) {
+
+            int pos = getViewManager().getCurrentViewPos(reply.getSender());
+
+            if (future.isDone() || pos < 0 || pos >= hashes.length) return;
+
+            byte[] hash = TOMUtil.computeHash(reply.getContent());
+
+            if (hashes[pos] == null) received++;
+            hashes[pos] = hash;
+
+            int sameContent = 0;
+            int largestQuorum = 0;
+
+            for (int i = 0; i < hashes.length; i++) {
+
+                if (hashes[i] == null) continue;
+
+                int matching = 0;
+                for (int j = 0; j < hashes.length; j++) {
+                    if (hashes[j] != null && Arrays.equals(hashes[i], hashes[j])) matching++;
+                }
+
+                if (i == pos) sameContent = matching;
+                largestQuorum = Math.max(largestQuorum, matching);
+            }
+
+            int replyQuorum = getReplyQuorum();
+
+            if (sameContent >= replyQuorum) {
+
+                if (reqType == TOMMessageType.UNORDERED_REQUEST && reply.getViewID() != getViewManager().getCurrentViewId()) {
+                    retryOrdered();
+                } else {
+                    complete(future, reply.getContent(), null);
+                }
+
+            } else if (largestQuorum + (hashes.length - received) < replyQuorum) {
+
+                //no reply quorum can be formed anymore
+                if (reqType == TOMMessageType.UNORDERED_REQUEST) {
+                    logger.debug("No matching replies for unordered operation {}, retrying it as ordered", context.getOperationId());
+                    retryOrdered();
+                } else {
+                    complete(future, null, new RuntimeException("Received n-f replies without f+1 of them matching."));
+                }
+            }
+        }
+
+        private void retryOrdered() {
+
+            // the request can not be sent from the communication system threads
+            EXECUTOR.execute(() -> {
+
+                // the future of the ordered request is completed by the executor too
+                invokeOrderedAsync(request).whenComplete((byte[] reply, Throwable error) -> {
+                    if (error != null) {
+                        future.completeExceptionally(error);
+                    } else {
+                        future.complete(reply);
+                    }
+                });
+
+            });
+        }
+    }
+
+    /**
+     * Completes a future in the executor, since its callbacks belong to the
+     * application and may block.
+     */
+    private static void complete(CompletableFuture<byte[]> future, byte[] reply, Throwable error) {
+        EXECUTOR.execute(() -> {
+            if (error != null) {
+                future.completeExceptionally(error);
+            } else {
+                future.complete(reply);
+            }
+        });
+    }
+
+    // shared by all the proxies of the JVM, for request timeouts; its tasks only hand work to the executor
+    private static final Timer TIMER = new HashedWheelTimer(new DefaultThreadFactory("bft-async-proxy", true),
+            10, TimeUnit.MILLISECONDS);
+
+    // shared by all the proxies of the JVM, re-issues requests (which may block while sending) and completes futures
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(
+            new DefaultThreadFactory("bft-async-proxy-worker", true));
+
 }
@@ -17,8 +17,10 @@ package bftsmart.tom;
 
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.Random;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -44,23 +46,13 @@ public class ServiceProxy extends TOMSender {
     
         private Logger logger = LoggerFactory.getLogger(this.getClass());
 
-	// Locks for send requests and receive replies
-	protected ReentrantLock canReceiveLock = new ReentrantLock();
+	// Lock for send requests: request ids must reach the replicas in the order they were generated
 	protected ReentrantLock canSendLock = new ReentrantLock();
-	private Semaphore sm = new Semaphore(0);
-	private int reqId = -1; // request id
-	private int operationId = -1; // request id
-	private TOMMessageType requestType;
-	private int replyQuorum = 0; // size of the reply quorum
-	private TOMMessage replies[] = null; // Replies from replicas are stored here
-	private int receivedReplies = 0; // Number of received replies
-	private TOMMessage response = null; // Reply delivered to the application
+	// Operations waiting for replies, keyed by request type and sequence number
+	private final Map<Long, Invocation> invocations = new ConcurrentHashMap<>();
 	private int invokeTimeout = 40;
 	private Comparator<byte[]> comparator;
 	private Extractor extractor;
-	private Random rand = new Random(System.currentTimeMillis());
-	private int replyServer;
-	private HashResponseController hashResponseController;
 	private int invokeUnorderedHashedTimeout = 10;
 
 	/**
@@ -109,8 +101,6 @@ public class ServiceProxy extends TOMSender {
 			init(processId, configHome, loader);
 		}
 
-		replies = new TOMMessage[getViewManager().getCurrentViewN()];
-
 		comparator = (replyComparator != null) ? replyComparator : new Comparator<byte[]>() {
 			@Override
 			public int compare(byte[] o1, byte[] o2) {
@@ -191,6 +181,22 @@ public class ServiceProxy extends TOMSender {
 		return invoke(request, TOMMessageType.UNORDERED_REQUEST);
 	}
 
+        /**
+         * This method sends an ordered request to the replicas, and returns the related reply.
+         * One replica, chosen in rotation, sends the complete response, while the others
+         * only send a hash of that response. If these replies do not match, or do not arrive
+         * within invokeUnorderedHashedTimeout seconds, the replicas are asked to send the
+         * complete response they kept for the request, which is not executed again.
+	 * If the servers take more than invokeTimeout seconds the method returns null.
+	 * This method is thread-safe.
+         * 
+         * @param request to be sent
+         * @return The reply from the replicas related to request
+         */
+        public byte[] invokeOrderedHashed(byte[] request) {
+		return invoke(request, TOMMessageType.ORDERED_REQUEST, true);
+	}
+
         /**
          * This method sends an unordered request to the replicas, and returns the related reply.
          * This method chooses randomly one replica to send the complete response, while the others
@@ -208,7 +214,8 @@ public class ServiceProxy extends TOMSender {
 	/**
 	 * This method sends a request to the replicas, and returns the related reply.
 	 * If the servers take more than invokeTimeout seconds the method returns null.
-	 * This method is thread-safe.
+	 * This method is thread-safe, and concurrent invocations are in flight at
+	 * the same time: each one waits for its own replies.
 	 *
 	 * @param request Request to be sent
 	 * @param reqType ORDERED_REQUEST/UNORDERED_REQUEST/UNORDERED_HASHED_REQUEST for normal requests, and RECONFIG for
@@ -217,68 +224,71 @@ public class ServiceProxy extends TOMSender {
 	 * @return The reply from the replicas related to request
 	 */
 	public byte[] invoke(byte[] request, TOMMessageType reqType) {
-            
-            try {
-                
-		canSendLock.lock();
+		return invoke(request, reqType, false);
+	}
 
-		// Clean all statefull data to prepare for receiving next replies
-		Arrays.fill(replies, null);
-		receivedReplies = 0;
-		response = null;
-		replyQuorum = getReplyQuorum();
+	private byte[] invoke(byte[] request, TOMMessageType reqType, boolean hashedReplies) {
 
-		// Send the request to the replicas, and get its ID
-		reqId = generateRequestId(reqType);
-		operationId = generateOperationId();
-		requestType = reqType;
+		Invocation invocation;
 
-		replyServer = -1;
-		hashResponseController = null;
+		canSendLock.lock();
+		try {
+			// Send the request to the replicas, and get its ID
+			invocation = new Invocation(generateRequestId(reqType), generateOperationId(), reqType);
+			invocations.put(key(reqType, invocation.reqId), invocation);
 
-		if(requestType == TOMMessageType.UNORDERED_HASHED_REQUEST){
+			if(reqType == TOMMessageType.UNORDERED_HASHED_REQUEST || hashedReplies){
 
-			replyServer = getRandomlyServerId();
-			logger.debug("["+this.getClass().getName()+"] replyServerId("+replyServer+") "
-					+ "pos("+getViewManager().getCurrentViewPos(replyServer)+")");
+				int replyServer = hashedReplies ? getRotatingServerId(invocation.reqId) : getRandomlyServerId();
+				logger.debug("["+this.getClass().getName()+"] replyServerId("+replyServer+") "
+						+ "pos("+getViewManager().getCurrentViewPos(replyServer)+")");
 
-			hashResponseController = new HashResponseController(getViewManager().getCurrentViewPos(replyServer),
-					getViewManager().getCurrentViewProcesses().length);
+				invocation.hashResponseController = new HashResponseController(invocation,
+						getViewManager().getCurrentViewPos(replyServer),
+						getViewManager().getCurrentViewProcesses().length);
 
-			TOMMessage sm = new TOMMessage(getProcessId(),getSession(), reqId, operationId, request,
-					getViewManager().getCurrentViewId(), requestType);
-			sm.setReplyServer(replyServer);
+				TOMMessage sm = new TOMMessage(getProcessId(),getSession(), invocation.reqId, invocation.operationId, request,
+						getViewManager().getCurrentViewId(), reqType);
+				sm.setReplyServer(replyServer);
 
-			TOMulticast(sm);
-		}else{
-			TOMulticast(request, reqId, operationId, reqType);
+				TOMulticast(sm);
+			}else{
+				TOMulticast(request, invocation.reqId, invocation.operationId, reqType);
+			}
+		} finally {
+			canSendLock.unlock();
 		}
 
-		logger.debug("Sending request (" + reqType + ") with reqId=" + reqId);
-		logger.debug("Expected number of matching replies: " + replyQuorum);
+		logger.debug("Sending request (" + reqType + ") with reqId=" + invocation.reqId);
+		logger.debug("Expected number of matching replies: " + invocation.replyQuorum);
 
 		// This instruction blocks the thread, until a response is obtained.
 		// The thread will be unblocked when the method replyReceived is invoked
 		// by the client side communication system
 		try {
 			if(reqType == TOMMessageType.UNORDERED_HASHED_REQUEST){
-				if (!this.sm.tryAcquire(invokeUnorderedHashedTimeout, TimeUnit.SECONDS)) {
+				if (!invocation.sm.tryAcquire(invokeUnorderedHashedTimeout, TimeUnit.SECONDS)) {
 					logger.info("######## UNORDERED HASHED REQUEST TIMEOUT ########");
-					canSendLock.unlock();
+					invocations.remove(key(reqType, invocation.reqId), invocation);
 					return invoke(request,TOMMessageType.ORDERED_REQUEST);
 				}
 			}else{ 
-				if (!this.sm.tryAcquire(invokeTimeout, TimeUnit.SECONDS)) {
-					logger.info("###### Reply TIMEOUT for reqId {}, Replies received: {}.", reqId, receivedReplies);
-					canSendLock.unlock();
+				boolean replied = hashedReplies && awaitHashedReplies(request, invocation);
+
+				if (!replied && !invocation.sm.tryAcquire(invokeTimeout, TimeUnit.SECONDS)) {
+					logger.info("###### Reply TIMEOUT for reqId {}, Replies received: {}.", invocation.reqId, invocation.receivedReplies);
+					invocations.remove(key(reqType, invocation.reqId), invocation);
 
 					return null;
 				}
 			}
 		} catch (InterruptedException ex) {
 			logger.error("Problem aquiring semaphore",ex);
+			invocations.remove(key(reqType, invocation.reqId), invocation);
 		}
 
+		TOMMessage response = invocation.response;
+
 		logger.debug("Response extracted = " + response);
 
 		byte[] ret = null;
@@ -288,7 +298,6 @@ public class ServiceProxy extends TOMSender {
 			//a replyQuorum of matching replies
 			logger.debug("Received n-f replies and no response could be extracted.");
 
-			canSendLock.unlock();
 			if (reqType == TOMMessageType.UNORDERED_REQUEST || reqType == TOMMessageType.UNORDERED_HASHED_REQUEST) {
 				//invoke the operation again, whitout the read-only flag
 				logger.debug("###################RETRY#######################");
@@ -307,14 +316,12 @@ public class ServiceProxy extends TOMSender {
 					//updated view received
 					reconfigureTo((View) TOMUtil.getObject(response.getContent()));
 
-					canSendLock.unlock();
 					return invoke(request, reqType);
 				}
 			} else if (reqType == TOMMessageType.UNORDERED_REQUEST || reqType == TOMMessageType.UNORDERED_HASHED_REQUEST){
 				if (response.getViewID() == getViewManager().getCurrentViewId()) {
 					ret = response.getContent(); // return the response
 				}else{
-					canSendLock.unlock();
 					return invoke(request,TOMMessageType.ORDERED_REQUEST);
 				}
 			} else {
@@ -325,7 +332,6 @@ public class ServiceProxy extends TOMSender {
 					if (r instanceof View) { //did not executed the request because it is using an outdated view
 						reconfigureTo((View) r);
 
-						canSendLock.unlock();
 						return invoke(request, reqType);
 					}  else if (r instanceof ReconfigureReply) { //reconfiguration executed!
 						reconfigureTo(((ReconfigureReply) r).getView());
@@ -341,11 +347,38 @@ public class ServiceProxy extends TOMSender {
 		//******* EDUARDO END **************//
 
 		return ret;
-        
-            } finally {
-                                    
-                if (canSendLock.isHeldByCurrentThread()) canSendLock.unlock(); //always release lock
-            }
+	}
+
+	/**
+	 * Waits for the replies of an ordered request sent with a reply server.
+	 * If no response is extracted from them in invokeUnorderedHashedTimeout
+	 * seconds, the request is sent again without a reply server, with the same
+	 * sequence number, so that the replicas send the complete response they
+	 * kept for it.
+	 *
+	 * @return true if a response was extracted, false if complete replies were requested
+	 */
+	private boolean awaitHashedReplies(byte[] request, Invocation invocation) throws InterruptedException {
+		boolean acquired = invocation.sm.tryAcquire(invokeUnorderedHashedTimeout, TimeUnit.SECONDS);
+
+		synchronized (invocation) {
+			if (invocation.response != null) {
+				if (!acquired) invocation.sm.drainPermits(); // finished right after the timeout
+				return true;
+			}
+
+			logger.debug("No response extracted from the hashed replies of reqId {}, asking for complete replies", invocation.reqId);
+			invocation.requestFullReplies();
+		}
+
+		canSendLock.lock();
+		try {
+			TOMulticast(request, invocation.reqId, invocation.operationId, TOMMessageType.ORDERED_REQUEST);
+		} finally {
+			canSendLock.unlock();
+		}
+
+		return false;
 	}
 
 	//******* EDUARDO BEGIN **************//
@@ -354,9 +387,11 @@ public class ServiceProxy extends TOMSender {
          */
 	protected void reconfigureTo(View v) {
 		logger.debug("Installing a most up-to-date view with id=" + v.getId());
-		getViewManager().reconfigureTo(v);
-		getViewManager().getViewStore().storeView(v);
-		replies = new TOMMessage[getViewManager().getCurrentViewN()];
+		synchronized (getViewManager()) {
+			if (v.getId() <= getViewManager().getCurrentViewId()) return; // installed by a concurrent invocation
+			getViewManager().reconfigureTo(v);
+			getViewManager().getViewStore().storeView(v);
+		}
 		getCommunicationSystem().updateConnections();
 	}
 	//******* EDUARDO END **************//
@@ -371,39 +406,51 @@ public class ServiceProxy extends TOMSender {
             logger.debug("Synchronously received reply from " + reply.getSender() + " with sequence number " + reply.getSequence());
 
                 try {
-			canReceiveLock.lock();
-			if (reqId == -1) {//no message being expected
+			Invocation invocation = invocations.get(key(reply.getReqType(), reply.getSequence()));
+
+			if (invocation == null) {//no message being expected
 				logger.debug("throwing out request: sender=" + reply.getSender() + " reqId=" + reply.getSequence());
-				canReceiveLock.unlock();
 				return;
 			}
 
 			int pos = getViewManager().getCurrentViewPos(reply.getSender());
 
-			if (pos < 0) { //ignore messages that don't come from replicas
-				canReceiveLock.unlock();
+			if (pos < 0 || pos >= invocation.replies.length) { //ignore messages that don't come from replicas
 				return;
 			}
 
-			int sameContent = 1;
-			if (reply.getSequence() == reqId && reply.getReqType() == requestType) {
+			if (reply.getReqType() != invocation.requestType) {
+				logger.debug("Ignoring reply from " + reply.getSender()
+						+ " with reqId:" + reply.getSequence() + ". Currently wait reqId= " + invocation.reqId);
+				return;
+			}
+
+			synchronized (invocation) {
+
+				if (invocation.done) return;
 
 				logger.debug("Receiving reply from " + reply.getSender()
 						+ " with reqId:" + reply.getSequence() + ". Putting on pos=" + pos);
 
-				if(requestType == TOMMessageType.UNORDERED_HASHED_REQUEST)
+				int sameContent = 1;
+				TOMMessage[] replies = invocation.replies;
+
+				if (invocation.requestType == TOMMessageType.ORDERED_REQUEST && invocation.hashResponseController != null
+						&& reply.getViewID() != getViewManager().getCurrentViewId()) {
+					invocation.hashResponseController = null; // replies carrying a new view are complete, not hashes
+				}
+
+				if(invocation.hashResponseController != null)
 				{
-					response = hashResponseController.getResponse(pos,reply);
+					TOMMessage response = invocation.hashResponseController.getResponse(pos,reply);
 					if(response !=null){
-						reqId = -1;
-						this.sm.release(); // resumes the thread that is executing the "invoke" method
-						canReceiveLock.unlock();
+						invocation.finish(response);
 						return;
 					}
 
 				}else{
 					if (replies[pos] == null) {
-						receivedReplies++;
+						invocation.receivedReplies++;
 					}
 					replies[pos] = reply;
 
@@ -414,46 +461,32 @@ public class ServiceProxy extends TOMSender {
 						if ((i != pos || getViewManager().getCurrentViewN() == 1) && replies[i] != null
 								&& (comparator.compare(replies[i].getContent(), reply.getContent()) == 0)) {
 							sameContent++;
-							if (sameContent >= replyQuorum) {
-								response = extractor.extractResponse(replies, sameContent, pos);
-								reqId = -1;
-								this.sm.release(); // resumes the thread that is executing the "invoke" method
-								canReceiveLock.unlock();
+							if (sameContent >= invocation.replyQuorum) {
+								invocation.finish(extractor.extractResponse(replies, sameContent, pos));
 								return;
 							}
 						}
 					}
 				}
 				
-				if (response == null) {
-					if (requestType.equals(TOMMessageType.ORDERED_REQUEST)) {
-						if (receivedReplies == getViewManager().getCurrentViewN()) {
-							reqId = -1;
-							this.sm.release(); // resumes the thread that is executing the "invoke" method
-						}
-					}else if (requestType.equals(TOMMessageType.UNORDERED_HASHED_REQUEST)) {
-						if (hashResponseController.getNumberReplies() == getViewManager().getCurrentViewN()) {
-							reqId = -1;
-							this.sm.release(); // resumes the thread that is executing the "invoke" method
-						}
-					} else {  // UNORDERED
-						if (receivedReplies != sameContent) {
-							reqId = -1;
-							this.sm.release(); // resumes the thread that is executing the "invoke" method
-						}
+				if (invocation.requestType.equals(TOMMessageType.ORDERED_REQUEST)) {
+					int received = (invocation.hashResponseController != null)
+							? invocation.hashResponseController.getNumberReplies() : invocation.receivedReplies;
+					if (received == getViewManager().getCurrentViewN()) {
+						invocation.finish(null);
+					}
+				}else if (invocation.requestType.equals(TOMMessageType.UNORDERED_HASHED_REQUEST)) {
+					if (invocation.hashResponseController.getNumberReplies() == getViewManager().getCurrentViewN()) {
+						invocation.finish(null);
+					}
+				} else {  // UNORDERED
+					if (invocation.receivedReplies != sameContent) {
+						invocation.finish(null);
 					}
 				}
-			} else {
-				logger.debug("Ignoring reply from " + reply.getSender()
-						+ " with reqId:" + reply.getSequence() + ". Currently wait reqId= " + reqId);
-                            
-                        }
-
-			// Critical section ends here. The semaphore can be released
-			canReceiveLock.unlock();
+			}
 		} catch (Exception ex) {
 			logger.error("Problem processing reply", ex);
-			canReceiveLock.unlock();
 		}
 	}
 
@@ -473,18 +506,75 @@ public class ServiceProxy extends TOMSender {
 
 	private int getRandomlyServerId(){
 		int numServers = super.getViewManager().getCurrentViewProcesses().length;
-		int pos = rand.nextInt(numServers);
+		int pos = ThreadLocalRandom.current().nextInt(numServers);
 
 		return super.getViewManager().getCurrentViewProcesses()[pos];
 	}
 
+	// spreads the complete replies of ordered requests over the replicas
+	private int getRotatingServerId(int reqId){
+		int[] processes = super.getViewManager().getCurrentViewProcesses();
+
+		return processes[Math.floorMod(reqId, processes.length)];
+	}
+
+	// ordered requests and the other types are numbered by separate sequences
+	private static long key(TOMMessageType type, int sequence) {
+		return (type == TOMMessageType.ORDERED_REQUEST ? 1L << 32 : 0L) | (sequence & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * State of an operation waiting for the replies of the replicas.
+	 */
+	private class Invocation {
+		private final int reqId; // request id
+		private final int operationId;
+		private final TOMMessageType requestType;
+		private final int replyQuorum; // size of the reply quorum
+		private final TOMMessage replies[]; // Replies from replicas are stored here
+		private final Semaphore sm = new Semaphore(0);
+		private int receivedReplies = 0; // Number of received replies
+		private HashResponseController hashResponseController;
+		private volatile TOMMessage response = null; // Reply delivered to the application
+		private boolean done = false;
+
+		private Invocation(int reqId, int operationId, TOMMessageType requestType) {
+			this.reqId = reqId;
+			this.operationId = operationId;
+			this.requestType = requestType;
+			this.replyQuorum = getReplyQuorum();
+			this.replies = new TOMMessage[getViewManager().getCurrentViewN()];
+		}
+
+		// stops accepting replies and resumes the thread that is executing the "invoke" method
+		private void finish(TOMMessage response) {
+			this.response = response;
+			done = true;
+			invocations.remove(key(requestType, reqId), this);
+			sm.release();
+		}
+
+		// starts waiting for complete replies, instead of hashes, to the same request
+		private void requestFullReplies() {
+			hashResponseController = null;
+			Arrays.fill(replies, null);
+			receivedReplies = 0;
+			response = null;
+			done = false;
+			sm.drainPermits();
+			invocations.put(key(requestType, reqId), this);
+		}
+	}
+
 	private class HashResponseController{
+		private Invocation invocation;
 		private TOMMessage reply;
 		private byte [][] hashReplies;
 		private int replyServerPos;
 		private int countHashReplies;
 
-		public HashResponseController(int replyServerPos, int length) {
+		public HashResponseController(Invocation invocation, int replyServerPos, int length) {
+			this.invocation = invocation;
 			this.replyServerPos = replyServerPos;
 			this.hashReplies = new byte[length][];
 			this.reply = null;
@@ -500,7 +590,7 @@ public class ServiceProxy extends TOMSender {
 
 			if(replyServerPos == pos){
 				reply = tomMessage;
-				hashReplies[pos] = TOMUtil.computeHash(tomMessage.getContent());
+				hashReplies[pos] = TOMUtil.computeHash(tomMessage.getContent() != null ? tomMessage.getContent() : new byte[0]);
 			}else{
 				hashReplies[pos] = tomMessage.getContent();
 			}
@@ -508,11 +598,11 @@ public class ServiceProxy extends TOMSender {
 
 			if(hashReplies[replyServerPos]!=null){
 				int sameContent = 1;
-				for (int i = 0; i < replies.length; i++) {
+				for (int i = 0; i < invocation.replies.length; i++) {
 					if ((i != replyServerPos || getViewManager().getCurrentViewN() == 1) && hashReplies[i] != null
 							&& (Arrays.equals(hashReplies[i], hashReplies[replyServerPos]))) {
 						sameContent++;
-						if (sameContent >= replyQuorum) {
+						if (sameContent >= invocation.replyQuorum) {
 							return reply;
 						}
 					}
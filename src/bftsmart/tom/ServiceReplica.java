@@ -42,6 +42,7 @@ import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.server.Replier;
 import bftsmart.tom.server.RequestVerifier;
 import bftsmart.tom.server.SingleExecutable;
+import bftsmart.tom.server.SpeculativeExecutable;
 
 import bftsmart.tom.server.defaultservices.DefaultReplier;
 import bftsmart.tom.util.KeyLoader;
@@ -208,14 +209,8 @@ public class ServiceReplica {
         //applications to log it or keep any proof.
         response = executor.executeUnordered(message.getContent(), msgCtx);
 
-        if (message.getReqType() == TOMMessageType.UNORDERED_HASHED_REQUEST
-                && message.getReplyServer() != this.id) {
-            response = TOMUtil.computeHash(response);
-        }
-
         // Generate the messages to send back to the clients
-        message.reply = new TOMMessage(id, message.getSession(), message.getSequence(), message.getOperationId(),
-                response, SVController.getCurrentViewId(), message.getReqType());
+        setReply(message, response);
 
         if (SVController.getStaticConf().getNumRepliers() > 0) {
             repMan.send(message);
@@ -344,8 +339,7 @@ public class ServiceReplica {
                                 byte[] response = ((SingleExecutable) executor).executeOrdered(request.getContent(), msgCtx);
                                 
                                 // Generate the messages to send back to the clients
-                                request.reply = new TOMMessage(id, request.getSession(),
-                                        request.getSequence(), request.getOperationId(), response, SVController.getCurrentViewId(), request.getReqType());
+                                setReply(request, response);
                                 logger.debug("sending reply to " + request.getSender());
                                 replier.manageReply(request, msgCtx);
                             } else { //this code should never be executed
@@ -434,8 +428,7 @@ public class ServiceReplica {
             //Send the replies back to the client
             for (int index = 0; index < toBatch.size(); index++) {
                 TOMMessage request = toBatch.get(index);
-                request.reply = new TOMMessage(id, request.getSession(), request.getSequence(), request.getOperationId(),
-                        replies[index], SVController.getCurrentViewId(), request.getReqType());
+                setReply(request, replies[index]);
 
                 if (SVController.getStaticConf().getNumRepliers() > 0) {
                     logger.debug("Sending reply to " + request.getSender() + " with sequence number " + request.getSequence() + " and operation ID " + request.getOperationId() +" via ReplyManager");
@@ -452,6 +445,105 @@ public class ServiceReplica {
         }
     }
 
+    /**
+     * Creates the reply to a request and attaches it to the request. The
+     * request's monitor makes this atomic with respect to a client asking for
+     * the complete response (see ClientsManager), so either the reply is
+     * created complete or the clients manager finds it and sends fullContent.
+     *
+     * @param request The request being replied
+     * @param response The response of the application
+     */
+    private void setReply(TOMMessage request, byte[] response) {
+        synchronized (request) {
+            request.reply = createReply(request, response);
+        }
+    }
+
+    /**
+     * Creates the reply to a request. If the client chose another replica to
+     * send the complete response (in unordered hashed requests and in ordered
+     * requests with a reply server), the reply only carries its hash, unless
+     * the client already asked for the complete response. For ordered requests
+     * the complete response is kept with the reply, so it can be sent if the
+     * client asks for it later (see ClientsManager).
+     *
+     * @param request The request being replied
+     * @param response The response of the application
+     * @return The reply to send to the client
+     */
+    private TOMMessage createReply(TOMMessage request, byte[] response) {
+        boolean hashed = request.getReplyServer() != id && !request.fullReplyRequested
+                && (request.getReqType() == TOMMessageType.UNORDERED_HASHED_REQUEST
+                || (request.getReqType() == TOMMessageType.ORDERED_REQUEST && request.getReplyServer() >= 0));
+
+        TOMMessage reply = new TOMMessage(id, request.getSession(), request.getSequence(), request.getOperationId(),
+                hashed ? TOMUtil.computeHash(response != null ? response : new byte[0]) : response,
+                SVController.getCurrentViewId(), request.getReqType());
+
+        if (hashed && request.getReqType() == TOMMessageType.ORDERED_REQUEST) {
+            reply.fullContent = response;
+        }
+
+        return reply;
+    }
+
+    /**
+     * Indicates if proposed batches can be executed before being decided, i.e.,
+     * if speculation is enabled and the executor supports it
+     */
+    public boolean isSpeculative() {
+        return SVController.getStaticConf().isSpeculative() && executor instanceof SpeculativeExecutable;
+    }
+
+    /**
+     * Executes a proposed batch before it is decided (see SpeculativeExecutable).
+     * Only batches made of ordered requests for the current view are executed,
+     * the others are left to the normal delivery.
+     *
+     * @param consId the consensus instance for which the batch was proposed
+     * @param regency the regency in which it was proposed
+     * @param leader the leader that proposed it
+     * @param requests the requests of the proposed batch
+     * @return true if the batch was executed speculatively
+     */
+    public boolean receiveSpeculative(int consId, int regency, int leader, TOMMessage[] requests) {
+        if (!isSpeculative() || requests.length == 0) return false;
+
+        for (TOMMessage request : requests) {
+            if (request.getReqType() != TOMMessageType.ORDERED_REQUEST || request.getViewID() != SVController.getCurrentViewId()) {
+                return false;
+            }
+        }
+
+        TOMMessage firstRequest = requests[0];
+        byte[][] batch = new byte[requests.length][];
+        MessageContext[] msgCtxs = new MessageContext[requests.length];
+        for (int i = 0; i < requests.length; i++) {
+            TOMMessage request = requests[i];
+            batch[i] = request.getContent();
+            msgCtxs[i] = new MessageContext(request.getSender(), request.getViewID(),
+                    request.getReqType(), request.getSession(), request.getSequence(), request.getOperationId(),
+                    request.getReplyServer(), request.serializedMessageSignature, firstRequest.timestamp,
+                    request.numOfNonces, request.seed, regency, leader, consId, null, firstRequest, false);
+        }
+
+        logger.debug("Executing speculatively the batch proposed for consensus " + consId);
+        ((SpeculativeExecutable) executor).executeSpeculatively(consId, batch, msgCtxs);
+        return true;
+    }
+
+    /**
+     * Discards the speculative execution of consensus instances consId and after
+     *
+     * @param consId the first consensus instance to roll back
+     */
+    public void rollbackSpeculative(int consId) {
+        if (executor instanceof SpeculativeExecutable) {
+            ((SpeculativeExecutable) executor).rollbackSpeculation(consId);
+        }
+    }
+
     /**
      * This method initializes the object
      *
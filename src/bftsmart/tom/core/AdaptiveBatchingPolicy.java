@@ -0,0 +1,107 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.core;
+
+import bftsmart.reconfiguration.util.TOMConfiguration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Batching policy that adapts to the load and to the observed consensus
+ * latency.
+ *
+ * While there are less than batch_minsize pending requests, the leader waits
+ * for more of them, in gaps of a quarter of batch_maxdelay and for at most
+ * batch_maxdelay, and stops waiting as soon as a gap passes without new
+ * requests (the load is too light to fill a batch) or if the consensus
+ * latency leaves no room for the delay.
+ *
+ * The batch size limit starts at maxbatchsize. It is cut by a quarter when
+ * the average consensus latency of the proposed batches goes above
+ * batch_targetlatency, and it grows back by an eighth whenever a full batch
+ * is decided below the target.
+ */
+public class AdaptiveBatchingPolicy implements BatchingPolicy {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private int maxBatchSize;
+    private long maxBatchBytes;
+    private long maxDelay; // nanoseconds
+    private int minSize;
+    private long targetLatency; // nanoseconds
+
+    private volatile int limit; // current batch size limit
+    private volatile long latency = -1; // moving average of the consensus latency, -1 until a batch is decided
+
+    private int lastPending; // pending requests at the previous call of getProposeDelay for the same batch
+
+    @Override
+    public void init(TOMConfiguration conf) {
+        maxBatchSize = conf.getMaxBatchSize();
+        maxBatchBytes = conf.getMaxBatchBytes();
+        maxDelay = conf.getBatchMaxDelay() * 1000L;
+        minSize = Math.max(1, Math.min(conf.getBatchMinSize(), maxBatchSize));
+        targetLatency = conf.getBatchTargetLatency() * 1000000L;
+        limit = maxBatchSize;
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return limit;
+    }
+
+    @Override
+    public long getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    @Override
+    public long getProposeDelay(int pendingRequests, long waited) {
+        if (waited == 0) {
+            lastPending = 0;
+        }
+
+        if (pendingRequests >= Math.min(minSize, limit) || waited >= maxDelay) return 0;
+
+        long l = latency;
+        if (l >= 0 && l + maxDelay > targetLatency) return 0;
+
+        if (pendingRequests <= lastPending) return 0;
+        lastPending = pendingRequests;
+
+        return Math.min(maxDelay - waited, Math.max(1, maxDelay / 4));
+    }
+
+    @Override
+    public synchronized void batchDecided(int batchSize, long batchBytes, long latency) {
+        long l = (this.latency < 0) ? latency : this.latency + (latency - this.latency) / 8;
+        this.latency = l;
+
+        int next = limit;
+        if (l > targetLatency) {
+            next = Math.max(minSize, next - next / 4);
+        } else if (batchSize >= next) {
+            next = Math.min(maxBatchSize, next + Math.max(1, next / 8));
+        }
+
+        if (next != limit) {
+            logger.debug("Batch size limit set to {} (consensus latency {} us)", next, l / 1000);
+            limit = next;
+        }
+    }
+}
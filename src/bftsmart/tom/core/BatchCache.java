@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and
+ * the authors indicated in the @author tags
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package bftsmart.tom.core;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import bftsmart.tom.core.messages.TOMMessage;
+
+/**
+ * Cache of decoded proposals, keyed by the hash of the proposed value
+ * (Epoch.propValueHash). It keeps the requests decoded from a batch and the
+ * result of their validation, so that the same batch is parsed once per
+ * replica even if it is checked by the acceptor, the delivery thread and the
+ * synchronizer (e.g., after a regency change).
+ *
+ * Entries are evicted when the highest consensus they were used for is
+ * delivered, so a batch that was already executed is always validated again
+ * if it is proposed once more.
+ */
+public class BatchCache {
+
+    // upper bound on the number of cached batches, in case nothing is delivered for a while
+    private static final int MAX_ENTRIES = 128;
+
+    private final LinkedHashMap<ByteBuffer, Entry> entries = new LinkedHashMap<ByteBuffer, Entry>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * A decoded batch
+     */
+    public static class Entry {
+
+        private final TOMMessage[] requests;
+        private int cid;
+        private boolean validated = false;
+        private boolean valid = false;
+
+        private Entry(TOMMessage[] requests, int cid) {
+            this.requests = requests;
+            this.cid = cid;
+        }
+
+        public TOMMessage[] getRequests() {
+            return requests;
+        }
+
+        /**
+         * @return true if the requests were already added to the clients manager
+         */
+        public boolean isValidated() {
+            return validated;
+        }
+
+        /**
+         * @return the result of the validation, if already validated
+         */
+        public boolean isValid() {
+            return valid;
+        }
+    }
+
+    /**
+     * Gets the decoded batch with the given hash, if cached.
+     *
+     * @param hash Hash of the proposed value
+     * @param cid Consensus instance for which the batch is being used
+     * @return The cached entry, or null
+     */
+    public synchronized Entry get(byte[] hash, int cid) {
+        if (hash == null) return null;
+
+        Entry entry = entries.get(ByteBuffer.wrap(hash));
+        if (entry != null && cid > entry.cid) {
+            entry.cid = cid;
+        }
+        return entry;
+    }
+
+    /**
+     * Stores a decoded batch.
+     *
+     * @param hash Hash of the proposed value
+     * @param cid Consensus instance for which the batch was decoded
+     * @param requests The requests decoded from the batch
+     * @return The new entry
+     */
+    public synchronized Entry put(byte[] hash, int cid, TOMMessage[] requests) {
+        Entry entry = new Entry(requests, cid);
+        if (hash != null) {
+            entries.put(ByteBuffer.wrap(hash), entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Records the result of validating the requests of an entry.
+     *
+     * @param entry The validated entry
+     * @param valid True if all requests were accepted by the clients manager
+     */
+    public synchronized void setValidated(Entry entry, boolean valid) {
+        entry.validated = true;
+        entry.valid = valid;
+    }
+
+    /**
+     * Evicts the batches that are no longer needed, i.e., those whose
+     * consensus instances are all delivered.
+     *
+     * @param lastDelivered The last consensus instance delivered
+     */
+    public synchronized void evict(int lastDelivered) {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            if (it.next().cid <= lastDelivered) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
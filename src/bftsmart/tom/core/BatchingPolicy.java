@@ -0,0 +1,69 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.core;
+
+import bftsmart.reconfiguration.util.TOMConfiguration;
+
+/**
+ * Decides how the leader batches pending requests: how many requests (and
+ * bytes) go in each proposal, and whether to wait for more requests before
+ * proposing. The proposer thread asks for the limits and the delay, and the
+ * consensus thread reports the latency of each batch this replica proposed,
+ * so implementations must be thread safe.
+ *
+ * The implementation is chosen with system.totalordermulticast.batching_policy
+ * and must have a public no-argument constructor.
+ */
+public interface BatchingPolicy {
+
+    /**
+     * Called once, before the policy is used.
+     *
+     * @param conf The replica configuration
+     */
+    public void init(TOMConfiguration conf);
+
+    /**
+     * @return Maximum number of requests of the next batch
+     */
+    public int getMaxBatchSize();
+
+    /**
+     * @return Maximum number of bytes of serialized requests of the next
+     * batch, or 0 for no limit (a batch always holds at least one request)
+     */
+    public long getMaxBatchBytes();
+
+    /**
+     * Tells how much longer the leader should wait for more requests before
+     * proposing. Called again whenever a request arrives, until it returns 0.
+     *
+     * @param pendingRequests Estimate of the number of requests that can be proposed
+     * @param waited Nanoseconds the leader has already waited for this batch
+     * @return Nanoseconds to wait, or 0 to propose now
+     */
+    public long getProposeDelay(int pendingRequests, long waited);
+
+    /**
+     * Called when a batch proposed by this replica is decided.
+     *
+     * @param batchSize Number of requests of the batch
+     * @param batchBytes Size of the proposed value
+     * @param latency Nanoseconds between the proposal and the decision
+     */
+    public void batchDecided(int batchSize, long batchBytes, long latency);
+
+}
@@ -0,0 +1,53 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.core;
+
+import bftsmart.reconfiguration.util.TOMConfiguration;
+
+/**
+ * Proposes as soon as there are pending requests, with batches limited by
+ * system.totalordermulticast.maxbatchsize and maxbatchbytes.
+ */
+public class DefaultBatchingPolicy implements BatchingPolicy {
+
+    private int maxBatchSize;
+    private long maxBatchBytes;
+
+    @Override
+    public void init(TOMConfiguration conf) {
+        maxBatchSize = conf.getMaxBatchSize();
+        maxBatchBytes = conf.getMaxBatchBytes();
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    @Override
+    public long getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    @Override
+    public long getProposeDelay(int pendingRequests, long waited) {
+        return 0;
+    }
+
+    @Override
+    public void batchDecided(int batchSize, long batchBytes, long latency) {
+    }
+}
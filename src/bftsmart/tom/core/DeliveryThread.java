@@ -16,6 +16,8 @@ limitations under the License.
 package bftsmart.tom.core;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import java.util.concurrent.locks.Condition;
@@ -23,6 +25,7 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.consensus.Decision;
+import bftsmart.consensus.Epoch;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.statemanagement.ApplicationState;
 import bftsmart.tom.MessageContext;
@@ -46,8 +49,11 @@ public final class DeliveryThread extends Thread {
 	private Logger logger = LoggerFactory.getLogger(this.getClass());
 
 	private boolean doWork = true;
-	private int lastReconfig = -2;
+	private volatile int lastReconfig = -2;
 	private final LinkedBlockingQueue<Decision> decided;
+	// decisions that arrived before the ones preceding them (only used with pipelining)
+	private final TreeMap<Integer, Decision> pendingDecisions = new TreeMap<>();
+	private final int pipelineDepth;
 	private final TOMLayer tomLayer; // TOM layer
 	private final ServiceReplica receiver; // Object that receives requests from clients
 	private final Recoverable recoverer; // Object that uses state transfer
@@ -55,6 +61,28 @@ public final class DeliveryThread extends Thread {
 	private final Lock decidedLock = new ReentrantLock();
 	private final Condition notEmptyQueue = decidedLock.newCondition();
 
+	// speculative execution of proposed batches (only if the receiver supports it)
+	private final boolean speculative;
+	// batches proposed and validated, waiting to be executed speculatively (guarded by decidedLock)
+	private final TreeMap<Integer, Proposal> proposed = new TreeMap<>();
+	private boolean discardSpeculation = false; // guarded by decidedLock
+	// hash of the batches executed speculatively and not delivered yet (only used by this thread)
+	private final TreeMap<Integer, byte[]> speculated = new TreeMap<>();
+	private int lastSpeculated = -1;
+
+	private static class Proposal {
+
+		private final Epoch epoch;
+		private final int regency;
+		private final int leader;
+
+		private Proposal(Epoch epoch, int regency, int leader) {
+			this.epoch = epoch;
+			this.regency = regency;
+			this.leader = leader;
+		}
+	}
+
 	/**
 	 * Creates a new instance of DeliveryThread
 	 * 
@@ -72,12 +100,86 @@ public final class DeliveryThread extends Thread {
 		// ******* EDUARDO BEGIN **************//
 		this.controller = controller;
 		// ******* EDUARDO END **************//
+		this.pipelineDepth = controller.getStaticConf().getPipelineDepth();
+		this.speculative = receiver != null && receiver.isSpeculative();
 	}
 
 	public Recoverable getRecoverer() {
 		return recoverer;
 	}
 
+	public boolean isSpeculative() {
+		return speculative;
+	}
+
+	/**
+	 * Invoked by the acceptor when a proposed batch is validated. This thread
+	 * executes it speculatively when it has no decision to deliver, as long as
+	 * all the instances before it were delivered or executed speculatively.
+	 * 
+	 * @param cid     Consensus instance of the proposal
+	 * @param epoch   Epoch with the deserialized proposed value
+	 * @param regency Regency in which the value was proposed
+	 * @param leader  Leader that proposed the value
+	 */
+	public void speculate(int cid, Epoch epoch, int regency, int leader) {
+		if (!speculative) return;
+
+		decidedLock.lock();
+		proposed.put(cid, new Proposal(epoch, regency, leader));
+		notEmptyQueue.signalAll();
+		decidedLock.unlock();
+	}
+
+	/**
+	 * Discards the batches executed or waiting to be executed speculatively
+	 * (e.g., when a leader change starts). The rollback is done by this thread
+	 * before delivering the next decisions.
+	 */
+	public void discardSpeculation() {
+		if (!speculative) return;
+
+		decidedLock.lock();
+		proposed.clear();
+		discardSpeculation = true;
+		notEmptyQueue.signalAll();
+		decidedLock.unlock();
+	}
+
+	// next instance that can be executed speculatively (guarded by decidedLock)
+	private Proposal nextProposal() {
+		int next = Math.max(lastSpeculated, tomLayer.getLastExec()) + 1;
+		proposed.headMap(next).clear();
+		return proposed.get(next);
+	}
+
+	private void executeSpeculatively(Proposal proposal) {
+		int cid = proposal.epoch.getConsensus().getId();
+		if (receiver.receiveSpeculative(cid, proposal.regency, proposal.leader, proposal.epoch.deserializedPropValue)) {
+			speculated.put(cid, proposal.epoch.propValueHash);
+			lastSpeculated = cid;
+		}
+	}
+
+	// rolls back the speculative execution of the decided instance (and the ones after
+	// it) if another value was decided for it
+	private void checkSpeculation(Decision dec) {
+		int cid = dec.getConsensusId();
+		speculated.headMap(cid).clear();
+
+		byte[] hash = speculated.remove(cid);
+		if (hash != null && (dec.getDecisionEpoch() == null || !Arrays.equals(hash, dec.getDecisionEpoch().propValueHash))) {
+			logger.info("Value decided for consensus " + cid + " is not the one executed speculatively");
+			rollbackSpeculation(cid);
+		}
+	}
+
+	private void rollbackSpeculation(int cid) {
+		receiver.rollbackSpeculative(cid);
+		speculated.tailMap(cid, true).clear();
+		lastSpeculated = cid - 1;
+	}
+
 	/**
 	 * Invoked by the TOM layer, to deliver a decision
 	 * 
@@ -85,6 +187,42 @@ public final class DeliveryThread extends Thread {
 	 */
 	public void delivery(Decision dec) {
 
+		if (pipelineDepth > 1) {
+			// with pipelining, decisions may arrive out of order, so they are
+			// held until all the decisions preceding them are delivered
+			decidedLock.lock();
+			pendingDecisions.put(dec.getConsensusId(), dec);
+			decidedLock.unlock();
+
+			deliverPendingDecisions();
+		} else {
+			deliverDecision(dec);
+		}
+	}
+
+	/**
+	 * Delivers the held decisions that follow the last executed consensus. If
+	 * a decision with a reconfiguration is still being processed, nothing is
+	 * delivered until it finishes.
+	 */
+	private void deliverPendingDecisions() {
+		Decision next;
+		do {
+			next = null;
+			decidedLock.lock();
+			if (lastReconfig == -2) {
+				int lastExec = tomLayer.getLastExec();
+				pendingDecisions.headMap(lastExec, true).clear();
+				next = pendingDecisions.remove(lastExec + 1);
+			}
+			decidedLock.unlock();
+
+			if (next != null) deliverDecision(next);
+		} while (next != null);
+	}
+
+	private void deliverDecision(Decision dec) {
+
 		try {
 			decidedLock.lock();
 			decided.put(dec);
@@ -148,9 +286,19 @@ public final class DeliveryThread extends Thread {
 		canDeliver.signalAll();
 	}
 
-	public void update(ApplicationState state) {
+	/**
+	 * Installs a state obtained from the state transfer protocol
+	 *
+	 * @param state The state
+	 * @return false if the application rejected the state (setState returned -1)
+	 */
+	public boolean update(ApplicationState state) {
 
 		int lastCID = recoverer.setState(state);
+		if (lastCID < 0) {
+			logger.warn("The application rejected the received state");
+			return false;
+		}
 
 		// set this decision as the last one from this replica
 		logger.info("Setting last CID to " + lastCID);
@@ -169,8 +317,15 @@ public final class DeliveryThread extends Thread {
 
 		logger.info("Current decided size: " + decided.size());
 		decided.clear();
+		decidedLock.lock();
+		pendingDecisions.clear();
+		// the speculative state was replaced by the new one
+		proposed.clear();
+		discardSpeculation = true;
+		decidedLock.unlock();
 
 		logger.info("All finished up to " + lastCID);
+		return true;
 	}
 
 	/**
@@ -198,7 +353,7 @@ public final class DeliveryThread extends Thread {
 			try {
 				ArrayList<Decision> decisions = new ArrayList<Decision>();
 				decidedLock.lock();
-				if (decided.isEmpty()) {
+				if (decided.isEmpty() && !(speculative && (discardSpeculation || nextProposal() != null))) {
 					notEmptyQueue.await();
 				}
 
@@ -208,11 +363,28 @@ public final class DeliveryThread extends Thread {
 					decided.drainTo(decisions);
 				}
 
+				boolean discard = discardSpeculation;
+				discardSpeculation = false;
+				Proposal proposal = null;
+				if (speculative && decisions.isEmpty()) {
+					proposal = nextProposal();
+					if (proposal != null) proposed.remove(proposal.epoch.getConsensus().getId());
+				}
+
 				decidedLock.unlock();
 
 				if (!doWork)
 					break;
 
+				if (discard && !speculated.isEmpty()) {
+					rollbackSpeculation(speculated.firstKey());
+				}
+
+				// no decision to deliver, use the time to execute the next proposed batch
+				if (proposal != null) {
+					executeSpeculatively(proposal);
+				}
+
 				if (decisions.size() > 0) {
 					TOMMessage[][] requests = new TOMMessage[decisions.size()][];
 					int[] consensusIds = new int[requests.length];
@@ -222,6 +394,8 @@ public final class DeliveryThread extends Thread {
 					cDecs = new CertifiedDecision[requests.length];
 					int count = 0;
 					for (Decision d : decisions) {
+						if (speculative) checkSpeculation(d);
+
 						requests[count] = extractMessagesFromDecision(d);
 						consensusIds[count] = d.getConsensusId();
 						leadersIds[count] = d.getLeader();
@@ -231,15 +405,17 @@ public final class DeliveryThread extends Thread {
 								d.getConsensusId(), d.getValue(), d.getDecisionEpoch().proof);
 						cDecs[count] = cDec;
 
-						// cons.firstMessageProposed contains the performance counters
-						if (requests[count][0].equals(d.firstMessageProposed)) {
-							long time = requests[count][0].timestamp;
-							long seed = requests[count][0].seed;
-							int numOfNonces = requests[count][0].numOfNonces;
-							requests[count][0] = d.firstMessageProposed;
-							requests[count][0].timestamp = time;
-							requests[count][0].seed = seed;
-							requests[count][0].numOfNonces = numOfNonces;
+						// cons.firstMessageProposed contains the performance counters, which are copied to
+						// the decided request since it is the one the clients manager keeps with its reply
+						TOMMessage first = requests[count][0];
+						if (first.equals(d.firstMessageProposed) && first != d.firstMessageProposed) {
+							first.receptionTime = d.firstMessageProposed.receptionTime;
+							first.receptionTimestamp = d.firstMessageProposed.receptionTimestamp;
+							first.consensusStartTime = d.firstMessageProposed.consensusStartTime;
+							first.proposeReceivedTime = d.firstMessageProposed.proposeReceivedTime;
+							first.writeSentTime = d.firstMessageProposed.writeSentTime;
+							first.acceptSentTime = d.firstMessageProposed.acceptSentTime;
+							first.decisionTime = d.firstMessageProposed.decisionTime;
 						}
 
 						count++;
@@ -264,6 +440,9 @@ public final class DeliveryThread extends Thread {
 							// ******* EDUARDO END **************//
 
 							lastReconfig = -2;
+
+							// decisions held during the reconfiguration can now be delivered
+							if (pipelineDepth > 1) deliverPendingDecisions();
 						}
 					}
 
@@ -277,6 +456,10 @@ public final class DeliveryThread extends Thread {
 
 						tomLayer.execManager.removeConsensus(stableConsensus);
 					}
+
+					// the batches decided up to here were executed, a new proposal
+					// with the same value must be validated again
+					tomLayer.getBatchCache().evict(cid);
 				}
 			} catch (Exception e) {
 				logger.error("Error while processing decision", e);
@@ -292,6 +475,11 @@ public final class DeliveryThread extends Thread {
 
 	private TOMMessage[] extractMessagesFromDecision(Decision dec) {
 		TOMMessage[] requests = (TOMMessage[]) dec.getDeserializedValue();
+		if (requests == null && dec.getDecisionEpoch() != null) {
+			// the batch may have been decoded already, e.g., by the acceptor in another epoch
+			BatchCache.Entry entry = tomLayer.getBatchCache().get(dec.getDecisionEpoch().propValueHash, dec.getConsensusId());
+			if (entry != null) requests = entry.getRequests();
+		}
 		if (requests == null) {
 			// there are no cached deserialized requests
 			// this may happen if this batch proposal was not verified
@@ -300,7 +488,9 @@ public final class DeliveryThread extends Thread {
 			logger.debug("Interpreting and verifying batched requests.");
 
 			// obtain an array of requests from the decisions obtained
-			BatchReader batchReader = new BatchReader(dec.getValue(), controller.getStaticConf().getUseSignatures());
+			// requests proposed by reference are fetched if needed, the decision must be delivered
+			BatchReader batchReader = new BatchReader(dec.getValue(), controller.getStaticConf().getUseSignatures(),
+					tomLayer.getLargeRequests()::await);
 			requests = batchReader.deserialiseRequests(controller);
 		} else {
 			logger.debug("Using cached requests from the propose.");
@@ -67,6 +67,7 @@ public final class ExecutionManager {
     private ReentrantLock stoppedMsgsLock = new ReentrantLock(); //lock for stopped messages
     private TOMLayer tomLayer; // TOM layer associated with this execution manager
     private int paxosHighMark; // Paxos high mark for consensus instances
+    private int pipelineDepth; // Maximum number of consensus instances running at the same time
     
     /** THIS IS JOAO'S CODE, TO HANDLE THE STATE TRANSFER */
     
@@ -101,6 +102,7 @@ public final class ExecutionManager {
         //this.me = me;
 
         this.paxosHighMark = this.controller.getStaticConf().getPaxosHighMark();
+        this.pipelineDepth = this.controller.getStaticConf().getPipelineDepth();
         /** THIS IS JOAO'S CODE, TO HANDLE THE STATE TRANSFER */
         this.revivalHighMark = this.controller.getStaticConf().getRevivalHighMark();
         this.timeoutHighMark = this.controller.getStaticConf().getTimeoutHighMark();
@@ -133,6 +135,7 @@ public final class ExecutionManager {
         //this.me = me;
 
         this.paxosHighMark = this.controller.getStaticConf().getPaxosHighMark();
+        this.pipelineDepth = this.controller.getStaticConf().getPipelineDepth();
         /** THIS IS JOAO'S CODE, TO HANDLE THE STATE TRANSFER */
         this.revivalHighMark = this.controller.getStaticConf().getRevivalHighMark();
         this.timeoutHighMark = this.controller.getStaticConf().getTimeoutHighMark();
@@ -289,10 +292,7 @@ public final class ExecutionManager {
                 }
                 stoppedMsgsLock.unlock();
             } else {
-                if (isRetrievingState || 
-                        msg.getNumber() > (lastConsId + 1) || 
-                        (inExec != -1 && inExec < msg.getNumber()) || 
-                        (inExec == -1 && msg.getType() != MessageFactory.PROPOSE)) { //not propose message for the next consensus
+                if (isRetrievingState || isOutOfContext(msg, lastConsId, inExec)) { //not propose message for the next consensus
                     logger.debug("Message for consensus " + 
                             msg.getNumber() + " is out of context, adding it to out of context set");
                     
@@ -340,6 +340,35 @@ public final class ExecutionManager {
         return canProcessTheMessage;
     }
 
+    /**
+     * Checks if a message belongs to a consensus that cannot be processed right
+     * now. With pipelining, several consensus instances may be running at the
+     * same time, but proposes are still processed in consensus id order.
+     *
+     * @param msg the received message
+     * @param lastConsId the last consensus decided
+     * @param inExec the consensus being executed (the lowest one, if pipelining)
+     * @return true if the message must be stored as out of context
+     */
+    private boolean isOutOfContext(ConsensusMessage msg, int lastConsId, int inExec) {
+        int cid = msg.getNumber();
+
+        if (pipelineDepth == 1) {
+            return cid > (lastConsId + 1) || 
+                    (inExec != -1 && inExec < cid) || 
+                    (inExec == -1 && msg.getType() != MessageFactory.PROPOSE);
+        }
+
+        if (cid > (lastConsId + pipelineDepth)) return true;
+
+        int highestInExec = tomLayer.getHighestInExec();
+        if (inExec != -1 && cid >= inExec && cid <= highestInExec) return false; // consensus already running
+
+        // only a propose can start a consensus, and only after the previous one was started
+        return msg.getType() != MessageFactory.PROPOSE ||
+                (cid != lastConsId + 1 && !(inExec != -1 && cid == highestInExec + 1));
+    }
+
     /**
      * Informs if there are messages till to be processed associated the specified consensus
      * @param cid The ID for the consensus in question
@@ -0,0 +1,430 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.communication.ServerCommunicationSystem;
+import bftsmart.consensus.messages.ConsensusMessage;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.core.messages.LargeRequestMessage;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.BatchReader;
+import bftsmart.tom.util.BatchReader.Reference;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * Keeps track of the requests proposed by reference (see BatchBuilder).
+ *
+ * Clients send their requests to every replica, so the contents of a request
+ * proposed by reference are usually here already. When they are not (the
+ * client copy is late, or a faulty client sent different contents to some
+ * replicas), they are fetched from the other replicas one chunk at a time,
+ * starting with the leader, so the chunks are interleaved with the consensus
+ * messages instead of holding them behind a single huge message. Fetched
+ * contents are only accepted if they match the hash in the proposal. Each
+ * replica keeps the contents of the last requests proposed by reference, so
+ * it can serve them after they are ordered.
+ *
+ * A PROPOSE whose requests are missing is not processed by the acceptor:
+ * it is kept here and delivered again to this replica once every request
+ * is available.
+ */
+public final class LargeRequests implements BatchReader.RequestResolver {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    // time given to the client copy of a request to arrive before fetching it (ms)
+    private static final long FETCH_DELAY = 100;
+    // time without receiving a chunk before asking another replica (ms)
+    private static final long FETCH_RETRY = 2000;
+    // contents of the last requests proposed by reference kept here, to decode them and to serve
+    // replicas that fetch them after the clients manager dropped them (the oldest ones are dropped)
+    private static final int MAX_KEPT = 16;
+
+    private final TOMLayer tomLayer;
+    private final ServerCommunicationSystem communication;
+    private final ServerViewController controller;
+    private final int me;
+
+    private final HashedWheelTimer timer;
+    private volatile boolean running = true;
+
+    // guarded by this
+    private final Map<Reference, Fetch> fetches = new HashMap<>();
+    private final Map<Reference, byte[]> kept = new LinkedHashMap<Reference, byte[]>() {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Reference, byte[]> eldest) {
+            return size() > MAX_KEPT;
+        }
+    };
+
+    public LargeRequests(TOMLayer tomLayer, ServerCommunicationSystem communication, ServerViewController controller) {
+        this.tomLayer = tomLayer;
+        this.communication = communication;
+        this.controller = controller;
+        this.me = controller.getStaticConf().getProcessId();
+        this.timer = new HashedWheelTimer(new DefaultThreadFactory("large requests"), 10, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Looks for the contents of a referenced request here, without fetching
+     * them.
+     *
+     * @param reference The referenced request
+     * @return The serialized request, or null if it is not here
+     */
+    @Override
+    public byte[] resolve(Reference reference) {
+        TOMMessage request = tomLayer.clientsManager.getRequest(reference.sender, reference.sequence);
+        if (request != null && reference.matches(request)) {
+            return request.getSerializedMessage();
+        }
+
+        synchronized (this) {
+            return kept.get(reference);
+        }
+    }
+
+    /**
+     * Same as resolve(), but fetches the contents of the request and waits
+     * for them if they are not here. Used to decode decided values, which
+     * must be delivered. Gives up if the replica stops or starts a state
+     * transfer, which brings the state the decision leads to.
+     *
+     * @param reference The referenced request
+     * @return The serialized request, or null if the replica gave up
+     */
+    public byte[] await(Reference reference) {
+        while (true) {
+            byte[] contents = resolve(reference);
+            if (contents != null) return contents;
+
+            if (!isFetchable(reference)) {
+                logger.error("Decided {} is above the maximum request size", reference);
+                return null;
+            }
+
+            synchronized (this) {
+                if (!running || tomLayer.isRetrievingState()) return null;
+
+                if (!kept.containsKey(reference)) {
+                    Fetch fetch = fetches.get(reference);
+                    if (fetch == null) {
+                        logger.info("Fetching decided {}", reference);
+                        fetch = new Fetch();
+                        fetches.put(reference, fetch);
+                        fetch.timeout = timer.newTimeout(t -> fetchTimeout(t, reference), 0, TimeUnit.MILLISECONDS);
+                    }
+
+                    try {
+                        wait(FETCH_RETRY);
+                    } catch (InterruptedException e) {
+                        return null;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if the contents of all requests proposed by reference in a
+     * PROPOSE are here. If not, starts fetching the missing ones, and the
+     * PROPOSE is delivered again to this replica when they arrive.
+     *
+     * @param propose The PROPOSE message
+     * @return true if the PROPOSE can be processed now
+     */
+    public boolean isAvailable(ConsensusMessage propose) {
+        List<Reference> references;
+        try {
+            references = new BatchReader(propose.getValue(), controller.getStaticConf().getUseSignatures())
+                    .getReferences();
+        } catch (RuntimeException e) {
+            return true; // malformed, it is rejected when its requests are checked
+        }
+
+        List<Reference> missing = null;
+        for (Reference reference : references) {
+            byte[] contents = resolve(reference);
+            if (contents == null && !isFetchable(reference)) {
+                logger.warn("PROPOSE for consensus {} has {}, above the maximum request size",
+                        propose.getNumber(), reference);
+                return true; // rejected when its requests are checked, since they are not all here
+            }
+            if (contents == null) {
+                if (missing == null) missing = new ArrayList<>();
+                missing.add(reference);
+            } else {
+                synchronized (this) {
+                    kept.put(reference, contents);
+                }
+            }
+        }
+        if (missing == null) return true;
+
+        logger.debug("PROPOSE for consensus {} waits for {} large requests", propose.getNumber(), missing.size());
+
+        Waiting waiting = new Waiting(propose, missing.size());
+        synchronized (this) {
+            for (Reference reference : missing) {
+                Fetch fetch = fetches.get(reference);
+                if (fetch == null) {
+                    fetch = new Fetch();
+                    fetches.put(reference, fetch);
+                    fetch.timeout = timer.newTimeout(t -> fetchTimeout(t, reference), FETCH_DELAY, TimeUnit.MILLISECONDS);
+                }
+                fetch.proposals.add(waiting);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called for each ordered request received from a client (or forwarded
+     * by a replica), which may be one being fetched.
+     *
+     * @param request The request
+     */
+    public void requestReceived(TOMMessage request) {
+        List<Reference> candidates = null;
+
+        synchronized (this) {
+            if (fetches.isEmpty()) return;
+
+            for (Reference reference : fetches.keySet()) {
+                if (reference.sender == request.getSender() && reference.sequence == request.getSequence()) {
+                    if (candidates == null) candidates = new ArrayList<>();
+                    candidates.add(reference);
+                }
+            }
+        }
+        if (candidates == null) return;
+
+        for (Reference reference : candidates) {
+            if (reference.matches(request)) {
+                complete(reference, request.getSerializedMessage());
+            }
+        }
+    }
+
+    /**
+     * Handles the messages of the fetching protocol.
+     *
+     * @param msg The message received from another replica
+     */
+    public void messageReceived(LargeRequestMessage msg) {
+        if (msg.getType() == LargeRequestMessage.FETCH) {
+            sendChunk(msg);
+        } else {
+            chunkReceived(msg);
+        }
+    }
+
+    /**
+     * Stops fetching requests.
+     */
+    public void shutdown() {
+        running = false;
+        timer.stop();
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private void sendChunk(LargeRequestMessage fetch) {
+        Reference reference = fetch.getReference();
+        byte[] contents = resolve(reference);
+
+        if (contents == null) {
+            logger.debug("Replica {} asked for {}, which is not here", fetch.getSender(), reference);
+            return;
+        }
+
+        int chunkSize = Math.max(1, controller.getStaticConf().getLargeRequestChunk());
+        int from = fetch.getOffset();
+        byte[] chunk = Arrays.copyOfRange(contents, from, Math.min(contents.length, from + chunkSize));
+
+        communication.send(new int[]{fetch.getSender()},
+                new LargeRequestMessage(me, LargeRequestMessage.CHUNK, reference, from, chunk));
+    }
+
+    // requests above the maximum size are rejected, so they are never fetched
+    private boolean isFetchable(Reference reference) {
+        return reference.size <= controller.getStaticConf().getLargeRequestMaxSize();
+    }
+
+    private void chunkReceived(LargeRequestMessage chunk) {
+        Reference reference = chunk.getReference();
+        byte[] contents = null;
+
+        synchronized (this) {
+            Fetch fetch = fetches.get(reference);
+            if (fetch == null || chunk.getOffset() != fetch.received || chunk.getData().length == 0) return;
+
+            // fetches only start for fetchable references, but the size is what gets allocated
+            if (!isFetchable(reference)) return;
+            if (fetch.contents == null) fetch.contents = new byte[reference.size];
+            System.arraycopy(chunk.getData(), 0, fetch.contents, fetch.received, chunk.getData().length);
+            fetch.received += chunk.getData().length;
+            fetch.target = chunk.getSender();
+            fetch.attempts = 0;
+            fetch.timeout.cancel();
+
+            if (fetch.received < reference.size) {
+                request(fetch, reference);
+                return;
+            }
+
+            contents = fetch.contents;
+            fetch.contents = null;
+            fetch.received = 0;
+        }
+
+        TOMMessage request = TOMMessage.bytesToMessage(contents);
+        if (request != null) request.serializedMessage = contents;
+
+        if (request != null && reference.matches(request)) {
+            logger.debug("Fetched {} from replica {}", reference, chunk.getSender());
+            complete(reference, contents);
+        } else {
+            logger.warn("Replica {} sent wrong contents for {}", chunk.getSender(), reference);
+            synchronized (this) {
+                Fetch fetch = fetches.get(reference);
+                if (fetch != null) {
+                    fetch.target = nextTarget(fetch.target);
+                    request(fetch, reference);
+                }
+            }
+        }
+    }
+
+    // no chunk arrived in time (or this is the first attempt): ask the next replica,
+    // unless the request got here in the meantime
+    private void fetchTimeout(Timeout timeout, Reference reference) {
+        byte[] contents = resolve(reference);
+        if (contents != null) {
+            complete(reference, contents);
+            return;
+        }
+
+        synchronized (this) {
+            Fetch fetch = fetches.get(reference);
+            if (fetch == null || fetch.timeout != timeout || !running) return;
+
+            if (fetch.attempts++ > 2 * controller.getCurrentViewOtherAcceptors().length) {
+                // nobody has it, the proposal is abandoned (await() starts over if it is decided)
+                logger.warn("Could not fetch {}", reference);
+                fetches.remove(reference);
+                notifyAll();
+                return;
+            }
+
+            fetch.target = (fetch.target < 0) ? firstTarget() : nextTarget(fetch.target);
+            request(fetch, reference);
+        }
+    }
+
+    // must be called holding the lock
+    private void request(Fetch fetch, Reference reference) {
+        if (fetch.target >= 0) {
+            logger.debug("Asking replica {} for {} from byte {}", fetch.target, reference, fetch.received);
+            communication.send(new int[]{fetch.target},
+                    new LargeRequestMessage(me, LargeRequestMessage.FETCH, reference, fetch.received, null));
+        }
+        fetch.timeout = timer.newTimeout(t -> fetchTimeout(t, reference), FETCH_RETRY, TimeUnit.MILLISECONDS);
+    }
+
+    private int firstTarget() {
+        int leader = tomLayer.execManager.getCurrentLeader();
+        return (leader != me) ? leader : nextTarget(me);
+    }
+
+    // the replica after the given one in the current view, other than this one
+    private int nextTarget(int current) {
+        int[] others = controller.getCurrentViewOtherAcceptors();
+        if (others.length == 0) return -1;
+
+        for (int i = 0; i < others.length; i++) {
+            if (others[i] == current) return others[(i + 1) % others.length];
+        }
+        return others[0];
+    }
+
+    private void complete(Reference reference, byte[] contents) {
+        List<ConsensusMessage> ready = new ArrayList<>();
+
+        synchronized (this) {
+            Fetch fetch = fetches.remove(reference);
+            if (fetch == null) return;
+
+            fetch.timeout.cancel();
+            kept.put(reference, contents);
+
+            for (Waiting waiting : fetch.proposals) {
+                if (--waiting.missing == 0) ready.add(waiting.propose);
+            }
+            notifyAll();
+        }
+
+        // delivered again from the timer thread, since the message handler may be the caller
+        for (ConsensusMessage propose : ready) {
+            logger.debug("Large requests of consensus {} are available", propose.getNumber());
+            timer.newTimeout(t -> communication.send(new int[]{me}, propose), 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * A request being fetched.
+     */
+    private static final class Fetch {
+
+        private final List<Waiting> proposals = new ArrayList<>();
+        private byte[] contents;
+        private int received;
+        private int target = -1;
+        private int attempts; // requests to other replicas since the last chunk
+        private Timeout timeout;
+    }
+
+    /**
+     * A PROPOSE waiting for some of its requests.
+     */
+    private static final class Waiting {
+
+        private final ConsensusMessage propose;
+        private int missing;
+
+        private Waiting(ConsensusMessage propose, int missing) {
+            this.propose = propose;
+            this.missing = missing;
+        }
+    }
+}
@@ -30,7 +30,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.security.MessageDigest;
 import java.security.SignedObject;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -73,7 +72,6 @@ public class Synchronizer {
     private final ServerCommunicationSystem communication;
     private final StateManager stateManager;
     private final Acceptor acceptor;
-    private final MessageDigest md;
             
     // Attributes to temporarely store synchronization info
     // if state transfer is required for synchronization
@@ -96,10 +94,9 @@ public class Synchronizer {
         this.communication = this.tom.getCommunication();
         this.stateManager = this.tom.stateManager;
         this.acceptor = this.tom.acceptor;
-        this.md = this.tom.md;
         
         this.outOfContextLC = new HashSet<>();
-	this.lcManager = new LCManager(this.tom,this.controller, this.md);
+	this.lcManager = new LCManager(this.tom,this.controller);
     }
 
     public LCManager getLCManager() {
@@ -518,6 +515,8 @@ public class Synchronizer {
             
             if (!execManager.stopped()) execManager.stop(); // stop consensus execution if more than f replicas sent a STOP message
 
+            tom.discardSpeculation(); // the new leader may decide other values for the running instances
+
             logger.debug("Installing regency " + lcManager.getNextReg());
             lcManager.setLastReg(lcManager.getNextReg()); // define last timestamp
 
@@ -983,7 +982,7 @@ public class Synchronizer {
         e.propValueHash = hash;
         e.propValue = tempLastHighestCID.getDecision();
 
-        e.deserializedPropValue = tom.checkProposedValue(tempLastHighestCID.getDecision(), false);
+        e.deserializedPropValue = tom.checkProposedValue(tempLastHighestCID.getCID(), tempLastHighestCID.getDecision(), hash, false);
 
         finalise(tempRegency, tempLastHighestCID,
                 tempSignedCollects, tempPropose, tempBatchSize, tempIAmLeader);
@@ -1036,7 +1035,7 @@ public class Synchronizer {
             e.propValueHash = hash;
             e.propValue = lastHighestCID.getCIDDecision();
 
-            e.deserializedPropValue = tom.checkProposedValue(lastHighestCID.getCIDDecision(), false);
+            e.deserializedPropValue = tom.checkProposedValue(lastHighestCID.getCID(), lastHighestCID.getCIDDecision(), hash, false);
             cons.decided(e, true); // pass the decision to the delivery thread
         }*/
         
@@ -1073,7 +1072,7 @@ public class Synchronizer {
             byte[] hash = tom.computeHash(lastHighestCID.getDecision());
             e.propValueHash = hash;
             e.propValue = lastHighestCID.getDecision();
-            e.deserializedPropValue = tom.checkProposedValue(lastHighestCID.getDecision(), false);
+            e.deserializedPropValue = tom.checkProposedValue(lastHighestCID.getCID(), lastHighestCID.getDecision(), hash, false);
 
             // Is this replica still executing the last decided consensus?
             if (tom.getLastExec() + 1 == lastHighestCID.getCID()) {
@@ -1164,7 +1163,7 @@ public class Synchronizer {
             e.propValueHash = hash;
             e.propValue = tmpval;
 
-            e.deserializedPropValue = tom.checkProposedValue(tmpval, false);
+            e.deserializedPropValue = tom.checkProposedValue(currentCID, tmpval, hash, false);
 
             if (cons.getDecision().firstMessageProposed == null) {
                 if (e.deserializedPropValue != null
@@ -17,15 +17,15 @@
 package bftsmart.tom.core;
 
 import java.io.Serializable;
-import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.Signature;
 import java.security.SignedObject;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
+import bftsmart.clientsmanagement.BatchSignatureVerifier;
 import bftsmart.clientsmanagement.ClientsManager;
+import bftsmart.clientsmanagement.DefaultBatchSignatureVerifier;
 import bftsmart.clientsmanagement.RequestList;
 import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.communication.client.RequestReceiver;
@@ -45,6 +45,7 @@ import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.server.RequestVerifier;
 import bftsmart.tom.util.BatchBuilder;
 import bftsmart.tom.util.BatchReader;
+import bftsmart.tom.util.CryptoEngines;
 import bftsmart.tom.util.TOMUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -75,6 +76,13 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
     //thread pool used to parallelize verification of requests contained in a batch
     private ExecutorService verifierExecutor = null;
+
+    private BatchSignatureVerifier batchVerifier = null;
+    private BatchCache batchCache = new BatchCache();
+
+    private BatchingPolicy batchingPolicy = null;
+
+    private LargeRequests largeRequests = null;
     
     /**
      * Manage timers for pending requests
@@ -89,11 +97,11 @@ public final class TOMLayer extends Thread implements RequestReceiver {
      */
     private int inExecution = -1;
     private int lastExecuted = -1;
-
-    public MessageDigest md;
-    private Signature engine;
-
-    private ReentrantLock hashLock = new ReentrantLock();
+    /**
+     * The id of the highest consensus started so far (used for pipelining)
+     */
+    private int highestInExec = -1;
+    private int pipelineDepth;
 
     //the next two are used to generate non-deterministic data in a deterministic way (by the leader)
     public BatchBuilder bb = new BatchBuilder(System.nanoTime());
@@ -154,10 +162,13 @@ public final class TOMLayer extends Thread implements RequestReceiver {
             publicKey.put(targets[i], controller.getStaticConf().getPublicKey(targets[i]));
         }
         this.isSSLTLSEnabled=false;
+        this.pipelineDepth = this.controller.getStaticConf().getPipelineDepth();
         
-        // Use a many as the number of available cores. 
-        //this.verifierExecutor = Executors.newWorkStealingPool(Runtime.getRuntime().availableProcessors());
-        this.verifierExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        // threads verifying the client signatures of proposed batches (as many as the cores available by default)
+        this.verifierExecutor = Executors.newFixedThreadPool(this.controller.getStaticConf().getNumVerifierThreads());
+        this.batchVerifier = createBatchVerifier();
+        this.batchingPolicy = createBatchingPolicy();
+        this.largeRequests = new LargeRequests(this, communication, this.controller);
                 
         
         //do not create a timer manager if the timeout is 0
@@ -167,19 +178,6 @@ public final class TOMLayer extends Thread implements RequestReceiver {
             this.requestsTimer = new RequestsTimer(this, communication, this.controller); // Create requests timers manager (a thread)
         }
 
-        try {
-            this.md = TOMUtil.getHashEngine();
-        } catch (Exception e) {
-            logger.error("Failed to get message digest engine",e);
-        }
-
-        try {
-            this.engine = TOMUtil.getSigEngine();
-        } catch (Exception e) {
-            logger.error("Failed to get signature engine",e);
-        }
-
-        
         this.dt = new DeliveryThread(this, receiver, recoverer, this.controller); // Create delivery thread
         this.dt.start();
         this.stateManager = recoverer.getStateManager();
@@ -227,10 +225,13 @@ public final class TOMLayer extends Thread implements RequestReceiver {
             publicKey.put(targets[i], controller.getStaticConf().getPublicKey(targets[i]));
         }
         this.isSSLTLSEnabled=true;
+        this.pipelineDepth = this.controller.getStaticConf().getPipelineDepth();
         
-        // use a many as the number of cores available
-        //this.verifierExecutor = Executors.newWorkStealingPool(Runtime.getRuntime().availableProcessors());
-        this.verifierExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        // threads verifying the client signatures of proposed batches (as many as the cores available by default)
+        this.verifierExecutor = Executors.newFixedThreadPool(this.controller.getStaticConf().getNumVerifierThreads());
+        this.batchVerifier = createBatchVerifier();
+        this.batchingPolicy = createBatchingPolicy();
+        this.largeRequests = new LargeRequests(this, communication, this.controller);
         
         //do not create a timer manager if the timeout is 0
         if (this.controller.getStaticConf().getRequestTimeout() == 0) {
@@ -239,19 +240,6 @@ public final class TOMLayer extends Thread implements RequestReceiver {
             this.requestsTimer = new RequestsTimer(this, communication, this.controller); // Create requests timers manager (a thread)
         }
 
-        try {
-            this.md = TOMUtil.getHashEngine();
-        } catch (Exception e) {
-            logger.error("Failed to get message digest engine",e);
-        }
-
-        try {
-            this.engine = TOMUtil.getSigEngine();
-        } catch (Exception e) {
-            logger.error("Failed to get signature engine",e);
-        }
-
-        
         this.dt = new DeliveryThread(this, receiver, recoverer, this.controller); // Create delivery thread
         this.dt.start();
         this.stateManager = recoverer.getStateManager();
@@ -273,17 +261,12 @@ public final class TOMLayer extends Thread implements RequestReceiver {
      * @return Hash for the specified TOM message
      */
     public final byte[] computeHash(byte[] data) {
-        byte[] ret = null;
-        hashLock.lock();
-        ret = md.digest(data);
-        hashLock.unlock();
-
-        return ret;
+        return TOMUtil.computeHash(data);
     }
 
     public SignedObject sign(Serializable obj) {
         try {
-            return new SignedObject(obj, privateKey, engine);
+            return new SignedObject(obj, privateKey, CryptoEngines.signatureEngine());
         } catch (Exception e) {
             logger.error("Failed to sign object",e);
             return null;
@@ -299,7 +282,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
      */
     public boolean verifySignature(SignedObject so, int sender) {
         try {
-            return so.verify(publicKey.get(sender), engine);
+            return so.verify(publicKey.get(sender), CryptoEngines.signatureEngine());
         } catch (Exception e) {
             logger.error("Failed to verify object signature",e);
         }
@@ -346,14 +329,62 @@ public final class TOMLayer extends Thread implements RequestReceiver {
      */
     public void setInExec(int inEx) {
         proposeLock.lock();
+        if (pipelineDepth > 1) {
+            if (inEx == -1) {
+                // other instances may still be running, the lowest of them becomes the current one
+                if (highestInExec > lastExecuted) inEx = lastExecuted + 1;
+            } else {
+                if (inEx > highestInExec) highestInExec = inEx;
+                if (inExecution > lastExecuted && inExecution < inEx) inEx = inExecution;
+            }
+        }
         logger.debug("Modifying inExec from " + this.inExecution + " to " + inEx);
         this.inExecution = inEx;
-        if (inEx == -1 && !isRetrievingState()) {
+        if ((inEx == -1 || pipelineDepth > 1) && !isRetrievingState()) {
             canPropose.signalAll();
         }
         proposeLock.unlock();
     }
 
+    /**
+     * Gets the ID of the highest consensus started by this replica. When
+     * pipelining is enabled, every consensus between the one returned by
+     * getInExec() and this one is being executed
+     *
+     * @return ID of the highest consensus started by this replica
+     */
+    public int getHighestInExec() {
+        return this.highestInExec;
+    }
+
+    /**
+     * Gets the maximum number of consensus instances that can run at the same time
+     *
+     * @return The pipeline depth defined in the configuration
+     */
+    public int getPipelineDepth() {
+        return this.pipelineDepth;
+    }
+
+    /**
+     * Checks if a consensus can be started before the ones preceding it are
+     * decided. Without pipelining, this is only true for the next consensus
+     *
+     * @param cid ID of the consensus
+     * @return True if the consensus falls into the pipelining window
+     */
+    public boolean isInPipelineWindow(int cid) {
+        return cid > lastExecuted && cid <= lastExecuted + pipelineDepth;
+    }
+
+    /**
+     * Checks if the leader can start a new consensus, i.e., if no consensus
+     * is running or if the pipelining window is not full yet
+     */
+    private boolean canStartConsensus() {
+        return inExecution == -1 || (pipelineDepth > 1 && highestInExec - lastExecuted < pipelineDepth);
+    }
+
     /**
      * This method blocks until the PaW algorithm is finished
      */
@@ -385,6 +416,11 @@ public final class TOMLayer extends Thread implements RequestReceiver {
     public void requestReceived(TOMMessage msg) {
                
         if (!doWork) return;
+
+        if (msg.getReqType() == TOMMessageType.BATCHED_REQUEST) {
+            batchReceived(msg);
+            return;
+        }
         
         // check if this request is valid and add it to the client' pending requests list
         boolean readOnly = (msg.getReqType() == TOMMessageType.UNORDERED_REQUEST
@@ -403,6 +439,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
             
             if (clientsManager.requestReceived(msg, true, communication)) {
+            	largeRequests.requestReceived(msg);
             	haveMessages();
             } else {
                 logger.warn("The received TOMMessage {} was discarded. Sender:{}, Sequence:{}", 
@@ -411,6 +448,34 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         }
     }
 
+    /**
+     * Adds the ordered requests a client sent in a single message to its
+     * pending requests, as if they were received one by one.
+     *
+     * @param batch The message holding the requests
+     */
+    private void batchReceived(TOMMessage batch) {
+        TOMMessage[] requests = clientsManager.unpackBatch(batch);
+        if (requests == null) return;
+
+        logger.debug("Received batch of " + requests.length + " TOMMessages from client " + batch.getSender() + " for session " + batch.getSession());
+
+        boolean accounted = false;
+
+        for (TOMMessage request : requests) {
+            if (clientsManager.requestReceived(request, true, communication)) {
+                accounted = true;
+            } else {
+                logger.warn("The received TOMMessage {} was discarded. Sender:{}, Sequence:{}", 
+                		request, request.getSender(), request.getSequence() );
+            }
+        }
+
+        if (accounted) {
+            haveMessages();
+        }
+    }
+
     /**
      * Creates a value to be proposed to the acceptors. Invoked if this replica
      * is the leader
@@ -421,7 +486,10 @@ public final class TOMLayer extends Thread implements RequestReceiver {
     public byte[] createPropose(Decision dec) {
         // Retrieve a set of pending requests from the clients manager
     	
-        RequestList pendingRequests = clientsManager.getPendingRequests();
+        return createPropose(dec, clientsManager.getPendingRequests(batchingPolicy.getMaxBatchSize(), batchingPolicy.getMaxBatchBytes()));
+    }
+
+    private byte[] createPropose(Decision dec, RequestList pendingRequests) {
 
         int numberOfMessages = pendingRequests.size(); // number of messages retrieved
         int numberOfNonces = this.controller.getStaticConf().getNumberOfNonces(); // amount of nonces to be generated
@@ -435,7 +503,8 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
         logger.debug("Creating a PROPOSE with " + numberOfMessages + " msgs");
 
-        return bb.makeBatch(pendingRequests, numberOfNonces, System.currentTimeMillis(), controller.getStaticConf().getUseSignatures());
+        return bb.makeBatch(pendingRequests, numberOfNonces, System.currentTimeMillis(), controller.getStaticConf().getUseSignatures(),
+                controller.getStaticConf().getLargeRequestSize());
     }
 
     /**
@@ -465,7 +534,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
             // blocks until the current consensus finishes
             proposeLock.lock();
 
-            if (getInExec() != -1) { //there is some consensus running
+            if (!canStartConsensus()) { //there is some consensus running (or too many of them, if pipelining)
                 logger.debug("Waiting for consensus " + getInExec() + " termination.");
                 canPropose.awaitUninterruptibly();
             }
@@ -484,14 +553,19 @@ public final class TOMLayer extends Thread implements RequestReceiver {
             
             if (!doWork) break;
             
+            // the batching policy may prefer to wait for more requests
+            waitForBatch();
+
+            if (!doWork) break;
+
             logger.debug("There are messages to be ordered. I will propose.");
 
             if ((execManager.getCurrentLeader() == this.controller.getStaticConf().getProcessId()) && //I'm the leader
                     (clientsManager.havePendingRequests()) && //there are messages to be ordered
-                    (getInExec() == -1)) { //there is no consensus in execution
+                    canStartConsensus()) { //there is no consensus in execution (or there is room in the pipeline)
 
                 // Sets the current consensus
-                int execId = getLastExec() + 1;
+                int execId = (getInExec() == -1) ? getLastExec() + 1 : getHighestInExec() + 1;
                 setInExec(execId);
                 
                 Decision dec = execManager.getConsensus(execId).getDecision();
@@ -501,14 +575,16 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
                     logger.debug("Only one replica, bypassing consensus.");
                     
-                    byte[] value = createPropose(dec);
+                    RequestList pendingRequests = clientsManager.getPendingRequests(batchingPolicy.getMaxBatchSize(), batchingPolicy.getMaxBatchBytes());
+                    byte[] value = createPropose(dec, pendingRequests);
 
                     Consensus consensus = execManager.getConsensus(dec.getConsensusId());
                     Epoch epoch = consensus.getEpoch(0, controller);
                     epoch.propValue = value;
                     epoch.propValueHash = computeHash(value);
                     epoch.getConsensus().addWritten(value);
-                    epoch.deserializedPropValue = checkProposedValue(value, true);
+                    // the requests were just taken from the clients manager, no need to decode and validate them
+                    epoch.deserializedPropValue = proposedRequests(value, pendingRequests);
                     epoch.getConsensus().getDecision().firstMessageProposed = epoch.deserializedPropValue[0];
                     dec.setDecisionEpoch(epoch);
 
@@ -522,6 +598,42 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         logger.info("TOMLayer stopped.");
     }
 
+    // waits while the batching policy asks for more requests, it is asked again whenever one arrives
+    private void waitForBatch() {
+        long start = System.nanoTime();
+        long waited = 0;
+        long delay;
+
+        messagesLock.lock();
+        try {
+            while (doWork && (delay = batchingPolicy.getProposeDelay(clientsManager.countPendingRequests(), waited)) > 0) {
+                haveMessages.awaitNanos(delay);
+                waited = Math.max(1, System.nanoTime() - start);
+            }
+        } catch (InterruptedException ex) {
+            logger.error("Interrupted while waiting for requests", ex);
+        } finally {
+            messagesLock.unlock();
+        }
+    }
+
+    // the requests of a batch built by this replica, with the values the
+    // BatchReader would have set when decoding it
+    private TOMMessage[] proposedRequests(byte[] batch, RequestList pendingRequests) {
+        java.nio.ByteBuffer header = java.nio.ByteBuffer.wrap(batch);
+        long timestamp = header.getLong();
+        int numberOfNonces = header.getInt();
+        long seed = (numberOfNonces > 0) ? header.getLong() : 0;
+
+        TOMMessage[] requests = pendingRequests.toArray(new TOMMessage[pendingRequests.size()]);
+        for (TOMMessage request : requests) {
+            request.timestamp = timestamp;
+            request.numOfNonces = Math.max(numberOfNonces, 0);
+            request.seed = seed;
+        }
+        return requests;
+    }
+
     /**
      * Called by the current consensus instance, to notify the TOM layer that
      * a value was decided
@@ -536,6 +648,13 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         	dec.setRegency(syncher.getLCManager().getLastReg());
         
         dec.setLeader(execManager.getCurrentLeader());
+
+        // the latency of the batches proposed by this replica drives the batching policy
+        TOMMessage first = dec.firstMessageProposed;
+        if (dec.getLeader() == this.controller.getStaticConf().getProcessId() && first != null
+                && first.consensusStartTime > 0 && first.decisionTime > 0 && dec.batchSize > 0) {
+            batchingPolicy.batchDecided(dec.batchSize, dec.getValue().length, first.decisionTime - first.consensusStartTime);
+        }
         
         this.dt.delivery(dec); // Sends the decision to the delivery thread
     }
@@ -551,57 +670,49 @@ public final class TOMLayer extends Thread implements RequestReceiver {
      * @return Valid messages contained in the proposed value
      */
     public TOMMessage[] checkProposedValue(byte[] proposedValue, boolean addToClientManager) {
+        return checkProposedValue(-1, proposedValue, null, addToClientManager);
+    }
+
+    /**
+     * Same as checkProposedValue(byte[], boolean), but the decoded requests and
+     * the result of their validation are kept in the batch cache, so a value
+     * with the same hash is only decoded (and validated) once.
+     *
+     * @param cid the consensus instance for which the value was proposed
+     * @param proposedValue the value being proposed
+     * @param hash hash of the proposed value (Epoch.propValueHash), or null to skip the cache
+     * @param addToClientManager add the requests to the client manager
+     * @return Valid messages contained in the proposed value
+     */
+    public TOMMessage[] checkProposedValue(int cid, byte[] proposedValue, byte[] hash, boolean addToClientManager) {
     
         try{
             
-            logger.debug("Checking proposed value");
+            BatchCache.Entry entry = batchCache.get(hash, cid);
 
-            BatchReader batchReader = new BatchReader(proposedValue, this.controller.getStaticConf().getUseSignatures());
+            if (entry == null) {
 
-            TOMMessage[] requests = null;
+                logger.debug("Checking proposed value");
 
-            //deserialize the message
-            //TODO: verify Timestamps and Nonces
-            requests = batchReader.deserialiseRequests(this.controller);
-            
+                BatchReader batchReader = new BatchReader(proposedValue, this.controller.getStaticConf().getUseSignatures(), largeRequests);
+
+                //deserialize the message
+                //TODO: verify Timestamps and Nonces
+                entry = batchCache.put(hash, cid, batchReader.deserialiseRequests(this.controller));
+            } else {
+                logger.debug("Using cached requests for proposed value of consensus " + cid);
+            }
+
+            TOMMessage[] requests = entry.getRequests();
             
             if (addToClientManager) {
 
-                //use parallelization to validate the request
-                final CountDownLatch latch = new CountDownLatch(requests.length);
-
-               for (TOMMessage request : requests) {
-            	   request.isValid = true;
-                	verifierExecutor.submit(() -> {
-                        try {
-                            
-                            //notifies the client manager that this request was received and get
-                            //the result of its validation
-                           	request.isValid = clientsManager.requestReceived(request, false);
-                            
-                            if (Thread.holdsLock(clientsManager.getClientsLock())) clientsManager.getClientsLock().unlock();
-                            
-                        }
-                        catch (Exception e) {
-                            
-                            logger.error("Error while validating requests", e);
-                            if (Thread.holdsLock(clientsManager.getClientsLock())) clientsManager.getClientsLock().unlock();
-                            
-                        }
-                        
-                        latch.countDown();
-                    });
+                if (!entry.isValidated()) {
+                    batchCache.setValidated(entry, addToClientsManager(requests));
                 }
-                
-                latch.await();
-                
-                for (TOMMessage request : requests) {
-                    
-                    if (request.isValid == false) {
-                        
-                        logger.warn("Request {} could not be added to the pending messages queue of its respective client", request);
-                        return null;
-                    }
+
+                if (!entry.isValid()) {
+                    return null;
                 }
             }
             
@@ -617,6 +728,108 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         }
     }
 
+    // notifies the client manager that the requests of a batch were received,
+    // returning true if all of them were accepted
+    private boolean addToClientsManager(TOMMessage[] requests) throws InterruptedException {
+
+        if (!verifySignatures(requests)) {
+            return false;
+        }
+
+        //the signatures were checked, the bookkeeping of the clients is cheap enough to be done in one pass
+        for (TOMMessage request : requests) {
+            request.isValid = clientsManager.requestReceived(request, false);
+
+            if (request.isValid == false) {
+
+                logger.warn("Request {} could not be added to the pending messages queue of its respective client", request);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // verifies, in parallel chunks, the signatures of the requests that the clients
+    // manager does not have yet, returning false if any of them is not correct
+    private boolean verifySignatures(TOMMessage[] requests) throws InterruptedException {
+
+        int count = 0;
+        TOMMessage[] signed = new TOMMessage[requests.length];
+        for (TOMMessage request : requests) {
+            if (clientsManager.needsSignatureCheck(request)) {
+                signed[count++] = request;
+            }
+        }
+        if (count == 0) return true;
+
+        PublicKey[] keys = new PublicKey[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = clientsManager.getClientData(signed[i].getSender()).getPublicKey();
+        }
+
+        final int total = count;
+        final boolean[] valid = new boolean[total];
+        int chunkSize = controller.getStaticConf().getVerificationChunkSize();
+        int chunks = (total + chunkSize - 1) / chunkSize;
+
+        //the last chunk is verified by this thread
+        final CountDownLatch latch = new CountDownLatch(chunks - 1);
+        for (int from = 0; from + chunkSize < total; from += chunkSize) {
+            final int start = from;
+            verifierExecutor.submit(() -> {
+                try {
+                    batchVerifier.verify(signed, keys, start, start + chunkSize, valid);
+                } catch (Exception e) {
+                    logger.error("Error while verifying signatures", e);
+                }
+                latch.countDown();
+            });
+        }
+        batchVerifier.verify(signed, keys, (chunks - 1) * chunkSize, total, valid);
+
+        latch.await();
+
+        for (int i = 0; i < total; i++) {
+            if (!valid[i]) {
+                logger.warn("Signature of request {} is not correct", signed[i]);
+                return false;
+            }
+            signed[i].signatureVerified = true;
+        }
+        return true;
+    }
+
+    private BatchSignatureVerifier createBatchVerifier() {
+        String className = controller.getStaticConf().getBatchVerifierClass();
+        try {
+            return (BatchSignatureVerifier) Class.forName(className).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            logger.error("Could not create batch verifier " + className + ", using the default one", e);
+            return new DefaultBatchSignatureVerifier();
+        }
+    }
+
+    private BatchingPolicy createBatchingPolicy() {
+        String className = controller.getStaticConf().getBatchingPolicyClass();
+        BatchingPolicy policy;
+        try {
+            policy = (BatchingPolicy) Class.forName(className).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            logger.error("Could not create batching policy " + className + ", using the default one", e);
+            policy = new DefaultBatchingPolicy();
+        }
+        policy.init(controller.getStaticConf());
+        return policy;
+    }
+
+    /**
+     * Cache of decoded proposals, shared by the acceptor, the delivery thread
+     * and the synchronizer
+     */
+    public BatchCache getBatchCache() {
+        return batchCache;
+    }
+
     public void forwardRequestToLeader(TOMMessage request) {
         int leaderId = execManager.getCurrentLeader();
         if (this.controller.isCurrentViewMember(leaderId)) {
@@ -634,6 +847,28 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         return result;
     }
 
+    /**
+     * Hands a proposed batch that passed validation to the delivery thread, so
+     * that it can be executed while the consensus runs (if speculation is enabled)
+     *
+     * @param cid the consensus instance for which the batch was proposed
+     * @param epoch the epoch with the proposed (and deserialized) value
+     */
+    public void speculate(int cid, Epoch epoch) {
+        if (dt.isSpeculative()) {
+            int regency = isSSLTLSEnabled ? syncherSSLTLS.getLCManager().getLastReg() : syncher.getLCManager().getLastReg();
+            dt.speculate(cid, epoch, regency, execManager.getCurrentLeader());
+        }
+    }
+
+    /**
+     * Discards the batches executed (or waiting to be executed) speculatively,
+     * called when a leader change starts
+     */
+    public void discardSpeculation() {
+        dt.discardSpeculation();
+    }
+
     public boolean isChangingLeader() {
         
         return !requestsTimer.isEnabled();
@@ -645,6 +880,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
         proposeLock.lock();
         this.inExecution = -1;
+        this.highestInExec = -1;
         //ot.addUpdate();
         canPropose.signalAll();
         proposeLock.unlock();
@@ -656,6 +892,15 @@ public final class TOMLayer extends Thread implements RequestReceiver {
                 nextConsensus = getLastExec() + 1) {
             execManager.processOutOfContextPropose(execManager.getConsensus(nextConsensus));
         }
+
+        // with pipelining, the proposes for the instances following the running ones can also be processed
+        if (pipelineDepth > 1) {
+            for (int nextConsensus = Math.max(getLastExec(), getHighestInExec()) + 1;
+                    isInPipelineWindow(nextConsensus) && execManager.receivedOutOfContextPropose(nextConsensus);
+                    nextConsensus = Math.max(getLastExec(), getHighestInExec()) + 1) {
+                execManager.processOutOfContextPropose(execManager.getConsensus(nextConsensus));
+            }
+        }
     }
 
     public StateManager getStateManager() {
@@ -678,6 +923,10 @@ public final class TOMLayer extends Thread implements RequestReceiver {
     public DeliveryThread getDeliveryThread() {
         return dt;
     }
+
+    public LargeRequests getLargeRequests() {
+        return largeRequests;
+    }
     
     public void shutdown() {
         this.doWork = false;
@@ -686,6 +935,8 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         setNoExec();
 
         if (this.requestsTimer != null) this.requestsTimer.shutdown();
+        if (this.largeRequests != null) this.largeRequests.shutdown();
+        if (this.stateManager != null) this.stateManager.shutdown();
         if (this.clientsManager != null) {
             this.clientsManager.clear();
             this.clientsManager.getPendingRequests().clear();
@@ -15,7 +15,16 @@ limitations under the License.
 */
 package bftsmart.tom.core;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -27,14 +36,24 @@ import bftsmart.reconfiguration.ClientViewController;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.messages.TOMMessageType;
 import bftsmart.tom.util.KeyLoader;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import java.io.Closeable;
 import java.security.Provider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * This class is used to multicast messages to replicas and receive replies.
  */
 public abstract class TOMSender implements ReplyReceiver, Closeable, AutoCloseable {
 
+	// sessions are unique within the JVM, since clients share the connections (and replies are routed by session)
+	private static final AtomicInteger nextSession = new AtomicInteger(new Random().nextInt());
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
 	private int me; // process id
 
 	private ClientViewController viewController;
@@ -47,6 +66,12 @@ public abstract class TOMSender implements ReplyReceiver, Closeable, AutoCloseab
 	private boolean useSignatures = false;
 	private AtomicInteger opCounter = new AtomicInteger(0);
 
+	// client-side batching of ordered requests (disabled if batchSize < 2)
+	private int batchSize;
+	private int batchDelay;
+	private final List<TOMMessage> batch = new ArrayList<>();
+	private int[] batchTargets;
+
 	/**
 	 * Creates a new instance of TOMulticastSender
 	 *
@@ -56,6 +81,9 @@ public abstract class TOMSender implements ReplyReceiver, Closeable, AutoCloseab
 	}
 
 	public void close(){
+		synchronized (batch) {
+			flushBatch();
+		}
 		cs.close();
 	}
 
@@ -90,7 +118,9 @@ public abstract class TOMSender implements ReplyReceiver, Closeable, AutoCloseab
 		this.cs.setReplyReceiver(this); // This object itself shall be a reply receiver
 		this.me = this.viewController.getStaticConf().getProcessId();
 		this.useSignatures = this.viewController.getStaticConf().getUseSignatures();
-		this.session = new Random().nextInt();
+		this.session = nextSession.getAndIncrement();
+		this.batchSize = this.viewController.getStaticConf().getClientBatchSize();
+		this.batchDelay = this.viewController.getStaticConf().getClientBatchDelay();
 	}
 	//******* EDUARDO END **************//
 
@@ -116,14 +146,23 @@ public abstract class TOMSender implements ReplyReceiver, Closeable, AutoCloseab
 	}
 
 	public void TOMulticast(TOMMessage sm) {
-		cs.send(useSignatures, this.viewController.getCurrentViewProcesses(), sm);
+		if (isBatched(sm.getReqType())) {
+			addToBatch(this.viewController.getCurrentViewProcesses(), sm);
+		} else {
+			cs.send(useSignatures, this.viewController.getCurrentViewProcesses(), sm);
+		}
 	}
 
 
 	public void TOMulticast(byte[] m, int reqId, int operationId, TOMMessageType reqType) {
-		cs.send(useSignatures, viewController.getCurrentViewProcesses(),
-				new TOMMessage(me, session, reqId, operationId, m, viewController.getCurrentViewId(),
-						reqType));
+		TOMMessage sm = new TOMMessage(me, session, reqId, operationId, m, viewController.getCurrentViewId(),
+				reqType);
+
+		if (isBatched(reqType)) {
+			addToBatch(viewController.getCurrentViewProcesses(), sm);
+		} else {
+			cs.send(useSignatures, viewController.getCurrentViewProcesses(), sm);
+		}
 	}
 
 
@@ -131,8 +170,104 @@ public abstract class TOMSender implements ReplyReceiver, Closeable, AutoCloseab
 		if(this.getViewManager().getStaticConf().isTheTTP()) {
 			type = TOMMessageType.ASK_STATUS;
 		}
-		cs.send(useSignatures, targets,
-				new TOMMessage(me, session, reqId, operationId, m, viewController.getCurrentViewId(), type));
+		TOMMessage sm = new TOMMessage(me, session, reqId, operationId, m, viewController.getCurrentViewId(), type);
+
+		if (isBatched(type)) {
+			addToBatch(targets, sm);
+		} else {
+			cs.send(useSignatures, targets, sm);
+		}
+	}
+
+	private boolean isBatched(TOMMessageType type) {
+		return batchSize > 1 && type == TOMMessageType.ORDERED_REQUEST;
+	}
+
+	/**
+	 * Adds an ordered request to the batch being built. The batch is sent when
+	 * it is full, when requests for other targets are issued, or batchDelay
+	 * milliseconds after its first request. Requests must be added in the order
+	 * of their sequence numbers, which the batch keeps.
+	 *
+	 * @param targets The IDs of the replicas to which to send the request
+	 * @param sm The request
+	 */
+	private void addToBatch(int[] targets, TOMMessage sm) {
+		if (useSignatures) {
+			cs.sign(sm); // requests keep their own signatures, replicas verify them one by one
+		} else {
+			sm.serializedMessage = TOMMessage.messageToBytes(sm);
+		}
+
+		synchronized (batch) {
+			if (!batch.isEmpty() && !Arrays.equals(targets, batchTargets)) {
+				flushBatch();
+			}
+
+			batch.add(sm);
+			batchTargets = targets;
+
+			if (batch.size() >= batchSize) {
+				flushBatch();
+			} else if (batch.size() == 1) {
+				// sending may block, so the timer thread only hands the flush to the executor
+				BatchTimer.TIMER.newTimeout(t -> BatchTimer.EXECUTOR.execute(() -> {
+					synchronized (batch) {
+						flushBatch(); // may send a younger batch earlier, which is harmless
+					}
+				}), batchDelay, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Sends the pending requests in one BATCHED_REQUEST message, whose content
+	 * holds, for each request, the size and bytes of the serialized request
+	 * followed by the size and bytes of its signature (0 if not signed), like
+	 * in the frames sent to the replicas. Must be called holding the batch lock.
+	 */
+	private void flushBatch() {
+		if (batch.isEmpty()) return;
+
+		try {
+			if (batch.size() == 1) {
+				cs.send(useSignatures, batchTargets, batch.get(0));
+				return;
+			}
+
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(baos);
+			dos.writeInt(batch.size());
+			for (TOMMessage sm : batch) {
+				dos.writeInt(sm.serializedMessage.length);
+				dos.write(sm.serializedMessage);
+				if (useSignatures) {
+					dos.writeInt(sm.serializedMessageSignature.length);
+					dos.write(sm.serializedMessageSignature);
+				} else {
+					dos.writeInt(0);
+				}
+			}
+			dos.flush();
+
+			TOMMessage first = batch.get(0);
+			cs.send(false, batchTargets, new TOMMessage(me, session, first.getSequence(), -1, baos.toByteArray(),
+					first.getViewID(), TOMMessageType.BATCHED_REQUEST));
+
+		} catch (IOException | RuntimeException ex) {
+			logger.error("Failed to send a batch of " + batch.size() + " requests", ex);
+		} finally {
+			batch.clear();
+		}
+	}
+
+	// shared by all the clients of the JVM, created only if batching is used
+	private static class BatchTimer {
+		private static final Timer TIMER = new HashedWheelTimer(new DefaultThreadFactory("bft-client-batch", true),
+				1, TimeUnit.MILLISECONDS);
+		// flushes the batches whose delay expired
+		private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(
+				new DefaultThreadFactory("bft-client-batch-flush", true));
 	}
 
 	public int getSession(){
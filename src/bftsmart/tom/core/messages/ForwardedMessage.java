@@ -15,6 +15,8 @@ limitations under the License.
 */
 package bftsmart.tom.core.messages;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
@@ -44,12 +46,58 @@ public final class ForwardedMessage extends SystemMessage {
         return request;
     }
 
+    /**
+     * Writes this message using the compact binary wire format
+     * @param out Output to which the message is written
+     * @throws IOException
+     */
+    public void wExternal(DataOutput out) throws IOException {
+        out.writeInt(sender);
+
+        byte[] serReq = request.getSerializedMessage();
+        out.writeInt(serReq.length);
+        out.write(serReq);
+        out.writeBoolean(request.signed);
+
+        if (request.signed) {
+            out.writeInt(request.serializedMessageSignature.length);
+            out.write(request.serializedMessageSignature);
+        }
+    }
+
+    /**
+     * Reads a message written with wExternal
+     * @param in Input from which the message is read
+     * @throws IOException
+     */
+    public void rExternal(DataInput in) throws IOException {
+        sender = in.readInt();
+
+        byte[] serReq = new byte[checkLength(in, in.readInt(), 1)];
+        in.readFully(serReq);
+
+        request = TOMMessage.bytesToMessage(serReq);
+        if (request == null) throw new IOException("Invalid forwarded request");
+        request.serializedMessage = serReq;
+
+        boolean signed = in.readBoolean();
+
+        if (signed) {
+
+            byte[] serReqSign = new byte[checkLength(in, in.readInt(), 1)];
+            in.readFully(serReqSign);
+            request.serializedMessageSignature = serReqSign;
+
+        }
+    }
+
     @Override
     public void writeExternal(ObjectOutput out) throws IOException {
         super.writeExternal(out);
 
-        out.writeInt(request.serializedMessage.length);
-        out.write(request.serializedMessage);
+        byte[] serReq = request.getSerializedMessage();
+        out.writeInt(serReq.length);
+        out.write(serReq);
         out.writeBoolean(request.signed);
 
         if (request.signed) {
@@ -0,0 +1,153 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.core.messages;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import bftsmart.communication.SystemMessage;
+import bftsmart.tom.util.BatchReader.Reference;
+
+/**
+ * Message used by replicas to fetch from each other the contents of a request
+ * proposed by reference (see LargeRequests). A FETCH asks for the chunk of the
+ * serialized request starting at the given offset, and the CHUNK reply carries
+ * it.
+ *
+ */
+public final class LargeRequestMessage extends SystemMessage {
+
+    private static final long serialVersionUID = -1847970262193749048L;
+
+    public static final int FETCH = 0;
+    public static final int CHUNK = 1;
+
+    // longest hash accepted
+    private static final int MAX_HASH_SIZE = 64;
+
+    private int type;
+    private Reference reference;
+    private int offset;
+    private byte[] data; // null for FETCH
+
+    public LargeRequestMessage() {
+    }
+
+    public LargeRequestMessage(int senderId, int type, Reference reference, int offset, byte[] data) {
+        super(senderId);
+        this.type = type;
+        this.reference = reference;
+        this.offset = offset;
+        this.data = data;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public Reference getReference() {
+        return reference;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Writes this message using the compact binary wire format
+     * @param out Output to which the message is written
+     * @throws IOException
+     */
+    public void wExternal(DataOutput out) throws IOException {
+        out.writeInt(sender);
+        writeFields(out);
+    }
+
+    /**
+     * Reads a message written with wExternal
+     * @param in Input from which the message is read
+     * @throws IOException
+     */
+    public void rExternal(DataInput in) throws IOException {
+        sender = in.readInt();
+        readFields(in);
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        super.writeExternal(out);
+        writeFields(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        super.readExternal(in);
+        readFields(in);
+    }
+
+    private void writeFields(DataOutput out) throws IOException {
+        out.writeInt(type);
+        out.writeInt(reference.sender);
+        out.writeInt(reference.sequence);
+        out.writeInt(reference.size);
+        out.writeInt(reference.hash.length);
+        out.write(reference.hash);
+        out.writeInt(offset);
+
+        if (type == CHUNK) {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    private void readFields(DataInput in) throws IOException {
+        type = in.readInt();
+
+        int client = in.readInt();
+        int sequence = in.readInt();
+        int size = in.readInt();
+        int hashSize = in.readInt();
+        if (size < 0 || hashSize <= 0 || hashSize > MAX_HASH_SIZE) {
+            throw new IOException("Invalid request reference");
+        }
+        byte[] hash = new byte[hashSize];
+        in.readFully(hash);
+        reference = new Reference(client, sequence, size, hash);
+
+        offset = in.readInt();
+        if (offset < 0 || offset > size) {
+            throw new IOException("Invalid chunk offset: " + offset);
+        }
+
+        if (type == CHUNK) {
+            int length = in.readInt();
+            if (length < 0 || length > size - offset) {
+                throw new IOException("Invalid chunk size: " + length);
+            }
+            data = new byte[checkLength(in, length, 1)];
+            in.readFully(data);
+        } else if (type != FETCH) {
+            throw new IOException("Unknown large request message type: " + type);
+        }
+    }
+}
@@ -23,8 +23,13 @@ import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.Externalizable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
 
 import bftsmart.communication.SystemMessage;
+import bftsmart.tom.util.CryptoEngines;
 import bftsmart.tom.util.DebugInfo;
 import org.slf4j.LoggerFactory;
 
@@ -64,11 +69,19 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
         
         public transient boolean recvFromClient = false; // Did the client already sent this message to me, or did it arrived in the batch?
         public transient boolean isValid = false; // Was this request already validated by the replica?
+        public transient boolean signatureVerified = false; // Was the client signature of this request already verified?
         
 	//the bytes received from the client and its MAC and signature
 	public transient byte[] serializedMessage = null;
 	public transient byte[] serializedMessageSignature = null;
 	public transient byte[] serializedMessageMAC = null;
+	private transient byte[] serializedMessageHash = null; // see getSerializedMessageHash()
+
+	//when decoded from a batch, the serialized message is a slice of the proposal
+	//and serializedMessage is only created if someone asks for it
+	private transient byte[] batchBuffer = null;
+	private transient int batchOffset = 0;
+	private transient int batchLength = 0;
 
 	//for benchmarking purposes
 	public transient long consensusStartTime = 0; //time the consensus is created
@@ -81,6 +94,10 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 
 	//the reply associated with this message
 	public transient TOMMessage reply = null;
+	//for a reply carrying only the hash of the response, the complete response
+	public transient byte[] fullContent = null;
+	//the client asked for the complete response of this request (guarded by the request's monitor)
+	public transient boolean fullReplyRequested = false;
 	public transient boolean alreadyProposed = false;
 	
 	private int replyServer = -1;
@@ -260,6 +277,126 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 		buildId();
 	}
 
+	/**
+	 * Reads the message from a slice of a proposal buffer. Only the content is
+	 * copied, the serialized message stays a view of the buffer.
+	 *
+	 * @param buf Buffer holding the serialized message
+	 * @param offset Offset of the serialized message in buf
+	 * @param length Length of the serialized message
+	 * @throws IOException If the slice does not hold a valid message
+	 */
+	public void rExternal(byte[] buf, int offset, int length) throws IOException {
+		if (length < 32) {
+			throw new IOException("Truncated message (" + length + " bytes)");
+		}
+
+		int pos = offset;
+
+		sender = readInt(buf, pos);
+		viewID = readInt(buf, pos + 4);
+		type = TOMMessageType.fromInt(readInt(buf, pos + 8));
+		session = readInt(buf, pos + 12);
+		sequence = readInt(buf, pos + 16);
+		operationId = readInt(buf, pos + 20);
+		replyServer = readInt(buf, pos + 24);
+
+		int toRead = readInt(buf, pos + 28);
+		if (toRead != -1) {
+			if (toRead < 0 || toRead > length - 32) {
+				throw new IOException("Invalid content size: " + toRead);
+			}
+			content = Arrays.copyOfRange(buf, pos + 32, pos + 32 + toRead);
+		}
+
+		buildId();
+
+		serializedMessage = null;
+		serializedMessageHash = null;
+		batchBuffer = buf;
+		batchOffset = offset;
+		batchLength = length;
+	}
+
+	private static int readInt(byte[] buf, int pos) {
+		return ((buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16)
+				| ((buf[pos + 2] & 0xFF) << 8) | (buf[pos + 3] & 0xFF);
+	}
+
+	/**
+	 * Retrieves the serialized message, creating it from the proposal slice
+	 * it was decoded from if needed.
+	 *
+	 * @return The bytes of the serialized message
+	 */
+	public byte[] getSerializedMessage() {
+		if (serializedMessage == null && batchBuffer != null) {
+			serializedMessage = Arrays.copyOfRange(batchBuffer, batchOffset, batchOffset + batchLength);
+		}
+		return serializedMessage;
+	}
+
+	/**
+	 * @return The size of the serialized message, without creating it
+	 */
+	public int getSerializedMessageLength() {
+		if (serializedMessage != null) return serializedMessage.length;
+		return (batchBuffer != null) ? batchLength : 0;
+	}
+
+	/**
+	 * Copies the serialized message into a buffer, directly from the proposal
+	 * slice if the message was decoded from a batch.
+	 *
+	 * @param out Buffer to which the message is written
+	 */
+	public void putSerializedMessage(ByteBuffer out) {
+		if (serializedMessage != null) {
+			out.put(serializedMessage);
+		} else if (batchBuffer != null) {
+			out.put(batchBuffer, batchOffset, batchLength);
+		}
+	}
+
+	/**
+	 * Feeds the serialized message to a signature engine (e.g., to verify the
+	 * client signature) without creating it.
+	 *
+	 * @param engine Initialized signature engine
+	 * @throws java.security.SignatureException
+	 */
+	public void updateSerializedMessage(java.security.Signature engine) throws java.security.SignatureException {
+		if (serializedMessage != null) {
+			engine.update(serializedMessage);
+		} else if (batchBuffer != null) {
+			engine.update(batchBuffer, batchOffset, batchLength);
+		}
+	}
+
+	/**
+	 * Computes the hash of the serialized message without creating it. The
+	 * hash is kept, since large requests proposed by reference are hashed by
+	 * the leader and again by every replica that looks for its own copy.
+	 *
+	 * @return Hash of the serialized message, or null if it could not be computed
+	 */
+	public byte[] getSerializedMessageHash() {
+		if (serializedMessageHash == null) {
+			try {
+				MessageDigest md = CryptoEngines.hashEngine();
+				if (serializedMessage != null) {
+					md.update(serializedMessage);
+				} else if (batchBuffer != null) {
+					md.update(batchBuffer, batchOffset, batchLength);
+				}
+				serializedMessageHash = md.digest();
+			} catch (GeneralSecurityException e) {
+				LoggerFactory.getLogger(TOMMessage.class).error("Failed to compute hash", e);
+			}
+		}
+		return serializedMessageHash;
+	}
+
 	/**
 	 * Used to build an unique id for the message
 	 */
@@ -360,6 +497,7 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
                     clone.executedTime = this.executedTime;
                     clone.info = this.info;
                     clone.isValid = this.isValid;
+                    clone.signatureVerified = this.signatureVerified;
                     clone.numOfNonces = this.numOfNonces;
                     clone.proposeReceivedTime = this.proposeReceivedTime;
                     clone.receptionTime = this.receptionTime;
@@ -368,6 +506,9 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
                     clone.reply = this.reply;
                     clone.seed = this.seed;
                     clone.serializedMessage = this.serializedMessage;
+                    clone.batchBuffer = this.batchBuffer;
+                    clone.batchOffset = this.batchOffset;
+                    clone.batchLength = this.batchLength;
                     clone.serializedMessageMAC = this.serializedMessageMAC;
                     clone.serializedMessageSignature = this.serializedMessageSignature;
                     clone.signed = this.signed;
@@ -27,7 +27,9 @@ public enum TOMMessageType {
     RECONFIG, //3
     ASK_STATUS, // 4
     STATUS_REPLY,// 5
-    UNORDERED_HASHED_REQUEST; //6
+    UNORDERED_HASHED_REQUEST, //6
+    BATCHED_REQUEST, //7
+    SESSION_CLOSE; //8
     
     public int toInt() {
         switch(this) {
@@ -38,6 +40,8 @@ public enum TOMMessageType {
             case ASK_STATUS: return 4;
             case STATUS_REPLY: return 5;
             case UNORDERED_HASHED_REQUEST: return 6;
+            case BATCHED_REQUEST: return 7;
+            case SESSION_CLOSE: return 8;
             default: return -1;
         }
     }
@@ -51,6 +55,8 @@ public enum TOMMessageType {
             case 4: return ASK_STATUS;
             case 5: return STATUS_REPLY;
             case 6: return UNORDERED_HASHED_REQUEST;
+            case 7: return BATCHED_REQUEST;
+            case 8: return SESSION_CLOSE;
             default: return RECONFIG;
         }            
     }
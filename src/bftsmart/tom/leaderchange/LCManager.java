@@ -18,9 +18,7 @@ package bftsmart.tom.leaderchange;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
-import java.security.InvalidKeyException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
 import java.security.PublicKey;
 import java.security.SignedObject;
 import java.util.Arrays;
@@ -30,7 +28,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
-import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 
 import org.slf4j.Logger;
@@ -41,6 +38,7 @@ import bftsmart.consensus.messages.ConsensusMessage;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.CryptoEngines;
 import bftsmart.tom.util.TOMUtil;
 
 /**
@@ -72,20 +70,17 @@ public class LCManager {
 
     //stuff from the TOM layer that this object needs
     private ServerViewController SVController;
-    private MessageDigest md;
     private TOMLayer tomLayer;
     
     private int currentLeader;
     //private Cipher cipher;
-    private Mac mac;
     
     /**
      * Constructor
      *
      * @param reconfManager The reconfiguration manager from TOM layer
-     * @param md The message digest engine from TOM layer
      */
-    public LCManager(TOMLayer tomLayer,ServerViewController SVController, MessageDigest md) {
+    public LCManager(TOMLayer tomLayer,ServerViewController SVController) {
         this.tomLayer = tomLayer;
         this.lastreg = 0;
         this.nextreg = 0;
@@ -96,13 +91,6 @@ public class LCManager {
         this.collects = new HashMap<>();
 
         this.SVController = SVController;
-        this.md = md;
-
-        try {
-            this.mac = TOMUtil.getMacFactory();
-        } catch (NoSuchAlgorithmException /*| NoSuchPaddingException*/ ex) {
-            logger.error("Could not instantiate MAC algorithm",ex);
-        }
 
     }
     
@@ -764,7 +752,7 @@ public class LCManager {
             for (TimestampValuePair rv : c.getWriteSet()) {
 
                 if  (rv.getValue() != null && rv.getValue().length > 0)
-                    rv.setHashedValue(md.digest(rv.getValue()));
+                    rv.setHashedValue(TOMUtil.computeHash(rv.getValue()));
                 else rv.setHashedValue(new byte[0]);
             }
         }
@@ -806,7 +794,7 @@ public class LCManager {
                                              // did not complete any consensus and cannot have
                                              // any proof
         
-        byte[] hashedValue = md.digest(cDec.getDecision());
+        byte[] hashedValue = TOMUtil.computeHash(cDec.getDecision());
         Set<ConsensusMessage> ConsensusMessages = cDec.getConsMessages();
         int myId = tomLayer.controller.getStaticConf().getProcessId();
         int certificateCurrentView = (2*tomLayer.controller.getCurrentViewF()) + 1;
@@ -848,9 +836,9 @@ public class LCManager {
                                 
                 secretKey = tomLayer.getCommunication().getServersConn().getSecretKey(consMsg.getSender());
                 try {
-                    this.mac.init(secretKey);                   
-                   myMAC = this.mac.doFinal(data);
-                } catch (InvalidKeyException ex) {
+                    myMAC = CryptoEngines.mac(secretKey).doFinal(data);
+                } catch (GeneralSecurityException ex) {
+                    CryptoEngines.discard(secretKey);
                     logger.error("Could not compute MAC",ex);
                 }
             
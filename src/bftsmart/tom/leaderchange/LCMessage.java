@@ -15,6 +15,8 @@ limitations under the License.
 */
 package bftsmart.tom.leaderchange;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
@@ -83,6 +85,32 @@ public class LCMessage extends SystemMessage {
         return payload;
     }
 
+    /**
+     * Writes this message using the compact binary wire format
+     * @param out Output to which the message is written
+     * @throws IOException
+     */
+    public void wExternal(DataOutput out) throws IOException {
+        out.writeInt(sender);
+        out.writeInt(type);
+        out.writeInt(ts);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    /**
+     * Reads a message written with wExternal
+     * @param in Input from which the message is read
+     * @throws IOException
+     */
+    public void rExternal(DataInput in) throws IOException {
+        sender = in.readInt();
+        type = in.readInt();
+        ts = in.readInt();
+        payload = new byte[checkLength(in, in.readInt(), 1)];
+        in.readFully(payload);
+    }
+
     @Override
     public void writeExternal(ObjectOutput out) throws IOException{
         super.writeExternal(out);
@@ -15,21 +15,25 @@ limitations under the License.
 */
 package bftsmart.tom.leaderchange;
 
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.ListIterator;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.TreeSet;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.util.TOMUtil;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,25 +41,31 @@ import org.slf4j.LoggerFactory;
 /**
  * This thread serves as a manager for all timers of pending requests.
  *
+ * Each pending request has its own timeout in a hashed timing wheel, so
+ * watching and unwatching a request is O(1) and only the requests in the
+ * expired buckets are looked at. Requests expiring together trigger a single
+ * run of the leader change protocol. The same wheel (and thread) also drives
+ * the re-transmission of STOP messages.
  */
 public class RequestsTimer {
     
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    private Timer timer = new Timer("request timer");
-    private RequestTimerTask rtTask = null;
+    private Timer timer = new HashedWheelTimer(new DefaultThreadFactory("request timer"), 10, TimeUnit.MILLISECONDS);
+    private volatile boolean running = false; // the timeouts of the watched requests are being enforced
+    private AtomicBoolean triggered = new AtomicBoolean(false); // a local leader change trigger is pending
     private TOMLayer tomLayer; // TOM layer
     private long timeout;
-    private long shortTimeout;
-    private TreeSet<TOMMessage> watched = new TreeSet<TOMMessage>();
-    private ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+    private volatile long shortTimeout;
+    private Map<TOMMessage, Timeout> watched = new ConcurrentHashMap<>();
+    private Set<TOMMessage> expired = ConcurrentHashMap.newKeySet();
     
     private boolean enabled = true;
     
     private ServerCommunicationSystem communication; // Communication system between replicas
     private ServerViewController controller; // Reconfiguration manager
     
-    private HashMap <Integer, Timer> stopTimers = new HashMap<>();
+    private Map<Integer, Timeout> stopTimers = new ConcurrentHashMap<>();
     
     //private Storage st1 = new Storage(100000);
     //private Storage st2 = new Storage(10000);
@@ -77,22 +87,26 @@ public class RequestsTimer {
         this.shortTimeout = shortTimeout;
     }
     
+    /**
+     * Starts enforcing the timeouts, every watched request gets a full timeout
+     * from now.
+     */
     public void startTimer() {
-        if (rtTask == null) {
-            long t = (shortTimeout > -1 ? shortTimeout : timeout);
-            //shortTimeout = -1;
-            rtTask = new RequestTimerTask();
-            if (controller.getCurrentViewN() > 1) {
-           		timer.schedule(rtTask, t);	
+        if (!running) {
+            running = true;
+            expired.clear();
+            triggered.set(false);
+            for (TOMMessage request : watched.keySet()) {
+                watched.computeIfPresent(request, (r, old) -> {
+                    old.cancel();
+                    return schedule(r);
+                });
             }
         }
     }
     
     public void stopTimer() {
-        if (rtTask != null) {
-            rtTask.cancel();
-            rtTask = null;
-        }
+        running = false;
     }
     
     public void Enabled(boolean phase) {
@@ -110,10 +124,11 @@ public class RequestsTimer {
      */
     public void watch(TOMMessage request) {
         //long startInstant = System.nanoTime();
-        rwLock.writeLock().lock();
-        watched.add(request);
-        if (watched.size() >= 1 && enabled) startTimer();
-        rwLock.writeLock().unlock();
+        watched.compute(request, (r, old) -> {
+            if (old != null) old.cancel();
+            return schedule(r);
+        });
+        if (enabled) startTimer();
     }
 
     /**
@@ -122,51 +137,37 @@ public class RequestsTimer {
      */
     public void unwatch(TOMMessage request) {
         //long startInstant = System.nanoTime();
-        rwLock.writeLock().lock();
-        if (watched.remove(request) && watched.isEmpty()) stopTimer();
-        rwLock.writeLock().unlock();
+        Timeout t = watched.remove(request);
+        if (t != null) {
+            t.cancel();
+            expired.remove(request);
+        }
     }
 
     /**
      * Cancels all timers for all messages
      */
     public void clearAll() {
-        TOMMessage[] requests = new TOMMessage[watched.size()];
-        rwLock.writeLock().lock();
-        
-        watched.toArray(requests);
-
-        for (TOMMessage request : requests) {
-            if (request != null && watched.remove(request) && watched.isEmpty() && rtTask != null) {
-                rtTask.cancel();
-                rtTask = null;
-            }
+        for (Iterator<Timeout> i = watched.values().iterator(); i.hasNext();) {
+            i.next().cancel();
+            i.remove();
         }
-        rwLock.writeLock().unlock();
+        expired.clear();
+        running = false;
     }
     
     public void run_lc_protocol() {
         
-        long t = (shortTimeout > -1 ? shortTimeout : timeout);
-        
         //System.out.println("(RequestTimerTask.run) I SOULD NEVER RUN WHEN THERE IS NO TIMEOUT");
 
         LinkedList<TOMMessage> pendingRequests = new LinkedList<>();
 
-        try {
-        
-            rwLock.readLock().lock();
-        
-            for (Iterator<TOMMessage> i = watched.iterator(); i.hasNext();) {
-                TOMMessage request = i.next();
-                if ((System.currentTimeMillis() - request.receptionTimestamp ) > t) {
-                    pendingRequests.add(request);
-                }
+        for (Iterator<TOMMessage> i = expired.iterator(); i.hasNext();) {
+            TOMMessage request = i.next();
+            i.remove();
+            if (watched.containsKey(request)) {
+                pendingRequests.add(request);
             }
-            
-        } finally {
-            
-            rwLock.readLock().unlock();
         }
         
         if (!pendingRequests.isEmpty()) {
@@ -183,6 +184,12 @@ public class RequestsTimer {
                     tomLayer.forwardRequestToLeader(request);
                     request.timeout = true;
                     li.remove();
+
+                    // the request is given another timeout before a leader change is attempted
+                    watched.computeIfPresent(request, (r, old) -> {
+                        old.cancel();
+                        return schedule(r);
+                    });
                 }
             }
 
@@ -192,98 +199,82 @@ public class RequestsTimer {
                 	tomLayer.getSynchronizerSSLTLS().triggerTimeout(pendingRequests);
                 else
                 	tomLayer.getSynchronizer().triggerTimeout(pendingRequests);
-            }
-            else {
-                rtTask = new RequestTimerTask();
-                timer.schedule(rtTask, t);
+                return; // no more triggers until the timer is restarted
             }
         } else {
             
             logger.debug("Timeout triggered with no expired requests");
-            
-            rtTask = new RequestTimerTask();
-            timer.schedule(rtTask, t);
         }
-        
+
+        triggered.set(false);
+        if (!expired.isEmpty()) trigger(); // requests expired while this ran
     }
     
     public void setSTOP(int regency, LCMessage stop) {
         
         stopSTOP(regency);
         
-        SendStopTask stopTask = new SendStopTask(stop);
-        Timer stopTimer = new Timer("Stop message");
-        
-        stopTimer.schedule(stopTask, timeout);
+        Timeout stopTimer = timer.newTimeout(t -> {
+
+            logger.info("Re-transmitting STOP message to install regency " + stop.getReg());
+            communication.send(controller.getCurrentViewOtherAcceptors(), stop);
+
+            if (stopTimers.get(regency) == t) setSTOP(regency, stop); //repeat
+        }, timeout, TimeUnit.MILLISECONDS);
         
        stopTimers.put(regency, stopTimer);
 
     }   
     
     public void stopAllSTOPs() {
-        Iterator stops = getTimers().iterator();
+        Iterator<Integer> stops = getTimers().iterator();
         while (stops.hasNext()) {
-            stopSTOP((Integer) stops.next());
+            stopSTOP(stops.next());
         }
     }
     
     public void stopSTOP(int regency){
         
-        Timer stopTimer = stopTimers.remove(regency);
+        Timeout stopTimer = stopTimers.remove(regency);
         if (stopTimer != null) stopTimer.cancel();
 
     }
     
     public Set<Integer> getTimers() {
         
-        return ((HashMap <Integer,Timer>) stopTimers.clone()).keySet();
+        return new HashSet<>(stopTimers.keySet());
         
     }
     
     public void shutdown() {
-        timer.cancel();
-        stopAllSTOPs();
+        running = false;
+        timer.stop();
+        stopTimers.clear();
         LoggerFactory.getLogger(this.getClass()).info("RequestsTimer stopped.");
 
     }
-    
-    class RequestTimerTask extends TimerTask {
-
-        @Override
-        /**
-         * This is the code for the TimerTask. It executes the timeout for the first
-         * message on the watched list.
-         */
-        public void run() {
-            
-            int[] myself = new int[1];
-            myself[0] = controller.getStaticConf().getProcessId();
 
-            communication.send(myself, new LCMessage(-1, TOMUtil.TRIGGER_LC_LOCALLY, -1, null));
-
-        }
+    private Timeout schedule(TOMMessage request) {
+        long t = (shortTimeout > -1 ? shortTimeout : timeout);
+        return timer.newTimeout(expiry -> {
+            if (watched.get(request) == expiry) {
+                expired.add(request);
+                if (running) trigger();
+            }
+        }, t, TimeUnit.MILLISECONDS);
     }
-    
-    class SendStopTask extends TimerTask {
-        
-        private LCMessage stop;
-        
-        public SendStopTask(LCMessage stop) {
-            this.stop = stop;
-        }
 
-        @Override
-        /**
-         * This is the code for the TimerTask. It sends a STOP
-         * message to the other replicas
-         */
-        public void run() {
+    /**
+     * Makes the replica run the leader change protocol for the expired
+     * requests, unless it was already asked to.
+     */
+    private void trigger() {
+        if (controller.getCurrentViewN() > 1 && triggered.compareAndSet(false, true)) {
 
-                logger.info("Re-transmitting STOP message to install regency " + stop.getReg());
-                communication.send(controller.getCurrentViewOtherAcceptors(),this.stop);
+            int[] myself = new int[1];
+            myself[0] = controller.getStaticConf().getProcessId();
 
-                setSTOP(stop.getReg(), stop); //repeat
+            communication.send(myself, new LCMessage(-1, TOMUtil.TRIGGER_LC_LOCALLY, -1, null));
         }
-        
     }
 }
@@ -0,0 +1,44 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server;
+
+import bftsmart.tom.MessageContext;
+
+/**
+ * 
+ * Objects implementing this interface tell which ordered requests may be
+ * executed in parallel. Two requests conflict if they have a conflict key in
+ * common, and conflicting requests are always executed in the order they were
+ * decided. A conflict class can be used as the single key of a request.
+ * 
+ * The keys must be computed only from the command and the context (so all
+ * replicas get the same keys), and requests without common keys must commute,
+ * i.e., the state and replies must be the same in whatever order they run.
+ * 
+ */
+public interface ConflictClassifier {
+
+    /**
+     * Given a request, tell the keys it reads or writes
+     * 
+     * @param command The request
+     * @param msgCtx The context associated to the request
+     * @return The conflict keys of the request (compared with equals), or null
+     * if the request conflicts with every other request
+     */
+    public Object[] getConflictKeys(byte[] command, MessageContext msgCtx);
+
+}
@@ -0,0 +1,48 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server;
+
+import bftsmart.statemanagement.ApplicationState;
+
+/**
+ * Recoverers whose state is divided in chunks, so that a replica being updated
+ * only needs to receive the chunks that differ from the ones it already has.
+ * The standard state manager sends the hashes of the local chunks in the state
+ * request, and uses getState(cid, sendState, chunkHashes) to answer it.
+ *
+ */
+public interface PartitionedRecoverable extends Recoverable {
+
+    /**
+     * Returns the hashes of the chunks of the local state, as of the last
+     * checkpoint. Chunks modified since then must not match any hash.
+     * @return Serialized hashes of the local chunks
+     */
+    public byte[] getChunkHashes();
+
+    /**
+     * Like getState(cid, sendState), but the complete representation of the
+     * state only includes the chunks that differ from the ones of the
+     * requesting replica.
+     * @param cid Consensus up to which the application should return an Application state
+     * @param sendState true if the replica should send a complete
+     * representation of the state instead of only the hash. False otherwise
+     * @param chunkHashes Hashes of the chunks of the requesting replica (from
+     * getChunkHashes), or null if it has none
+     * @return A representation of the application state
+     */
+    public ApplicationState getState(int cid, boolean sendState, byte[] chunkHashes);
+}
@@ -0,0 +1,57 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server;
+
+import bftsmart.tom.MessageContext;
+
+/**
+ * 
+ * Executables that implement this interface may execute a proposed batch
+ * before it is decided, while the replicas exchange WRITE and ACCEPT messages
+ * (see system.totalordermulticast.speculative).
+ * 
+ * Speculative batches are executed in consensus order, each one on top of the
+ * committed state and of the previous speculative batches, and their effects
+ * must be kept apart from the committed state (e.g., in a shadow copy or in an
+ * undo log). When the batch is decided it is delivered through executeBatch
+ * as usual: if the decided commands are the ones executed speculatively, the
+ * implementation commits their effects and returns the replies it already
+ * computed, instead of executing them again.
+ *
+ */
+public interface SpeculativeExecutable extends BatchExecutable {
+
+	/**
+	 * Executes a batch proposed for a consensus instance that is not decided
+	 * yet. The message contexts carry no proof of the decision, and the replies
+	 * are only sent to the clients once the batch is decided.
+	 * 
+	 * @param cid     The consensus instance for which the batch was proposed
+	 * @param command The batch of requests
+	 * @param msgCtx  The context associated to each request
+	 */
+	public void executeSpeculatively(int cid, byte[][] command, MessageContext[] msgCtx);
+
+	/**
+	 * Discards the effects of the batches executed speculatively for consensus
+	 * instance cid and the ones after it, e.g., because a leader change may
+	 * decide other values for them.
+	 * 
+	 * @param cid The first consensus instance to roll back
+	 */
+	public void rollbackSpeculation(int cid);
+
+}
@@ -0,0 +1,171 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import bftsmart.statemanagement.StateManager;
+import bftsmart.tom.MessageContext;
+import bftsmart.tom.util.TOMUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the checkpoints of DefaultRecoverable and DefaultSingleRecoverable in
+ * a background thread (see system.totalordermulticast.async_checkpoint). The
+ * snapshot supplier is taken by the executing thread, but only invoked here,
+ * while the next requests are executed. Until a checkpoint is installed, the
+ * log keeps the previous one, and the batches logged meanwhile are also kept
+ * to be added to the new log.
+ *
+ * If a checkpoint can not be stored, the log may miss the batches that did not
+ * fit in it, so the executing thread must take a synchronous checkpoint of its
+ * current state instead (see takeFailure).
+ */
+final class AsyncCheckpointer {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final ReentrantLock logLock;
+    private final boolean keepLastCID; // whether the checkpoint CID is also the last CID of the new log
+    private final ExecutorService executor;
+
+    private volatile Future<?> pendingCheckpoint;
+    private volatile boolean failed;
+    private Map<Integer, CommandsInfo> pendingBatches; // logged while the checkpoint is stored (guarded by logLock)
+
+    /**
+     * Constructor
+     * @param logLock Lock guarding the log of the recoverable
+     * @param keepLastCID Whether an installed checkpoint sets the last CID of
+     * the log to its own CID, or to -1
+     */
+    AsyncCheckpointer(ReentrantLock logLock, boolean keepLastCID) {
+        this.logLock = logLock;
+        this.keepLastCID = keepLastCID;
+        this.executor = Executors.newSingleThreadExecutor((Runnable r) -> {
+            Thread t = new Thread(r, "Checkpoint Thread");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Hashes and stores a checkpoint in the background, and then installs it
+     * in the log. Must be called by the executing thread, after await.
+     * @param log The log of the recoverable
+     * @param stateManager Notified once the checkpoint is installed
+     * @param snapshotSupplier Supplier of the serialized state
+     * @param lastCID CID of the checkpoint
+     */
+    void save(StateLog log, StateManager stateManager, Supplier<byte[]> snapshotSupplier, int lastCID) {
+
+        logLock.lock();
+        pendingBatches = new LinkedHashMap<>();
+        failed = false; // a failed checkpoint is replaced by this one
+        logLock.unlock();
+
+        pendingCheckpoint = executor.submit(() -> {
+
+            logger.debug("Saving state of CID " + lastCID + " in the background");
+
+            try {
+                byte[] snapshot = snapshotSupplier.get();
+                byte[] hash = TOMUtil.computeHash(snapshot);
+                log.prepareCheckpoint(snapshot, hash, lastCID);
+
+                logLock.lock();
+                try {
+                    log.newCheckpoint(snapshot, hash, lastCID);
+                    log.setLastCID(keepLastCID ? lastCID : -1);
+                    log.setLastCheckpointCID(lastCID);
+
+                    for (Map.Entry<Integer, CommandsInfo> batch : pendingBatches.entrySet()) {
+                        log.addMessageBatch(batch.getValue().commands, batch.getValue().msgCtx, batch.getKey());
+                    }
+                    pendingBatches = null;
+                } finally {
+                    logLock.unlock();
+                }
+                stateManager.checkpointInstalled(lastCID);
+            } catch (RuntimeException e) {
+                // the pending batches are kept until the synchronous checkpoint
+                logger.error("Failed to save state of CID " + lastCID + ", a synchronous checkpoint will be taken", e);
+                failed = true;
+                return;
+            }
+
+            logger.debug("Finished saving state of CID " + lastCID);
+        });
+    }
+
+    /**
+     * Records a batch added to the log, so that it is also added to the log of
+     * the checkpoint being stored. Must be called holding the log lock.
+     * @param batch The commands of the batch
+     * @param batchMsgCtx The contexts of the commands
+     * @param cid CID of the batch
+     */
+    void batchLogged(byte[][] batch, MessageContext[] batchMsgCtx, int cid) {
+        if (pendingBatches != null) {
+            pendingBatches.put(cid, new CommandsInfo(batch, batchMsgCtx));
+        }
+    }
+
+    /**
+     * Waits for the checkpoint being stored in the background, if any
+     * @return false if it could not be stored, and the log may not be used
+     * until the synchronous checkpoint is taken
+     */
+    boolean await() {
+        Future<?> checkpoint = pendingCheckpoint;
+        if (checkpoint != null) {
+            try {
+                checkpoint.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                logger.error("Failed to save state", e.getCause());
+            }
+        }
+        return !failed;
+    }
+
+    /**
+     * Checks, without waiting, whether the last checkpoint could not be
+     * stored. If so, it returns true only once, and the executing thread must
+     * take a synchronous checkpoint of its current state.
+     * @return true if a synchronous checkpoint must be taken
+     */
+    boolean takeFailure() {
+        if (!failed) {
+            return false;
+        }
+        logLock.lock();
+        pendingBatches = null;
+        failed = false;
+        logLock.unlock();
+        return true;
+    }
+}
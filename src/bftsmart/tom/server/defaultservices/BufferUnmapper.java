@@ -0,0 +1,78 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Releases memory mapped regions right away, using Unsafe.invokeCleaner on
+ * Java 9 or later and the cleaner of the buffer on Java 8. If neither can be
+ * reached, the regions are released when the buffers are garbage collected.
+ */
+final class BufferUnmapper {
+
+	private static final Logger logger = LoggerFactory.getLogger(BufferUnmapper.class);
+
+	private static Object unsafe; // sun.misc.Unsafe, with invokeCleaner
+	private static Method invokeCleaner;
+	private static volatile boolean available = true;
+
+	static {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// Java 8, the cleaner of each buffer is used
+			invokeCleaner = null;
+		}
+	}
+
+	private BufferUnmapper() {
+	}
+
+	/**
+	 * Unmaps a buffer. The buffer must not be used afterwards.
+	 * @param buffer The mapped buffer
+	 */
+	static void unmap(MappedByteBuffer buffer) {
+		if (buffer == null || !available) return;
+
+		try {
+			if (invokeCleaner != null) {
+				invokeCleaner.invoke(unsafe, buffer);
+			} else {
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner != null) {
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			}
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			available = false;
+			logger.warn("Cannot unmap log regions, they will be released when garbage collected", e);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Log file of the batches delivered since the last checkpoint, written through
+ * a memory mapped region of the file.
+ *
+ * Each record is the size of the batch followed by the batch in the binary
+ * layout of CommandsInfo. After the last record there is an end mark (0) and
+ * the id of the last consensus logged, which are overwritten by the next
+ * record. When sync is enabled, the mapped region is forced to disk every
+ * syncInterval records. A region is unmapped as soon as the log moves to the
+ * next one, and when the log is closed.
+ */
+public class CommandLog {
+
+	private static final int REGION_SIZE = 16 * 1024 * 1024;
+	private static final int EOF = 0;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final boolean sync;
+	private final int syncInterval;
+
+	private MappedByteBuffer region;
+	private long regionStart;
+	private long position;
+	private int unsynced;
+
+	public CommandLog(String path, boolean sync, int syncInterval) throws IOException {
+		this.file = new RandomAccessFile(path, "rw");
+		this.channel = file.getChannel();
+		this.sync = sync;
+		this.syncInterval = Math.max(1, syncInterval);
+		this.position = 0;
+		map(0, REGION_SIZE);
+	}
+
+	/**
+	 * Appends a batch to the log
+	 * 
+	 * @param commandsInfo The batch
+	 * @param consensusId Consensus in which the batch was decided
+	 */
+	public void append(CommandsInfo commandsInfo, int consensusId) throws IOException {
+		int size = commandsInfo.getSerializedSize();
+		int recordSize = 4 + size + 2 * 4;
+
+		if (position + recordSize > regionStart + region.capacity()) {
+			if (sync && unsynced > 0) {
+				region.force();
+				unsynced = 0;
+			}
+			map(position, Math.max(REGION_SIZE, recordSize));
+		}
+
+		region.position((int) (position - regionStart));
+		region.putInt(size);
+		commandsInfo.writeTo(region);
+		region.putInt(EOF);
+		region.putInt(consensusId);
+		position += 4 + size; // the next record overwrites the end mark
+
+		if (sync && ++unsynced >= syncInterval) {
+			region.force();
+			unsynced = 0;
+		}
+	}
+
+	/**
+	 * Offset in which the next record will be written
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	public void close() throws IOException {
+		if (sync && unsynced > 0) {
+			region.force();
+		}
+		unmap(region);
+		region = null;
+		channel.close();
+		file.close();
+	}
+
+	private void map(long start, int size) throws IOException {
+		MappedByteBuffer previous = region;
+		region = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+		regionStart = start;
+		if (previous != null) {
+			unmap(previous);
+		}
+	}
+
+	/**
+	 * Releases a mapping right away instead of when the buffer is garbage
+	 * collected, which may keep many regions (and deleted log files) mapped.
+	 * The buffer must not be used afterwards.
+	 */
+	static void unmap(MappedByteBuffer buffer) {
+		BufferUnmapper.unmap(buffer);
+	}
+}
@@ -15,21 +15,48 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
+import bftsmart.consensus.messages.ConsensusMessage;
 import bftsmart.tom.MessageContext;
+import bftsmart.tom.core.messages.TOMMessageType;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
+ * Batch of commands (and their contexts) stored in the log.
+ *
+ * Besides Java serialization, which uses the same format, a batch can be
+ * written to a ByteBuffer with a fixed binary layout: number of commands,
+ * number of contexts, the proof of the consensus (shared by all the contexts,
+ * in the compact format of ConsensusMessage), each command (length and bytes)
+ * and then the fields of each context that are needed to replay it. The first
+ * request of the batch is not kept.
  *
  * @author Joao Sousa
  */
 public class CommandsInfo implements Serializable {
 	
-    private static final long serialVersionUID = 342711292879899682L;
+    private static final long serialVersionUID = 342711292879899683L;
+
+    // sender, viewID, type, session, sequence, operationId, replyServer, timestamp,
+    // numOfNonces, seed, regency, leader, consensusId, noOp and signature length
+    private static final int CONTEXT_SIZE = 4 * 11 + 8 * 2 + 2;
 	
-    public byte[][] commands;
-    public MessageContext[] msgCtx;
+    // serialized by writeObject
+    public transient byte[][] commands;
+    public transient MessageContext[] msgCtx;
+
+    private transient byte[] proofBytes; // proof in the binary layout, computed when first needed
 
 
     public CommandsInfo () {
@@ -58,6 +85,184 @@ public class CommandsInfo implements Serializable {
         this.msgCtx = onlyNeeded;
     }
 
+    /**
+     * Number of bytes used by writeTo.
+     *
+     * @throws IOException if the proof of the batch cannot be serialized
+     */
+    public int getSerializedSize() throws IOException {
+        int size = 12 + getProofBytes().length;
+        if (commands != null) {
+            for (byte[] command : commands) {
+                size += 4 + (command == null ? 0 : command.length);
+            }
+        }
+        if (msgCtx != null) {
+            for (MessageContext ctx : msgCtx) {
+                size += CONTEXT_SIZE + (ctx.getSignature() == null ? 0 : ctx.getSignature().length);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Writes this batch in the binary layout.
+     *
+     * @throws IOException if the proof of the batch cannot be serialized
+     */
+    public void writeTo(ByteBuffer out) throws IOException {
+        out.putInt(commands == null ? -1 : commands.length);
+        out.putInt(msgCtx == null ? -1 : msgCtx.length);
+        out.putInt(getProofBytes().length);
+        out.put(getProofBytes());
+
+        if (commands != null) {
+            for (byte[] command : commands) {
+                if (command == null) {
+                    out.putInt(-1);
+                } else {
+                    out.putInt(command.length);
+                    out.put(command);
+                }
+            }
+        }
+
+        if (msgCtx != null) {
+            for (MessageContext ctx : msgCtx) {
+                out.putInt(ctx.getSender());
+                out.putInt(ctx.getViewID());
+                out.put((byte) ctx.getType().toInt());
+                out.putInt(ctx.getSession());
+                out.putInt(ctx.getSequence());
+                out.putInt(ctx.getOperationId());
+                out.putInt(ctx.getReplyServer());
+                out.putLong(ctx.getTimestamp());
+                out.putInt(ctx.getNumOfNonces());
+                out.putLong(ctx.getSeed());
+                out.putInt(ctx.getRegency());
+                out.putInt(ctx.getLeader());
+                out.putInt(ctx.getConsensusId());
+                out.put((byte) (ctx.isNoOp() ? 1 : 0));
+
+                byte[] signature = ctx.getSignature();
+                if (signature == null) {
+                    out.putInt(-1);
+                } else {
+                    out.putInt(signature.length);
+                    out.put(signature);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a batch written by writeTo.
+     *
+     * @throws IOException if the proof of the batch cannot be read
+     */
+    public static CommandsInfo readFrom(ByteBuffer in) throws IOException {
+        CommandsInfo info = new CommandsInfo();
+        int numCommands = in.getInt();
+        int numContexts = in.getInt();
+        Set<ConsensusMessage> proof = readProof(readBytes(in));
+
+        if (numCommands >= 0) {
+            info.commands = new byte[numCommands][];
+            for (int i = 0; i < numCommands; i++) {
+                info.commands[i] = readBytes(in);
+            }
+        }
+
+        if (numContexts >= 0) {
+            info.msgCtx = new MessageContext[numContexts];
+            for (int i = 0; i < numContexts; i++) {
+                int sender = in.getInt();
+                int viewID = in.getInt();
+                TOMMessageType type = TOMMessageType.fromInt(in.get());
+                int session = in.getInt();
+                int sequence = in.getInt();
+                int operationId = in.getInt();
+                int replyServer = in.getInt();
+                long timestamp = in.getLong();
+                int numOfNonces = in.getInt();
+                long seed = in.getLong();
+                int regency = in.getInt();
+                int leader = in.getInt();
+                int consensusId = in.getInt();
+                boolean noOp = in.get() == 1;
+                byte[] signature = readBytes(in);
+
+                info.msgCtx[i] = new MessageContext(sender, viewID, type, session, sequence, operationId,
+                        replyServer, signature, timestamp, numOfNonces, seed, regency, leader, consensusId,
+                        proof, null, noOp);
+            }
+        }
+
+        return info;
+    }
+
+    private byte[] getProofBytes() throws IOException {
+        if (proofBytes == null) {
+            Set<ConsensusMessage> proof = (msgCtx != null && msgCtx.length > 0 ? msgCtx[0].getProof() : null);
+            if (proof == null) {
+                proofBytes = new byte[0];
+            } else {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                DataOutputStream dos = new DataOutputStream(bos);
+                dos.writeInt(proof.size());
+                for (ConsensusMessage cm : proof) {
+                    cm.wExternal(dos);
+                }
+                dos.flush();
+                proofBytes = bos.toByteArray();
+            }
+        }
+        return proofBytes;
+    }
+
+    private static Set<ConsensusMessage> readProof(byte[] bytes) throws IOException {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
+        int size = dis.readInt();
+        Set<ConsensusMessage> proof = new HashSet<>();
+        for (int i = 0; i < size; i++) {
+            ConsensusMessage cm = new ConsensusMessage();
+            cm.rExternal(dis);
+            proof.add(cm);
+        }
+        return proof;
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    // the batches shipped in state transfers also use the binary layout
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        ByteBuffer buffer = ByteBuffer.allocate(getSerializedSize());
+        writeTo(buffer);
+        out.writeInt(buffer.capacity());
+        out.write(buffer.array());
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        CommandsInfo info = readFrom(ByteBuffer.wrap(bytes));
+        this.commands = info.commands;
+        this.msgCtx = info.msgCtx;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj instanceof CommandsInfo) {
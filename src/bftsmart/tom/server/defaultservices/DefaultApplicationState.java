@@ -203,6 +203,14 @@ public class DefaultApplicationState implements ApplicationState {
         return lastCheckpointCID;
     }
 
+    /**
+     * Retrieves the id of the replica that created this state
+     * @return Id of the replica that created this state
+     */
+    public int getPid() {
+        return pid;
+    }
+
 
     @Override
     public boolean equals(Object obj) {
@@ -0,0 +1,396 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.reconfiguration.util.TOMConfiguration;
+import bftsmart.statemanagement.ApplicationState;
+import bftsmart.tom.ReplicaContext;
+import bftsmart.tom.server.PartitionedRecoverable;
+import bftsmart.tom.util.CryptoEngines;
+
+/**
+ * DefaultRecoverable for applications whose state is divided in chunks (e.g.,
+ * pages or key ranges). The application marks the chunks it modifies with
+ * markDirty, and checkpoints only serialize, hash and store the dirty chunks.
+ *
+ * The snapshot kept in the log is a manifest with the hashes of all chunks and
+ * the root of a Merkle tree built over them, while the contents of the chunks
+ * are kept in a chunk store indexed by hash (in memory, or in the log
+ * directory when the log is on disk). In a state transfer, the replica being
+ * updated sends the hashes of its chunks, and only the chunks in the subtrees
+ * that differ are sent back. They are checked against the manifest, whose hash
+ * is validated by the state manager like any other state.
+ *
+ * The number of chunks should not change while the replica runs.
+ */
+public abstract class DefaultPartitionedRecoverable extends DefaultRecoverable implements PartitionedRecoverable {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final BitSet dirty = new BitSet(); // chunks modified since the last checkpoint (guarded by itself)
+    private volatile byte[][] leafHashes; // hashes of the chunks in the last checkpoint
+
+    private final Map<String, byte[]> chunkStore = new HashMap<>(); // used when the log is in memory (guarded by itself)
+    private File chunkDir; // used when the log is on disk
+
+    @Override
+    public void setReplicaContext(ReplicaContext replicaContext) {
+        TOMConfiguration config = replicaContext.getStaticConfiguration();
+        if (config.isToLog() && config.logToDisk()) {
+            chunkDir = new File(DiskStateLog.DEFAULT_DIR + config.getProcessId() + ".chunks");
+            chunkDir.mkdirs();
+        }
+        super.setReplicaContext(replicaContext);
+    }
+
+    /**
+     * Marks a chunk as modified, so that it is included in the next
+     * checkpoint. Must be called by appExecuteBatch for every chunk it changes.
+     * @param index Index of the chunk
+     */
+    protected void markDirty(int index) {
+        synchronized (dirty) {
+            dirty.set(index);
+        }
+    }
+
+    @Override
+    public byte[] getSnapshot() {
+        return getSnapshotSupplier().get();
+    }
+
+    @Override
+    protected Supplier<byte[]> getSnapshotSupplier() {
+        int numChunks = getNumChunks();
+        byte[][] previous = leafHashes;
+
+        int[] indexes;
+        synchronized (dirty) {
+            if (previous == null || previous.length != numChunks) {
+                indexes = new int[numChunks];
+                for (int i = 0; i < numChunks; i++) {
+                    indexes[i] = i;
+                }
+            } else {
+                indexes = dirty.stream().filter(i -> i < numChunks).toArray();
+            }
+            dirty.clear();
+        }
+
+        // only the dirty chunks are serialized while the state is locked
+        byte[][] contents = new byte[indexes.length][];
+        for (int i = 0; i < indexes.length; i++) {
+            contents[i] = getChunk(indexes[i]);
+        }
+
+        return () -> checkpoint(numChunks, previous, indexes, contents);
+    }
+
+    private byte[] checkpoint(int numChunks, byte[][] previous, int[] indexes, byte[][] contents) {
+        MessageDigest md = getHashEngine();
+
+        byte[][] leaves = (previous != null && previous.length == numChunks)
+                ? Arrays.copyOf(previous, numChunks) : new byte[numChunks][];
+        for (int i = 0; i < indexes.length; i++) {
+            leaves[indexes[i]] = md.digest(contents[i]);
+            storeChunk(leaves[indexes[i]], contents[i]);
+        }
+
+        // the chunks of the previous checkpoint are kept until the next one
+        if (previous != null) {
+            retainChunks(leaves, previous);
+        }
+        leafHashes = leaves;
+
+        logger.debug("Checkpoint stored " + indexes.length + " of " + numChunks + " chunks");
+        return manifest(leaves, new MerkleTree(leaves, md).getRoot());
+    }
+
+    @Override
+    public void installSnapshot(byte[] state) {
+        byte[][] leaves = parseManifest(state);
+        byte[][] local = leafHashes;
+
+        synchronized (dirty) {
+            for (int i = 0; i < leaves.length; i++) {
+                if (local != null && local.length == leaves.length && !dirty.get(i)
+                        && Arrays.equals(local[i], leaves[i])) {
+                    continue; // this replica already has the chunk
+                }
+                byte[] chunk = loadChunk(leaves[i]);
+                if (chunk == null) {
+                    logger.error("Missing contents of chunk " + i + " to install the state");
+                } else {
+                    installChunk(i, chunk);
+                }
+            }
+            dirty.clear();
+        }
+        leafHashes = leaves;
+    }
+
+    @Override
+    public byte[] getChunkHashes() {
+        byte[][] leaves = leafHashes;
+        if (leaves == null) {
+            return null;
+        }
+        leaves = Arrays.copyOf(leaves, leaves.length);
+        synchronized (dirty) {
+            for (int i = dirty.nextSetBit(0); i >= 0 && i < leaves.length; i = dirty.nextSetBit(i + 1)) {
+                leaves[i] = new byte[leaves[i].length]; // matches no chunk
+            }
+        }
+        return manifest(leaves, new byte[0]);
+    }
+
+    @Override
+    public ApplicationState getState(int cid, boolean sendState) {
+        return getState(cid, sendState, null);
+    }
+
+    @Override
+    public ApplicationState getState(int cid, boolean sendState, byte[] chunkHashes) {
+        ApplicationState state = super.getState(cid, sendState);
+        if (!sendState || !(state instanceof DefaultApplicationState) || state.getSerializedState() == null) {
+            return state;
+        }
+
+        MessageDigest md = getHashEngine();
+        byte[][] leaves = parseManifest(state.getSerializedState());
+        MerkleTree theirs = (chunkHashes == null ? null : new MerkleTree(parseManifest(chunkHashes), md));
+
+        Map<Integer, byte[]> chunks = new HashMap<>();
+        for (int i : new MerkleTree(leaves, md).diff(theirs)) {
+            byte[] chunk = loadChunk(leaves[i]);
+            if (chunk == null) {
+                logger.warn("Missing contents of chunk " + i + ", cannot send the state");
+                return new DefaultApplicationState();
+            }
+            chunks.put(i, chunk);
+        }
+
+        logger.info("Sending " + chunks.size() + " of " + leaves.length + " chunks");
+        return new PartitionedApplicationState((DefaultApplicationState) state, chunks);
+    }
+
+    /**
+     * Installs a state received from another replica. The state is rejected
+     * (returning -1, so that the state manager asks another replica) if any
+     * received chunk does not match the manifest, or if the chunks received
+     * and the ones this replica has do not cover the whole manifest.
+     */
+    @Override
+    public int setState(ApplicationState recvState) {
+        if (recvState instanceof DefaultApplicationState && recvState.getSerializedState() != null) {
+            MessageDigest md = getHashEngine();
+            byte[][] leaves = parseManifest(recvState.getSerializedState());
+            Map<Integer, byte[]> chunks = (recvState instanceof PartitionedApplicationState
+                    ? ((PartitionedApplicationState) recvState).getChunks() : Collections.<Integer, byte[]>emptyMap());
+
+            // the manifest was validated by the state manager, the chunks must match it
+            for (Map.Entry<Integer, byte[]> chunk : chunks.entrySet()) {
+                int i = chunk.getKey();
+                if (i < 0 || i >= leaves.length || !Arrays.equals(md.digest(chunk.getValue()), leaves[i])) {
+                    logger.error("Received chunk " + i + " does not match the state manifest, rejecting the state");
+                    return -1;
+                }
+            }
+            for (Map.Entry<Integer, byte[]> chunk : chunks.entrySet()) {
+                storeChunk(leaves[chunk.getKey()], chunk.getValue());
+            }
+
+            int missing = missingChunk(leaves);
+            if (missing >= 0) {
+                logger.error("Missing contents of chunk " + missing + ", rejecting the state");
+                return -1;
+            }
+        }
+        return super.setState(recvState);
+    }
+
+    // returns the first chunk of the manifest that installSnapshot could not find, or -1
+    private int missingChunk(byte[][] leaves) {
+        byte[][] local = leafHashes;
+        synchronized (dirty) {
+            for (int i = 0; i < leaves.length; i++) {
+                boolean same = local != null && local.length == leaves.length && !dirty.get(i)
+                        && Arrays.equals(local[i], leaves[i]);
+                if (!same && !hasChunk(leaves[i])) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // manifest: number of chunks, hash length, root length, root and the hash of each chunk
+    private static byte[] manifest(byte[][] leaves, byte[] root) {
+        int hashLength = (leaves.length > 0 ? leaves[0].length : 0);
+        ByteBuffer buffer = ByteBuffer.allocate(12 + root.length + leaves.length * hashLength);
+        buffer.putInt(leaves.length);
+        buffer.putInt(hashLength);
+        buffer.putInt(root.length);
+        buffer.put(root);
+        for (byte[] leaf : leaves) {
+            buffer.put(leaf);
+        }
+        return buffer.array();
+    }
+
+    private static byte[][] parseManifest(byte[] manifest) {
+        ByteBuffer buffer = ByteBuffer.wrap(manifest);
+        byte[][] leaves = new byte[buffer.getInt()][];
+        int hashLength = buffer.getInt();
+        int rootLength = buffer.getInt();
+        buffer.position(buffer.position() + rootLength); // skip the root
+        for (int i = 0; i < leaves.length; i++) {
+            leaves[i] = new byte[hashLength];
+            buffer.get(leaves[i]);
+        }
+        return leaves;
+    }
+
+    private void storeChunk(byte[] hash, byte[] contents) {
+        String name = chunkName(hash);
+        if (chunkDir == null) {
+            synchronized (chunkStore) {
+                chunkStore.put(name, contents);
+            }
+            return;
+        }
+
+        File file = new File(chunkDir, name);
+        if (file.exists()) {
+            return; // same contents
+        }
+        try {
+            File tmp = new File(chunkDir, name + ".tmp");
+            Files.write(tmp.toPath(), contents);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("Failed to store chunk " + name, e);
+        }
+    }
+
+    private boolean hasChunk(byte[] hash) {
+        String name = chunkName(hash);
+        if (chunkDir == null) {
+            synchronized (chunkStore) {
+                return chunkStore.containsKey(name);
+            }
+        }
+        return new File(chunkDir, name).exists();
+    }
+
+    private byte[] loadChunk(byte[] hash) {
+        String name = chunkName(hash);
+        if (chunkDir == null) {
+            synchronized (chunkStore) {
+                return chunkStore.get(name);
+            }
+        }
+
+        File file = new File(chunkDir, name);
+        try {
+            return file.exists() ? Files.readAllBytes(file.toPath()) : null;
+        } catch (IOException e) {
+            logger.error("Failed to read chunk " + name, e);
+            return null;
+        }
+    }
+
+    // removes the chunks that are not used by any of the given checkpoints
+    private void retainChunks(byte[][]... checkpoints) {
+        Set<String> used = new HashSet<>();
+        for (byte[][] leaves : checkpoints) {
+            for (byte[] leaf : leaves) {
+                used.add(chunkName(leaf));
+            }
+        }
+
+        if (chunkDir == null) {
+            synchronized (chunkStore) {
+                chunkStore.keySet().retainAll(used);
+            }
+            return;
+        }
+
+        File[] files = chunkDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!used.contains(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private static String chunkName(byte[] hash) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+    }
+
+    private static MessageDigest getHashEngine() {
+        try {
+            return CryptoEngines.hashEngine();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the number of chunks of the application state
+     * @return Number of chunks
+     */
+    public abstract int getNumChunks();
+
+    /**
+     * Returns the serialized contents of a chunk. Called with the state lock
+     * held, only for the chunks marked as dirty since the last checkpoint
+     * (and for every chunk in the first one).
+     * @param index Index of the chunk
+     * @return The serialized chunk
+     */
+    public abstract byte[] getChunk(int index);
+
+    /**
+     * Replaces the contents of a chunk with the ones obtained from a
+     * checkpoint or from the state transfer protocol
+     * @param index Index of the chunk
+     * @param chunk The serialized chunk
+     */
+    public abstract void installChunk(int index, byte[] chunk);
+}
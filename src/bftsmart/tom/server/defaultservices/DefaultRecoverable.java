@@ -18,10 +18,9 @@
  */
 package bftsmart.tom.server.defaultservices;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.reconfiguration.util.TOMConfiguration;
@@ -50,24 +49,18 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
     private int checkpointPeriod;
     private ReentrantLock logLock = new ReentrantLock();
-    private ReentrantLock hashLock = new ReentrantLock();
     private ReentrantLock stateLock = new ReentrantLock();
     private TOMConfiguration config;
     private ServerViewController controller;
-    private MessageDigest md;
     private StateLog log;
     private StateManager stateManager;
 
+    private AsyncCheckpointer checkpointer; // null unless checkpoints are asynchronous
+
     /**
      * Constructor
      */
     public DefaultRecoverable() {
-
-        try {
-            md = TOMUtil.getHashEngine();
-        } catch (NoSuchAlgorithmException ex) {
-            LoggerFactory.getLogger(this.getClass()).error("Failed to create DefaultRecoverable", ex);
-        }
     }
 
     @Override
@@ -91,7 +84,7 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
             if (!noop) {
 
                 stateLock.lock();
-                replies = appExecuteBatch(commands, msgCtxs, true);
+                replies = executeDecided(commands, msgCtxs);
                 stateLock.unlock();
 
             }
@@ -125,15 +118,23 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
             if (!noop) {
                 stateLock.lock();
-                firstHalfReplies = appExecuteBatch(firstHalf, firstHalfMsgCtx, true);
+                firstHalfReplies = executeDecided(firstHalf, firstHalfMsgCtx);
                 stateLock.unlock();
             }
 
             logger.info("Performing checkpoint for consensus " + cid);
-            stateLock.lock();
-            byte[] snapshot = getSnapshot();
-            stateLock.unlock();
-            saveState(snapshot, cid);
+            if (config.isAsyncCheckpoint()) {
+                checkpointer.await();
+                stateLock.lock();
+                Supplier<byte[]> snapshot = getSnapshotSupplier();
+                stateLock.unlock();
+                checkpointer.save(getLog(), getStateManager(), snapshot, cid);
+            } else {
+                stateLock.lock();
+                byte[] snapshot = getSnapshot();
+                stateLock.unlock();
+                saveState(snapshot, cid);
+            }
 
             System.arraycopy(firstHalfReplies, 0, replies, 0, firstHalfReplies.length);
 
@@ -144,7 +145,7 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
                 if (!noop) {
                     stateLock.lock();
-                    secondHalfReplies = appExecuteBatch(secondHalf, secondHalfMsgCtx, true);
+                    secondHalfReplies = executeDecided(secondHalf, secondHalfMsgCtx);
                     stateLock.unlock();
                 }
 
@@ -156,19 +157,29 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
         }
 
+        retryFailedCheckpoint(cid);
+
         if (cids != null && cids.length > 0) {
             getStateManager().setLastCID(cids[cids.length - 1]);
         }
         return replies;
     }
 
-    private final byte[] computeHash(byte[] data) {
-        byte[] ret = null;
-        hashLock.lock();
-        ret = md.digest(data);
-        hashLock.unlock();
+    /**
+     * Executes a batch of decided requests, with the state lock held. By
+     * default it just calls appExecuteBatch, subclasses may override it to
+     * reuse work done before the decision (see SpeculativeRecoverable).
+     *
+     * @param commands The batch of requests
+     * @param msgCtxs The context associated to each request
+     * @return the respective replies for each request
+     */
+    protected byte[][] executeDecided(byte[][] commands, MessageContext[] msgCtxs) {
+        return appExecuteBatch(commands, msgCtxs, true);
+    }
 
-        return ret;
+    private final byte[] computeHash(byte[] data) {
+        return TOMUtil.computeHash(data);
     }
 
     private StateLog getLog() {
@@ -189,9 +200,32 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
         thisLog.setLastCheckpointCID(lastCID);
 
         logLock.unlock();
+        getStateManager().checkpointInstalled(lastCID);
         logger.debug("(TOMLayer.saveState) Finished saving state of CID " + lastCID);
     }
 
+    /**
+     * Waits for the checkpoint being stored in the background, if any
+     * @return false if it could not be stored and the log is incomplete
+     */
+    private boolean awaitCheckpoint() {
+        return checkpointer == null || checkpointer.await();
+    }
+
+    /**
+     * Takes a synchronous checkpoint if the last asynchronous one could not be
+     * stored, since the log may miss the batches executed after it
+     */
+    private void retryFailedCheckpoint(int cid) {
+        if (checkpointer != null && checkpointer.takeFailure()) {
+            logger.warn("Performing a synchronous checkpoint for consensus " + cid + " instead");
+            stateLock.lock();
+            byte[] snapshot = getSnapshot();
+            stateLock.unlock();
+            saveState(snapshot, cid);
+        }
+    }
+
     /**
      * Write commands to log file
      *
@@ -213,12 +247,12 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
             if (i == msgCtx.length) { // the batch command contains only one command or it is the last position of the array
                 byte[][] batch = Arrays.copyOfRange(commands, batchStart, i);
                 MessageContext[] batchMsgCtx = Arrays.copyOfRange(msgCtx, batchStart, i);
-                log.addMessageBatch(batch, batchMsgCtx, cid);
+                addMessageBatch(batch, batchMsgCtx, cid);
             } else {
                 if (msgCtx[i].getConsensusId() > cid) { // saves commands when the cid changes or when it is the last batch
                     byte[][] batch = Arrays.copyOfRange(commands, batchStart, i);
                     MessageContext[] batchMsgCtx = Arrays.copyOfRange(msgCtx, batchStart, i);
-                    log.addMessageBatch(batch, batchMsgCtx, cid);
+                    addMessageBatch(batch, batchMsgCtx, cid);
                     cid = msgCtx[i].getConsensusId();
                     batchStart = i;
                 }
@@ -227,8 +261,18 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
         logLock.unlock();
     }
 
+    private void addMessageBatch(byte[][] batch, MessageContext[] batchMsgCtx, int cid) {
+        log.addMessageBatch(batch, batchMsgCtx, cid);
+        if (checkpointer != null) {
+            checkpointer.batchLogged(batch, batchMsgCtx, cid);
+        }
+    }
+
     @Override
     public ApplicationState getState(int cid, boolean sendState) {
+        if (!awaitCheckpoint()) {
+            return new DefaultApplicationState(); // until the synchronous checkpoint is taken
+        }
         logLock.lock();
         ApplicationState ret = (cid > -1 ? getLog().getApplicationState(cid, sendState) : new DefaultApplicationState());
         
@@ -254,7 +298,8 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
             logger.info("I'm going to update myself from CID "
                     + lastCheckpointCID + " to CID " + lastCID);
-           
+
+            awaitCheckpoint();
             stateLock.lock();
             if (state.getSerializedState() != null) {
                 logger.info("The state is not null. Will install it");
@@ -378,13 +423,16 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
     private void initLog() {
         if (log == null) {
             checkpointPeriod = config.getCheckpointPeriod();
+            if (config.isAsyncCheckpoint()) {
+                checkpointer = new AsyncCheckpointer(logLock, true);
+            }
             byte[] state = getSnapshot();
             if (config.isToLog() && config.logToDisk()) {
                 int replicaId = config.getProcessId();
                 boolean isToLog = config.isToLog();
                 boolean syncLog = config.isToWriteSyncLog();
                 boolean syncCkp = config.isToWriteSyncCkp();
-                log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
+                log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, config.getSyncLogInterval(), syncCkp);
 
                 ApplicationState storedState = ((DiskStateLog) log).loadDurableState();
                 if (storedState.getLastCID() > 0) {
@@ -441,6 +489,21 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
      * @return A serialized snapshot of the application state
      */
     public abstract byte[] getSnapshot();
+
+    /**
+     * Returns the snapshot for an asynchronous checkpoint (see
+     * system.totalordermulticast.async_checkpoint). It is called with the state
+     * lock held, but the supplier is only invoked later by the checkpoint
+     * thread, while the next requests are executed. Applications that keep a
+     * frozen (e.g., copy-on-write) view of their state can override it to
+     * serialize that view in the background. By default, getSnapshot is
+     * called right away.
+     * @return A supplier of the serialized snapshot of the current state
+     */
+    protected Supplier<byte[]> getSnapshotSupplier() {
+        byte[] snapshot = getSnapshot();
+        return () -> snapshot;
+    }
     
     /**
      * Execute a batch of ordered requests
@@ -15,11 +15,10 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 import java.util.Arrays;
 
 import bftsmart.reconfiguration.ServerViewController;
@@ -50,24 +49,17 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
     private int checkpointPeriod;
 
     private ReentrantLock logLock = new ReentrantLock();
-    private ReentrantLock hashLock = new ReentrantLock();
     private ReentrantLock stateLock = new ReentrantLock();
-    
-    private MessageDigest md;
         
     private StateLog log;
     private List<byte[]> commands = new ArrayList<>();
     private List<MessageContext> msgContexts = new ArrayList<>();
     
     private StateManager stateManager;
+
+    private AsyncCheckpointer checkpointer; // null unless checkpoints are asynchronous
     
     public DefaultSingleRecoverable() {
-
-        try {
-            md = TOMUtil.getHashEngine();
-        } catch (NoSuchAlgorithmException ex) {
-            logger.error("Failed to get message digest engine", ex);
-        }
     }
     
     @Override
@@ -95,13 +87,22 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
         if(msgCtx.isLastInBatch()) {
 	        if ((cid > 0) && ((cid % checkpointPeriod) == 0)) {
 	            logger.debug("Performing checkpoint for consensus " + cid);
-	            stateLock.lock();
-	            byte[] snapshot = getSnapshot();
-	            stateLock.unlock();
-	            saveState(snapshot, cid);
+	            if (config.isAsyncCheckpoint()) {
+	                checkpointer.await();
+	                stateLock.lock();
+	                Supplier<byte[]> snapshot = getSnapshotSupplier();
+	                stateLock.unlock();
+	                checkpointer.save(getLog(), getStateManager(), snapshot, cid);
+	            } else {
+	                stateLock.lock();
+	                byte[] snapshot = getSnapshot();
+	                stateLock.unlock();
+	                saveState(snapshot, cid);
+	            }
 	        } else {
 	            saveCommands(commands.toArray(new byte[0][]), msgContexts.toArray(new MessageContext[0]));
 	        }
+	        retryFailedCheckpoint(cid);
 			getStateManager().setLastCID(cid);
 	        commands = new ArrayList<>();
                 msgContexts = new ArrayList<>();
@@ -110,12 +111,7 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
     }
     
     private final byte[] computeHash(byte[] data) {
-        byte[] ret = null;
-        hashLock.lock();
-        ret = md.digest(data);
-        hashLock.unlock();
-
-        return ret;
+        return TOMUtil.computeHash(data);
     }
     
     private StateLog getLog() {
@@ -135,12 +131,35 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
         thisLog.setLastCheckpointCID(lastCID);
 
         logLock.unlock();
+        getStateManager().checkpointInstalled(lastCID);
         /*System.out.println("fiz checkpoint");
         System.out.println("tamanho do snapshot: " + snapshot.length);
         System.out.println("tamanho do log: " + thisLog.getMessageBatches().length);*/
         logger.debug("Finished saving state of CID " + lastCID);
     }
 
+    /**
+     * Waits for the checkpoint being stored in the background, if any
+     * @return false if it could not be stored and the log is incomplete
+     */
+    private boolean awaitCheckpoint() {
+        return checkpointer == null || checkpointer.await();
+    }
+
+    /**
+     * Takes a synchronous checkpoint if the last asynchronous one could not be
+     * stored, since the log may miss the batches executed after it
+     */
+    private void retryFailedCheckpoint(int cid) {
+        if (checkpointer != null && checkpointer.takeFailure()) {
+            logger.warn("Performing a synchronous checkpoint for consensus " + cid + " instead");
+            stateLock.lock();
+            byte[] snapshot = getSnapshot();
+            stateLock.unlock();
+            saveState(snapshot, cid);
+        }
+    }
+
     private void saveCommands(byte[][] commands, MessageContext[] msgCtx) {
         
         if (commands.length != msgCtx.length) {
@@ -155,12 +174,12 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
             if (i == msgCtx.length) { // the batch command contains only one command or it is the last position of the array
                 byte[][] batch = Arrays.copyOfRange(commands, batchStart, i);
                 MessageContext[] batchMsgCtx = Arrays.copyOfRange(msgCtx, batchStart, i);
-                log.addMessageBatch(batch, batchMsgCtx, cid);
+                addMessageBatch(batch, batchMsgCtx, cid);
             } else {
                 if (msgCtx[i].getConsensusId() > cid) { // saves commands when the CID changes or when it is the last batch
                     byte[][] batch = Arrays.copyOfRange(commands, batchStart, i);
                     MessageContext[] batchMsgCtx = Arrays.copyOfRange(msgCtx, batchStart, i);
-                    log.addMessageBatch(batch, batchMsgCtx, cid);
+                    addMessageBatch(batch, batchMsgCtx, cid);
                     cid = msgCtx[i].getConsensusId();
                     batchStart = i;
                 }
@@ -170,8 +189,18 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
         logLock.unlock();
     }
 
+    private void addMessageBatch(byte[][] batch, MessageContext[] batchMsgCtx, int cid) {
+        log.addMessageBatch(batch, batchMsgCtx, cid);
+        if (checkpointer != null) {
+            checkpointer.batchLogged(batch, batchMsgCtx, cid);
+        }
+    }
+
     @Override
     public ApplicationState getState(int cid, boolean sendState) {
+        if (!awaitCheckpoint()) {
+            return new DefaultApplicationState(); // until the synchronous checkpoint is taken
+        }
         logLock.lock();
         ApplicationState ret = (cid > -1 ? getLog().getApplicationState(cid, sendState) : new DefaultApplicationState());
 
@@ -193,7 +222,8 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
             DefaultApplicationState state = (DefaultApplicationState) recvState;
             
             logger.info("Last CID in state: " + state.getLastCID());
-            
+
+            awaitCheckpoint();
             logLock.lock();
             initLog();
             log.update(state);
@@ -247,6 +277,10 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
         this.config = replicaContext.getStaticConfiguration();
         this.controller = replicaContext.getSVController();
 
+        if (config.isAsyncCheckpoint() && checkpointer == null) {
+            checkpointer = new AsyncCheckpointer(logLock, false);
+        }
+
         if (log == null) {
             checkpointPeriod = config.getCheckpointPeriod();
             byte[] state = getSnapshot();
@@ -255,7 +289,7 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
                 boolean isToLog = config.isToLog();
                 boolean syncLog = config.isToWriteSyncLog();
                 boolean syncCkp = config.isToWriteSyncCkp();
-                log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
+                log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, config.getSyncLogInterval(), syncCkp);
 
                 ApplicationState storedState = ((DiskStateLog) log).loadDurableState();
                 if (storedState.getLastCID() > 0) {
@@ -285,7 +319,7 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
             	boolean isToLog = config.isToLog();
             	boolean syncLog = config.isToWriteSyncLog();
             	boolean syncCkp = config.isToWriteSyncCkp();
-            	log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
+            	log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, config.getSyncLogInterval(), syncCkp);
             } else
             	log = new StateLog(controller.getStaticConf().getProcessId(), checkpointPeriod, state, computeHash(state));
     	}
@@ -320,6 +354,16 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
      * @return A serialized snapshot of the application state
      */
     public abstract byte[] getSnapshot();
+
+    /**
+     * Returns the snapshot for an asynchronous checkpoint, in the same way as
+     * {@link DefaultRecoverable#getSnapshotSupplier()}
+     * @return A supplier of the serialized snapshot of the current state
+     */
+    protected Supplier<byte[]> getSnapshotSupplier() {
+        byte[] snapshot = getSnapshot();
+        return () -> snapshot;
+    }
     
     /**
      * Execute a batch of ordered requests
@@ -15,11 +15,9 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
@@ -38,10 +36,12 @@ public class DiskStateLog extends StateLog {
 	private static final int INT_BYTE_SIZE = 4;
 	private static final int EOF = 0;
 
-	private RandomAccessFile log;
+	private CommandLog log;
 	private boolean syncLog;
+	private int syncLogInterval;
 	private String logPath;
 	private String lastCkpPath;
+	private String preparedCkpPath;
 	private boolean syncCkp;
 	private boolean isToLog;
 	private ReentrantLock checkpointLock = new ReentrantLock();
@@ -49,7 +49,13 @@ public class DiskStateLog extends StateLog {
 	
 	public DiskStateLog(int id, byte[] initialState, byte[] initialHash,
 			boolean isToLog, boolean syncLog, boolean syncCkp) {
+		this(id, initialState, initialHash, isToLog, syncLog, 1, syncCkp);
+	}
+
+	public DiskStateLog(int id, byte[] initialState, byte[] initialHash,
+			boolean isToLog, boolean syncLog, int syncLogInterval, boolean syncCkp) {
 		super(id, initialState, initialHash);
+		this.syncLogInterval = syncLogInterval;
 		this.id = id;
 		this.isToLog = isToLog;
 		this.syncLog = syncLog;
@@ -61,12 +67,8 @@ public class DiskStateLog extends StateLog {
 		logPath = DEFAULT_DIR + String.valueOf(id) + "."
 				+ System.currentTimeMillis() + ".log";
 		try {
-			log = new RandomAccessFile(logPath, (syncLog ? "rwd" : "rw"));
-			// PreAllocation
-			/*
-			 * log.setLength(TEN_MB); log.seek(0);
-			 */
-		} catch (FileNotFoundException e) {
+			log = new CommandLog(logPath, syncLog, syncLogInterval);
+		} catch (IOException e) {
 			logger.error("Failed to create log file",e);
 		}
 	}
@@ -92,36 +94,43 @@ public class DiskStateLog extends StateLog {
 	}
 
 	private void writeCommandToDisk(CommandsInfo commandsInfo, int consensusId) {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 		try {
-			ObjectOutputStream oos = new ObjectOutputStream(bos);
-			oos.writeObject(commandsInfo);
-			oos.flush();
-
-			byte[] batchBytes = bos.toByteArray();
-
-			ByteBuffer bf = ByteBuffer.allocate(3 * INT_BYTE_SIZE
-					+ batchBytes.length);
-			bf.putInt(batchBytes.length);
-			bf.put(batchBytes);
-			bf.putInt(EOF);
-			bf.putInt(consensusId);
-			
-			log.write(bf.array());
-			log.seek(log.length() - 2 * INT_BYTE_SIZE);// Next write will overwrite
-													// the EOF mark
+			log.append(commandsInfo, consensusId);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			logger.error("Failed to write command to disk",e);
-	    }
+		}
+	}
+
+        @Override
+	public void prepareCheckpoint(byte[] state, byte[] stateHash, int consensusId) {
+		preparedCkpPath = writeCheckpoint(state, stateHash, consensusId);
 	}
 
         @Override
 	public void newCheckpoint(byte[] state, byte[] stateHash, int consensusId) {
+		String ckpPath = (preparedCkpPath != null ? preparedCkpPath : writeCheckpoint(state, stateHash, consensusId));
+		preparedCkpPath = null;
+		if (ckpPath == null)
+			return;
+
+		checkpointLock.lock();
+		try {
+			if (isToLog)
+				deleteLogFile();
+			deleteLastCkp();
+			renameCkp(ckpPath);
+			if (isToLog)
+				createLogFile();
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
+
+	// writes the checkpoint to a temporary file, which is renamed when installed
+	private String writeCheckpoint(byte[] state, byte[] stateHash, int consensusId) {
 		String ckpPath = DEFAULT_DIR + String.valueOf(id) + "."
 				+ System.currentTimeMillis() + ".tmp";
 		try {
-			checkpointLock.lock();
 			RandomAccessFile ckp = new RandomAccessFile(ckpPath,
 					(syncCkp ? "rwd" : "rw"));
 
@@ -138,23 +147,15 @@ public class DiskStateLog extends StateLog {
 			
 			ckp.write(ckpState);
 			ckp.close();
-
-			if (isToLog)
-				deleteLogFile();
-			deleteLastCkp();
-			renameCkp(ckpPath);
-			if (isToLog)
-				createLogFile();
-			
+			return ckpPath;
 		} catch (FileNotFoundException e) {
 			// TODO Auto-generated catch block
 			logger.error("Failed to open checkpoint file",e);
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			logger.error("Failed to write checkpoint to disk",e);
-		} finally {
-			checkpointLock.unlock();
 		}
+		return null;
 	}
 
 	private void renameCkp(String ckpPath) {
@@ -243,12 +244,8 @@ public class DiskStateLog extends StateLog {
 		// save the file pointer to retrieve log information later
 		if((cid % checkpointPeriod) % checkpointPortion == checkpointPortion -1) {
 			int ckpReplicaIndex = (((cid % checkpointPeriod) + 1) / checkpointPortion) -1;
-			try {
-				logger.info("Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + log.getFilePointer());
-				logPointers.put(ckpReplicaIndex, log.getFilePointer());
-			} catch (IOException e) {
-				logger.error("Failed to get file pointer",e);
-			}
+			logger.info("Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + log.getPosition());
+			logPointers.put(ckpReplicaIndex, log.getPosition());
 		}
 	}
 
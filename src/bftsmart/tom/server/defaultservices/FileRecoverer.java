@@ -15,12 +15,12 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
@@ -33,6 +33,8 @@ public class FileRecoverer {
     
         private Logger logger = LoggerFactory.getLogger(this.getClass());
 
+	private static final int INT_BYTE_SIZE = 4;
+
 	private byte[] ckpHash;
 	private int ckpLastConsensusId;
 	private int logLastConsensusId;
@@ -291,48 +293,35 @@ public class FileRecoverer {
 	}
 
 	private CommandsInfo[] recoverLogState(RandomAccessFile log, int endOffset) {
+		LogScanner scanner = null;
 		try {
-			long logLength = log.length();
+			scanner = new LogScanner(log.getChannel(), 0);
 			ArrayList<CommandsInfo> state = new ArrayList<CommandsInfo>();
 			int recoveredBatches = 0;
-			boolean mayRead = true;
-			logger.debug("filepointer: " + log.getFilePointer() + " loglength " + logLength + " endoffset " + endOffset);
-			while (mayRead) {
-				try {
-					if (log.getFilePointer() < logLength) {
-						int size = log.readInt();
-						if (size > 0) {
-							byte[] bytes = new byte[size];
-							int read = log.read(bytes);
-							if (read == size) {
-								ByteArrayInputStream bis = new ByteArrayInputStream(
-										bytes);
-								ObjectInputStream ois = new ObjectInputStream(
-										bis);
-								state.add((CommandsInfo) ois.readObject());
-								if (++recoveredBatches == endOffset) {
-									logger.debug("read all " + endOffset + " log messages");
-									return state.toArray(new CommandsInfo[state.size()]);
-								}
-							} else {
-								mayRead = false;
-								state.clear();
-							}
-						} else {
-							logLastConsensusId = log.readInt();
-							return state.toArray(new CommandsInfo[state.size()]);
-						}
-					} else {
-						mayRead = false;
+			logger.debug("loglength " + scanner.remaining() + " endoffset " + endOffset);
+			while (scanner.remaining() >= INT_BYTE_SIZE) {
+				int size = scanner.getInt();
+				if (size > 0) {
+					if (size > scanner.remaining()) {
+						logger.error("Truncated record in log file");
+						return null;
 					}
-				} catch (Exception e) {
-					logger.error("Failed to recover log state",e);
-					state.clear();
-					mayRead = false;
+					state.add(scanner.readBatch(size));
+					if (++recoveredBatches == endOffset) {
+						logger.debug("read all " + endOffset + " log messages");
+						return state.toArray(new CommandsInfo[state.size()]);
+					}
+				} else {
+					logLastConsensusId = scanner.getInt();
+					return state.toArray(new CommandsInfo[state.size()]);
 				}
 			}
 		} catch (Exception e) {
 			logger.error("State recover was aborted due to an unexpected exception", e);
+		} finally {
+			if (scanner != null) {
+				scanner.close();
+			}
 		}
 
 		return null;
@@ -346,63 +335,125 @@ public class FileRecoverer {
 	 * @return The commands for the period selected
 	 */
 	private CommandsInfo[] recoverLogState(RandomAccessFile log, long pointer, int startOffset, int number) {
+		LogScanner scanner = null;
 		try {
-			long logLength = log.length();
+			scanner = new LogScanner(log.getChannel(), pointer);
 			ArrayList<CommandsInfo> state = new ArrayList<CommandsInfo>();
 			int recoveredBatches = 0;
-			boolean mayRead = true;
-
-			log.seek(pointer);
 
 			int index = 0;
 			while(index < startOffset) {
-				int size = log.readInt();
-				byte[] bytes = new byte[size];
-				log.read(bytes);
+				int size = scanner.getInt();
+				scanner.skip(size);
 				index++;
 			}
 
-			while (mayRead) {
+			while (scanner.remaining() >= INT_BYTE_SIZE) {
+				int size = scanner.getInt();
+				if (size <= 0) {
+					break;
+				}
+				if (size > scanner.remaining()) {
+					logger.error("Truncated record in log file");
+					return null;
+				}
+				state.add(scanner.readBatch(size));
+				if (++recoveredBatches == number) {
+					return state.toArray(new CommandsInfo[state.size()]);
+				}
+			}
+		} catch (Exception e) {
+			logger.error("State recover was aborted due to an unexpected exception",e);
+		} finally {
+			if (scanner != null) {
+				scanner.close();
+			}
+		}
 
-				try {
-					if (log.getFilePointer() < logLength) {
-						int size = log.readInt();
+		return null;
+	}
 
-						if (size > 0) {
-							byte[] bytes = new byte[size];
-							int read = log.read(bytes);
-							if (read == size) {
-								ByteArrayInputStream bis = new ByteArrayInputStream(
-										bytes);
-								ObjectInputStream ois = new ObjectInputStream(
-										bis);
+	/**
+	 * Reads the log through read-only windows of the file, without copying it.
+	 * Positions are longs, so the log is not limited to what a single mapping
+	 * can address; each window is unmapped when the scanner moves past it.
+	 */
+	private static final class LogScanner {
 
-								state.add((CommandsInfo) ois.readObject());
+		private static final int WINDOW_SIZE = 64 * 1024 * 1024;
 
-								if (++recoveredBatches == number) {
-									return state.toArray(new CommandsInfo[state.size()]);
-								}
-							} else {
-								mayRead = false;
-								state.clear();
-							}
-						} else {
-							mayRead = false;
-						}
-					} else {
-						mayRead = false;
-					}
-				} catch (Exception e) {
-					logger.error("Failed to recolver log state",e);
-					state.clear();
-					mayRead = false;
+		private final FileChannel channel;
+		private final long length;
+		private MappedByteBuffer window;
+		private long windowStart;
+
+		LogScanner(FileChannel channel, long position) throws IOException {
+			this.channel = channel;
+			this.length = channel.size();
+			if (position < 0 || position > length) {
+				throw new IOException("Invalid log position: " + position);
+			}
+			map(position, 0);
+		}
+
+		long remaining() {
+			return length - position();
+		}
+
+		int getInt() throws IOException {
+			return window(INT_BYTE_SIZE).getInt();
+		}
+
+		void skip(int size) throws IOException {
+			if (size < 0 || size > remaining()) {
+				throw new IOException("Truncated record in log file");
+			}
+			if (size <= window.remaining()) {
+				window.position(window.position() + size);
+			} else {
+				map(position() + size, 0);
+			}
+		}
+
+		CommandsInfo readBatch(int size) throws IOException {
+			ByteBuffer buffer = window(size);
+			int end = buffer.position() + size;
+			CommandsInfo batch = CommandsInfo.readFrom(buffer);
+			if (buffer.position() != end) {
+				throw new IOException("Corrupted record in log file");
+			}
+			return batch;
+		}
+
+		void close() {
+			CommandLog.unmap(window);
+			window = null;
+		}
+
+		private long position() {
+			return windowStart + window.position();
+		}
+
+		// returns the current window, remapped if it holds less than the given bytes
+		private ByteBuffer window(int bytes) throws IOException {
+			if (window.remaining() < bytes) {
+				if (bytes > remaining()) {
+					throw new IOException("Truncated record in log file");
 				}
+				map(position(), bytes);
 			}
-		} catch (Exception e) {
-			logger.error("State recover was aborted due to an unexpected exception",e);
+			return window;
 		}
 
-		return null;
+		private void map(long start, int bytes) throws IOException {
+			MappedByteBuffer previous = window;
+			long size = Math.min(Math.max(WINDOW_SIZE, bytes), length - start);
+			window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+			windowStart = start;
+			if (previous != null) {
+				CommandLog.unmap(previous);
+			}
+		}
 	}
 
 	public String getLatestFile(String extention) {
@@ -0,0 +1,105 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary hash tree built over the hashes of the chunks of a partitioned state.
+ * Each inner node is the hash of its two children (a node without sibling is
+ * promoted to the next level), so the root summarizes the whole state and two
+ * trees can be compared by descending only into the subtrees that differ.
+ */
+public class MerkleTree {
+
+    private final byte[][][] levels; // levels[0] are the leaves, the last level is the root
+
+    /**
+     * Builds the tree
+     *
+     * @param leaves Hashes of the chunks
+     * @param md Hash engine used for the inner nodes
+     */
+    public MerkleTree(byte[][] leaves, MessageDigest md) {
+        List<byte[][]> built = new ArrayList<>();
+        byte[][] level = leaves;
+        built.add(level);
+
+        while (level.length > 1) {
+            byte[][] next = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < next.length; i++) {
+                if (2 * i + 1 < level.length) {
+                    md.update(level[2 * i]);
+                    md.update(level[2 * i + 1]);
+                    next[i] = md.digest();
+                } else {
+                    next[i] = level[2 * i];
+                }
+            }
+            built.add(next);
+            level = next;
+        }
+
+        this.levels = built.toArray(new byte[built.size()][][]);
+    }
+
+    /**
+     * Hash of the whole state (empty if there are no chunks)
+     */
+    public byte[] getRoot() {
+        byte[][] top = levels[levels.length - 1];
+        return top.length == 0 ? new byte[0] : top[0];
+    }
+
+    public int getNumLeaves() {
+        return levels[0].length;
+    }
+
+    /**
+     * Finds the chunks whose hashes differ from the ones of another tree,
+     * comparing the subtrees from the root down. If the trees have a
+     * different number of leaves, every chunk is considered different.
+     *
+     * @param other Tree of the other state
+     * @return Indexes of the chunks that differ
+     */
+    public List<Integer> diff(MerkleTree other) {
+        List<Integer> result = new ArrayList<>();
+        if (other == null || other.getNumLeaves() != getNumLeaves()) {
+            for (int i = 0; i < getNumLeaves(); i++) {
+                result.add(i);
+            }
+        } else if (getNumLeaves() > 0) {
+            diff(other, levels.length - 1, 0, result);
+        }
+        return result;
+    }
+
+    private void diff(MerkleTree other, int level, int index, List<Integer> result) {
+        if (index >= levels[level].length || Arrays.equals(levels[level][index], other.levels[level][index])) {
+            return;
+        }
+        if (level == 0) {
+            result.add(index);
+        } else {
+            diff(other, level - 1, 2 * index, result);
+            diff(other, level - 1, 2 * index + 1, result);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and
+ * the authors indicated in the
+ *
+ * @author tags
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package bftsmart.tom.server.defaultservices;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import bftsmart.tom.MessageContext;
+import bftsmart.tom.ReplicaContext;
+import bftsmart.tom.server.ConflictClassifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * DefaultRecoverable that executes the requests of a batch in parallel. The
+ * application classifies each request with conflict keys, and requests with
+ * a key in common are executed in the order they were decided, while the
+ * others are spread over a pool of system.numexecutionthreads threads.
+ * Replies keep the batch order, so each client gets them in order.
+ *
+ * A request without keys is a barrier: it runs alone, after all the requests
+ * before it and before all the requests after it. The application must allow
+ * requests with disjoint keys to run at the same time.
+ */
+public abstract class ParallelRecoverable extends DefaultRecoverable implements ConflictClassifier {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private ExecutorService workers = null;
+
+    @Override
+    public void setReplicaContext(ReplicaContext replicaContext) {
+        // the log may be replayed by the super class, so the workers must be ready
+        int threads = replicaContext.getStaticConfiguration().getNumExecutionThreads();
+        if (threads > 1 && workers == null) {
+            workers = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "Execution Thread");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        super.setReplicaContext(replicaContext);
+    }
+
+    @Override
+    public byte[][] appExecuteBatch(byte[][] commands, MessageContext[] msgCtxs, boolean fromConsensus) {
+        byte[][] replies = new byte[commands.length][];
+
+        Object[][] keys = new Object[commands.length][];
+        for (int i = 0; i < commands.length; i++) {
+            keys[i] = getConflictKeys(commands[i], context(msgCtxs, i));
+        }
+
+        // the requests between two barriers are scheduled together
+        int start = 0;
+        while (start < commands.length) {
+            int end = start;
+            while (end < commands.length && keys[end] != null) {
+                end++;
+            }
+
+            if (end > start) {
+                executeSegment(commands, msgCtxs, keys, start, end, replies, fromConsensus);
+            }
+            if (end < commands.length) {
+                replies[end] = appExecuteCommand(commands[end], context(msgCtxs, end), fromConsensus);
+                end++;
+            }
+            start = end;
+        }
+
+        return replies;
+    }
+
+    private static MessageContext context(MessageContext[] msgCtxs, int i) {
+        return (msgCtxs != null) ? msgCtxs[i] : null;
+    }
+
+    private void executeSegment(byte[][] commands, MessageContext[] msgCtxs, Object[][] keys, int start, int end,
+            byte[][] replies, boolean fromConsensus) {
+
+        if (workers == null || end - start == 1) {
+            for (int i = start; i < end; i++) {
+                replies[i] = appExecuteCommand(commands[i], context(msgCtxs, i), fromConsensus);
+            }
+            return;
+        }
+
+        Segment segment = new Segment(commands, msgCtxs, keys, start, end, replies, fromConsensus);
+        try {
+            segment.execute();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while executing requests", ex);
+        }
+    }
+
+    /**
+     * The requests of a batch between two barriers, and the order among the
+     * ones that conflict: each request waits for the last request before it
+     * with each of its keys.
+     */
+    private final class Segment {
+
+        private final byte[][] commands;
+        private final MessageContext[] msgCtxs;
+        private final int start;
+        private final byte[][] replies;
+        private final boolean fromConsensus;
+
+        // dependents of request i are edgeTo[head[i]], edgeTo[edgeNext[head[i]]], ...
+        private final int[] head;
+        private final int[] edgeTo;
+        private final int[] edgeNext;
+        private final AtomicIntegerArray pending;
+        // requests that do not wait for any other
+        private final int[] ready;
+
+        private final CountDownLatch done;
+        private volatile RuntimeException failure = null;
+
+        private Segment(byte[][] commands, MessageContext[] msgCtxs, Object[][] keys, int start, int end,
+                byte[][] replies, boolean fromConsensus) {
+            this.commands = commands;
+            this.msgCtxs = msgCtxs;
+            this.start = start;
+            this.replies = replies;
+            this.fromConsensus = fromConsensus;
+
+            int n = end - start;
+            int numKeys = 0;
+            for (int i = start; i < end; i++) {
+                numKeys += keys[i].length;
+            }
+
+            head = new int[n];
+            Arrays.fill(head, -1);
+            edgeTo = new int[numKeys];
+            edgeNext = new int[numKeys];
+            int[] waiting = new int[n];
+
+            HashMap<Object, Integer> last = new HashMap<>();
+            int edges = 0;
+            for (int i = 0; i < n; i++) {
+                for (Object key : keys[start + i]) {
+                    Integer previous = last.put(key, i);
+                    if (previous != null && previous != i) {
+                        edgeTo[edges] = i;
+                        edgeNext[edges] = head[previous];
+                        head[previous] = edges++;
+                        waiting[i]++;
+                    }
+                }
+            }
+
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                if (waiting[i] == 0) count++;
+            }
+            ready = new int[count];
+            count = 0;
+            for (int i = 0; i < n; i++) {
+                if (waiting[i] == 0) ready[count++] = i;
+            }
+
+            pending = new AtomicIntegerArray(waiting);
+            done = new CountDownLatch(n);
+        }
+
+        private void execute() throws InterruptedException {
+            // the pending counters change as soon as the first request runs
+            for (int i : ready) {
+                submit(i);
+            }
+
+            done.await();
+
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private void submit(int i) {
+            workers.execute(() -> run(i));
+        }
+
+        // executes a request and releases the ones waiting for it, running the
+        // first one released in this same thread
+        private void run(int i) {
+            while (i >= 0) {
+                int index = start + i;
+                try {
+                    if (failure == null) {
+                        replies[index] = appExecuteCommand(commands[index], context(msgCtxs, index), fromConsensus);
+                    }
+                } catch (RuntimeException ex) {
+                    logger.error("Failed to execute request " + index + " of the batch", ex);
+                    failure = ex;
+                }
+
+                int next = -1;
+                for (int e = head[i]; e != -1; e = edgeNext[e]) {
+                    int dependent = edgeTo[e];
+                    if (pending.decrementAndGet(dependent) == 0) {
+                        if (next == -1) {
+                            next = dependent;
+                        } else {
+                            submit(dependent);
+                        }
+                    }
+                }
+
+                done.countDown();
+                i = next;
+            }
+        }
+    }
+
+    /**
+     * Execute an ordered request. It may be called by several threads at the
+     * same time, but only for requests without conflict keys in common
+     *
+     * @param command The request
+     * @param msgCtx The context associated to the request
+     * @param fromConsensus true if the request arrived from a consensus execution, false if it arrives from the state transfer protocol
+     *
+     * @return the reply for the request
+     */
+    public abstract byte[] appExecuteCommand(byte[] command, MessageContext msgCtx, boolean fromConsensus);
+
+}
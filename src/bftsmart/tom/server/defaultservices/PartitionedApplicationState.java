@@ -0,0 +1,44 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.util.Map;
+
+/**
+ * State of a DefaultPartitionedRecoverable. The serialized state is the
+ * manifest of the checkpoint (the hashes of its chunks), and only the chunks
+ * the requesting replica did not have are sent along.
+ */
+public class PartitionedApplicationState extends DefaultApplicationState {
+
+    private static final long serialVersionUID = -2930557462211329480L;
+
+    private Map<Integer, byte[]> chunks; // chunk index -> contents
+
+    public PartitionedApplicationState(DefaultApplicationState state, Map<Integer, byte[]> chunks) {
+        super(state.getMessageBatches(), state.getLastCheckpointCID(), state.getLastCID(), state.getState(),
+                state.getStateHash(), state.getPid());
+        this.chunks = chunks;
+    }
+
+    /**
+     * Retrieves the chunks sent with the manifest
+     * @return Contents of the chunks, by index
+     */
+    public Map<Integer, byte[]> getChunks() {
+        return chunks;
+    }
+}
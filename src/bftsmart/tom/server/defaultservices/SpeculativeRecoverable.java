@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and
+ * the authors indicated in the
+ *
+ * @author tags
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package bftsmart.tom.server.defaultservices;
+
+import java.util.Arrays;
+import java.util.TreeMap;
+
+import bftsmart.statemanagement.ApplicationState;
+import bftsmart.tom.MessageContext;
+import bftsmart.tom.server.SpeculativeExecutable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * DefaultRecoverable that can execute proposed batches before they are
+ * decided. The application keeps the effects of speculative batches apart
+ * from its committed state (e.g., in a shadow copy or in an undo log), and
+ * this class commits them when the same batch is decided, or rolls them back
+ * if another value is decided for the consensus instance or the state is
+ * replaced by the state transfer protocol.
+ *
+ * Checkpoints are taken while speculative batches may be pending, so
+ * getSnapshot() must only return the committed state.
+ */
+public abstract class SpeculativeRecoverable extends DefaultRecoverable implements SpeculativeExecutable {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    // batches executed speculatively and not decided yet, by consensus id
+    private final TreeMap<Integer, Speculation> speculations = new TreeMap<>();
+
+    private static class Speculation {
+
+        private final byte[][] commands;
+        private final byte[][] replies;
+
+        private Speculation(byte[][] commands, byte[][] replies) {
+            this.commands = commands;
+            this.replies = replies;
+        }
+    }
+
+    @Override
+    public void executeSpeculatively(int cid, byte[][] commands, MessageContext[] msgCtxs) {
+        byte[][] replies = appExecuteSpeculatively(cid, commands, msgCtxs);
+
+        synchronized (speculations) {
+            speculations.put(cid, new Speculation(commands, replies));
+        }
+    }
+
+    @Override
+    public void rollbackSpeculation(int cid) {
+        synchronized (speculations) {
+            if (speculations.ceilingKey(cid) == null) return;
+
+            logger.debug("Rolling back speculative execution from consensus " + cid);
+            appRollbackSpeculation(cid);
+            speculations.tailMap(cid, true).clear();
+        }
+    }
+
+    @Override
+    protected byte[][] executeDecided(byte[][] commands, MessageContext[] msgCtxs) {
+        synchronized (speculations) {
+            if (speculations.isEmpty()) {
+                return appExecuteBatch(commands, msgCtxs, true);
+            }
+
+            byte[][] replies = new byte[commands.length][];
+
+            // the batch may contain several consensus instances, each one is either
+            // committed (if it was executed speculatively) or executed now
+            int start = 0;
+            while (start < commands.length) {
+                int cid = msgCtxs[start].getConsensusId();
+                int end = start + 1;
+                while (end < commands.length && msgCtxs[end].getConsensusId() == cid) {
+                    end++;
+                }
+
+                byte[][] decided = Arrays.copyOfRange(commands, start, end);
+                Speculation speculation = speculations.remove(cid);
+
+                if (speculation != null && Arrays.deepEquals(speculation.commands, decided)) {
+                    logger.debug("Committing speculative execution of consensus " + cid);
+                    appCommitSpeculation(cid);
+                    System.arraycopy(speculation.replies, 0, replies, start, end - start);
+                } else {
+                    if (speculation != null || !speculations.isEmpty()) {
+                        // the speculative state does not follow the decided one anymore
+                        logger.info("Discarding speculative execution from consensus " + cid);
+                        appRollbackSpeculation(cid);
+                        speculations.clear();
+                    }
+                    byte[][] executed = appExecuteBatch(decided, Arrays.copyOfRange(msgCtxs, start, end), true);
+                    System.arraycopy(executed, 0, replies, start, end - start);
+                }
+
+                start = end;
+            }
+
+            return replies;
+        }
+    }
+
+    @Override
+    public int setState(ApplicationState recvState) {
+        synchronized (speculations) {
+            if (!speculations.isEmpty()) {
+                appRollbackSpeculation(speculations.firstKey());
+                speculations.clear();
+            }
+        }
+        return super.setState(recvState);
+    }
+
+    /**
+     * Execute a batch of requests proposed for a consensus instance that is
+     * not decided yet, on top of the committed state and of the previous
+     * speculative batches, without changing the committed state
+     *
+     * @param cid The consensus instance for which the batch was proposed
+     * @param commands The batch of requests
+     * @param msgCtxs The context associated to each request (without the proof of the decision)
+     *
+     * @return the respective replies for each request
+     */
+    public abstract byte[][] appExecuteSpeculatively(int cid, byte[][] commands, MessageContext[] msgCtxs);
+
+    /**
+     * The batch executed speculatively for this consensus instance was decided,
+     * so its effects become part of the committed state. Instances are
+     * committed in order.
+     *
+     * @param cid The consensus instance decided
+     */
+    public abstract void appCommitSpeculation(int cid);
+
+    /**
+     * Discard the effects of the batches executed speculatively for this
+     * consensus instance and the ones after it
+     *
+     * @param cid The first consensus instance to discard
+     */
+    public abstract void appRollbackSpeculation(int cid);
+
+}
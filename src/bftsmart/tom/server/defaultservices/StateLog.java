@@ -100,6 +100,18 @@ public class StateLog {
                        
     }
 
+    /**
+     * Stores a checkpoint that is about to be installed with newCheckpoint,
+     * without changing the log. It may be called by a background thread while
+     * batches are still being added to the log. The log kept in memory has
+     * nothing to store.
+     * @param state State associated with the checkpoint
+     * @param stateHash
+     * @param lastConsensusId
+     */
+    public void prepareCheckpoint(byte[] state, byte[] stateHash, int lastConsensusId) {
+    }
+
     /**
      * Sets the consensus ID for the last checkpoint
      * @param lastCheckpointCID Consensus ID for the last checkpoint
@@ -15,8 +15,6 @@ limitations under the License.
  */
 package bftsmart.tom.server.defaultservices.durability;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -53,12 +51,10 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
         private Logger logger = LoggerFactory.getLogger(this.getClass());
 
 	private ReentrantLock logLock = new ReentrantLock();
-	private ReentrantLock hashLock = new ReentrantLock();
 	private ReentrantLock stateLock = new ReentrantLock();
 
 	private TOMConfiguration config;
 
-	private MessageDigest md;
 
 	private DurableStateLog log;
 
@@ -70,11 +66,6 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 	private int replicaCkpIndex;
 
 	public DurabilityCoordinator() {
-		try {
-			md = TOMUtil.getHashEngine();
-		} catch (NoSuchAlgorithmException ex) {
-			logger.error("Failed to get message digest object", ex);
-		}
 	}
 
         @Override
@@ -285,11 +276,7 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 	}
 
 	private final byte[] computeHash(byte[] data) {
-		byte[] ret = null;
-		hashLock.lock();
-		ret = md.digest(data);
-		hashLock.unlock();
-		return ret;
+		return TOMUtil.computeHash(data);
 	}
 
 	private void saveState(byte[] snapshot, int lastCID) {
@@ -302,6 +289,7 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 		log.setLastCheckpointCID(lastCID);
 
 		logLock.unlock();
+		getStateManager().checkpointInstalled(lastCID);
 		logger.debug("(TOMLayer.saveState) Finished saving state of CID " + lastCID);
 	}
 
@@ -367,7 +355,7 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 				boolean syncLog = config.isToWriteSyncLog();
 				boolean syncCkp = config.isToWriteSyncCkp();
 //				log = new DurableStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
-				log = new DurableStateLog(replicaId, null, null, isToLog, syncLog, syncCkp);
+				log = new DurableStateLog(replicaId, null, null, isToLog, syncLog, config.getSyncLogInterval(), syncCkp);
 				CSTState storedState = log.loadDurableState();
 				if(storedState.getLastCID() > -1) {
 					logger.info("LAST CID RECOVERED FROM LOG: " + storedState.getLastCID());
@@ -15,11 +15,9 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices.durability;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
@@ -31,6 +29,7 @@ import bftsmart.statemanagement.strategy.durability.CSTRequest;
 import bftsmart.statemanagement.strategy.durability.CSTRequestF1;
 import bftsmart.statemanagement.strategy.durability.CSTState;
 import bftsmart.tom.MessageContext;
+import bftsmart.tom.server.defaultservices.CommandLog;
 import bftsmart.tom.server.defaultservices.CommandsInfo;
 import bftsmart.tom.server.defaultservices.FileRecoverer;
 import bftsmart.tom.server.defaultservices.StateLog;
@@ -44,8 +43,9 @@ public class DurableStateLog extends StateLog {
 	private static final int INT_BYTE_SIZE = 4;
 	private static final int EOF = 0;
 
-	private RandomAccessFile log;
+	private CommandLog log;
 	private boolean syncLog;
+	private int syncLogInterval;
 	private String logPath;
 	private String lastCkpPath;
 	private boolean syncCkp;
@@ -56,7 +56,13 @@ public class DurableStateLog extends StateLog {
 	
 	public DurableStateLog(int id, byte[] initialState, byte[] initialHash,
 			boolean isToLog, boolean syncLog, boolean syncCkp) {
+		this(id, initialState, initialHash, isToLog, syncLog, 1, syncCkp);
+	}
+
+	public DurableStateLog(int id, byte[] initialState, byte[] initialHash,
+			boolean isToLog, boolean syncLog, int syncLogInterval, boolean syncCkp) {
 		super(id, initialState, initialHash);
+		this.syncLogInterval = syncLogInterval;
 		this.id = id;
 		this.isToLog = isToLog;
 		this.syncLog = syncLog;
@@ -69,8 +75,8 @@ public class DurableStateLog extends StateLog {
 		logPath = DEFAULT_DIR + String.valueOf(id) + "."
 				+ System.currentTimeMillis() + ".log";
 		try {
-			log = new RandomAccessFile(logPath, (syncLog ? "rwd" : "rw"));
-		} catch (FileNotFoundException e) {
+			log = new CommandLog(logPath, syncLog, syncLogInterval);
+		} catch (IOException e) {
 			logger.error("Failed to create log file",e);
 		}
 	}
@@ -96,28 +102,11 @@ public class DurableStateLog extends StateLog {
 	}
 
 	private void writeCommandToDisk(CommandsInfo commandsInfo, int consensusId) {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 		try {
-			ObjectOutputStream oos = new ObjectOutputStream(bos);
-			oos.writeObject(commandsInfo);
-			oos.flush();
-
-			byte[] batchBytes = bos.toByteArray();
-
-			ByteBuffer bf = ByteBuffer.allocate(3 * INT_BYTE_SIZE
-					+ batchBytes.length);
-			bf.putInt(batchBytes.length);
-			bf.put(batchBytes);
-			bf.putInt(EOF);
-			bf.putInt(consensusId);
-			
-			log.write(bf.array());
-			log.seek(log.length() - 2 * INT_BYTE_SIZE);// Next write will overwrite
-													// the EOF mark
+			log.append(commandsInfo, consensusId);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			logger.error("Failed to write command to disk",e);
-	    }
+		}
 	}
 	
         @Override
@@ -269,12 +258,8 @@ public class DurableStateLog extends StateLog {
 		// save the file pointer to retrieve log information later
 		if((cid % checkpointPeriod) % checkpointPortion == checkpointPortion -1) {
 			int ckpReplicaIndex = (((cid % checkpointPeriod) + 1) / checkpointPortion) -1;
-			try {
-				logger.info("Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + log.getFilePointer());
-				logPointers.put(ckpReplicaIndex, log.getFilePointer());
-			} catch (IOException e) {
-				logger.error("Failed to get file pointer",e);
-			}
+			logger.info("Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + log.getPosition());
+			logPointers.put(ckpReplicaIndex, log.getPosition());
 		}
 	}
 
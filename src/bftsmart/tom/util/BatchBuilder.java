@@ -28,6 +28,10 @@ import bftsmart.tom.core.messages.TOMMessage;
  * Batch format: TIMESTAMP(long) + N_NONCES(int) + SEED(long) + N_MESSAGES(int)
  * + N_MESSAGES*[MSGSIZE(int),MSG(byte),SIG(byte)] +
  *
+ * A request larger than the given large request size is proposed by reference:
+ * its MSGSIZE is REFERENCE and MSG is SENDER(int),SEQUENCE(int),SIZE(int),
+ * HASHSIZE(int),HASH(byte), the hash of the serialized request.
+ *
  *
  * The methods does not try to enforce any constraint, so be correct when using
  * it.
@@ -37,6 +41,12 @@ public final class BatchBuilder {
 
 	private Logger logger = LoggerFactory.getLogger(this.getClass());
 
+	/** MSGSIZE of a request proposed by reference */
+	public static final int REFERENCE = -1;
+
+	/** size of a reference without the hash: REFERENCE, SENDER, SEQUENCE, SIZE and HASHSIZE */
+	public static final int REFERENCE_HEADER = 5 * Integer.BYTES;
+
 	private Random rnd;
 
 	public BatchBuilder(long seed) {
@@ -44,19 +54,22 @@ public final class BatchBuilder {
 
 	}
 
-	/** build buffer */
-	private byte[] createBatch(long timestamp, int numberOfNonces, long seed, int numberOfMessages,
-			int totalMessagesSize, boolean useSignatures, byte[][] messages, byte[][] signatures) {
+	/** build buffer, copying each request straight from the buffer where it already is */
+	private byte[] createBatch(long timestamp, int numberOfNonces, long seed, List<TOMMessage> msgs,
+			int totalMessagesSize, boolean useSignatures, int largeRequestSize) {
 
+		int numberOfMessages = msgs.size();
 		int sigsSize = 0;
 
 		if (useSignatures) {
 
 			sigsSize = Integer.BYTES * numberOfMessages;
 
-			for (byte[] sig : signatures) {
+			for (TOMMessage msg : msgs) {
 
-				sigsSize += sig.length;
+				if (msg.serializedMessageSignature != null) {
+					sigsSize += msg.serializedMessageSignature.length;
+				}
 			}
 		}
 
@@ -78,16 +91,52 @@ public final class BatchBuilder {
 
 		proposalBuffer.putInt(numberOfMessages);
 
-		for (int i = 0; i < numberOfMessages; i++) {
-			putMessage(proposalBuffer, messages[i], useSignatures, signatures[i]);
+		for (TOMMessage msg : msgs) {
+			if (isLarge(msg, largeRequestSize)) {
+				putReference(proposalBuffer, msg, useSignatures, msg.serializedMessageSignature);
+			} else {
+				putMessage(proposalBuffer, msg, useSignatures, msg.serializedMessageSignature);
+			}
 		}
 
 		return proposalBuffer.array();
 	}
 
-	private void putMessage(ByteBuffer proposalBuffer, byte[] message, boolean addSig, byte[] signature) {
-		proposalBuffer.putInt(message.length);
-		proposalBuffer.put(message);
+	private static boolean isLarge(TOMMessage message, int largeRequestSize) {
+		return largeRequestSize > 0 && message.getSerializedMessageLength() > largeRequestSize;
+	}
+
+	private void putReference(ByteBuffer proposalBuffer, TOMMessage message, boolean addSig, byte[] signature) {
+		byte[] hash = message.getSerializedMessageHash();
+
+		proposalBuffer.putInt(REFERENCE);
+		proposalBuffer.putInt(message.getSender());
+		proposalBuffer.putInt(message.getSequence());
+		proposalBuffer.putInt(message.getSerializedMessageLength());
+		proposalBuffer.putInt(hash.length);
+		proposalBuffer.put(hash);
+
+		if (addSig) {
+			if (signature != null) {
+				proposalBuffer.putInt(signature.length);
+				proposalBuffer.put(signature);
+			} else {
+				proposalBuffer.putInt(0);
+			}
+		}
+	}
+
+	// size of a request in the batch, without its MSGSIZE and signature
+	private static int entrySize(TOMMessage message, int largeRequestSize) {
+		if (isLarge(message, largeRequestSize)) {
+			return REFERENCE_HEADER - Integer.BYTES + message.getSerializedMessageHash().length;
+		}
+		return message.getSerializedMessageLength();
+	}
+
+	private void putMessage(ByteBuffer proposalBuffer, TOMMessage message, boolean addSig, byte[] signature) {
+		proposalBuffer.putInt(message.getSerializedMessageLength());
+		message.putSerializedMessage(proposalBuffer);
 
 		if (addSig) {
 			if (signature != null) {
@@ -100,30 +149,29 @@ public final class BatchBuilder {
 	}
 
 	public byte[] makeBatch(List<TOMMessage> msgs, int numNounces, long timestamp, boolean useSignatures) {
+		return makeBatch(msgs, numNounces, timestamp, useSignatures, 0);
+	}
+
+	/**
+	 * Same as makeBatch(List, int, long, boolean), but the requests whose
+	 * serialized size is above largeRequestSize (if positive) are proposed by
+	 * reference.
+	 */
+	public byte[] makeBatch(List<TOMMessage> msgs, int numNounces, long timestamp, boolean useSignatures,
+			int largeRequestSize) {
 
 		int numMsgs = msgs.size();
 		int totalMessageSize = 0; // total size of the messages being batched
 
-		byte[][] messages = new byte[numMsgs][]; // bytes of the message (or its hash)
-		byte[][] signatures = new byte[numMsgs][]; // bytes of the message (or its hash)
-
-		// Fill the array of bytes for the messages/signatures being batched
-		int i = 0;
-
 		for (TOMMessage msg : msgs) {
-			// TOMMessage msg = msgs.next();
 			logger.trace("Adding request from client " + msg.getSender() + " with sequence number " + msg.getSequence()
 					+ " for session " + msg.getSession() + " to PROPOSE");
-			messages[i] = msg.serializedMessage;
-			signatures[i] = msg.serializedMessageSignature;
-			totalMessageSize += messages[i].length;
-			i++;
+			totalMessageSize += entrySize(msg, largeRequestSize);
 		}
 		
 		logger.debug("Batch size 1: {}, BatchMessage Size (byte): {}", numMsgs, totalMessageSize);
 		// return the batch
-		return createBatch(timestamp, numNounces, rnd.nextLong(), numMsgs, totalMessageSize, useSignatures, messages,
-				signatures);
+		return createBatch(timestamp, numNounces, rnd.nextLong(), msgs, totalMessageSize, useSignatures, largeRequestSize);
 
 	}
 
@@ -132,25 +180,14 @@ public final class BatchBuilder {
 		int numMsgs = msgs.size();
 		int totalMessageSize = 0; // total size of the messages being batched
 
-		byte[][] messages = new byte[numMsgs][]; // bytes of the message (or its hash)
-		byte[][] signatures = new byte[numMsgs][]; // bytes of the message (or its hash)
-
-		// Fill the array of bytes for the messages/signatures being batched
-		int i = 0;
-
 		for (TOMMessage msg : msgs) {
-			// TOMMessage msg = msgs.next();
 			// Logger.println("(TOMLayer.run) adding req " + msg + " to PROPOSE");
-			messages[i] = msg.serializedMessage;
-			signatures[i] = msg.serializedMessageSignature;
-
-			totalMessageSize += messages[i].length;
-			i++;
+			totalMessageSize += msg.getSerializedMessageLength();
 		}
 
 		logger.debug("Batch size 2: {}, BatchMessage Size (byte): {}", numMsgs, totalMessageSize);
 		// return the batch
-		return createBatch(timestamp, numNounces, seed, numMsgs, totalMessageSize, useSignatures, messages, signatures);
+		return createBatch(timestamp, numNounces, seed, msgs, totalMessageSize, useSignatures, 0);
 
 	}
 }
@@ -15,29 +15,96 @@ limitations under the License.
 */
 package bftsmart.tom.util;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.nio.ByteBuffer;
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.messages.TOMMessage;
 import org.slf4j.LoggerFactory;
 
 /**
- * Batch format: N_MESSAGES(int) + N_MESSAGES*[MSGSIZE(int),MSG(byte)] +
- *               TIMESTAMP(long) + N_NONCES(int) + NONCES(byte[])
+ * Batch format: TIMESTAMP(long) + N_NONCES(int) + SEED(long) + N_MESSAGES(int)
+ *               + N_MESSAGES*[MSGSIZE(int),MSG(byte),SIG(byte)]
  *
+ * Requests proposed by reference (see BatchBuilder) are obtained from a
+ * RequestResolver, and reading a batch fails if any of them is not available.
+ *
+ * Decoded requests reference their slice of the batch instead of a copy (see
+ * TOMMessage.getSerializedMessage()), so the batch must not be modified after
+ * being read.
  */
 public final class BatchReader {
 
+    // longest hash accepted in a reference
+    private static final int MAX_HASH_SIZE = 64;
+
     private ByteBuffer proposalBuffer;
     private boolean useSignatures;
+    private RequestResolver resolver;
 
     /** wrap buffer */
     public BatchReader(byte[] batch, boolean useSignatures) {
+        this(batch, useSignatures, null);
+    }
+
+    /** wrap buffer, resolving the requests proposed by reference */
+    public BatchReader(byte[] batch, boolean useSignatures, RequestResolver resolver) {
         proposalBuffer = ByteBuffer.wrap(batch);
-        this.useSignatures = useSignatures;        
+        this.useSignatures = useSignatures;
+        this.resolver = resolver;
+    }
+
+    /**
+     * Lists the requests of the batch proposed by reference, without
+     * decoding the batch.
+     *
+     * @return The references found in the batch (usually none)
+     */
+    public List<Reference> getReferences() {
+        ByteBuffer buffer = ByteBuffer.wrap(proposalBuffer.array());
+
+        buffer.getLong();
+        if (buffer.getInt() > 0) {
+            buffer.getLong();
+        }
+
+        int numberOfMessages = buffer.getInt();
+        List<Reference> references = Collections.emptyList();
+
+        for (int i = 0; i < numberOfMessages; i++) {
+            int messageSize = buffer.getInt();
+
+            if (messageSize == BatchBuilder.REFERENCE) {
+                if (references.isEmpty()) references = new ArrayList<>();
+                references.add(readReference(buffer));
+            } else {
+                buffer.position(buffer.position() + messageSize);
+            }
+
+            if (useSignatures) {
+                int sigSize = buffer.getInt();
+                if (sigSize > 0) buffer.position(buffer.position() + sigSize);
+            }
+        }
+        return references;
+    }
+
+    private static Reference readReference(ByteBuffer buffer) {
+        int sender = buffer.getInt();
+        int sequence = buffer.getInt();
+        int size = buffer.getInt();
+        int hashSize = buffer.getInt();
+
+        if (size < 0 || hashSize <= 0 || hashSize > MAX_HASH_SIZE) {
+            throw new IllegalArgumentException("Invalid request reference");
+        }
+
+        byte[] hash = new byte[hashSize];
+        buffer.get(hash);
+        return new Reference(sender, sequence, size, hash);
     }
 
     public TOMMessage[] deserialiseRequests(ServerViewController controller) {
@@ -49,10 +116,9 @@ public final class BatchReader {
         
         long seed = 0;
 
-        Random rnd = null;
+        //the nonces themselves are generated by the application from the seed
         if(numberOfNonces > 0){
             seed = proposalBuffer.getLong();
-            rnd = new Random(seed);
         }
         else numberOfNonces = 0; // make sure the value is correct
         
@@ -60,12 +126,29 @@ public final class BatchReader {
 
         TOMMessage[] requests = new TOMMessage[numberOfMessages];
 
+        byte[] batch = proposalBuffer.array();
+
         for (int i = 0; i < numberOfMessages; i++) {
-            //read the message and its signature from the batch
+            //read the message and its signature from the batch; the message
+            //is not copied, the TOMMessage keeps a view of the proposal
             int messageSize = proposalBuffer.getInt();
+            byte[] message = batch;
+            int messageOffset;
+
+            if (messageSize == BatchBuilder.REFERENCE) {
+                //a large request, whose contents are not in the batch
+                Reference reference = readReference(proposalBuffer);
+                message = (resolver != null) ? resolver.resolve(reference) : null;
 
-            byte[] message = new byte[messageSize];
-            proposalBuffer.get(message);
+                if (message == null) {
+                    throw new IllegalStateException("Contents of " + reference + " are not available");
+                }
+                messageOffset = 0;
+                messageSize = message.length;
+            } else {
+                messageOffset = proposalBuffer.arrayOffset() + proposalBuffer.position();
+                proposalBuffer.position(proposalBuffer.position() + messageSize);
+            }
 
             byte[] signature = null;
             
@@ -79,17 +162,11 @@ public final class BatchReader {
                 }
             }
             
-            //obtain the nonces to be delivered to the application
-            byte[] nonces = new byte[numberOfNonces];
-            if (nonces.length > 0) {
-                rnd.nextBytes(nonces);
-            }
             try {
-                DataInputStream ois = new DataInputStream(new ByteArrayInputStream(message));
                 TOMMessage tm = new TOMMessage();
-                tm.rExternal(ois);
+                tm.rExternal(message, messageOffset, messageSize);
+                if (message != batch) tm.serializedMessage = message;
 
-                tm.serializedMessage = message;
                 tm.serializedMessageSignature = signature;
                 tm.numOfNonces = numberOfNonces;
                 tm.seed = seed;
@@ -102,4 +179,63 @@ public final class BatchReader {
         }
         return requests;
     }
+
+    /**
+     * A request proposed by reference: its client, sequence number, size
+     * and the hash of the serialized request.
+     */
+    public static final class Reference {
+
+        public final int sender;
+        public final int sequence;
+        public final int size;
+        public final byte[] hash;
+
+        public Reference(int sender, int sequence, int size, byte[] hash) {
+            this.sender = sender;
+            this.sequence = sequence;
+            this.size = size;
+            this.hash = hash;
+        }
+
+        /**
+         * @param request A request
+         * @return true if the request is the one referenced
+         */
+        public boolean matches(TOMMessage request) {
+            return request.getSender() == sender && request.getSequence() == sequence
+                    && request.getSerializedMessageLength() == size
+                    && Arrays.equals(hash, request.getSerializedMessageHash());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Reference)) return false;
+            Reference r = (Reference) o;
+            return sender == r.sender && sequence == r.sequence && size == r.size && Arrays.equals(hash, r.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * sender + sequence) + Arrays.hashCode(hash);
+        }
+
+        @Override
+        public String toString() {
+            return "request " + sequence + " of client " + sender;
+        }
+    }
+
+    /**
+     * Provides the contents of the requests proposed by reference.
+     */
+    public interface RequestResolver {
+
+        /**
+         * @param reference The referenced request
+         * @return The serialized request, which must match the reference, or
+         * null if it is not available
+         */
+        public byte[] resolve(Reference reference);
+    }
 }
@@ -0,0 +1,164 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+/**
+ * Per-thread cache of the digest, signature and MAC engines configured in
+ * TOMUtil. Engines are not thread safe and looking them up in the providers
+ * is expensive, so each thread keeps its own instances: one digest engine,
+ * one signature engine, and engines already initialized with each key it
+ * used (signing, verifying or MAC key), which are ready to use again after
+ * each sign/verify/doFinal.
+ *
+ * An engine that fails in the middle of an operation may be left in an
+ * unknown state, so callers must {@link #discard} the key-bound engines
+ * when an operation throws.
+ */
+public final class CryptoEngines {
+
+    // keys of a thread are usually those of the replicas and clients it talks to,
+    // the cache is dropped when it grows past this (e.g. after many reconfigurations)
+    private static final int MAX_KEYS = 256;
+
+    private static final ThreadLocal<Engines> ENGINES = ThreadLocal.withInitial(Engines::new);
+
+    private CryptoEngines() {
+    }
+
+    /**
+     * Returns the digest engine of the calling thread, reset.
+     *
+     * @return the digest engine of the calling thread
+     * @throws GeneralSecurityException if the hash algorithm is not available
+     */
+    public static MessageDigest hashEngine() throws GeneralSecurityException {
+        Engines e = ENGINES.get();
+        if (e.hash == null) {
+            e.hash = TOMUtil.getHashEngine();
+        } else {
+            e.hash.reset();
+        }
+        return e.hash;
+    }
+
+    /**
+     * Returns a signature engine of the calling thread that is not bound to
+     * any key, for APIs that initialize the engine themselves (e.g.
+     * SignedObject).
+     *
+     * @return a signature engine of the calling thread
+     * @throws GeneralSecurityException if the signature algorithm is not available
+     */
+    public static Signature signatureEngine() throws GeneralSecurityException {
+        Engines e = ENGINES.get();
+        if (e.signature == null) {
+            e.signature = TOMUtil.getSigEngine();
+        }
+        return e.signature;
+    }
+
+    /**
+     * Returns the signature engine of the calling thread initialized to sign
+     * with the given key.
+     *
+     * @param key the private key
+     * @return an engine ready to sign with the key
+     * @throws GeneralSecurityException if the engine cannot be created or initialized
+     */
+    public static Signature signer(PrivateKey key) throws GeneralSecurityException {
+        Map<Key, Object> cache = ENGINES.get().cache();
+        Signature engine = (Signature) cache.get(key);
+        if (engine == null) {
+            engine = TOMUtil.getSigEngine();
+            engine.initSign(key);
+            cache.put(key, engine);
+        }
+        return engine;
+    }
+
+    /**
+     * Returns the signature engine of the calling thread initialized to
+     * verify signatures of the given key.
+     *
+     * @param key the public key
+     * @return an engine ready to verify signatures of the key
+     * @throws GeneralSecurityException if the engine cannot be created or initialized
+     */
+    public static Signature verifier(PublicKey key) throws GeneralSecurityException {
+        Map<Key, Object> cache = ENGINES.get().cache();
+        Signature engine = (Signature) cache.get(key);
+        if (engine == null) {
+            engine = TOMUtil.getSigEngine();
+            engine.initVerify(key);
+            cache.put(key, engine);
+        }
+        return engine;
+    }
+
+    /**
+     * Returns the MAC engine of the calling thread initialized with the given key.
+     *
+     * @param key the secret key shared with a peer
+     * @return an engine ready to compute MACs with the key
+     * @throws GeneralSecurityException if the engine cannot be created or initialized
+     */
+    public static Mac mac(SecretKey key) throws GeneralSecurityException {
+        Map<Key, Object> cache = ENGINES.get().cache();
+        Mac engine = (Mac) cache.get(key);
+        if (engine == null) {
+            engine = TOMUtil.getMacFactory();
+            engine.init(key);
+            cache.put(key, engine);
+        }
+        return engine;
+    }
+
+    /**
+     * Drops the engine of the calling thread bound to the given key, to be
+     * called when an operation with it fails.
+     *
+     * @param key the key whose engine must be recreated on next use
+     */
+    public static void discard(Key key) {
+        ENGINES.get().cache().remove(key);
+    }
+
+    private static final class Engines {
+
+        private MessageDigest hash;
+        private Signature signature;
+        private final Map<Key, Object> byKey = new HashMap<>();
+
+        private Map<Key, Object> cache() {
+            if (byKey.size() >= MAX_KEYS) {
+                byKey.clear();
+            }
+            return byKey;
+        }
+    }
+}
@@ -20,6 +20,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
@@ -151,15 +152,14 @@ public class TOMUtil {
         byte[] signature = null;
         try {
             
-            Signature signatureEngine = getSigEngine();
-
-            signatureEngine.initSign(key);
+            Signature signatureEngine = CryptoEngines.signer(key);
 
             signatureEngine.update(message);
 
             signature = signatureEngine.sign();
             
         } catch (Exception e) {
+            CryptoEngines.discard(key);
             logger.error("Failed to sign message",e);
         }
 
@@ -179,10 +179,8 @@ public class TOMUtil {
         boolean result = false;
         
         try {
-            Signature signatureEngine = getSigEngine();
+            Signature signatureEngine = CryptoEngines.verifier(key);
 
-            signatureEngine.initVerify(key);
-            
             signatureEngine.update(message);
             
             result = signatureEngine.verify(signature);
@@ -190,6 +188,7 @@ public class TOMUtil {
             return result;
             
         } catch (Exception e) {
+            CryptoEngines.discard(key);
             logger.error("Failed to verify signature",e);
         }
 
@@ -229,10 +228,9 @@ public class TOMUtil {
         byte[] result = null;
         
         try {
-            MessageDigest md = getHashEngine();
-            result = md.digest(data);
+            result = CryptoEngines.hashEngine().digest(data);
             
-        } catch (NoSuchAlgorithmException e) {
+        } catch (GeneralSecurityException e) {
             logger.error("Failed to compute hash",e);
         } // TODO: shouldn't it be SHA?
                 
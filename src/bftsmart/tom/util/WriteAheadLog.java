@@ -0,0 +1,436 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of consensus data (batches and proofs), stored in
+ * preallocated segment files. Records are appended by a single writer thread,
+ * which forces to disk, with one call, every record queued since the last one
+ * (group commit). Appending returns a ticket that can be used to wait until
+ * the record is durable.
+ *
+ * Each record is written as: length (int), CRC32 of the rest (int), type
+ * (byte), consensus id (int) and data. A header with length and type 0 (the
+ * preallocated space is zeroed) marks the end of the records of a segment.
+ * Any other invalid header, or a record whose CRC does not match, is a
+ * corrupted record. When the log is opened, a corrupted record in the last
+ * segment is taken as torn by a crash, and it is discarded together with the
+ * records that follow it (which were never reported durable); a corrupted
+ * record anywhere else makes opening or reading the log fail.
+ *
+ * Segments whose consensus ids are all covered by a checkpoint can be removed
+ * with truncate(cid).
+ */
+public class WriteAheadLog {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    public static final byte BATCH = 1;
+    public static final byte PROOF = 2;
+
+    private static final int HEADER_SIZE = 13;
+    private static final String PREFIX = "segment_";
+    private static final String SUFFIX = ".wal";
+
+    private final File dir;
+    private final long segmentSize;
+
+    // queued by close() after the last record, stops the writer
+    private static final Record CLOSE = new Record(0, (byte) 0, 0, null);
+
+    private final LinkedBlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+
+    private long lastTicket = 0; // guarded by queue
+    private long durableTicket = 0; // guarded by this
+    private IOException failure = null; // guarded by this
+
+    // closed segments, oldest first (guarded by itself)
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    // only used by the writer thread
+    private Segment current = null;
+    private FileChannel channel = null;
+    private long position = 0;
+    private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    private static class Record {
+
+        private final long ticket;
+        private final byte type;
+        private final int cid;
+        private final byte[] data;
+
+        private Record(long ticket, byte type, int cid, byte[] data) {
+            this.ticket = ticket;
+            this.type = type;
+            this.cid = cid;
+            this.data = data;
+        }
+    }
+
+    private static class Segment {
+
+        private final int index;
+        private final File file;
+        private int maxCid = -1;
+
+        private Segment(int index, File file) {
+            this.index = index;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Receives the records read from the log
+     */
+    public interface RecordHandler {
+
+        public void record(byte type, int cid, byte[] data);
+    }
+
+    /**
+     * Opens the log stored in a directory. Existing segments are kept (and
+     * can be read), new records go to a new segment.
+     *
+     * @param dir Directory of the segment files
+     * @param segmentSize Size preallocated for each segment
+     * @throws IOException If the directory or the first segment cannot be created,
+     * or if an existing segment other than the last one is corrupted
+     */
+    public WriteAheadLog(String dir, long segmentSize) throws IOException {
+        this.dir = new File(dir);
+        this.segmentSize = segmentSize;
+
+        this.dir.mkdirs();
+        if (!this.dir.isDirectory()) {
+            throw new IOException("Cannot create log directory " + dir);
+        }
+
+        int next = 0;
+        File[] files = listSegments();
+        for (int i = 0; i < files.length; i++) {
+            boolean last = i == files.length - 1;
+            Segment segment = new Segment(segmentIndex(files[i]), files[i]);
+            // only the segment written when the replica stopped may have a torn record
+            long corrupted = readSegment(segment, (type, cid, data) -> segment.maxCid = Math.max(segment.maxCid, cid), last);
+            if (corrupted >= 0) {
+                if (!last) {
+                    throw new IOException("Corrupted record in log segment " + segment.file + " at position " + corrupted);
+                }
+                logger.warn("Discarding torn records at the end of log segment {} (position {})", segment.file.getName(), corrupted);
+                endSegment(segment.file, corrupted);
+            }
+            segments.add(segment);
+            next = segment.index + 1;
+        }
+        openSegment(next, 0);
+
+        writer = new Thread(this::writeLoop, "WAL Writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a record to be appended to the log. Records appended after the
+     * log is closed are not written.
+     *
+     * @param type Type of the record (BATCH or PROOF)
+     * @param cid Consensus id the record belongs to
+     * @param data Content of the record
+     * @return Ticket to wait for the record to be durable
+     */
+    public long append(byte type, int cid, byte[] data) {
+        synchronized (queue) {
+            long ticket = ++lastTicket;
+            queue.add(new Record(ticket, type, cid, data));
+            return ticket;
+        }
+    }
+
+    /**
+     * Waits until a record is forced to disk.
+     *
+     * @param ticket Ticket returned by append
+     * @throws IOException If the log could not be written
+     */
+    public synchronized void awaitDurable(long ticket) throws InterruptedException, IOException {
+        while (durableTicket < ticket && failure == null) {
+            wait();
+        }
+        if (durableTicket < ticket) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Removes the closed segments that only have records of consensus
+     * instances up to cid (e.g., the ones covered by a checkpoint).
+     *
+     * @param cid Last consensus id that is no longer needed
+     */
+    public void truncate(int cid) {
+        synchronized (segments) {
+            while (!segments.isEmpty() && segments.peekFirst().maxCid <= cid) {
+                Segment segment = segments.pollFirst();
+                if (!segment.file.delete()) {
+                    logger.warn("Could not remove log segment " + segment.file);
+                }
+                logger.debug("Removed log segment {} (consensus up to {})", segment.file.getName(), segment.maxCid);
+            }
+        }
+    }
+
+    /**
+     * Reads the records of all segments, in the order they were appended.
+     * Must not be called while records are being appended.
+     *
+     * @param handler Receives the records
+     * @throws IOException If a segment cannot be read or has a corrupted record
+     */
+    public void read(RecordHandler handler) throws IOException {
+        for (File file : listSegments()) {
+            long corrupted = readSegment(new Segment(segmentIndex(file), file), handler, true);
+            if (corrupted >= 0) {
+                throw new IOException("Corrupted record in log segment " + file + " at position " + corrupted);
+            }
+        }
+    }
+
+    /**
+     * Stops the writer thread, after writing and forcing the records queued
+     * before this call.
+     */
+    public void close() {
+        queue.add(CLOSE);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        ArrayList<Record> records = new ArrayList<>();
+        boolean closing = false;
+        while (!closing) {
+            try {
+                records.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(records);
+
+            int end = records.indexOf(CLOSE);
+            if (end >= 0) {
+                records.subList(end, records.size()).clear();
+                closing = true;
+            }
+            if (records.isEmpty()) {
+                continue;
+            }
+
+            try {
+                for (Record record : records) {
+                    write(record);
+                }
+                // a single force for every record written in this round
+                channel.force(false);
+
+                synchronized (this) {
+                    durableTicket = records.get(records.size() - 1).ticket;
+                    notifyAll();
+                }
+            } catch (IOException e) {
+                logger.error("Could not write to the log", e);
+                closing = true;
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+            }
+            records.clear();
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Could not close log segment", e);
+        }
+
+        synchronized (this) {
+            if (failure == null) {
+                failure = new IOException("The log is closed");
+            }
+            notifyAll();
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        int size = HEADER_SIZE + record.data.length;
+
+        // keep room for the end marker
+        if (position > 0 && position + size + HEADER_SIZE > segmentSize) {
+            closeSegment();
+            openSegment(current.index + 1, size + HEADER_SIZE);
+        }
+
+        crc.reset();
+        crc.update(record.type);
+        crc.update(record.cid >>> 24);
+        crc.update(record.cid >>> 16);
+        crc.update(record.cid >>> 8);
+        crc.update(record.cid);
+        crc.update(record.data);
+
+        header.clear();
+        header.putInt(record.data.length);
+        header.putInt((int) crc.getValue());
+        header.put(record.type);
+        header.putInt(record.cid);
+        header.flip();
+
+        ByteBuffer[] buffers = { header, ByteBuffer.wrap(record.data) };
+        channel.position(position);
+        while (buffers[1].hasRemaining()) {
+            channel.write(buffers);
+        }
+        position += size;
+
+        if (record.cid > current.maxCid) {
+            current.maxCid = record.cid;
+        }
+    }
+
+    private void openSegment(int index, long minSize) throws IOException {
+        File file = new File(dir, String.format("%s%010d%s", PREFIX, index, SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        // preallocate the segment and make its size durable now, so that the
+        // forces done for each group of records only need to write data
+        raf.setLength(Math.max(segmentSize, minSize));
+        channel = raf.getChannel();
+        channel.force(true);
+
+        current = new Segment(index, file);
+        position = 0;
+    }
+
+    private void closeSegment() throws IOException {
+        channel.write(ByteBuffer.allocate(HEADER_SIZE), position); // end marker
+        channel.force(false);
+        channel.close();
+
+        synchronized (segments) {
+            segments.add(current);
+        }
+    }
+
+    /**
+     * Reads the records of a segment up to its end marker.
+     *
+     * @return The position of the first corrupted record, or -1 if there is none
+     */
+    private long readSegment(Segment segment, RecordHandler handler, boolean checkCRC) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(segment.file, "r"); FileChannel in = raf.getChannel()) {
+            ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE);
+            CRC32 check = new CRC32();
+            long pos = 0;
+            long length = in.size();
+
+            while (pos + HEADER_SIZE <= length) {
+                head.clear();
+                readFully(in, head, pos);
+                head.flip();
+
+                int dataLength = head.getInt();
+                int expected = head.getInt();
+                byte type = head.get();
+                int cid = head.getInt();
+                if (dataLength == 0 && type == 0) {
+                    break; // end marker
+                }
+                if (dataLength < 0 || type == 0 || pos + HEADER_SIZE + dataLength > length) {
+                    return pos;
+                }
+
+                byte[] data = new byte[dataLength];
+                readFully(in, ByteBuffer.wrap(data), pos + HEADER_SIZE);
+
+                if (checkCRC) {
+                    check.reset();
+                    check.update(head.array(), 8, HEADER_SIZE - 8);
+                    check.update(data);
+                    if ((int) check.getValue() != expected) {
+                        return pos;
+                    }
+                }
+
+                handler.record(type, cid, data);
+                pos += HEADER_SIZE + dataLength;
+            }
+        }
+        return -1;
+    }
+
+    // writes the end marker over a torn record
+    private static void endSegment(File file, long position) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel out = raf.getChannel()) {
+            ByteBuffer marker = ByteBuffer.allocate(HEADER_SIZE);
+            while (marker.hasRemaining()) {
+                out.write(marker, position + marker.position());
+            }
+            out.force(false);
+        }
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of log segment");
+            }
+        }
+    }
+
+    private File[] listSegments() {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static int segmentIndex(File file) {
+        String name = file.getName();
+        return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+}
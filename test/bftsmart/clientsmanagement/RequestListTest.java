@@ -0,0 +1,118 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.clientsmanagement;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+
+public class RequestListTest {
+
+	@Test
+	public void testInterleavedClientsShareSequences() {
+		RequestList list = new RequestList();
+		for (int sequence = 0; sequence < 50; sequence++) {
+			for (int client = 1001; client <= 1003; client++) {
+				list.addLast(request(client, sequence));
+			}
+		}
+		assertEquals(150, list.size());
+
+		for (int sequence = 0; sequence < 50; sequence++) {
+			for (int client = 1001; client <= 1003; client++) {
+				TOMMessage msg = list.getBySequence(client, sequence);
+				assertNotNull(msg);
+				assertEquals(client, msg.getSender());
+				assertEquals(sequence, msg.getSequence());
+			}
+		}
+		assertNull(list.getBySequence(1004, 0));
+		assertNull(list.getBySequence(1001, 50));
+	}
+
+	@Test
+	public void testRemovalKeepsOtherClients() {
+		RequestList list = new RequestList();
+		for (int sequence = 0; sequence < 20; sequence++) {
+			list.addLast(request(1001, sequence));
+			list.addLast(request(1002, sequence));
+		}
+
+		// remove every request of the first client, in different ways
+		for (int sequence = 0; sequence < 20; sequence++) {
+			TOMMessage msg = list.getBySequence(1001, sequence);
+			if (sequence % 2 == 0) {
+				assertTrue(list.remove(msg));
+			} else {
+				assertSame(msg, list.removeById(msg.getId()));
+			}
+		}
+		assertEquals(20, list.size());
+
+		for (int sequence = 0; sequence < 20; sequence++) {
+			assertNull(list.getBySequence(1001, sequence));
+			assertEquals(1002, list.getBySequence(1002, sequence).getSender());
+		}
+
+		// the list is compacted when it fills up again
+		for (int sequence = 20; sequence < 40; sequence++) {
+			list.addLast(request(1001, sequence));
+			list.addLast(request(1002, sequence));
+		}
+		for (int sequence = 0; sequence < 40; sequence++) {
+			assertEquals(sequence >= 20, list.getBySequence(1001, sequence) != null);
+			assertNotNull(list.getBySequence(1002, sequence));
+		}
+	}
+
+	@Test
+	public void testCollidingKeys() {
+		RequestList list = new RequestList();
+		// both pairs map to the same index key
+		TOMMessage first = request(1, 0);
+		TOMMessage second = request(0, 0x01000193);
+		list.addLast(first);
+		list.addLast(second);
+
+		assertSame(first, list.getBySequence(1, 0));
+		assertSame(second, list.getBySequence(0, 0x01000193));
+
+		list.remove(first);
+		assertNull(list.getBySequence(1, 0));
+		assertSame(second, list.getBySequence(0, 0x01000193));
+	}
+
+	@Test
+	public void testMaxSizeDropsOldest() {
+		RequestList list = new RequestList(5);
+		for (int sequence = 0; sequence < 4; sequence++) {
+			list.addLast(request(1001, sequence));
+			list.addLast(request(1002, sequence));
+		}
+		assertEquals(5, list.size());
+		assertNull(list.getBySequence(1001, 1));
+		assertNotNull(list.getBySequence(1002, 1));
+		assertNotNull(list.getBySequence(1001, 2));
+		assertNotNull(list.getBySequence(1002, 3));
+	}
+
+	private static TOMMessage request(int client, int sequence) {
+		return new TOMMessage(client, 0, sequence, sequence, new byte[] { (byte) sequence }, 0, TOMMessageType.ORDERED_REQUEST);
+	}
+}
@@ -0,0 +1,117 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import bftsmart.tom.MessageContext;
+
+public class DefaultPartitionedRecoverableTest {
+
+	private static final int NUM_CHUNKS = 4;
+
+	@Test
+	public void testRejectsMismatchedChunk() {
+		Chunks source = new Chunks(1);
+		byte[] manifest = source.getSnapshot();
+
+		Map<Integer, byte[]> chunks = source.allChunks();
+		chunks.put(2, new byte[] { 9, 9, 9 });
+
+		Chunks target = new Chunks(0);
+		assertEquals(-1, target.setState(state(manifest, chunks)));
+		assertEquals(0, target.installed);
+	}
+
+	@Test
+	public void testRejectsChunkOutsideTheManifest() {
+		Chunks source = new Chunks(1);
+		byte[] manifest = source.getSnapshot();
+
+		Map<Integer, byte[]> chunks = source.allChunks();
+		chunks.put(NUM_CHUNKS, new byte[] { 1 });
+
+		assertEquals(-1, new Chunks(0).setState(state(manifest, chunks)));
+	}
+
+	@Test
+	public void testRejectsMissingChunks() {
+		Chunks source = new Chunks(1);
+		byte[] manifest = source.getSnapshot();
+
+		Map<Integer, byte[]> chunks = source.allChunks();
+		chunks.remove(3);
+
+		Chunks target = new Chunks(0);
+		assertEquals(-1, target.setState(state(manifest, chunks)));
+		assertEquals(0, target.installed);
+	}
+
+	private static PartitionedApplicationState state(byte[] manifest, Map<Integer, byte[]> chunks) {
+		return new PartitionedApplicationState(new DefaultApplicationState(new CommandsInfo[0], 0, 0, manifest, null, 1), chunks);
+	}
+
+	private static class Chunks extends DefaultPartitionedRecoverable {
+
+		private final byte[][] contents = new byte[NUM_CHUNKS][];
+		private int installed = 0;
+
+		private Chunks(int seed) {
+			for (int i = 0; i < NUM_CHUNKS; i++) {
+				contents[i] = new byte[] { (byte) seed, (byte) i };
+			}
+		}
+
+		private Map<Integer, byte[]> allChunks() {
+			Map<Integer, byte[]> chunks = new HashMap<>();
+			for (int i = 0; i < NUM_CHUNKS; i++) {
+				chunks.put(i, contents[i].clone());
+			}
+			return chunks;
+		}
+
+		@Override
+		public int getNumChunks() {
+			return NUM_CHUNKS;
+		}
+
+		@Override
+		public byte[] getChunk(int index) {
+			return contents[index].clone();
+		}
+
+		@Override
+		public void installChunk(int index, byte[] chunk) {
+			contents[index] = chunk;
+			installed++;
+		}
+
+		@Override
+		public byte[][] appExecuteBatch(byte[][] commands, MessageContext[] msgCtxs, boolean fromConsensus) {
+			return new byte[commands.length][];
+		}
+
+		@Override
+		public byte[] appExecuteUnordered(byte[] command, MessageContext msgCtx) {
+			return new byte[0];
+		}
+	}
+}
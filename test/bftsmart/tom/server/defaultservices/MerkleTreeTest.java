@@ -0,0 +1,83 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import static org.junit.Assert.*;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class MerkleTreeTest {
+
+	@Test
+	public void testSameLeaves() throws Exception {
+		MerkleTree tree = new MerkleTree(leaves(7), sha256());
+		MerkleTree other = new MerkleTree(leaves(7), sha256());
+
+		assertArrayEquals(tree.getRoot(), other.getRoot());
+		assertEquals(Collections.emptyList(), tree.diff(other));
+	}
+
+	@Test
+	public void testDiffFindsChangedLeaves() throws Exception {
+		// with 7 leaves, the last one has no sibling and is promoted
+		byte[][] changed = leaves(7);
+		changed[2] = hash(100);
+		changed[6] = hash(101);
+
+		MerkleTree tree = new MerkleTree(leaves(7), sha256());
+		MerkleTree other = new MerkleTree(changed, sha256());
+
+		assertFalse(Arrays.equals(tree.getRoot(), other.getRoot()));
+		assertEquals(Arrays.asList(2, 6), tree.diff(other));
+		assertEquals(Arrays.asList(2, 6), other.diff(tree));
+	}
+
+	@Test
+	public void testDiffWithoutComparableTree() throws Exception {
+		MerkleTree tree = new MerkleTree(leaves(4), sha256());
+
+		assertEquals(Arrays.asList(0, 1, 2, 3), tree.diff(null));
+		assertEquals(Arrays.asList(0, 1, 2, 3), tree.diff(new MerkleTree(leaves(3), sha256())));
+	}
+
+	@Test
+	public void testEmptyTree() throws Exception {
+		MerkleTree tree = new MerkleTree(new byte[0][], sha256());
+
+		assertEquals(0, tree.getRoot().length);
+		assertEquals(Collections.emptyList(), tree.diff(new MerkleTree(new byte[0][], sha256())));
+	}
+
+	private static byte[][] leaves(int count) throws Exception {
+		byte[][] leaves = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			leaves[i] = hash(i);
+		}
+		return leaves;
+	}
+
+	private static byte[] hash(int value) throws Exception {
+		return sha256().digest(new byte[] { (byte) value });
+	}
+
+	private static MessageDigest sha256() throws Exception {
+		return MessageDigest.getInstance("SHA-256");
+	}
+}
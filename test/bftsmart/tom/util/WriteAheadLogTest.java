@@ -0,0 +1,221 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteAheadLogTest {
+
+	private static final int HEADER_SIZE = 13;
+	private static final int DATA_SIZE = 50;
+	// three records fit in a segment, with room for the end marker
+	private static final int SEGMENT_SIZE = 256;
+
+	private File dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = Files.createTempDirectory("wal").toFile();
+	}
+
+	@After
+	public void deleteDir() {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testAppendAndRead() throws Exception {
+		WriteAheadLog wal = new WriteAheadLog(dir.getPath(), SEGMENT_SIZE);
+		long ticket = 0;
+		for (int i = 0; i < 10; i++) {
+			ticket = wal.append(i % 2 == 0 ? WriteAheadLog.BATCH : WriteAheadLog.PROOF, i / 2, data(i));
+		}
+		wal.awaitDurable(ticket);
+		wal.close();
+
+		List<int[]> records = read();
+		assertEquals(10, records.size());
+		for (int i = 0; i < 10; i++) {
+			assertArrayEquals(new int[] { i % 2 == 0 ? WriteAheadLog.BATCH : WriteAheadLog.PROOF, i / 2, i }, records.get(i));
+		}
+
+		// a reopened log keeps the old records and appends after them
+		wal = new WriteAheadLog(dir.getPath(), SEGMENT_SIZE);
+		wal.awaitDurable(wal.append(WriteAheadLog.BATCH, 5, data(10)));
+		wal.close();
+
+		records = read();
+		assertEquals(11, records.size());
+		assertArrayEquals(new int[] { WriteAheadLog.BATCH, 5, 10 }, records.get(10));
+	}
+
+	@Test
+	public void testCloseWritesQueuedRecords() throws Exception {
+		WriteAheadLog wal = new WriteAheadLog(dir.getPath(), 1024 * 1024);
+		for (int i = 0; i < 1000; i++) {
+			wal.append(WriteAheadLog.BATCH, i, data(i));
+		}
+		wal.close();
+
+		List<int[]> records = read();
+		assertEquals(1000, records.size());
+		assertArrayEquals(new int[] { WriteAheadLog.BATCH, 999, (byte) 999 }, records.get(999));
+	}
+
+	@Test(expected = IOException.class)
+	public void testAppendAfterClose() throws Exception {
+		WriteAheadLog wal = new WriteAheadLog(dir.getPath(), SEGMENT_SIZE);
+		wal.close();
+		wal.awaitDurable(wal.append(WriteAheadLog.BATCH, 0, data(0)));
+	}
+
+	@Test
+	public void testTruncate() throws Exception {
+		WriteAheadLog wal = new WriteAheadLog(dir.getPath(), SEGMENT_SIZE);
+		long ticket = 0;
+		for (int cid = 0; cid < 12; cid++) {
+			ticket = wal.append(WriteAheadLog.BATCH, cid, data(cid));
+		}
+		wal.awaitDurable(ticket);
+		assertEquals(4, segments().length);
+
+		// the second segment (cids 3 to 5) is still needed
+		wal.truncate(4);
+		assertEquals(3, segments().length);
+
+		// the segment being written is never removed
+		wal.truncate(11);
+		assertEquals(1, segments().length);
+		wal.close();
+
+		List<int[]> records = read();
+		assertEquals(3, records.size());
+		assertEquals(9, records.get(0)[1]);
+	}
+
+	@Test
+	public void testTornRecordIsDiscarded() throws Exception {
+		WriteAheadLog wal = new WriteAheadLog(dir.getPath(), 1024);
+		for (int cid = 0; cid < 5; cid++) {
+			wal.append(WriteAheadLog.BATCH, cid, data(cid));
+		}
+		wal.close();
+
+		// damage the data of the fourth record
+		corrupt(segments()[0], 4 * (HEADER_SIZE + DATA_SIZE) - 1);
+
+		wal = new WriteAheadLog(dir.getPath(), 1024);
+		wal.awaitDurable(wal.append(WriteAheadLog.BATCH, 5, data(5)));
+		wal.close();
+
+		List<int[]> records = read();
+		assertEquals(4, records.size());
+		assertEquals(2, records.get(2)[1]);
+		assertEquals(5, records.get(3)[1]);
+	}
+
+	@Test(expected = IOException.class)
+	public void testInvalidLengthIsCorruption() throws Exception {
+		WriteAheadLog wal = new WriteAheadLog(dir.getPath(), SEGMENT_SIZE);
+		for (int cid = 0; cid < 7; cid++) {
+			wal.append(WriteAheadLog.BATCH, cid, data(cid));
+		}
+		wal.close();
+
+		// a negative length in a closed segment is not the end of the log
+		try (RandomAccessFile file = new RandomAccessFile(segments()[0], "rw")) {
+			file.seek(HEADER_SIZE + DATA_SIZE);
+			file.writeInt(-1);
+		}
+
+		new WriteAheadLog(dir.getPath(), SEGMENT_SIZE);
+	}
+
+	@Test(expected = IOException.class)
+	public void testCorruptedRecordFailsRead() throws Exception {
+		WriteAheadLog wal = new WriteAheadLog(dir.getPath(), SEGMENT_SIZE);
+		for (int cid = 0; cid < 7; cid++) {
+			wal.append(WriteAheadLog.BATCH, cid, data(cid));
+		}
+		wal.close();
+
+		corrupt(segments()[0], HEADER_SIZE + 1);
+
+		read();
+	}
+
+	// records as { type, cid, first byte of data }
+	private List<int[]> read() throws IOException {
+		List<int[]> records = new ArrayList<>();
+		WriteAheadLog wal = new WriteAheadLog(dir.getPath(), SEGMENT_SIZE);
+		try {
+			wal.read((type, cid, data) -> {
+				assertEquals(DATA_SIZE, data.length);
+				records.add(new int[] { type, cid, data[0] });
+			});
+		} finally {
+			wal.close();
+		}
+		return records;
+	}
+
+	// segment files with records, oldest first
+	private File[] segments() {
+		File[] files = dir.listFiles((d, name) -> new File(d, name).length() > 0);
+		Arrays.sort(files);
+		ArrayList<File> used = new ArrayList<>();
+		for (File file : files) {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+				if (raf.readInt() != 0) {
+					used.add(file);
+				}
+			} catch (IOException e) {
+				fail(e.getMessage());
+			}
+		}
+		return used.toArray(new File[used.size()]);
+	}
+
+	private static void corrupt(File file, long position) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(position);
+			int b = raf.read();
+			raf.seek(position);
+			raf.write(b ^ 0xff);
+		}
+	}
+
+	private static byte[] data(int value) {
+		byte[] data = new byte[DATA_SIZE];
+		Arrays.fill(data, (byte) value);
+		return data;
+	}
+}